@@ -0,0 +1,96 @@
+package com.tgcannabis.batch_processor.benchmark;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compares a JMH JSON result file ({@code -rf json}) against the committed baseline and exits with status 1
+ * if a benchmark got slower or allocates more than the tolerance allows.
+ * <p>
+ * Usage: {@code BaselineCheck <baseline.json> <result.json> [tolerance]}, tolerance as a fraction (default 0.10).
+ * Throughput is compared relative to the baseline's score; allocation per operation
+ * ({@code gc.alloc.rate.norm}) is compared with an extra 16 bytes of slack, since a single object more
+ * or less is noise at that scale. Benchmarks missing from either file are listed but never fail the check.
+ */
+public final class BaselineCheck {
+
+    private static final String ALLOC_NORM = "gc.alloc.rate.norm";
+    private static final double ALLOC_SLACK_BYTES = 16;
+
+    private record Score(double throughput, double allocNorm) {
+    }
+
+    private BaselineCheck() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineCheck <baseline.json> <result.json> [tolerance]");
+            System.exit(2);
+        }
+        Map<String, Score> baseline = read(Path.of(args[0]));
+        Map<String, Score> current = read(Path.of(args[1]));
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 0.10;
+
+        boolean regressed = false;
+        System.out.printf("%-50s %14s %14s %8s %10s %10s%n", "Benchmark", "Baseline", "Current", "Change",
+                "B/op base", "B/op now");
+        for (Map.Entry<String, Score> entry : current.entrySet()) {
+            Score now = entry.getValue();
+            Score base = baseline.get(entry.getKey());
+            if (base == null) {
+                System.out.printf("%-50s %14s %14.0f %8s%n", entry.getKey(), "-", now.throughput(), "new");
+                continue;
+            }
+            double change = now.throughput() / base.throughput() - 1;
+            boolean slower = change < -tolerance;
+            boolean heavier = !Double.isNaN(base.allocNorm()) && !Double.isNaN(now.allocNorm())
+                    && now.allocNorm() > base.allocNorm() * (1 + tolerance) + ALLOC_SLACK_BYTES;
+            regressed |= slower || heavier;
+            System.out.printf("%-50s %14.0f %14.0f %7.1f%% %10.1f %10.1f%s%n", entry.getKey(), base.throughput(),
+                    now.throughput(), change * 100, base.allocNorm(), now.allocNorm(),
+                    slower ? "  SLOWER" : heavier ? "  MORE ALLOCATION" : "");
+        }
+        for (String name : baseline.keySet()) {
+            if (!current.containsKey(name)) {
+                System.out.printf("%-50s %14.0f %14s %8s%n", name, baseline.get(name).throughput(), "-", "missing");
+            }
+        }
+        if (regressed) {
+            System.out.printf("Regression beyond %.0f%% tolerance%n", tolerance * 100);
+            System.exit(1);
+        }
+    }
+
+    private static Map<String, Score> read(Path file) throws IOException {
+        Map<String, Score> scores = new LinkedHashMap<>();
+        try (Reader reader = Files.newBufferedReader(file)) {
+            for (JsonElement element : JsonParser.parseReader(reader).getAsJsonArray()) {
+                JsonObject result = element.getAsJsonObject();
+                JsonObject primary = result.getAsJsonObject("primaryMetric");
+                double allocNorm = Double.NaN;
+                JsonObject secondary = result.getAsJsonObject("secondaryMetrics");
+                if (secondary != null) {
+                    for (Map.Entry<String, JsonElement> metric : secondary.entrySet()) {
+                        // JMH prefixes profiler metrics with a middle dot
+                        if (metric.getKey().endsWith(ALLOC_NORM)) {
+                            allocNorm = metric.getValue().getAsJsonObject().get("score").getAsDouble();
+                        }
+                    }
+                }
+                String benchmark = result.get("benchmark").getAsString();
+                // Class and method only; the package is the same for all of them
+                scores.put(benchmark.substring(benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1) + 1), new Score(primary.get("score").getAsDouble(), allocNorm));
+            }
+        }
+        return scores;
+    }
+}
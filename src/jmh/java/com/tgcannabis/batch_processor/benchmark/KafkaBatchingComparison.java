@@ -0,0 +1,239 @@
+package com.tgcannabis.batch_processor.benchmark;
+
+import com.tgcannabis.batch_processor.kafka.KafkaProducerTuner;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.MemoryRecordsBuilder;
+import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.utils.Utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Load-test comparison of Kafka producer batching settings that runs without a broker.
+ * <p>
+ * A synthetic sensor fleet (the same payloads as {@link LoadHarness}) is replayed in simulated time through a
+ * model of the producer's record accumulator: records go to the partition their key hashes to, each partition
+ * fills one batch at a time, and a batch is sealed once it reaches {@code batch.size} or, at the sender's next
+ * cycle, once {@code linger.ms} has passed since its first record. Every sealed batch is encoded with Kafka's
+ * own {@link MemoryRecordsBuilder} and codec, so batch sizes on the wire, compression ratios and encoding CPU
+ * are real; only the timing is modelled. Network round trips and broker behaviour are not.
+ * <p>
+ * Three settings are compared: the client defaults, the configured starting point, and the settings
+ * {@link KafkaProducerTuner} arrives at when started from the client defaults and fed the metrics of each
+ * simulated run (its convergence is printed round by round).
+ * <p>
+ * Arguments are {@code key=value} pairs:
+ * <ul>
+ *   <li>{@code fleet}: number of sensors (default 1000)</li>
+ *   <li>{@code rate}: messages per second (default 10000)</li>
+ *   <li>{@code partitions}: partitions of the topic (default 12)</li>
+ *   <li>{@code duration}: simulated seconds per run (default 30)</li>
+ *   <li>{@code cycle}: milliseconds between two sender wake-ups (default 1)</li>
+ *   <li>{@code period}: event time between two readings of one sensor, in milliseconds (default 1000)</li>
+ *   <li>{@code lingerMax}: the tuner's linger limit in milliseconds (default 200)</li>
+ * </ul>
+ */
+public final class KafkaBatchingComparison {
+
+    private static final String[] TYPES = {"temperature", "humidity", "soil_moisture", "co2", "light"};
+    private static final String[] LOCATIONS = {"growlab", "greenhouse-1", "greenhouse-2", "drying-room"};
+    private static final long BASE_TIMESTAMP = 1_713_370_000_000L;
+    private static final int MAX_ROUNDS = 12;
+
+    private final int fleet;
+    private final double rate;
+    private final int partitions;
+    private final int duration;
+    private final double cycleMs;
+    private final long periodMs;
+
+    private KafkaBatchingComparison(int fleet, double rate, int partitions, int duration, double cycleMs, long periodMs) {
+        this.fleet = fleet;
+        this.rate = rate;
+        this.partitions = partitions;
+        this.duration = duration;
+        this.cycleMs = cycleMs;
+        this.periodMs = periodMs;
+    }
+
+    /** Totals of one simulated run. */
+    private record Run(KafkaProducerTuner.Settings settings, long records, long batches, long recordBytes,
+                       long uncompressedBytes, long wireBytes, double queueTimeMs, long encodeNanos, int duration) {
+
+        double recordsPerBatch() {
+            return (double) records / batches;
+        }
+
+        double compressionRatio() {
+            return (double) wireBytes / uncompressedBytes;
+        }
+
+        KafkaProducerTuner.Snapshot snapshot() {
+            double buffer = 32 * 1024 * 1024; // buffer.memory default; the model never runs short of it
+            return new KafkaProducerTuner.Snapshot((double) records / duration, (double) recordBytes / records,
+                    (double) wireBytes / batches, compressionRatio(), queueTimeMs / records, buffer, buffer);
+        }
+    }
+
+    /** A partition's open batch. */
+    private static final class OpenBatch {
+        MemoryRecordsBuilder builder;
+        double firstMs;
+        final List<Double> arrivals = new ArrayList<>();
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> load = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) throw new IllegalArgumentException("Expected key=value but got '" + arg + "'");
+            load.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        KafkaBatchingComparison comparison = new KafkaBatchingComparison(
+                Integer.parseInt(load.getOrDefault("fleet", "1000")),
+                Double.parseDouble(load.getOrDefault("rate", "10000")),
+                Integer.parseInt(load.getOrDefault("partitions", "12")),
+                Integer.parseInt(load.getOrDefault("duration", "30")),
+                Double.parseDouble(load.getOrDefault("cycle", "1")),
+                Long.parseLong(load.getOrDefault("period", "1000")));
+        int lingerMax = Integer.parseInt(load.getOrDefault("lingerMax", "200"));
+        comparison.compare(new KafkaProducerTuner.Limits(lingerMax, 16384, 1048576, List.of("none", "lz4", "zstd")));
+    }
+
+    private void compare(KafkaProducerTuner.Limits limits) {
+        System.out.printf("%d sensors, %.0f msg/s over %d partitions, %d s simulated, sender cycle %.1f ms%n%n",
+                fleet, rate, partitions, duration, cycleMs);
+        KafkaProducerTuner.Settings clientDefaults = new KafkaProducerTuner.Settings(0, 16384, "none");
+        run(clientDefaults); // Warm up the JIT and codecs before anything is timed
+
+        System.out.println("Tuner convergence from the client defaults:");
+        header();
+        KafkaProducerTuner tuner = new KafkaProducerTuner(clientDefaults, limits, 0, Map::of, settings -> {
+        });
+        KafkaProducerTuner.Settings settings = clientDefaults;
+        Run tuned = null;
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            tuned = run(settings);
+            print("round " + round, tuned);
+            KafkaProducerTuner.Settings proposal = tuner.propose(settings, tuned.snapshot());
+            if (proposal.equals(settings)) break;
+            settings = proposal;
+        }
+
+        System.out.println();
+        System.out.println("Comparison:");
+        header();
+        print("client defaults", run(clientDefaults));
+        print("configured start", run(new KafkaProducerTuner.Settings(20, 65536, "lz4")));
+        print("tuned", tuned);
+    }
+
+    private static void header() {
+        System.out.printf("%-18s %7s %8s %6s %10s %10s %11s %8s %10s %9s%n", "", "linger", "batch", "codec",
+                "rec/batch", "batches/s", "wire KiB/s", "ratio", "encode %", "queue ms");
+    }
+
+    private static void print(String label, Run run) {
+        KafkaProducerTuner.Settings s = run.settings();
+        System.out.printf("%-18s %7d %8d %6s %10.1f %10.0f %11.0f %8.2f %10.2f %9.1f%n", label,
+                s.lingerMs(), s.batchSize(), s.compression(), run.recordsPerBatch(),
+                (double) run.batches() / run.duration(), run.wireBytes() / 1024.0 / run.duration(),
+                run.compressionRatio(), 100.0 * run.encodeNanos() / (run.duration() * 1e9),
+                run.queueTimeMs() / run.records());
+    }
+
+    /**
+     * Replays the fleet's traffic through the accumulator model with the given settings.
+     */
+    private Run run(KafkaProducerTuner.Settings settings) {
+        CompressionType compression = CompressionType.forName(settings.compression());
+        OpenBatch[] open = new OpenBatch[partitions];
+        for (int p = 0; p < partitions; p++) open[p] = new OpenBatch();
+        long[] totals = new long[6]; // records, batches, record bytes, uncompressed bytes, wire bytes, encode nanos
+        double[] queueTimeMs = new double[1];
+
+        SplittableRandom random = new SplittableRandom(42); // Same traffic for every run
+        byte[][] keys = new byte[fleet][];
+        for (int sensor = 0; sensor < fleet; sensor++) {
+            keys[sensor] = ("sensor-" + sensor).getBytes(StandardCharsets.UTF_8);
+        }
+        StringBuilder json = new StringBuilder(160);
+        long messages = (long) (rate * duration);
+        for (long i = 0; i < messages; i++) {
+            double nowMs = i * 1000.0 / rate;
+            int sensor = (int) (i % fleet);
+            json.setLength(0);
+            json.append("{\"sensorType\":\"").append(TYPES[sensor % TYPES.length])
+                    .append("\",\"location\":\"").append(LOCATIONS[sensor % LOCATIONS.length])
+                    .append("\",\"sensorId\":\"sensor-").append(sensor)
+                    .append("\",\"value\":").append(Math.round(random.nextDouble() * 10_000) / 100.0)
+                    .append(",\"timestamp\":").append(BASE_TIMESTAMP + (i / fleet) * periodMs)
+                    .append('}');
+            byte[] key = keys[sensor];
+            byte[] value = json.toString().getBytes(StandardCharsets.UTF_8);
+
+            // Sender wake-ups since the previous record: seal batches whose linger has expired
+            for (int p = 0; p < partitions; p++) {
+                OpenBatch batch = open[p];
+                if (batch.builder != null && readyAt(batch, settings) <= nowMs) {
+                    seal(batch, readyAt(batch, settings), totals, queueTimeMs);
+                }
+            }
+
+            OpenBatch batch = open[Utils.toPositive(Utils.murmur2(key)) % partitions];
+            long started = System.nanoTime();
+            if (batch.builder != null && !batch.builder.hasRoomFor(nowMs(nowMs), key, value, Record.EMPTY_HEADERS)) {
+                totals[5] += System.nanoTime() - started;
+                seal(batch, nowMs, totals, queueTimeMs); // Full: the sender is woken up at once
+                started = System.nanoTime();
+            }
+            if (batch.builder == null) {
+                batch.builder = MemoryRecords.builder(ByteBuffer.allocate(Math.max(settings.batchSize(), value.length + 128)),
+                        compression, TimestampType.CREATE_TIME, 0L);
+                batch.firstMs = nowMs;
+            }
+            batch.builder.append(nowMs(nowMs), key, value);
+            totals[5] += System.nanoTime() - started;
+            batch.arrivals.add(nowMs);
+            totals[0]++;
+            totals[2] += key.length + value.length;
+        }
+        for (OpenBatch batch : open) {
+            if (batch.builder != null) seal(batch, readyAt(batch, settings), totals, queueTimeMs);
+        }
+        return new Run(settings, totals[0], totals[1], totals[2], totals[3], totals[4], queueTimeMs[0], totals[5],
+                duration);
+    }
+
+    /** @return When the sender picks up a batch sealed by linger: its first cycle after the linger expires. */
+    private double readyAt(OpenBatch batch, KafkaProducerTuner.Settings settings) {
+        double expiry = batch.firstMs + settings.lingerMs();
+        return Math.max(Math.ceil(expiry / cycleMs) * cycleMs, expiry);
+    }
+
+    private static long nowMs(double simulatedMs) {
+        return BASE_TIMESTAMP + (long) simulatedMs;
+    }
+
+    private static void seal(OpenBatch batch, double sealedMs, long[] totals, double[] queueTimeMs) {
+        long started = System.nanoTime();
+        MemoryRecords records = batch.builder.build(); // Compresses the batch
+        totals[5] += System.nanoTime() - started;
+        totals[1]++;
+        totals[3] += batch.builder.uncompressedBytesWritten();
+        totals[4] += records.sizeInBytes();
+        for (double arrival : batch.arrivals) {
+            queueTimeMs[0] += sealedMs - arrival;
+        }
+        batch.arrivals.clear();
+        batch.builder = null;
+    }
+}
@@ -0,0 +1,78 @@
+package com.tgcannabis.batch_processor.benchmark;
+
+import com.google.gson.Gson;
+import com.tgcannabis.batch_processor.model.SensorData;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the producer-side cost of one Kafka record: the previous path (payload decoded to a String,
+ * {@code ProducerRecord<String, String>} serialized with {@link StringSerializer}) against the current one
+ * (raw payload bytes and a cached key, passed through {@link ByteArraySerializer}). Both include the
+ * serialization {@code KafkaProducer.send} performs before a record is appended to a batch.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class KafkaRecordBenchmark {
+
+    private static final String TOPIC = "sensor-data";
+    private static final String[] TYPES = {"temperature", "humidity", "soil_moisture", "co2", "light"};
+    private static final String[] LOCATIONS = {"growlab", "greenhouse-1", "greenhouse-2", "drying-room"};
+    private static final int CORPUS_SIZE = 1024;
+
+    private final StringSerializer stringSerializer = new StringSerializer();
+    private final ByteArraySerializer byteArraySerializer = new ByteArraySerializer();
+    private final Map<String, byte[]> keyCache = new HashMap<>();
+    private byte[][] payloads;
+    private String[] keys;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Gson gson = new Gson();
+        Random random = new Random(7);
+        payloads = new byte[CORPUS_SIZE][];
+        keys = new String[CORPUS_SIZE];
+        long timestamp = 1_713_370_000_000L;
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            int sensor = random.nextInt(200);
+            keys[i] = "sensor-" + sensor;
+            SensorData data = new SensorData(TYPES[sensor % TYPES.length], LOCATIONS[sensor % LOCATIONS.length],
+                    keys[i], Math.round(random.nextDouble() * 10_000) / 100.0, timestamp + i * 250L);
+            payloads[i] = gson.toJson(data).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Benchmark
+    public void stringSerializer(Blackhole blackhole) {
+        int i = next;
+        next = (i + 1) & (CORPUS_SIZE - 1);
+        ProducerRecord<String, String> record = new ProducerRecord<>(TOPIC, keys[i],
+                new String(payloads[i], StandardCharsets.UTF_8));
+        blackhole.consume(stringSerializer.serialize(record.topic(), record.key()));
+        blackhole.consume(stringSerializer.serialize(record.topic(), record.value()));
+    }
+
+    @Benchmark
+    public void rawBytesWithCachedKey(Blackhole blackhole) {
+        int i = next;
+        next = (i + 1) & (CORPUS_SIZE - 1);
+        byte[] key = keyCache.computeIfAbsent(keys[i], k -> k.getBytes(StandardCharsets.UTF_8));
+        ProducerRecord<byte[], byte[]> record = new ProducerRecord<>(TOPIC, key, payloads[i]);
+        blackhole.consume(byteArraySerializer.serialize(record.topic(), record.key()));
+        blackhole.consume(byteArraySerializer.serialize(record.topic(), record.value()));
+    }
+}
@@ -0,0 +1,74 @@
+package com.tgcannabis.batch_processor.benchmark;
+
+import com.influxdb.client.domain.WritePrecision;
+import com.influxdb.client.write.Point;
+import com.tgcannabis.batch_processor.influx.LineProtocolEncoder;
+import com.tgcannabis.batch_processor.model.SensorData;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link LineProtocolEncoder} with the previous per-reading {@link Point} path
+ * (build the Point, then {@code toLineProtocol()}, which the write API does for every point).
+ * Scores are points per second; {@code -prof gc} reports the GC pressure per point.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class LineProtocolBenchmark {
+
+    private static final String[] TYPES = {"temperature", "humidity", "soil_moisture", "co2", "light"};
+    private static final String[] LOCATIONS = {"growlab", "greenhouse-1", "greenhouse-2", "drying-room"};
+    private static final int CORPUS_SIZE = 1024;
+
+    private final LineProtocolEncoder encoder = new LineProtocolEncoder();
+    private SensorData[] readings;
+    private String[] topics;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(7);
+        readings = new SensorData[CORPUS_SIZE];
+        topics = new String[CORPUS_SIZE];
+        long timestamp = 1_713_370_000_000L;
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            // 200 sensors, each keeping its own type/location/topic like a real fleet
+            int sensor = random.nextInt(200);
+            String type = TYPES[sensor % TYPES.length];
+            String location = LOCATIONS[sensor % LOCATIONS.length];
+            readings[i] = new SensorData(type, location, "sensor-" + sensor,
+                    Math.round(random.nextDouble() * 10_000) / 100.0, timestamp + i * 250L);
+            topics[i] = "sensors/" + location + "/" + type + "/sensor-" + sensor;
+        }
+    }
+
+    @Benchmark
+    public String pointToLineProtocol() {
+        int i = next;
+        next = (i + 1) & (CORPUS_SIZE - 1);
+        SensorData data = readings[i];
+        return Point.measurement(data.getSensorType())
+                .addTag("sensorId", data.getSensorId())
+                .addTag("location", data.getLocation())
+                .addTag("originTopic", topics[i])
+                .addTag("sensorType", data.getSensorType())
+                .addField("value", data.getValue())
+                .addField("timestamp", data.getTimestamp())
+                .time(Instant.ofEpochMilli(data.getTimestamp()), WritePrecision.MS)
+                .toLineProtocol();
+    }
+
+    @Benchmark
+    public String lineProtocolEncoder() {
+        int i = next;
+        next = (i + 1) & (CORPUS_SIZE - 1);
+        return encoder.encode(readings[i], topics[i]);
+    }
+}
@@ -0,0 +1,381 @@
+package com.tgcannabis.batch_processor.benchmark;
+
+import com.influxdb.client.InfluxDBClient;
+import com.influxdb.client.InfluxDBClientFactory;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.tgcannabis.batch_processor.BatchProcessorApplication;
+import com.tgcannabis.batch_processor.config.BatchProcessorConfig;
+import com.tgcannabis.batch_processor.influx.InfluxDbService;
+import com.tgcannabis.batch_processor.kafka.KafkaService;
+import com.tgcannabis.batch_processor.metrics.LatencyHistogram;
+import com.tgcannabis.batch_processor.metrics.MetricsRegistry;
+import com.tgcannabis.batch_processor.mqtt.MqttService;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPInputStream;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * End-to-end load harness: runs the whole service in process and steps up the offered message rate until it
+ * saturates.
+ * <p>
+ * {@link BatchProcessorApplication} is started through its injectable constructor with stand-ins at the I/O
+ * boundaries only:
+ * <ul>
+ *   <li>MQTT: the Paho client is a stub, and this class calls the callback {@link MqttService} registers, on one
+ *   thread, exactly as Paho's callback thread would.</li>
+ *   <li>Kafka: a {@link MockProducer} that acknowledges every record immediately and keeps no history.</li>
+ *   <li>InfluxDB: a local HTTP server accepting {@code /api/v2/write}, written to by the real InfluxDB client.</li>
+ * </ul>
+ * A synthetic fleet of sensors reports in turn; every reading's intended send time is remembered, so latency
+ * is measured from when the message was due (not when the driver got round to it) until the record reaches
+ * the Kafka producer and until its line reaches InfluxDB. Each step sends at a fixed rate for a fixed time,
+ * waits for InfluxDB to catch up, and reports the sustained throughput and p50/p99/p999 latencies. The first
+ * step that loses messages, falls behind the offered rate or misses the p99 target is the saturation point.
+ * <p>
+ * Arguments are {@code key=value} pairs. Lower-case keys control the load, upper-case keys override the
+ * service configuration (same names as the environment variables, e.g. {@code PIPELINE_WORKERS=4}):
+ * <ul>
+ *   <li>{@code fleet}: number of sensors (default 1000)</li>
+ *   <li>{@code rate}: messages per second of the first step (default 5000)</li>
+ *   <li>{@code factor}: rate multiplier per step (default 1.5)</li>
+ *   <li>{@code steps}: maximum number of steps (default 12)</li>
+ *   <li>{@code duration}: seconds per step (default 10)</li>
+ *   <li>{@code slo}: p99 end-to-end latency target in milliseconds (default 5000)</li>
+ *   <li>{@code period}: event time between two readings of one sensor, in milliseconds (default 1000)</li>
+ *   <li>{@code warmup}: seconds sent at the first step's rate before measuring, to let the JIT settle (default 5)</li>
+ * </ul>
+ */
+public final class LoadHarness {
+
+    private static final String[] TYPES = {"temperature", "humidity", "soil_moisture", "co2", "light"};
+    private static final String[] LOCATIONS = {"growlab", "greenhouse-1", "greenhouse-2", "drying-room"};
+    private static final long BASE_TIMESTAMP = 1_713_370_000_000L;
+    /** Intended send times, by message sequence number. Must exceed the messages in flight at any time. */
+    private static final int RING_SIZE = 1 << 22; // Power of two
+    private static final long NANOS_PER_MILLI = 1_000_000L;
+    private static final long DRAIN_IDLE_NANOS = 5_000_000_000L;
+
+    private final int fleet;
+    private final long periodMs;
+    private final long[] dueNanos = new long[RING_SIZE];
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong rollupLines = new AtomicLong();
+    private volatile LatencyHistogram kafkaLatency;
+    private volatile LatencyHistogram influxLatency;
+
+    private LoadHarness(int fleet, long periodMs) {
+        this.fleet = fleet;
+        this.periodMs = periodMs;
+    }
+
+    /** One step's outcome. */
+    private record Step(double offered, double achieved, long sent, long lost, LatencyHistogram kafka,
+                        LatencyHistogram influx) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        // simplelogger.properties logs every message at DEBUG; measure the service, not stderr
+        if (System.getProperty("org.slf4j.simpleLogger.log.com.tgcannabis.batch_processor") == null) {
+            System.setProperty("org.slf4j.simpleLogger.log.com.tgcannabis.batch_processor", "info");
+        }
+        Map<String, String> load = new HashMap<>();
+        Map<String, String> overrides = new LinkedHashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) throw new IllegalArgumentException("Expected key=value but got '" + arg + "'");
+            String key = arg.substring(0, eq);
+            (Character.isUpperCase(key.charAt(0)) ? overrides : load).put(key, arg.substring(eq + 1));
+        }
+        int fleet = Integer.parseInt(load.getOrDefault("fleet", "1000"));
+        double rate = Double.parseDouble(load.getOrDefault("rate", "5000"));
+        double factor = Double.parseDouble(load.getOrDefault("factor", "1.5"));
+        int steps = Integer.parseInt(load.getOrDefault("steps", "12"));
+        int duration = Integer.parseInt(load.getOrDefault("duration", "10"));
+        long sloMs = Long.parseLong(load.getOrDefault("slo", "5000"));
+        long periodMs = Long.parseLong(load.getOrDefault("period", "1000"));
+        int warmup = Integer.parseInt(load.getOrDefault("warmup", "5"));
+
+        new LoadHarness(fleet, periodMs).run(overrides, rate, factor, steps, duration, warmup, sloMs);
+    }
+
+    private void run(Map<String, String> overrides, double rate, double factor, int steps, int duration,
+                     int warmup, long sloMs) throws Exception {
+        HttpServer influxStub = startInfluxStub();
+        String scratch = Files.createTempDirectory("load-harness").toString();
+        Map<String, String> settings = new HashMap<>();
+        settings.put("INFLUX_URL", "http://127.0.0.1:" + influxStub.getAddress().getPort());
+        settings.put("INFLUX_TOKEN", "load-harness");
+        settings.put("INFLUX_ORG", "load-harness");
+        settings.put("INFLUX_BUCKET", "load-harness");
+        settings.put("INFLUX_SPILL_DIR", scratch + "/influx-spill");
+        settings.put("KAFKA_WAL_DIR", scratch + "/kafka-wal");
+        settings.put("KAFKA_TOPIC", "sensor-data");
+        settings.put("METRICS_PORT", "0");
+        settings.putAll(overrides);
+        BatchProcessorConfig config = new BatchProcessorConfig(settings);
+
+        MqttCallback[] callback = new MqttCallback[1];
+        MqttClient mqttClient = mock(MqttClient.class, withSettings().stubOnly());
+        doAnswer(invocation -> callback[0] = invocation.getArgument(0)).when(mqttClient).setCallback(any());
+        InfluxDBClient influxClient = InfluxDBClientFactory.create(config.getInfluxUrl(),
+                config.getInfluxToken().toCharArray(), config.getInfluxOrg(), config.getInfluxBucket());
+        BatchProcessorApplication app = new BatchProcessorApplication(config,
+                new KafkaService(config, new AcknowledgingProducer()),
+                new InfluxDbService(config, influxClient, influxClient.getWriteApiBlocking()),
+                new MqttService(config, mqttClient));
+        Thread appThread = new Thread(app::start, "load-harness-app");
+        appThread.setDaemon(true);
+        appThread.start();
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (callback[0] == null) {
+            if (System.nanoTime() > deadline) throw new IllegalStateException("Application did not connect to MQTT");
+            Thread.sleep(10);
+        }
+
+        System.out.printf("%nFleet: %d sensors, %d ms event period; overrides: %s%n", fleet, periodMs, overrides);
+        System.out.printf("%4s %11s %11s %8s | %27s | %27s%n", "step", "offered/s", "achieved/s", "lost",
+                "Kafka p50 / p99 / p999 ms", "Influx p50 / p99 / p999 ms");
+        long sequence = warmup > 0 ? runStep(callback[0], 0, rate, warmup).sent() : 0;
+        Step best = null;
+        String saturation = null;
+        for (int step = 1; step <= steps && saturation == null; step++) {
+            Step result = runStep(callback[0], sequence, rate, duration);
+            sequence += result.sent();
+            System.out.printf("%4d %11.0f %11.0f %8d | %8.1f %8.1f %9.1f | %8.1f %8.1f %9.1f%n", step,
+                    result.offered(), result.achieved(), result.lost(),
+                    millis(result.kafka(), 0.5), millis(result.kafka(), 0.99), millis(result.kafka(), 0.999),
+                    millis(result.influx(), 0.5), millis(result.influx(), 0.99), millis(result.influx(), 0.999));
+
+            if (result.lost() > 0) {
+                saturation = result.lost() + " messages lost";
+            } else if (result.achieved() < result.offered() * 0.95) {
+                saturation = "throughput fell behind the offered rate";
+            } else if (millis(result.influx(), 0.99) > sloMs) {
+                saturation = "p99 latency above " + sloMs + " ms";
+            } else {
+                best = result;
+            }
+            rate *= factor;
+        }
+
+        System.out.println();
+        System.out.printf("Sustained throughput: %s%n",
+                best == null ? "none (first step already saturated)" : String.format("%.0f msg/s", best.achieved()));
+        System.out.printf("Saturation point: %s%n", saturation == null
+                ? String.format("not reached at %.0f msg/s", rate / factor)
+                : String.format("%.0f msg/s offered (%s)", rate / factor, saturation));
+        System.out.printf("Rollup lines written: %d%n", rollupLines.get());
+
+        app.shutdown();
+        influxStub.stop(0);
+        System.exit(0); // The application's shutdown hook has nothing left to do
+    }
+
+    /**
+     * Sends {@code rate * duration} messages paced at the given rate, then waits until InfluxDB has received
+     * them or stops making progress.
+     */
+    private Step runStep(MqttCallback callback, long firstSequence, double rate, int duration) throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        kafkaLatency = registry.histogram("load_kafka_latency_seconds", "Due to Kafka producer");
+        influxLatency = registry.histogram("load_influx_latency_seconds", "Due to InfluxDB write");
+        long messages = (long) (rate * duration);
+        long storedBefore = stored.get();
+        double intervalNanos = 1e9 / rate;
+        StringBuilder json = new StringBuilder(160);
+
+        long start = System.nanoTime();
+        for (long i = 0; i < messages; i++) {
+            long due = start + (long) (i * intervalNanos);
+            long wait = due - System.nanoTime();
+            if (wait > 20_000) LockSupport.parkNanos(wait); // Otherwise send now and catch up in a burst
+            long sequence = firstSequence + i;
+            dueNanos[(int) (sequence & (RING_SIZE - 1))] = due;
+            int sensor = (int) (sequence % fleet);
+            String type = TYPES[sensor % TYPES.length];
+            String location = LOCATIONS[sensor % LOCATIONS.length];
+            json.setLength(0);
+            json.append("{\"sensorType\":\"").append(type)
+                    .append("\",\"location\":\"").append(location)
+                    .append("\",\"sensorId\":\"sensor-").append(sensor)
+                    .append("\",\"value\":").append(Math.round(ThreadLocalRandom.current().nextDouble() * 10_000) / 100.0)
+                    .append(",\"timestamp\":").append(BASE_TIMESTAMP + (sequence / fleet) * periodMs)
+                    .append('}');
+            callback.messageArrived("sensors/" + location + "/" + type + "/sensor-" + sensor,
+                    new MqttMessage(json.toString().getBytes(StandardCharsets.UTF_8)));
+        }
+        long sendNanos = System.nanoTime() - start;
+
+        long expected = storedBefore + messages;
+        long lastProgress = System.nanoTime();
+        long seen = stored.get();
+        while (seen < expected && System.nanoTime() - lastProgress < DRAIN_IDLE_NANOS) {
+            Thread.sleep(20);
+            long now = stored.get();
+            if (now != seen) {
+                seen = now;
+                lastProgress = System.nanoTime();
+            }
+        }
+        long delivered = Math.min(seen - storedBefore, messages);
+        // Delivered messages over the time it took to send them: falls below the offered rate when backpressure
+        // slows the driver down, or when messages are lost
+        double achieved = delivered / (Math.max(sendNanos, duration * 1e9) / 1e9);
+        return new Step(rate, achieved, messages, messages - delivered, kafkaLatency, influxLatency);
+    }
+
+    private static double millis(LatencyHistogram histogram, double quantile) {
+        return histogram.getValueAtQuantile(quantile) / (double) NANOS_PER_MILLI;
+    }
+
+    /** @return The message's sequence number, from its sensor number and event timestamp. */
+    private long sequenceOf(long sensor, long timestamp) {
+        return (timestamp - BASE_TIMESTAMP) / periodMs * fleet + sensor;
+    }
+
+    private void recordLatency(LatencyHistogram histogram, long sensor, long timestamp, long now) {
+        if (sensor < 0 || timestamp < BASE_TIMESTAMP) return;
+        histogram.record(now - dueNanos[(int) (sequenceOf(sensor, timestamp) & (RING_SIZE - 1))]);
+    }
+
+    /**
+     * Accepts InfluxDB v2 writes, and answers the client's health checks.
+     */
+    private HttpServer startInfluxStub() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/v2/write", this::handleWrite);
+        server.createContext("/ping", exchange -> {
+            try (exchange) {
+                exchange.sendResponseHeaders(204, -1);
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "load-harness-influx");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        return server;
+    }
+
+    private void handleWrite(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            InputStream body = exchange.getRequestBody();
+            if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                body = new GZIPInputStream(body);
+            }
+            long now = System.nanoTime();
+            LatencyHistogram histogram = influxLatency;
+            long lines = 0;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8))) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    int comma = line.indexOf(',');
+                    if (comma < 0) continue;
+                    if (line.startsWith("_rollup", comma - "_rollup".length())) {
+                        rollupLines.incrementAndGet();
+                        continue;
+                    }
+                    int tag = line.indexOf(",sensorId=sensor-");
+                    long sensor = tag < 0 ? -1 : parseLong(line, tag + ",sensorId=sensor-".length());
+                    long timestamp = parseLong(line, line.lastIndexOf(' ') + 1);
+                    recordLatency(histogram, sensor, timestamp, now);
+                    lines++;
+                }
+            }
+            stored.addAndGet(lines);
+            exchange.sendResponseHeaders(204, -1);
+        }
+    }
+
+    private static long parseLong(CharSequence text, int from) {
+        long value = 0;
+        int i = from;
+        for (; i < text.length() && Character.isDigit(text.charAt(i)); i++) {
+            value = value * 10 + (text.charAt(i) - '0');
+        }
+        return i == from ? -1 : value;
+    }
+
+    private static long parseLong(byte[] bytes, int from) {
+        long value = 0;
+        int i = from;
+        for (; i < bytes.length && bytes[i] >= '0' && bytes[i] <= '9'; i++) {
+            value = value * 10 + (bytes[i] - '0');
+        }
+        return i == from ? -1 : value;
+    }
+
+    private static int indexOf(byte[] bytes, byte[] pattern) {
+        outer:
+        for (int i = 0; i <= bytes.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (bytes[i + j] != pattern[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Acknowledges every record as soon as it is sent, without keeping it, and records its latency.
+     */
+    private final class AcknowledgingProducer extends MockProducer<byte[], byte[]> {
+        private static final byte[] SENSOR_PREFIX = "sensor-".getBytes(StandardCharsets.UTF_8);
+        private static final byte[] TIMESTAMP_KEY = "\"timestamp\":".getBytes(StandardCharsets.UTF_8);
+
+        private final RecordMetadata metadata = new RecordMetadata(new TopicPartition("sensor-data", 0), 0, 0, 0, 0, 0);
+
+        AcknowledgingProducer() {
+            super(true, new ByteArraySerializer(), new ByteArraySerializer());
+        }
+
+        @Override
+        public Future<RecordMetadata> send(ProducerRecord<byte[], byte[]> record, Callback callback) {
+            long now = System.nanoTime();
+            byte[] key = record.key();
+            byte[] value = record.value();
+            int timestampAt = indexOf(value, TIMESTAMP_KEY);
+            if (key != null && timestampAt >= 0 && indexOf(key, SENSOR_PREFIX) == 0) {
+                recordLatency(kafkaLatency, parseLong(key, SENSOR_PREFIX.length),
+                        parseLong(value, timestampAt + TIMESTAMP_KEY.length), now);
+            }
+            if (callback != null) callback.onCompletion(metadata, null);
+            return CompletableFuture.completedFuture(metadata);
+        }
+
+        @Override
+        public Future<RecordMetadata> send(ProducerRecord<byte[], byte[]> record) {
+            return send(record, null);
+        }
+    }
+}
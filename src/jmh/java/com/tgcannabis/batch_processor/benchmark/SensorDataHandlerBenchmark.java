@@ -0,0 +1,102 @@
+package com.tgcannabis.batch_processor.benchmark;
+
+import com.google.gson.Gson;
+import com.influxdb.client.InfluxDBClient;
+import com.influxdb.client.WriteApiBlocking;
+import com.tgcannabis.batch_processor.config.BatchProcessorConfig;
+import com.tgcannabis.batch_processor.influx.InfluxDbService;
+import com.tgcannabis.batch_processor.kafka.KafkaService;
+import com.tgcannabis.batch_processor.model.SensorData;
+import com.tgcannabis.batch_processor.processing.SensorDataHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Measures {@link SensorDataHandler#accept} end to end for one message: parsing, the Kafka key lookup and
+ * the InfluxDB line protocol encoding and batching. Only the I/O is stubbed: Kafka records are counted
+ * instead of reaching a producer, and InfluxDB batches go to a write API that discards them (on a
+ * background thread, as in production). Scores are messages per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// simplelogger.properties enables DEBUG for this package, which would turn the benchmark into one of stderr
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.log.com.tgcannabis.batch_processor=info")
+@State(Scope.Thread)
+public class SensorDataHandlerBenchmark {
+
+    private static final String[] TYPES = {"temperature", "humidity", "soil_moisture", "co2", "light"};
+    private static final String[] LOCATIONS = {"growlab", "greenhouse-1", "greenhouse-2", "drying-room"};
+    private static final int CORPUS_SIZE = 1024;
+
+    /**
+     * Keeps the real key handling of {@link KafkaService#sendPayload} but stops before the producer.
+     */
+    private static final class CountingKafkaService extends KafkaService {
+        long sent;
+
+        CountingKafkaService(BatchProcessorConfig config) {
+            super(config, null);
+        }
+
+        @Override
+        public void sendMessage(byte[] key, byte[] value) {
+            sent += key.length + value.length;
+        }
+    }
+
+    private CountingKafkaService kafkaService;
+    private InfluxDbService influxDbService;
+    private SensorDataHandler handler;
+    private byte[][] payloads;
+    private String[] topics;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        BatchProcessorConfig config = mock(BatchProcessorConfig.class, withSettings().stubOnly());
+        when(config.getKafkaTopic()).thenReturn("sensor-data");
+        kafkaService = new CountingKafkaService(config);
+        influxDbService = new InfluxDbService(config, mock(InfluxDBClient.class, withSettings().stubOnly()),
+                mock(WriteApiBlocking.class, withSettings().stubOnly()));
+        handler = new SensorDataHandler(kafkaService, influxDbService);
+
+        Gson gson = new Gson();
+        Random random = new Random(7);
+        payloads = new byte[CORPUS_SIZE][];
+        topics = new String[CORPUS_SIZE];
+        long timestamp = 1_713_370_000_000L;
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            // 200 sensors, each keeping its own type/location/topic like a real fleet
+            int sensor = random.nextInt(200);
+            String type = TYPES[sensor % TYPES.length];
+            String location = LOCATIONS[sensor % LOCATIONS.length];
+            SensorData data = new SensorData(type, location, "sensor-" + sensor,
+                    Math.round(random.nextDouble() * 10_000) / 100.0, timestamp + i * 250L);
+            payloads[i] = gson.toJson(data).getBytes(StandardCharsets.UTF_8);
+            topics[i] = "sensors/" + location + "/" + type + "/sensor-" + sensor;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        influxDbService.close();
+        kafkaService.close();
+    }
+
+    @Benchmark
+    public long accept() {
+        int i = next;
+        next = (i + 1) & (CORPUS_SIZE - 1);
+        handler.accept(topics[i], payloads[i]);
+        return kafkaService.sent;
+    }
+}
@@ -0,0 +1,63 @@
+package com.tgcannabis.batch_processor.benchmark;
+
+import com.google.gson.Gson;
+import com.tgcannabis.batch_processor.model.SensorData;
+import com.tgcannabis.batch_processor.processing.SensorDataParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the byte-level {@link SensorDataParser} with the previous String + Gson reflection path.
+ * Run with {@code -prof gc} (the profile default) to see {@code gc.alloc.rate.norm}, the bytes allocated per message.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SensorDataParserBenchmark {
+
+    private static final String[] TYPES = {"temperature", "humidity", "soil_moisture", "co2", "light"};
+    private static final String[] LOCATIONS = {"growlab", "greenhouse-1", "greenhouse-2", "drying-room"};
+    private static final int CORPUS_SIZE = 1024;
+
+    private final Gson gson = new Gson();
+    private byte[][] payloads;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(7);
+        payloads = new byte[CORPUS_SIZE][];
+        long timestamp = 1_713_370_000_000L;
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            SensorData data = new SensorData(
+                    TYPES[random.nextInt(TYPES.length)],
+                    LOCATIONS[random.nextInt(LOCATIONS.length)],
+                    "sensor-" + random.nextInt(500),
+                    Math.round(random.nextDouble() * 10_000) / 100.0,
+                    timestamp + i * 250L);
+            payloads[i] = gson.toJson(data).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private byte[] nextPayload() {
+        byte[] payload = payloads[next];
+        next = (next + 1) & (CORPUS_SIZE - 1);
+        return payload;
+    }
+
+    @Benchmark
+    public SensorData gsonFromString() {
+        return gson.fromJson(new String(nextPayload(), StandardCharsets.UTF_8), SensorData.class);
+    }
+
+    @Benchmark
+    public SensorData byteParser() {
+        return SensorDataParser.parse(nextPayload());
+    }
+}
@@ -2,9 +2,21 @@ package com.tgcannabis.batch_processor;
 
 import com.tgcannabis.batch_processor.config.BatchProcessorConfig;
 import com.tgcannabis.batch_processor.influx.InfluxDbService;
+import com.tgcannabis.batch_processor.influx.InfluxBatchWriter;
+import com.tgcannabis.batch_processor.kafka.KafkaSendQueue;
 import com.tgcannabis.batch_processor.kafka.KafkaService;
+import com.tgcannabis.batch_processor.metrics.MetricsRegistry;
+import com.tgcannabis.batch_processor.metrics.MetricsServer;
+import com.tgcannabis.batch_processor.model.TagDictionary;
 import com.tgcannabis.batch_processor.mqtt.MqttService;
+import com.tgcannabis.batch_processor.processing.BinarySensorCodec;
+import com.tgcannabis.batch_processor.processing.DuplicateFilter;
+import com.tgcannabis.batch_processor.processing.MessagePipeline;
 import com.tgcannabis.batch_processor.processing.SensorDataHandler;
+import com.tgcannabis.batch_processor.processing.SensorRollupAggregator;
+import com.tgcannabis.batch_processor.processing.SensorWindowBatcher;
+import com.tgcannabis.batch_processor.processing.SwingingDoorCompressor;
+import com.tgcannabis.batch_processor.processing.TopicTemplate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,6 +31,12 @@ public class BatchProcessorApplication {
     private MqttService mqttService;
     private KafkaService kafkaService;
     private InfluxDbService influxDbService;
+    private MessagePipeline messagePipeline;
+    private SensorRollupAggregator rollupAggregator;
+    private SwingingDoorCompressor kafkaCompressor;
+    private SensorWindowBatcher kafkaWindows;
+    private DuplicateFilter duplicateFilter;
+    private MetricsServer metricsServer;
 
     private final BatchProcessorConfig config;
 
@@ -55,8 +73,42 @@ public class BatchProcessorApplication {
             }
 
             // 2. Create and Wire Handler
-            SensorDataHandler messageHandler = new SensorDataHandler(kafkaService, influxDbService);
-            mqttService.setMessageHandler(messageHandler); // Set the handler in MqttService
+            String rollupWindows = config.getRollupWindows();
+            if (rollupWindows != null && !rollupWindows.isBlank()) {
+                rollupAggregator = new SensorRollupAggregator(config, influxDbService::writeRollup);
+            }
+            if (SensorWindowBatcher.Format.parse(config.getKafkaRecordFormat()) == SensorWindowBatcher.Format.WINDOWED) {
+                kafkaWindows = new SensorWindowBatcher(config, kafkaService::sendPayload);
+            }
+            String compressionTolerances = config.getKafkaCompressionTolerances();
+            if (compressionTolerances != null && !compressionTolerances.isBlank()) {
+                kafkaCompressor = new SwingingDoorCompressor(config,
+                        kafkaWindows != null ? kafkaWindows::acceptPayload : kafkaService::sendPayload);
+            }
+            if (config.getDedupHistorySize() > 0) {
+                duplicateFilter = new DuplicateFilter(config);
+            }
+            SensorDataHandler messageHandler = SensorDataHandler.builder(kafkaService, influxDbService)
+                    .rollupAggregator(rollupAggregator)
+                    .kafkaCompressor(kafkaCompressor)
+                    .duplicateFilter(duplicateFilter)
+                    .kafkaWindows(kafkaWindows)
+                    .binaryCodec(new BinarySensorCodec(config))
+                    .topicTemplate(TopicTemplate.parse(config.getTopicTemplate()))
+                    .build();
+            if (config.getPipelineWorkers() > 0) {
+                // Decouple the MQTT callback thread from parsing and sink writes
+                messagePipeline = new MessagePipeline(config, messageHandler);
+                mqttService.setAcknowledgingHandler(messagePipeline::accept); // Acknowledge once a worker is done
+            } else {
+                mqttService.setMessageHandler(messageHandler); // Process inline on the MQTT callback thread
+            }
+            mqttService.setBacklog(this::getBacklog);
+
+            registerMetrics(MetricsRegistry.getDefault());
+            if (config.getMetricsPort() > 0) {
+                metricsServer = new MetricsServer(MetricsRegistry.getDefault(), config.getMetricsPort());
+            }
 
             // 3. Connect MQTT (which will trigger subscription)
             mqttService.connect(); // Handle potential MqttException
@@ -95,11 +147,50 @@ public class BatchProcessorApplication {
         // Close in reverse order of dependency or where it makes sense
         if (mqttService != null) {
             try {
-                mqttService.close();
+                mqttService.stopIntake(); // No new messages, but stay connected to acknowledge the buffered ones
+            } catch (Exception e) {
+                LOGGER.error("Error stopping MQTT intake", e);
+            }
+        }
+        if (messagePipeline != null) {
+            try {
+                messagePipeline.close(); // Drain buffered messages before closing the sinks
+            } catch (Exception e) {
+                LOGGER.error("Error closing Message Pipeline", e);
+            }
+        }
+        if (mqttService != null) {
+            try {
+                mqttService.close(); // Acknowledge what the pipeline processed, then disconnect
             } catch (Exception e) {
                 LOGGER.error("Error closing MQTT Service", e);
             }
         }
+        if (duplicateFilter != null) {
+            LOGGER.info("Duplicate filter dropped {} of {} readings (hit rate {})", duplicateFilter.getDuplicateCount(),
+                    duplicateFilter.getCheckedCount(), String.format("%.2f%%", duplicateFilter.getHitRate() * 100));
+        }
+        if (rollupAggregator != null) {
+            try {
+                rollupAggregator.close(); // Emit open windows while InfluxDB can still take them
+            } catch (Exception e) {
+                LOGGER.error("Error closing Sensor Rollup Aggregator", e);
+            }
+        }
+        if (kafkaCompressor != null) {
+            try {
+                kafkaCompressor.close(); // Forward readings still held back before Kafka is closed
+            } catch (Exception e) {
+                LOGGER.error("Error closing Kafka Compressor", e);
+            }
+        }
+        if (kafkaWindows != null) {
+            try {
+                kafkaWindows.close(); // Publish open windows, including the compressor's last readings
+            } catch (Exception e) {
+                LOGGER.error("Error closing Kafka Window Batcher", e);
+            }
+        }
         if (kafkaService != null) {
             try {
                 kafkaService.close();
@@ -114,10 +205,64 @@ public class BatchProcessorApplication {
                 LOGGER.error("Error closing InfluxDB Service", e);
             }
         }
+        if (metricsServer != null) {
+            metricsServer.close(); // Last, so the final counters can still be scraped during shutdown
+        }
         LOGGER.info("Batch Processor Application shut down complete.");
     }
 
 
+    /**
+     * @return Fill level of the fullest buffer between MQTT and the sinks, from 0 to 1. MQTT intake pauses when
+     * it passes the high watermark.
+     */
+    private double getBacklog() {
+        double backlog = 0;
+        MessagePipeline pipeline = messagePipeline;
+        if (pipeline != null) {
+            backlog = (double) pipeline.getQueueDepth() / pipeline.getCapacity();
+        }
+        KafkaSendQueue sendQueue = kafkaService.getSendQueue();
+        if (sendQueue != null) {
+            backlog = Math.max(backlog, (double) sendQueue.getQueueDepth() / sendQueue.getCapacity());
+        }
+        InfluxBatchWriter writer = influxDbService.getBatchWriter();
+        if (writer != null && !writer.isDegraded()) { // While InfluxDB is down, batches go to the spill buffer
+            backlog = Math.max(backlog, (double) writer.getPendingBatches() / writer.getMaxPendingBatches());
+        }
+        return backlog;
+    }
+
+    /**
+     * Has every component export its metrics, and exports the backlog across them. The values are read on
+     * every scrape.
+     *
+     * @param registry Where to register the metrics.
+     */
+    private void registerMetrics(MetricsRegistry registry) {
+        registry.registerGauge("batch_processor_mqtt_backlog_ratio", "Fill level of the fullest internal buffer",
+                this::getBacklog);
+        if (messagePipeline != null) {
+            messagePipeline.registerMetrics(registry);
+        }
+        mqttService.registerMetrics(registry);
+        kafkaService.registerMetrics(registry);
+        influxDbService.registerMetrics(registry);
+        if (duplicateFilter != null) {
+            duplicateFilter.registerMetrics(registry);
+        }
+        if (kafkaCompressor != null) {
+            kafkaCompressor.registerMetrics(registry);
+        }
+        if (kafkaWindows != null) {
+            kafkaWindows.registerMetrics(registry);
+        }
+        if (rollupAggregator != null) {
+            rollupAggregator.registerMetrics(registry);
+        }
+        TagDictionary.getDefault().registerMetrics(registry);
+    }
+
     /**
      * Main method. Creates an instance of the application and starts it.
      *
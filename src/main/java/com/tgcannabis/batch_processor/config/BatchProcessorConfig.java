@@ -1,10 +1,15 @@
 package com.tgcannabis.batch_processor.config;
 
 import io.github.cdimascio.dotenv.Dotenv;
+import lombok.AccessLevel;
 import lombok.Getter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+
 /**
  * Loads and holds configuration parameters for the Batch Processor application.
  * Reads configuration from environment variables or a .env file.
@@ -14,47 +19,201 @@ public class BatchProcessorConfig {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(BatchProcessorConfig.class);
 
+    @Getter(AccessLevel.NONE)
+    private final Map<String, String> overrides;
+
+    // Instance Configuration
+    private final String instanceId;
+
     // MQTT Configuration
     private final String mqttBroker;
     private final String mqttClientId;
     private final String mqttTopicFilter;
+    private final int mqttMaxInflight;
+    private final int mqttPauseHighWatermarkPercent;
+    private final int mqttResumeLowWatermarkPercent;
+    private final int mqttMaxPauseMs;
+    private final String mqttSharedGroup;
+    private final String mqttLoadReportTopic;
+    private final int mqttLoadReportIntervalMs;
+    private final String mqttPersistenceDir;
+    private final int mqttReconnectInitialBackoffMs;
+    private final int mqttReconnectMaxBackoffMs;
+    private final int mqttCatchUpMaxInflight;
 
     // InfluxDB Configuration
     private final String influxUrl;
     private final String influxToken;
     private final String influxOrg;
     private final String influxBucket;
+    private final int influxBatchSize;
+    private final int influxFlushIntervalMs;
+    private final int influxBatchSizeMin;
+    private final int influxBatchSizeMax;
+    private final int influxFlushIntervalMinMs;
+    private final int influxFlushIntervalMaxMs;
+    private final int influxMaxPendingBatches;
+    private final String influxSpillDir;
+    private final int influxSpillMaxMb;
+    private final int influxSpillReplayRate;
+    private final int influxBreakerFailureThreshold;
+    private final int influxReconnectInitialBackoffMs;
+    private final int influxReconnectMaxBackoffMs;
 
     // Kafka Configuration
     private final String kafkaBrokers;
     private final String kafkaTopic;
     private final String kafkaClientId;
+    private final String kafkaWalDir;
+    private final int kafkaWalSegmentBytes;
+    private final int kafkaWalMaxSegments;
+    private final int kafkaWalReplayBatchSize;
+    private final int kafkaSendQueueCapacity;
+    private final String kafkaSendOverflowPolicy;
+    private final String kafkaCompressionMode;
+    private final String kafkaCompressionTolerances;
+    private final int kafkaCompressionMaxSilenceMs;
+    private final int kafkaProducerLingerMs;
+    private final int kafkaProducerLingerMsMax;
+    private final int kafkaProducerBatchSize;
+    private final int kafkaProducerBatchSizeMin;
+    private final int kafkaProducerBatchSizeMax;
+    private final String kafkaProducerCompression;
+    private final String kafkaProducerCodecs;
+    private final int kafkaProducerTuneIntervalMs;
+    private final int kafkaProducerMinRestartIntervalMs;
+    private final String kafkaRecordFormat;
+    private final int kafkaWindowMs;
+    private final int kafkaWindowMaxReadings;
+
+    // Processing Pipeline Configuration
+    private final int pipelineQueueCapacity;
+    private final int pipelineWorkers;
+    private final String pipelineOverflowPolicy;
+    private final int dedupHistorySize;
+    private final int dedupMaxSensors;
+    private final String binaryTopicSuffix;
+    private final String binarySensorDictionary;
+    private final String topicTemplate;
+
+    // Rollup Configuration
+    private final String rollupWindows;
+    private final int rollupAllowedLatenessMs;
+    private final int rollupMaxSeries;
+
+    // Metrics Configuration
+    private final int metricsPort;
 
     /**
      * Loads configuration using Dotenv library, looking for a .env file
      * in the classpath or project root, and falling back to environment variables.
      */
     public BatchProcessorConfig() {
+        this(Map.of());
+    }
+
+    /**
+     * Loads configuration like {@link #BatchProcessorConfig()}, with explicit values taking precedence over
+     * environment variables and the .env file. Used to run the service embedded, e.g. by the load harness.
+     *
+     * @param overrides Values by environment variable name. Must not be null.
+     */
+    public BatchProcessorConfig(Map<String, String> overrides) {
+        this.overrides = Map.copyOf(overrides);
+
         // Configure Dotenv to search in standard places and ignore missing file
         Dotenv dotenv = Dotenv.configure()
                 .ignoreIfMissing() // Don't fail if .env is not present
                 .load();
 
+        // Identify this instance. Shared subscriptions and persistent sessions need an ID that is both unique and
+        // stable across restarts, which only the operator can guarantee; otherwise hostname and PID keep it unique
+        String configuredInstanceId = getEnv(dotenv, "INSTANCE_ID", "").trim();
+        if (configuredInstanceId.isEmpty() && (!getEnv(dotenv, "MQTT_SHARED_GROUP", "").isBlank()
+                || !getEnv(dotenv, "MQTT_PERSISTENCE_DIR", "").isBlank())) {
+            throw new IllegalArgumentException(
+                    "INSTANCE_ID is required with MQTT_SHARED_GROUP or MQTT_PERSISTENCE_DIR, so instances keep their own session.");
+        }
+        instanceId = configuredInstanceId.isEmpty() ? defaultInstanceId() : configuredInstanceId;
+
         // Load MQTT settings
         mqttBroker = getEnv(dotenv, "MQTT_BROKER", "tcp://localhost:1883");
-        mqttClientId = getEnv(dotenv, "MQTT_CLIENT_ID", "batch-processor-" + System.currentTimeMillis());
+        mqttClientId = getEnv(dotenv, "MQTT_CLIENT_ID", "batch-processor-" + instanceId);
         mqttTopicFilter = getEnv(dotenv, "MQTT_TOPIC_FILTER", "sensors/#");
+        mqttMaxInflight = getIntEnv(dotenv, "MQTT_MAX_INFLIGHT", 1000);
+        mqttPauseHighWatermarkPercent = getIntEnv(dotenv, "MQTT_PAUSE_HIGH_WATERMARK_PERCENT", 80);
+        mqttResumeLowWatermarkPercent = getIntEnv(dotenv, "MQTT_RESUME_LOW_WATERMARK_PERCENT", 50);
+        mqttMaxPauseMs = getIntEnv(dotenv, "MQTT_MAX_PAUSE_MS", 30000);
+        mqttSharedGroup = getEnv(dotenv, "MQTT_SHARED_GROUP", "");
+        mqttLoadReportTopic = getEnv(dotenv, "MQTT_LOAD_REPORT_TOPIC", "batch-processor/instances");
+        mqttLoadReportIntervalMs = getIntEnv(dotenv, "MQTT_LOAD_REPORT_INTERVAL_MS", 10000);
+        mqttPersistenceDir = getEnv(dotenv, "MQTT_PERSISTENCE_DIR", "");
+        mqttReconnectInitialBackoffMs = getIntEnv(dotenv, "MQTT_RECONNECT_INITIAL_BACKOFF_MS", 1000);
+        mqttReconnectMaxBackoffMs = getIntEnv(dotenv, "MQTT_RECONNECT_MAX_BACKOFF_MS", 60000);
+        mqttCatchUpMaxInflight = getIntEnv(dotenv, "MQTT_CATCHUP_MAX_INFLIGHT", 0);
 
         // Load InfluxDB settings
         influxUrl = getEnv(dotenv, "INFLUX_URL", "http://localhost:8086");
         influxToken = getEnvOrThrow(dotenv, "INFLUX_TOKEN", "InfluxDB write token is required.");
         influxOrg = getEnvOrThrow(dotenv, "INFLUX_ORG", "InfluxDB organization is required.");
         influxBucket = getEnvOrThrow(dotenv, "INFLUX_BUCKET", "InfluxDB bucket name is required.");
+        influxBatchSize = getIntEnv(dotenv, "INFLUX_BATCH_SIZE", 1000);
+        influxFlushIntervalMs = getIntEnv(dotenv, "INFLUX_FLUSH_INTERVAL_MS", 1000);
+        influxBatchSizeMin = getIntEnv(dotenv, "INFLUX_BATCH_SIZE_MIN", 100);
+        influxBatchSizeMax = getIntEnv(dotenv, "INFLUX_BATCH_SIZE_MAX", 10000);
+        influxFlushIntervalMinMs = getIntEnv(dotenv, "INFLUX_FLUSH_INTERVAL_MIN_MS", 50);
+        influxFlushIntervalMaxMs = getIntEnv(dotenv, "INFLUX_FLUSH_INTERVAL_MAX_MS", 5000);
+        influxMaxPendingBatches = getIntEnv(dotenv, "INFLUX_MAX_PENDING_BATCHES", 64);
+        influxSpillDir = getEnv(dotenv, "INFLUX_SPILL_DIR", "data/influx-spill");
+        influxSpillMaxMb = getIntEnv(dotenv, "INFLUX_SPILL_MAX_MB", 1024);
+        influxSpillReplayRate = getIntEnv(dotenv, "INFLUX_SPILL_REPLAY_RATE", 5000);
+        influxBreakerFailureThreshold = getIntEnv(dotenv, "INFLUX_BREAKER_FAILURE_THRESHOLD", 3);
+        influxReconnectInitialBackoffMs = getIntEnv(dotenv, "INFLUX_RECONNECT_INITIAL_BACKOFF_MS", 1000);
+        influxReconnectMaxBackoffMs = getIntEnv(dotenv, "INFLUX_RECONNECT_MAX_BACKOFF_MS", 60000);
 
         // Load Kafka settings
         kafkaBrokers = getEnv(dotenv, "KAFKA_BROKERS", "localhost:9093");
         kafkaTopic = getEnv(dotenv, "KAFKA_TOPIC", "sensores_cloud");
         kafkaClientId = getEnv(dotenv, "KAFKA_CLIENT_ID", "batch-processor-kafka-client");
+        kafkaWalDir = getEnv(dotenv, "KAFKA_WAL_DIR", "data/kafka-wal");
+        kafkaWalSegmentBytes = getIntEnv(dotenv, "KAFKA_WAL_SEGMENT_BYTES", 64 * 1024 * 1024);
+        kafkaWalMaxSegments = getIntEnv(dotenv, "KAFKA_WAL_MAX_SEGMENTS", 16);
+        kafkaWalReplayBatchSize = getIntEnv(dotenv, "KAFKA_WAL_REPLAY_BATCH_SIZE", 5000);
+        kafkaSendQueueCapacity = getIntEnv(dotenv, "KAFKA_SEND_QUEUE_CAPACITY", 16384);
+        kafkaSendOverflowPolicy = getEnv(dotenv, "KAFKA_SEND_OVERFLOW_POLICY", "SPILL");
+        kafkaCompressionMode = getEnv(dotenv, "KAFKA_COMPRESSION_MODE", "SWINGING_DOOR");
+        kafkaCompressionTolerances = getEnv(dotenv, "KAFKA_COMPRESSION_TOLERANCES", "");
+        kafkaCompressionMaxSilenceMs = getIntEnv(dotenv, "KAFKA_COMPRESSION_MAX_SILENCE_MS", 300000);
+        kafkaProducerLingerMs = getIntEnv(dotenv, "KAFKA_PRODUCER_LINGER_MS", 20);
+        kafkaProducerLingerMsMax = getIntEnv(dotenv, "KAFKA_PRODUCER_LINGER_MS_MAX", 200);
+        kafkaProducerBatchSize = getIntEnv(dotenv, "KAFKA_PRODUCER_BATCH_SIZE", 65536);
+        kafkaProducerBatchSizeMin = getIntEnv(dotenv, "KAFKA_PRODUCER_BATCH_SIZE_MIN", 16384);
+        kafkaProducerBatchSizeMax = getIntEnv(dotenv, "KAFKA_PRODUCER_BATCH_SIZE_MAX", 1048576);
+        kafkaProducerCompression = getEnv(dotenv, "KAFKA_PRODUCER_COMPRESSION", "lz4");
+        kafkaProducerCodecs = getEnv(dotenv, "KAFKA_PRODUCER_CODECS", "none,lz4,zstd");
+        kafkaProducerTuneIntervalMs = getIntEnv(dotenv, "KAFKA_PRODUCER_TUNE_INTERVAL_MS", 0);
+        kafkaProducerMinRestartIntervalMs = getIntEnv(dotenv, "KAFKA_PRODUCER_MIN_RESTART_INTERVAL_MS", 300000);
+        kafkaRecordFormat = getEnv(dotenv, "KAFKA_RECORD_FORMAT", "JSON");
+        kafkaWindowMs = getIntEnv(dotenv, "KAFKA_WINDOW_MS", 10000);
+        kafkaWindowMaxReadings = getIntEnv(dotenv, "KAFKA_WINDOW_MAX_READINGS", 256);
+
+        // Load processing pipeline settings
+        pipelineQueueCapacity = getIntEnv(dotenv, "PIPELINE_QUEUE_CAPACITY", 8192);
+        pipelineWorkers = getIntEnv(dotenv, "PIPELINE_WORKERS", 1);
+        pipelineOverflowPolicy = getEnv(dotenv, "PIPELINE_OVERFLOW_POLICY", "BLOCK");
+        dedupHistorySize = getIntEnv(dotenv, "DEDUP_HISTORY_SIZE", 16);
+        dedupMaxSensors = getIntEnv(dotenv, "DEDUP_MAX_SENSORS", 65536);
+        binaryTopicSuffix = getEnv(dotenv, "BINARY_TOPIC_SUFFIX", "/bin");
+        binarySensorDictionary = getEnv(dotenv, "BINARY_SENSOR_DICTIONARY", "");
+        topicTemplate = getEnv(dotenv, "TOPIC_TEMPLATE", "");
+
+        // Load rollup settings
+        rollupWindows = getEnv(dotenv, "ROLLUP_WINDOWS", "");
+        rollupAllowedLatenessMs = getIntEnv(dotenv, "ROLLUP_ALLOWED_LATENESS_MS", 10000);
+        rollupMaxSeries = getIntEnv(dotenv, "ROLLUP_MAX_SERIES", 16384);
+
+        // Load metrics settings
+        metricsPort = getIntEnv(dotenv, "METRICS_PORT", 9404);
 
         logConfiguration();
     }
@@ -67,13 +226,52 @@ public class BatchProcessorConfig {
      * @return The value found or the default value
      */
     private String getEnv(Dotenv dotenv, String varName, String defaultValue) {
-        String value = System.getenv(varName);
+        String value = overrides.get(varName);
+        if (value != null) return value;
+
+        value = System.getenv(varName);
         if (value != null) return value;
 
         value = dotenv.get(varName);
         return value != null ? value : defaultValue;
     }
 
+    /**
+     * @return The hostname, or a fixed name if it is unknown, followed by the process ID, so several instances on
+     * one host do not share an MQTT client ID and take over each other's session.
+     */
+    private static String defaultInstanceId() {
+        String hostname = System.getenv("HOSTNAME");
+        if (hostname == null || hostname.isBlank()) {
+            try {
+                hostname = InetAddress.getLocalHost().getHostName();
+            } catch (UnknownHostException e) {
+                LOGGER.debug("Could not resolve the local hostname: {}", e.getMessage());
+            }
+        }
+        String host = hostname == null || hostname.isBlank() ? "batch-processor" : hostname.trim();
+        return host + "-" + ProcessHandle.current().pid();
+    }
+
+    /**
+     * Gets an integer value from System env variables (Or Dotenv file as fallback), returning a default if not found.
+     * @param dotenv Dotenv instance
+     * @param varName Environment variable name
+     * @param defaultValue Default value if not found
+     * @return The parsed value or the default value
+     * @throws IllegalArgumentException if the value is present but not a valid integer
+     */
+    private int getIntEnv(Dotenv dotenv, String varName, int defaultValue) {
+        String value = getEnv(dotenv, varName, null);
+        if (value == null || value.isBlank()) return defaultValue;
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(varName + " must be an integer but was '" + value + "'", e);
+        }
+    }
+
     /**
      * Gets a value from System env variables (Or Dotenv file as fallback), throwing an exception if not found.
      * @param dotenv Dotenv instance
@@ -83,7 +281,10 @@ public class BatchProcessorConfig {
      * @throws IllegalStateException if the variable is missing or empty
      */
     private String getEnvOrThrow(Dotenv dotenv, String varName, String errorMessage) {
-        String value = System.getenv(varName);
+        String value = overrides.get(varName);
+        if (value != null) return value;
+
+        value = System.getenv(varName);
         if (value != null) return value;
 
         value = dotenv.get(varName);
@@ -95,15 +296,68 @@ public class BatchProcessorConfig {
     /** Logs the loaded configuration (except sensitive tokens). */
     private void logConfiguration() {
         LOGGER.info("Batch Processor Configuration Loaded:");
+        LOGGER.info("  Instance ID: {}", instanceId);
         LOGGER.info("  MQTT Broker: {}", mqttBroker);
         LOGGER.info("  MQTT Client ID: {}", mqttClientId);
         LOGGER.info("  MQTT Topic Filter: {}", mqttTopicFilter);
+        LOGGER.info("  MQTT Shared Subscription: {}", mqttSharedGroup.isBlank() ? "Disabled"
+                : "group " + mqttSharedGroup + (mqttLoadReportIntervalMs > 0
+                ? ", load reported to " + mqttLoadReportTopic + " every " + mqttLoadReportIntervalMs + " ms" : ""));
+        LOGGER.info("  MQTT Session: {}", mqttPersistenceDir.isBlank()
+                ? "clean, state in memory" : "persistent, state in " + mqttPersistenceDir);
+        LOGGER.info("  MQTT Reconnect: jittered backoff {}..{} ms, catch-up in-flight window {}",
+                mqttReconnectInitialBackoffMs, mqttReconnectMaxBackoffMs,
+                mqttCatchUpMaxInflight > 0 ? mqttCatchUpMaxInflight : "unchanged");
+        LOGGER.info("  MQTT Acknowledgements: {}", mqttMaxInflight > 0
+                ? "after processing, pausing at " + mqttMaxInflight + " unacknowledged" : "on arrival");
+        LOGGER.info("  MQTT Backpressure: {}", mqttPauseHighWatermarkPercent > 0
+                ? "pause above " + mqttPauseHighWatermarkPercent + "% buffer use, resume below "
+                + mqttResumeLowWatermarkPercent + "%, at most " + mqttMaxPauseMs + " ms" : "Disabled");
         LOGGER.info("  InfluxDB URL: {}", influxUrl);
         LOGGER.info("  InfluxDB Org: {}", influxOrg);
         LOGGER.info("  InfluxDB Bucket: {}", influxBucket);
         LOGGER.info("  InfluxDB Token: {}", (influxToken != null && !influxToken.isEmpty()) ? "****" : "Not Set");
+        LOGGER.info("  InfluxDB Batch Size: {} lines / {} ms (adaptive within {}-{} lines / {}-{} ms)",
+                influxBatchSize, influxFlushIntervalMs, influxBatchSizeMin, influxBatchSizeMax,
+                influxFlushIntervalMinMs, influxFlushIntervalMaxMs);
+        LOGGER.info("  InfluxDB Max Pending Batches: {}", influxMaxPendingBatches);
+        LOGGER.info("  InfluxDB Spill Dir: {}", (influxSpillDir != null && !influxSpillDir.isBlank()) ? influxSpillDir : "Disabled");
+        LOGGER.info("  InfluxDB Spill Limit: {} MB, replayed at {} lines/s", influxSpillMaxMb, influxSpillReplayRate);
+        LOGGER.info("  InfluxDB Circuit Breaker: opens after {} failures, reconnect backoff {}..{} ms",
+                influxBreakerFailureThreshold, influxReconnectInitialBackoffMs, influxReconnectMaxBackoffMs);
         LOGGER.info("  Kafka Brokers: {}", kafkaBrokers);
         LOGGER.info("  Kafka Topic: {}", kafkaTopic);
         LOGGER.info("  Kafka Client ID: {}", kafkaClientId);
+        LOGGER.info("  Kafka WAL Dir: {}", (kafkaWalDir != null && !kafkaWalDir.isBlank()) ? kafkaWalDir : "Disabled");
+        LOGGER.info("  Kafka WAL Segments: {} x {} bytes", kafkaWalMaxSegments, kafkaWalSegmentBytes);
+        LOGGER.info("  Kafka WAL Replay Batch Size: {}", kafkaWalReplayBatchSize);
+        LOGGER.info("  Kafka Send Queue: {}", kafkaSendQueueCapacity > 0
+                ? kafkaSendQueueCapacity + " records, overflow " + kafkaSendOverflowPolicy : "Disabled");
+        LOGGER.info("  Kafka Compression: {}", (kafkaCompressionTolerances != null && !kafkaCompressionTolerances.isBlank())
+                ? kafkaCompressionMode + " " + kafkaCompressionTolerances + ", max silence " + kafkaCompressionMaxSilenceMs + " ms"
+                : "Disabled");
+        LOGGER.info("  Kafka Producer: linger {} ms, batch size {}, compression {}",
+                kafkaProducerLingerMs, kafkaProducerBatchSize, kafkaProducerCompression);
+        LOGGER.info("  Kafka Producer Tuning: {}", kafkaProducerTuneIntervalMs > 0
+                ? "every " + kafkaProducerTuneIntervalMs + " ms within linger 0-" + kafkaProducerLingerMsMax
+                + " ms, batch size " + kafkaProducerBatchSizeMin + "-" + kafkaProducerBatchSizeMax + ", codecs "
+                + kafkaProducerCodecs + ", restart at most every " + kafkaProducerMinRestartIntervalMs + " ms"
+                : "Disabled");
+        LOGGER.info("  Kafka Record Format: {}", "WINDOWED".equalsIgnoreCase(kafkaRecordFormat)
+                ? "WINDOWED, " + kafkaWindowMaxReadings + " readings or " + kafkaWindowMs + " ms per window"
+                : kafkaRecordFormat);
+        LOGGER.info("  Pipeline Queue Capacity: {} per lane", pipelineQueueCapacity);
+        LOGGER.info("  Pipeline Workers: {} lanes", pipelineWorkers);
+        LOGGER.info("  Pipeline Overflow Policy: {}", pipelineOverflowPolicy);
+        LOGGER.info("  Duplicate Filter: {}", dedupHistorySize > 0
+                ? dedupHistorySize + " timestamps per sensor, max " + dedupMaxSensors + " sensors" : "Disabled");
+        LOGGER.info("  Binary Payloads: magic byte{}, {} dictionary-coded sensors",
+                (binaryTopicSuffix != null && !binaryTopicSuffix.isBlank()) ? " or topics ending with " + binaryTopicSuffix : "",
+                (binarySensorDictionary != null && !binarySensorDictionary.isBlank()) ? binarySensorDictionary.split(",").length : 0);
+        LOGGER.info("  Topic Template: {}", (topicTemplate != null && !topicTemplate.isBlank()) ? topicTemplate : "Disabled");
+        LOGGER.info("  Rollup Windows: {}", (rollupWindows != null && !rollupWindows.isBlank())
+                ? rollupWindows + ", allowed lateness " + rollupAllowedLatenessMs + " ms, max " + rollupMaxSeries + " series"
+                : "Disabled");
+        LOGGER.info("  Metrics Endpoint: {}", metricsPort > 0 ? "port " + metricsPort + " /metrics" : "Disabled");
     }
 }
\ No newline at end of file
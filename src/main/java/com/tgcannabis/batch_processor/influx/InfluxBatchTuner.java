@@ -0,0 +1,235 @@
+package com.tgcannabis.batch_processor.influx;
+
+import com.tgcannabis.batch_processor.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adapts the batch size and flush interval of an {@link InfluxBatchWriter} to the traffic it sees.
+ * <p>
+ * Once per adjustment period the tuner folds the arrival rate, the average write latency and the share of
+ * failed writes into moving averages, then:
+ * <ul>
+ *   <li>sets the flush interval to the shortest one that keeps the writer thread busy at most half of the
+ *   time ({@code latency / 0.5}): a quiet night gets quick, small flushes, while slow writes under load
+ *   stretch the interval so fewer, larger requests are made;</li>
+ *   <li>sizes batches to hold twice what arrives in one interval, so steady traffic is sealed by time and
+ *   batches only fill up during bursts;</li>
+ *   <li>halves the batch size and doubles the interval while more than 10% of writes fail, backing off a
+ *   struggling InfluxDB.</li>
+ * </ul>
+ * Each adjustment moves a value by at most a factor of two, and both always stay within the configured limits.
+ * A tuner whose limits are equal keeps its values fixed.
+ */
+public class InfluxBatchTuner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InfluxBatchTuner.class);
+
+    private static final long ADJUST_PERIOD_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final double SMOOTHING = 0.3; // Weight of the latest period in the moving averages
+    private static final double TARGET_UTILIZATION = 0.5;
+    private static final double BATCH_HEADROOM = 2.0;
+    private static final double MAX_ERROR_RATE = 0.1;
+    private static final double MAX_STEP = 2.0;
+
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final long minFlushIntervalNanos;
+    private final long maxFlushIntervalNanos;
+
+    private volatile int batchSize;
+    private volatile long flushIntervalNanos;
+
+    private final LongAdder arrivals = new LongAdder();
+
+    // Guarded by this
+    private long periodStart = System.nanoTime();
+    private long periodWrites;
+    private long periodFailures;
+    private long periodLatencyNanos;
+    private double arrivalRate = Double.NaN;
+    private double writeLatencyNanos = Double.NaN;
+    private double errorRate;
+
+    /**
+     * Creates a tuner that keeps the given values.
+     *
+     * @param batchSize       Lines per batch. Must be positive.
+     * @param flushIntervalMs Maximum time a record waits before its batch is sealed. Must be positive.
+     * @return The fixed tuner.
+     */
+    public static InfluxBatchTuner fixed(int batchSize, long flushIntervalMs) {
+        return new InfluxBatchTuner(batchSize, flushIntervalMs, batchSize, batchSize, flushIntervalMs, flushIntervalMs);
+    }
+
+    /**
+     * Creates the tuner. The initial values are clamped to the limits.
+     *
+     * @param batchSize          Initial lines per batch.
+     * @param flushIntervalMs    Initial flush interval.
+     * @param minBatchSize       Smallest batch size. Must be positive.
+     * @param maxBatchSize       Largest batch size. Must not be below {@code minBatchSize}.
+     * @param minFlushIntervalMs Shortest flush interval. Must be positive.
+     * @param maxFlushIntervalMs Longest flush interval. Must not be below {@code minFlushIntervalMs}.
+     */
+    public InfluxBatchTuner(int batchSize, long flushIntervalMs, int minBatchSize, int maxBatchSize,
+                            long minFlushIntervalMs, long maxFlushIntervalMs) {
+        if (minBatchSize <= 0 || maxBatchSize < minBatchSize
+                || minFlushIntervalMs <= 0 || maxFlushIntervalMs < minFlushIntervalMs) {
+            throw new IllegalArgumentException("Batch size and flush interval limits must be positive and ordered");
+        }
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.minFlushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minFlushIntervalMs);
+        this.maxFlushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(maxFlushIntervalMs);
+        this.batchSize = Math.clamp(batchSize, minBatchSize, maxBatchSize);
+        this.flushIntervalNanos = Math.clamp(TimeUnit.MILLISECONDS.toNanos(flushIntervalMs),
+                minFlushIntervalNanos, maxFlushIntervalNanos);
+    }
+
+    /**
+     * @return {@code true} if the batch size or flush interval may change.
+     */
+    public boolean isAdaptive() {
+        return minBatchSize != maxBatchSize || minFlushIntervalNanos != maxFlushIntervalNanos;
+    }
+
+    /**
+     * Counts records handed to the writer.
+     *
+     * @param lines Number of records.
+     */
+    public void recordArrival(int lines) {
+        arrivals.add(lines);
+    }
+
+    /**
+     * Counts a write attempt that reached the sink.
+     *
+     * @param latencyNanos How long the write took.
+     * @param failed       Whether it failed in a way worth retrying, i.e. InfluxDB is struggling.
+     */
+    public synchronized void recordWrite(long latencyNanos, boolean failed) {
+        periodWrites++;
+        periodLatencyNanos += latencyNanos;
+        if (failed) periodFailures++;
+    }
+
+    /**
+     * Recomputes the batch size and flush interval if an adjustment period has passed since the last time.
+     *
+     * @param now The current {@link System#nanoTime()}.
+     */
+    public synchronized void adjust(long now) {
+        long elapsed = now - periodStart;
+        if (elapsed < ADJUST_PERIOD_NANOS) return;
+        periodStart = now;
+
+        arrivalRate = smooth(arrivalRate, arrivals.sumThenReset() * 1e9 / elapsed);
+        boolean wrote = periodWrites > 0;
+        if (wrote) {
+            writeLatencyNanos = smooth(writeLatencyNanos, (double) periodLatencyNanos / periodWrites);
+            errorRate = smooth(errorRate, (double) periodFailures / periodWrites);
+        }
+        periodWrites = 0;
+        periodFailures = 0;
+        periodLatencyNanos = 0;
+        if (!isAdaptive() || Double.isNaN(writeLatencyNanos)) return;
+
+        int oldBatchSize = batchSize;
+        long oldFlushIntervalNanos = flushIntervalNanos;
+        double targetInterval;
+        double targetBatch;
+        if (errorRate > MAX_ERROR_RATE) {
+            if (!wrote) return; // Circuit open: nothing new to react to
+            targetInterval = oldFlushIntervalNanos * MAX_STEP;
+            targetBatch = oldBatchSize / MAX_STEP;
+        } else {
+            targetInterval = writeLatencyNanos / TARGET_UTILIZATION;
+            targetBatch = arrivalRate * BATCH_HEADROOM * Math.clamp(targetInterval,
+                    minFlushIntervalNanos, maxFlushIntervalNanos) / 1e9;
+        }
+        flushIntervalNanos = Math.clamp(step(oldFlushIntervalNanos, targetInterval),
+                minFlushIntervalNanos, maxFlushIntervalNanos);
+        batchSize = Math.clamp(step(oldBatchSize, targetBatch), minBatchSize, maxBatchSize);
+
+        if (batchSize != oldBatchSize || flushIntervalNanos != oldFlushIntervalNanos) {
+            LOGGER.debug("InfluxDB batching adjusted to {} lines / {} ms (arrivals {}/s, write latency {} ms, errors {})",
+                    batchSize, getFlushIntervalMs(), Math.round(arrivalRate),
+                    Math.round(writeLatencyNanos / 1e6), String.format("%.2f", errorRate));
+        }
+    }
+
+    /** Moves towards the target by at most a factor of {@link #MAX_STEP}. */
+    private static long step(long current, double target) {
+        return Math.round(Math.clamp(target, current / MAX_STEP, current * MAX_STEP));
+    }
+
+    private static double smooth(double average, double sample) {
+        return Double.isNaN(average) ? sample : average + SMOOTHING * (sample - average);
+    }
+
+    /**
+     * @return Current lines per batch.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @return Current flush interval, in nanoseconds.
+     */
+    public long getFlushIntervalNanos() {
+        return flushIntervalNanos;
+    }
+
+    /**
+     * @return Current flush interval, in milliseconds.
+     */
+    public long getFlushIntervalMs() {
+        return TimeUnit.NANOSECONDS.toMillis(flushIntervalNanos);
+    }
+
+    /**
+     * @return Moving average of records handed to the writer per second, or 0 before the first adjustment.
+     */
+    public synchronized double getArrivalRate() {
+        return Double.isNaN(arrivalRate) ? 0 : arrivalRate;
+    }
+
+    /**
+     * @return Moving average of the write latency, in milliseconds, or 0 before the first write.
+     */
+    public synchronized double getWriteLatencyMs() {
+        return Double.isNaN(writeLatencyNanos) ? 0 : writeLatencyNanos / 1e6;
+    }
+
+    /**
+     * @return Moving average of the share of writes that failed.
+     */
+    public synchronized double getErrorRate() {
+        return errorRate;
+    }
+
+    /**
+     * Exports the current batch size and flush interval and the measurements they are derived from.
+     * The values are read on every scrape.
+     *
+     * @param registry Where to register the metrics.
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.registerGauge("batch_processor_influx_batch_size", "Current InfluxDB batch size in lines",
+                this::getBatchSize);
+        registry.registerGauge("batch_processor_influx_flush_interval_seconds", "Current InfluxDB flush interval",
+                () -> getFlushIntervalNanos() / 1e9);
+        registry.registerGauge("batch_processor_influx_arrival_rate", "Lines per second handed to the InfluxDB writer",
+                this::getArrivalRate);
+        registry.registerGauge("batch_processor_influx_write_latency_seconds", "Average InfluxDB write latency",
+                () -> getWriteLatencyMs() / 1e3);
+        registry.registerGauge("batch_processor_influx_write_error_ratio", "Average share of failed InfluxDB writes",
+                this::getErrorRate);
+    }
+}
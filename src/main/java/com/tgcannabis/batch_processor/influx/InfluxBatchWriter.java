@@ -0,0 +1,465 @@
+package com.tgcannabis.batch_processor.influx;
+
+import com.influxdb.exceptions.InfluxException;
+import com.tgcannabis.batch_processor.metrics.Counter;
+import com.tgcannabis.batch_processor.metrics.LatencyHistogram;
+import com.tgcannabis.batch_processor.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Batches line protocol records and writes them to InfluxDB from a background thread.
+ * <p>
+ * Records are appended to the current batch, which is sealed once it holds {@code batchSize} lines or
+ * has been open for the flush interval. Both come from an {@link InfluxBatchTuner}, which may adapt them to
+ * the traffic. Sealed batches wait in a bounded queue for the flusher thread.
+ * A batch that cannot be written (InfluxDB down, queue full) goes to the {@link InfluxSpillBuffer}
+ * instead of being lost; batches InfluxDB rejects as invalid (4xx) are dropped and counted.
+ * <p>
+ * Every write goes through an {@link InfluxCircuitBreaker}. While the circuit is open, batches are spilled
+ * (or, without a spill buffer, dropped) immediately instead of waiting on timeouts, and the spilled data is
+ * written back by {@link InfluxSpillReplayer} once the circuit closes.
+ */
+public class InfluxBatchWriter implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InfluxBatchWriter.class);
+    private static final LatencyHistogram FLUSH_LATENCY = MetricsRegistry.stageLatency("influx_flush");
+    private static final Counter WRITE_ERRORS = MetricsRegistry.errors("influx_write");
+    private static final Counter REJECT_ERRORS = MetricsRegistry.errors("influx_rejected");
+
+    /**
+     * Destination of sealed batches, e.g. the blocking InfluxDB write API.
+     */
+    @FunctionalInterface
+    public interface Sink {
+        /**
+         * Writes newline-separated line protocol records.
+         *
+         * @param lineProtocol The records to write.
+         * @throws Exception if the write failed
+         */
+        void write(String lineProtocol) throws Exception;
+    }
+
+    /** Outcome of a write attempt. */
+    enum Result {
+        /** The batch was written. */
+        WRITTEN,
+        /** The batch failed, or the circuit is open, and it may succeed later. */
+        RETRY,
+        /** InfluxDB refused the batch itself; retrying will not help. */
+        REJECTED
+    }
+
+    private record Batch(String lineProtocol, int lines) {
+    }
+
+    private final Sink sink;
+    private final InfluxSpillBuffer spill;
+    private final InfluxCircuitBreaker breaker;
+    private final InfluxBatchTuner tuner;
+    private final int maxPendingBatches;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition workAvailable = lock.newCondition();
+    private final Condition drained = lock.newCondition();
+    private final ArrayDeque<Batch> pending = new ArrayDeque<>();
+    private final StringBuilder current = new StringBuilder(8192);
+    private int currentLines;
+    private long currentOpenedAt;
+    private boolean writing;
+
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    private final LongAdder writtenLines = new LongAdder();
+    private final LongAdder spilledLines = new LongAdder();
+    private final LongAdder rejectedLines = new LongAdder();
+    private final LongAdder droppedLines = new LongAdder();
+
+    /**
+     * Creates the writer with a time-based circuit breaker that opens on the first failure.
+     *
+     * @see #InfluxBatchWriter(Sink, InfluxSpillBuffer, InfluxCircuitBreaker, int, long, int)
+     */
+    public InfluxBatchWriter(Sink sink, InfluxSpillBuffer spill, int batchSize, long flushIntervalMs,
+                             int maxPendingBatches) {
+        this(sink, spill, new InfluxCircuitBreaker(1, 1_000, 60_000, null), batchSize, flushIntervalMs,
+                maxPendingBatches);
+    }
+
+    /**
+     * Creates the writer with a fixed batch size and flush interval.
+     *
+     * @param batchSize       Lines per batch. Must be positive.
+     * @param flushIntervalMs Maximum time a record waits before its batch is sealed. Must be positive.
+     * @see #InfluxBatchWriter(Sink, InfluxSpillBuffer, InfluxCircuitBreaker, InfluxBatchTuner, int)
+     */
+    public InfluxBatchWriter(Sink sink, InfluxSpillBuffer spill, InfluxCircuitBreaker breaker, int batchSize,
+                             long flushIntervalMs, int maxPendingBatches) {
+        this(sink, spill, breaker, InfluxBatchTuner.fixed(batchSize, flushIntervalMs), maxPendingBatches);
+    }
+
+    /**
+     * Creates the writer and starts its flusher thread.
+     *
+     * @param sink              Where batches are written. Must not be null.
+     * @param spill             Where unwritable batches are kept; {@code null} drops them instead.
+     * @param breaker           Circuit breaker guarding the sink. Must not be null.
+     * @param tuner             Supplies the batch size and flush interval. Must not be null.
+     * @param maxPendingBatches Sealed batches that may wait for the flusher. Must be positive.
+     */
+    public InfluxBatchWriter(Sink sink, InfluxSpillBuffer spill, InfluxCircuitBreaker breaker, InfluxBatchTuner tuner,
+                             int maxPendingBatches) {
+        if (maxPendingBatches <= 0) {
+            throw new IllegalArgumentException("Pending batches must be positive");
+        }
+        this.sink = Objects.requireNonNull(sink, "Sink cannot be null");
+        this.spill = spill;
+        this.breaker = Objects.requireNonNull(breaker, "Circuit breaker cannot be null");
+        this.tuner = Objects.requireNonNull(tuner, "Batch tuner cannot be null");
+        this.maxPendingBatches = maxPendingBatches;
+
+        this.flusher = new Thread(this::run, "influx-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Appends records to the current batch.
+     *
+     * @param record One or more newline-separated line protocol records.
+     * @param lines  Number of records in {@code record}.
+     */
+    public void add(CharSequence record, int lines) {
+        tuner.recordArrival(lines);
+        Batch overflow = null;
+        lock.lock();
+        try {
+            if (currentLines == 0) {
+                currentOpenedAt = System.nanoTime();
+            } else {
+                current.append('\n');
+            }
+            current.append(record);
+            currentLines += lines;
+            if (currentLines >= tuner.getBatchSize()) {
+                overflow = seal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (overflow != null) {
+            spill(overflow, "pending queue full");
+        }
+    }
+
+    /**
+     * Seals the current batch and waits until every pending batch has been written or spilled.
+     */
+    public void flush() {
+        Batch overflow;
+        lock.lock();
+        try {
+            overflow = seal();
+        } finally {
+            lock.unlock();
+        }
+        if (overflow != null) {
+            spill(overflow, "pending queue full");
+        }
+
+        lock.lock();
+        try {
+            while (flusher.isAlive() && (writing || !pending.isEmpty())) {
+                drained.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return {@code true} if live traffic leaves room for replaying spilled data: nothing is waiting to be
+     * written, or the circuit is not closed and new batches are being spilled anyway.
+     */
+    public boolean isIdle() {
+        if (isDegraded()) return true;
+        lock.lock();
+        try {
+            return pending.isEmpty() && !writing;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return {@code true} while the circuit is not closed, i.e. new batches bypass InfluxDB.
+     */
+    public boolean isDegraded() {
+        return breaker.getState() != InfluxCircuitBreaker.State.CLOSED;
+    }
+
+    /**
+     * @return {@code true} if a write would currently be let through by the circuit breaker.
+     */
+    public boolean canWrite() {
+        return breaker.isRequestPermitted();
+    }
+
+    /**
+     * @return Sealed batches waiting for the flusher thread.
+     */
+    public int getPendingBatches() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Sealed batches that may wait for the flusher before new ones are spilled.
+     */
+    public int getMaxPendingBatches() {
+        return maxPendingBatches;
+    }
+
+    /**
+     * @return The tuner supplying the current batch size and flush interval.
+     */
+    public InfluxBatchTuner getTuner() {
+        return tuner;
+    }
+
+    /**
+     * @return Lines written to InfluxDB, including replayed ones.
+     */
+    public long getWrittenLines() {
+        return writtenLines.sum();
+    }
+
+    /**
+     * @return Lines sent to the spill buffer.
+     */
+    public long getSpilledLines() {
+        return spilledLines.sum();
+    }
+
+    /**
+     * @return Lines InfluxDB rejected as invalid.
+     */
+    public long getRejectedLines() {
+        return rejectedLines.sum();
+    }
+
+    /**
+     * @return Lines lost because no spill buffer was available or it could not store them.
+     */
+    public long getDroppedLines() {
+        return droppedLines.sum();
+    }
+
+    /**
+     * Writes records to the sink if the circuit breaker allows it, classifying any failure.
+     *
+     * @param lineProtocol Newline-separated line protocol records.
+     * @param lines        Number of records.
+     * @return The outcome of the attempt.
+     */
+    Result write(String lineProtocol, int lines) {
+        if (!breaker.allowRequest()) {
+            return Result.RETRY; // Circuit open: fail fast
+        }
+        long started = System.nanoTime();
+        try {
+            sink.write(lineProtocol);
+            FLUSH_LATENCY.recordSince(started);
+            tuner.recordWrite(System.nanoTime() - started, false);
+            breaker.recordSuccess();
+            writtenLines.add(lines);
+            return Result.WRITTEN;
+        } catch (Exception e) {
+            if (!isRetriable(e)) {
+                breaker.recordSuccess(); // InfluxDB answered, so it is reachable
+                rejectedLines.add(lines);
+                REJECT_ERRORS.increment();
+                LOGGER.error("InfluxDB rejected batch of {} lines, dropping it: {}", lines, e.getMessage());
+                return Result.REJECTED;
+            }
+            breaker.recordFailure();
+            tuner.recordWrite(System.nanoTime() - started, true);
+            WRITE_ERRORS.increment();
+            LOGGER.warn("InfluxDB write of {} lines failed: {}", lines, e.getMessage());
+            return Result.RETRY;
+        }
+    }
+
+    /**
+     * Decides whether a failed write is worth retrying. Client errors other than 429 (too many requests)
+     * mean InfluxDB will refuse the same batch again.
+     */
+    static boolean isRetriable(Throwable error) {
+        if (error instanceof InfluxException influxException) {
+            int status = influxException.status();
+            return status < 400 || status >= 500 || status == 429;
+        }
+        return true;
+    }
+
+    private void run() {
+        while (true) {
+            Batch batch;
+            lock.lock();
+            try {
+                batch = awaitBatch();
+                if (batch == null) return;
+                writing = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                deliver(batch);
+                tuner.adjust(System.nanoTime()); // Also when busy, where awaitBatch never waits
+            } catch (Exception e) {
+                LOGGER.error("Unexpected error in InfluxDB flusher: {}", e.getMessage(), e);
+            } finally {
+                lock.lock();
+                try {
+                    writing = false;
+                    if (pending.isEmpty()) drained.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for the next sealed batch, sealing the current one when the flush interval elapses.
+     * Must be called with the lock held.
+     *
+     * @return The next batch, or {@code null} once the writer is closed.
+     */
+    private Batch awaitBatch() throws InterruptedException {
+        while (pending.isEmpty()) {
+            if (!running) return null;
+            long now = System.nanoTime();
+            tuner.adjust(now);
+            long flushIntervalNanos = tuner.getFlushIntervalNanos();
+            long waitNanos = currentLines == 0
+                    ? flushIntervalNanos
+                    : currentOpenedAt + flushIntervalNanos - now;
+            if (waitNanos <= 0) {
+                seal(); // Queue is empty, so this cannot overflow
+            } else {
+                workAvailable.awaitNanos(waitNanos);
+            }
+        }
+        return pending.pollFirst();
+    }
+
+    /**
+     * Moves the current batch to the pending queue. Must be called with the lock held.
+     *
+     * @return The sealed batch if the queue was full and it has to be spilled by the caller, otherwise {@code null}.
+     */
+    private Batch seal() {
+        if (currentLines == 0) return null;
+        Batch batch = new Batch(current.toString(), currentLines);
+        current.setLength(0);
+        currentLines = 0;
+        if (current.capacity() > 1 << 20) {
+            current.trimToSize(); // Don't hold on to the buffer of an unusually large batch
+        }
+
+        if (pending.size() >= maxPendingBatches) {
+            return batch;
+        }
+        pending.addLast(batch);
+        workAvailable.signal();
+        return null;
+    }
+
+    private void deliver(Batch batch) {
+        if (write(batch.lineProtocol(), batch.lines()) == Result.RETRY) {
+            spill(batch, "InfluxDB unavailable");
+        }
+    }
+
+    private void spill(Batch batch, String reason) {
+        if (spill != null && spill.append(batch.lineProtocol(), batch.lines())) {
+            spilledLines.add(batch.lines());
+            LOGGER.debug("Spilled {} lines to disk ({})", batch.lines(), reason);
+            return;
+        }
+        droppedLines.add(batch.lines());
+        LOGGER.error("Dropping batch of {} InfluxDB lines ({}), no spill buffer available", batch.lines(), reason);
+    }
+
+    /**
+     * Exports the pending batches and the lines written per outcome, along with the tuner's current settings.
+     * The values are read on every scrape.
+     *
+     * @param registry Where to register the metrics.
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.registerGauge("batch_processor_influx_pending_batches", "Sealed batches waiting to be written",
+                this::getPendingBatches);
+        registry.registerCounter("batch_processor_influx_lines_total", "InfluxDB lines by outcome",
+                this::getWrittenLines, "outcome", "written");
+        registry.registerCounter("batch_processor_influx_lines_total", "InfluxDB lines by outcome",
+                this::getSpilledLines, "outcome", "spilled");
+        registry.registerCounter("batch_processor_influx_lines_total", "InfluxDB lines by outcome",
+                this::getRejectedLines, "outcome", "rejected");
+        registry.registerCounter("batch_processor_influx_lines_total", "InfluxDB lines by outcome",
+                this::getDroppedLines, "outcome", "dropped");
+        tuner.registerMetrics(registry);
+    }
+
+    /**
+     * Stops the flusher thread and writes (or spills) everything still buffered.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (!running) return;
+            running = false;
+            seal();
+            workAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        lock.lock();
+        try {
+            Batch overflow = seal(); // Records added while the flusher was draining
+            Batch batch;
+            while ((batch = overflow != null ? overflow : pending.pollFirst()) != null) {
+                overflow = null;
+                deliver(batch);
+            }
+            drained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
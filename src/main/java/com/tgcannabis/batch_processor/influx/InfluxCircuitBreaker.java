@@ -0,0 +1,266 @@
+package com.tgcannabis.batch_processor.influx;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Circuit breaker guarding writes to InfluxDB.
+ * <ul>
+ *     <li>{@link State#CLOSED}: writes go through. After {@code failureThreshold} consecutive failures the
+ *     circuit opens.</li>
+ *     <li>{@link State#OPEN}: writes are refused immediately. A background thread runs the reconnect probe
+ *     with exponential backoff; when it succeeds the circuit becomes half-open. Without a probe the circuit
+ *     turns half-open once the backoff has elapsed.</li>
+ *     <li>{@link State#HALF_OPEN}: a single trial write is let through. Success closes the circuit, failure
+ *     opens it again with a doubled backoff.</li>
+ * </ul>
+ * Reading the state while closed is a volatile read, so the breaker costs nothing measurable on healthy writes.
+ */
+public class InfluxCircuitBreaker implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InfluxCircuitBreaker.class);
+
+    /** Circuit states; the ordinal is the value exported as a metric. */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Re-establishes the connection while the circuit is open, e.g. by recreating the client and pinging.
+     */
+    @FunctionalInterface
+    public interface Probe {
+        /**
+         * @return {@code true} if the service looks reachable again.
+         * @throws Exception if the attempt failed
+         */
+        boolean reconnect() throws Exception;
+    }
+
+    private final int failureThreshold;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+    private final Probe probe;
+    private final Thread reconnector;
+
+    private volatile State state = State.CLOSED;
+    private volatile int consecutiveFailures; // Written under the lock, read without it on the success path
+    private long backoffNanos;
+    private long retryAt; // System.nanoTime() at which the next reconnect attempt is due
+    private boolean trialInFlight;
+    private volatile boolean running = true;
+
+    private final LongAdder openedCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+
+    /**
+     * Creates the breaker in the closed state, starting the reconnect thread if a probe is given.
+     *
+     * @param failureThreshold Consecutive failures that open the circuit. Must be positive.
+     * @param initialBackoffMs Delay before the first reconnect attempt. Must be positive.
+     * @param maxBackoffMs     Upper bound of the doubling reconnect delay. Must not be less than the initial one.
+     * @param probe            Reconnect attempt run in the background while open; {@code null} for a purely
+     *                         time-based breaker.
+     */
+    public InfluxCircuitBreaker(int failureThreshold, long initialBackoffMs, long maxBackoffMs, Probe probe) {
+        if (failureThreshold <= 0 || initialBackoffMs <= 0 || maxBackoffMs < initialBackoffMs) {
+            throw new IllegalArgumentException("Invalid circuit breaker settings: threshold=" + failureThreshold
+                    + ", backoff=" + initialBackoffMs + ".." + maxBackoffMs + " ms");
+        }
+        this.failureThreshold = failureThreshold;
+        this.initialBackoffNanos = TimeUnit.MILLISECONDS.toNanos(initialBackoffMs);
+        this.maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(maxBackoffMs);
+        this.backoffNanos = initialBackoffNanos;
+        this.probe = probe;
+
+        if (probe != null) {
+            this.reconnector = new Thread(this::runReconnector, "influx-reconnect");
+            this.reconnector.setDaemon(true);
+            this.reconnector.start();
+        } else {
+            this.reconnector = null;
+        }
+    }
+
+    /**
+     * Asks for permission to write. In the half-open state only one caller at a time gets it.
+     * Every permitted write must be followed by {@link #recordSuccess()} or {@link #recordFailure()}.
+     *
+     * @return {@code true} if the write may be attempted.
+     */
+    public boolean allowRequest() {
+        if (state == State.CLOSED) return true;
+        synchronized (this) {
+            if (state == State.OPEN && probe == null && System.nanoTime() - retryAt >= 0) {
+                transition(State.HALF_OPEN);
+            }
+            if (state == State.CLOSED) return true;
+            if (state == State.HALF_OPEN && !trialInFlight) {
+                trialInFlight = true;
+                return true;
+            }
+        }
+        rejectedCount.increment();
+        return false;
+    }
+
+    /**
+     * @return {@code true} if {@link #allowRequest()} would currently grant a write. Does not change the state.
+     */
+    public synchronized boolean isRequestPermitted() {
+        return switch (state) {
+            case CLOSED -> true;
+            case HALF_OPEN -> !trialInFlight;
+            case OPEN -> probe == null && System.nanoTime() - retryAt >= 0;
+        };
+    }
+
+    /**
+     * Records a successful write, closing the circuit if it was not closed.
+     */
+    public void recordSuccess() {
+        if (state == State.CLOSED && consecutiveFailures == 0) return;
+        synchronized (this) {
+            consecutiveFailures = 0;
+            trialInFlight = false;
+            if (state != State.CLOSED) {
+                backoffNanos = initialBackoffNanos;
+                transition(State.CLOSED);
+            }
+        }
+    }
+
+    /**
+     * Records a failed write, opening the circuit when the threshold is reached or the trial write failed.
+     */
+    public synchronized void recordFailure() {
+        trialInFlight = false;
+        switch (state) {
+            case CLOSED -> {
+                if (++consecutiveFailures >= failureThreshold) {
+                    open(initialBackoffNanos);
+                }
+            }
+            case HALF_OPEN -> open(nextBackoff());
+            case OPEN -> { /* A write that started before the circuit opened */ }
+        }
+    }
+
+    /**
+     * Opens the circuit and schedules an immediate reconnect attempt, e.g. when the client could not be
+     * created at startup.
+     */
+    public synchronized void forceOpen() {
+        if (state != State.OPEN) {
+            open(0);
+        }
+    }
+
+    /**
+     * @return The current state.
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return Number of times the circuit has opened.
+     */
+    public long getOpenedCount() {
+        return openedCount.sum();
+    }
+
+    /**
+     * @return Writes refused because the circuit was open.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    private void open(long delayNanos) {
+        retryAt = System.nanoTime() + delayNanos;
+        openedCount.increment();
+        transition(State.OPEN);
+        notifyAll(); // Wake the reconnect thread
+    }
+
+    private long nextBackoff() {
+        backoffNanos = Math.min(backoffNanos * 2, maxBackoffNanos);
+        return backoffNanos;
+    }
+
+    private void transition(State next) {
+        State previous = state;
+        if (previous == next) return;
+        state = next;
+        if (next == State.OPEN) {
+            LOGGER.warn("InfluxDB circuit {} -> OPEN, next reconnect attempt in {} ms", previous,
+                    TimeUnit.NANOSECONDS.toMillis(Math.max(retryAt - System.nanoTime(), 0)));
+        } else {
+            LOGGER.info("InfluxDB circuit {} -> {}", previous, next);
+        }
+    }
+
+    private void runReconnector() {
+        while (running) {
+            try {
+                synchronized (this) {
+                    while (running) {
+                        if (state != State.OPEN) {
+                            wait();
+                            continue;
+                        }
+                        long waitNanos = retryAt - System.nanoTime();
+                        if (waitNanos <= 0) break;
+                        TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+                    }
+                }
+                if (!running) return;
+
+                boolean reachable;
+                try {
+                    reachable = probe.reconnect();
+                } catch (Exception e) {
+                    LOGGER.debug("InfluxDB reconnect attempt failed: {}", e.getMessage());
+                    reachable = false;
+                }
+
+                synchronized (this) {
+                    if (state != State.OPEN) continue;
+                    if (reachable) {
+                        transition(State.HALF_OPEN);
+                    } else {
+                        retryAt = System.nanoTime() + nextBackoff();
+                        LOGGER.warn("InfluxDB still unreachable, next reconnect attempt in {} ms",
+                                TimeUnit.NANOSECONDS.toMillis(backoffNanos));
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops the reconnect thread.
+     */
+    @Override
+    public void close() {
+        running = false;
+        if (reconnector != null) {
+            synchronized (this) {
+                notifyAll();
+            }
+            reconnector.interrupt();
+            try {
+                reconnector.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -2,36 +2,52 @@ package com.tgcannabis.batch_processor.influx;
 
 import com.influxdb.client.InfluxDBClient;
 import com.influxdb.client.InfluxDBClientFactory;
-import com.influxdb.client.WriteApi;
+import com.influxdb.client.WriteApiBlocking;
 import com.influxdb.client.domain.WritePrecision;
-import com.influxdb.client.write.Point;
-import com.influxdb.client.write.events.WriteErrorEvent;
-import com.influxdb.client.write.events.WriteSuccessEvent;
 import com.influxdb.exceptions.InfluxException;
 import com.tgcannabis.batch_processor.config.BatchProcessorConfig;
+import com.tgcannabis.batch_processor.metrics.Counter;
+import com.tgcannabis.batch_processor.metrics.LatencyHistogram;
+import com.tgcannabis.batch_processor.metrics.MetricsRegistry;
 import com.tgcannabis.batch_processor.model.SensorData; // Assuming model location
+import com.tgcannabis.batch_processor.model.SensorRollup;
 import lombok.Setter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.time.Instant;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.List;
 import java.util.Objects;
 
 /**
  * Handles writing sensor data points to InfluxDB.
- * Uses the non-blocking Write API with background flushing and error handling.
+ * Readings are encoded straight to line protocol by a {@link LineProtocolEncoder} and batched by an
+ * {@link InfluxBatchWriter}, which writes through the blocking Write API from a background thread.
+ * Batches that cannot be written are kept in an {@link InfluxSpillBuffer} and replayed once InfluxDB recovers.
+ * An {@link InfluxCircuitBreaker} stops write attempts during an outage and reconnects from its own thread.
  */
 public class InfluxDbService implements AutoCloseable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(InfluxDbService.class);
+    private static final LatencyHistogram ENQUEUE_LATENCY = MetricsRegistry.stageLatency("influx_enqueue");
+    private static final Counter ENCODE_ERRORS = MetricsRegistry.errors("influx_encode");
+
+    private static final long SPILL_FILE_BYTES = 16L * 1024 * 1024;
 
     private final BatchProcessorConfig config;
 
     @Setter
-    private InfluxDBClient influxDBClient;
+    private volatile InfluxDBClient influxDBClient;
 
     @Setter
-    private WriteApi writeApi; // Non-blocking API
+    private volatile WriteApiBlocking writeApi; // Replaced by the reconnect thread, used by the writer threads
+
+    private final LineProtocolEncoder encoder = new LineProtocolEncoder();
+    private InfluxSpillBuffer spillBuffer;
+    private InfluxCircuitBreaker circuitBreaker;
+    private InfluxBatchWriter batchWriter;
+    private InfluxSpillReplayer spillReplayer;
 
     /**
      * Constructs the InfluxDB Service.
@@ -41,16 +57,18 @@ public class InfluxDbService implements AutoCloseable {
     public InfluxDbService(BatchProcessorConfig config) {
         this.config = Objects.requireNonNull(config, "Configuration cannot be null");
         initializeClient();
+        initializeWriter();
     }
 
-    public InfluxDbService(BatchProcessorConfig config, InfluxDBClient client, WriteApi writeApi) {
-        this.config = config;
+    public InfluxDbService(BatchProcessorConfig config, InfluxDBClient client, WriteApiBlocking writeApi) {
+        this.config = Objects.requireNonNull(config, "Configuration cannot be null");
         this.influxDBClient = client;
         this.writeApi = writeApi;
+        initializeWriter();
     }
 
     /**
-     * Initializes the InfluxDB client and the non-blocking Write API.
+     * Initializes the InfluxDB client and the blocking Write API.
      */
     protected void initializeClient() {
         try {
@@ -66,18 +84,8 @@ public class InfluxDbService implements AutoCloseable {
             influxDBClient.ping();
             LOGGER.info("InfluxDB connection successful (ping ok).");
 
-            // Setup non-blocking Write API with error handling
-            // Records are buffered and written in batches in the background
-            writeApi = influxDBClient.makeWriteApi();
-            writeApi.listenEvents(WriteErrorEvent.class, event -> {
-                LOGGER.error("Error writing to InfluxDB (non-blocking API): ", event.getThrowable());
-                // Implement strategy for failed writes if needed (e.g., logging, metrics)
-            });
-            writeApi.listenEvents(WriteSuccessEvent.class, event -> {
-                // Optional: Log successful batch writes if needed for debugging
-                LOGGER.debug("Successfully wrote batch to InfluxDB: {}", event.getLineProtocol());
-            });
-
+            // Batching is done by InfluxBatchWriter, which needs to see each write's outcome
+            writeApi = influxDBClient.getWriteApiBlocking();
 
         } catch (InfluxException e) {
             LOGGER.error("Failed to initialize InfluxDB Client or ping failed: {}", e.getMessage(), e);
@@ -88,9 +96,70 @@ public class InfluxDbService implements AutoCloseable {
     }
 
     /**
-     * Writes sensor data to InfluxDB using the non-blocking API.
-     * The data point is added to a buffer and written in the background.
-     * Does nothing if the client failed to initialize.
+     * Creates the circuit breaker, the batch writer and, if a spill directory is configured, the spill buffer
+     * and its replayer. Zero or negative settings fall back to the defaults.
+     */
+    private void initializeWriter() {
+        int initialBackoffMs = config.getInfluxReconnectInitialBackoffMs() > 0 ? config.getInfluxReconnectInitialBackoffMs() : 1000;
+        circuitBreaker = new InfluxCircuitBreaker(
+                config.getInfluxBreakerFailureThreshold() > 0 ? config.getInfluxBreakerFailureThreshold() : 3,
+                initialBackoffMs,
+                Math.max(config.getInfluxReconnectMaxBackoffMs(), initialBackoffMs),
+                this::reconnect);
+        if (influxDBClient == null || writeApi == null) {
+            circuitBreaker.forceOpen(); // Client could not be created at startup: keep trying in the background
+        }
+
+
+        String spillDir = config.getInfluxSpillDir();
+        if (spillDir == null || spillDir.isBlank()) {
+            LOGGER.info("InfluxDB spill buffer disabled: batches that cannot be written will be dropped.");
+        } else {
+            try {
+                long maxBytes = (config.getInfluxSpillMaxMb() > 0 ? config.getInfluxSpillMaxMb() : 1024) * 1024L * 1024L;
+                LOGGER.info("Opening InfluxDB spill buffer in {}", spillDir);
+                spillBuffer = new InfluxSpillBuffer(Path.of(spillDir), maxBytes, Math.min(SPILL_FILE_BYTES, maxBytes));
+            } catch (UncheckedIOException | IllegalArgumentException e) {
+                LOGGER.error("Failed to open InfluxDB spill buffer in {}: {}", spillDir, e.getMessage(), e);
+                spillBuffer = null;
+            }
+        }
+
+        batchWriter = new InfluxBatchWriter(this::writeBatch, spillBuffer, circuitBreaker, createBatchTuner(),
+                config.getInfluxMaxPendingBatches() > 0 ? config.getInfluxMaxPendingBatches() : 64);
+
+        if (spillBuffer != null) {
+            spillReplayer = new InfluxSpillReplayer(spillBuffer, batchWriter,
+                    config.getInfluxSpillReplayRate() > 0 ? config.getInfluxSpillReplayRate() : 5000);
+        }
+    }
+
+    /**
+     * Creates the tuner for the configured batch size and flush interval, which adapts them within the
+     * configured limits. A limit of zero pins it to the configured value.
+     */
+    private InfluxBatchTuner createBatchTuner() {
+        int batchSize = config.getInfluxBatchSize() > 0 ? config.getInfluxBatchSize() : 1000;
+        int flushIntervalMs = config.getInfluxFlushIntervalMs() > 0 ? config.getInfluxFlushIntervalMs() : 1000;
+        int minBatchSize = config.getInfluxBatchSizeMin() > 0 ? config.getInfluxBatchSizeMin() : batchSize;
+        int maxBatchSize = Math.max(config.getInfluxBatchSizeMax() > 0 ? config.getInfluxBatchSizeMax() : batchSize,
+                minBatchSize);
+        int minFlushIntervalMs = config.getInfluxFlushIntervalMinMs() > 0 ? config.getInfluxFlushIntervalMinMs() : flushIntervalMs;
+        int maxFlushIntervalMs = Math.max(config.getInfluxFlushIntervalMaxMs() > 0
+                ? config.getInfluxFlushIntervalMaxMs() : flushIntervalMs, minFlushIntervalMs);
+
+        InfluxBatchTuner tuner = new InfluxBatchTuner(batchSize, flushIntervalMs, minBatchSize, maxBatchSize,
+                minFlushIntervalMs, maxFlushIntervalMs);
+        if (tuner.isAdaptive()) {
+            LOGGER.info("Adaptive InfluxDB batching: {}-{} lines, {}-{} ms flush interval",
+                    minBatchSize, maxBatchSize, minFlushIntervalMs, maxFlushIntervalMs);
+        }
+        return tuner;
+    }
+
+    /**
+     * Queues sensor data for writing to InfluxDB.
+     * The record is added to the current batch and written in the background; this call does no network I/O.
      *
      * @param data             The SensorData object to write. Must not be null.
      * @param originatingTopic The MQTT topic the data came from (used as a tag). Can be null.
@@ -98,48 +167,183 @@ public class InfluxDbService implements AutoCloseable {
     public void writeSensorData(SensorData data, String originatingTopic) {
         Objects.requireNonNull(data, "SensorData cannot be null");
 
-        // Check for uninitialized client
-        if (this.writeApi == null || this.influxDBClient == null) {
-            LOGGER.warn("InfluxDB client/write API not initialized. Attempting to reinitialize...");
-            initializeClient();
-            if (this.writeApi == null || this.influxDBClient == null) {
-                throw new IllegalStateException("InfluxDB client could not be initialized");
-            }
-        }
-
-        if (data.getSensorId() == null || data.getSensorType() == null) {
+        if (!isComplete(data)) {
             LOGGER.warn("Incomplete SensorData received, skipping InfluxDB write: {}", data);
             return;
         }
 
+        long started = System.nanoTime();
         try {
-            Point point = Point.measurement(data.getSensorType())
-                    .addTag("sensorId", data.getSensorId())
-                    .addTag("location", data.getLocation() != null ? data.getLocation() : "unknown")
-                    .addTag("originTopic", originatingTopic != null ? originatingTopic : "unknown")
-                    .addTag("sensorType", data.getSensorType())
-                    .addField("value", data.getValue())
-                    .addField("timestamp", data.getTimestamp())
-                    .time(Instant.ofEpochMilli(data.getTimestamp()), WritePrecision.MS);
-
-            LOGGER.debug("Queueing point for InfluxDB: {}", point.toLineProtocol());
-            writeApi.writePoint(point);
+            String record = encoder.encode(data, originatingTopic);
+            LOGGER.debug("Queueing record for InfluxDB: {}", record);
+            batchWriter.add(record, 1);
+            ENQUEUE_LATENCY.recordSince(started);
+        } catch (Exception e) {
+            ENCODE_ERRORS.increment();
+            LOGGER.error("Error encoding InfluxDB record: {}", e.getMessage(), e);
+        }
+    }
 
+    /**
+     * Queues several readings from the same topic for writing to InfluxDB.
+     * Incomplete readings are skipped.
+     *
+     * @param batch            The readings to write. Must not be null.
+     * @param originatingTopic The MQTT topic the data came from (used as a tag). Can be null.
+     */
+    public void writeSensorDataBatch(List<SensorData> batch, String originatingTopic) {
+        Objects.requireNonNull(batch, "SensorData batch cannot be null");
+        if (batch.isEmpty()) return;
+
+        List<SensorData> complete = batch;
+        for (SensorData data : batch) {
+            if (!isComplete(data)) {
+                complete = batch.stream().filter(InfluxDbService::isComplete).toList();
+                LOGGER.warn("Skipping {} incomplete SensorData readings in batch", batch.size() - complete.size());
+                break;
+            }
+        }
+        if (complete.isEmpty()) return;
+
+        try {
+            String record = encoder.encode(complete, originatingTopic);
+            LOGGER.debug("Queueing {} records for InfluxDB", complete.size());
+            batchWriter.add(record, complete.size());
         } catch (Exception e) {
-            LOGGER.error("Error creating InfluxDB Point object: {}", e.getMessage(), e);
+            LOGGER.error("Error encoding InfluxDB records: {}", e.getMessage(), e);
         }
     }
 
+    /**
+     * Queues a closed rollup window for writing alongside the raw readings.
+     *
+     * @param rollup The window aggregate. Must not be null.
+     */
+    public void writeRollup(SensorRollup rollup) {
+        Objects.requireNonNull(rollup, "SensorRollup cannot be null");
+        try {
+            batchWriter.add(encoder.encodeRollup(rollup), 1);
+        } catch (Exception e) {
+            LOGGER.error("Error encoding InfluxDB rollup for sensor {}: {}", rollup.sensorId(), e.getMessage(), e);
+        }
+    }
 
     /**
-     * Closes the InfluxDB client and Write API gracefully.
-     * This ensures any buffered points are flushed.
+     * Writes everything queued so far, blocking until it has been written or spilled.
+     */
+    public void flush() {
+        batchWriter.flush();
+    }
+
+    /**
+     * @return The batch writer, for its throughput and spill counters.
+     */
+    public InfluxBatchWriter getBatchWriter() {
+        return batchWriter;
+    }
+
+    /**
+     * @return The state of the circuit breaker guarding InfluxDB writes.
+     */
+    public InfluxCircuitBreaker.State getCircuitState() {
+        return circuitBreaker.getState();
+    }
+
+    /**
+     * @return The circuit breaker, for its open and rejection counters.
+     */
+    public InfluxCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * @return Compressed bytes waiting in the spill buffer, or 0 if it is disabled.
+     */
+    public long getSpillPendingBytes() {
+        InfluxSpillBuffer buffer = spillBuffer;
+        return buffer != null ? buffer.getPendingBytes() : 0;
+    }
+
+    /**
+     * Writes one batch of line protocol. Runs on the batch writer and replayer threads, only while the
+     * circuit breaker lets writes through.
+     *
+     * @param lineProtocol Newline-separated records.
+     * @throws IllegalStateException if the client is not initialized
+     * @throws InfluxException       if the write failed
+     */
+    private void writeBatch(String lineProtocol) {
+        WriteApiBlocking api = this.writeApi;
+        if (api == null || this.influxDBClient == null) {
+            throw new IllegalStateException("InfluxDB client not initialized");
+        }
+        api.writeRecord(WritePrecision.MS, lineProtocol);
+    }
+
+    /**
+     * Reconnect probe run by the circuit breaker's thread while the circuit is open.
+     * Recreates the client if it is missing, otherwise pings the existing one.
+     *
+     * @return {@code true} if InfluxDB answered.
+     */
+    private boolean reconnect() {
+        if (this.influxDBClient == null || this.writeApi == null) {
+            LOGGER.info("InfluxDB client/write API not initialized. Attempting to reinitialize...");
+            initializeClient();
+            return this.influxDBClient != null && this.writeApi != null;
+        }
+        return Boolean.TRUE.equals(influxDBClient.ping());
+    }
+
+    private static boolean isComplete(SensorData data) {
+        return data != null && data.getSensorId() != null && data.getSensorType() != null;
+    }
+
+
+    /**
+     * Exports the circuit breaker state and the spill backlog, along with the metrics of the batch writer in use.
+     * The values are read on every scrape.
+     *
+     * @param registry Where to register the metrics.
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.registerGauge("batch_processor_influx_circuit_state",
+                "InfluxDB circuit breaker state (0 closed, 1 open, 2 half-open)",
+                () -> {
+                    InfluxCircuitBreaker.State state = getCircuitState();
+                    return state == null ? 0 : state.ordinal();
+                });
+        registry.registerGauge("batch_processor_influx_spill_pending_bytes", "Bytes waiting in the InfluxDB spill buffer",
+                this::getSpillPendingBytes);
+        InfluxBatchWriter writer = this.batchWriter;
+        if (writer != null) {
+            writer.registerMetrics(registry);
+        }
+    }
+
+    /**
+     * Writes or spills buffered records, stops the background threads and closes the InfluxDB client.
+     * Spilled data stays on disk and is replayed after the next start.
      */
     @Override
     public void close() {
+        if (spillReplayer != null) {
+            spillReplayer.close();
+            spillReplayer = null;
+        }
+        if (batchWriter != null) {
+            LOGGER.info("Flushing buffered InfluxDB writes...");
+            batchWriter.close();
+        }
+        if (spillBuffer != null) {
+            spillBuffer.close();
+            spillBuffer = null;
+        }
+        if (circuitBreaker != null) {
+            circuitBreaker.close();
+        }
         if (influxDBClient != null) {
-            LOGGER.info("Closing InfluxDB client (flushing writes)...");
-            // writeApi.close() is implicitly called by influxDBClient.close()
+            LOGGER.info("Closing InfluxDB client...");
             influxDBClient.close();
             LOGGER.info("InfluxDB client closed.");
             influxDBClient = null;
@@ -0,0 +1,354 @@
+package com.tgcannabis.batch_processor.influx;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Append-only local spill area for InfluxDB line protocol that could not be written.
+ * <p>
+ * Each batch is stored as one deflate-compressed chunk {@code [length:int][lines:int][crc32:int][data]}
+ * in rolling spill files. Chunks are read back oldest first; a file is deleted once all of its chunks
+ * have been replayed. InfluxDB writes are idempotent (same series and timestamp overwrite), so after a
+ * crash the oldest file is simply replayed again from its start instead of tracking a checkpoint.
+ * <p>
+ * Disk usage is bounded: when the limit is exceeded, the oldest spill files are discarded.
+ */
+public class InfluxSpillBuffer implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InfluxSpillBuffer.class);
+
+    private static final String FILE_PREFIX = "spill-";
+    private static final String FILE_SUFFIX = ".lp.z";
+    private static final int HEADER_BYTES = 12;
+
+    /**
+     * A spilled batch read back from disk.
+     *
+     * @param lineProtocol The decompressed, newline-separated records.
+     * @param lines        Number of records in the batch.
+     * @param file         The file the chunk was read from.
+     * @param nextOffset   Offset of the following chunk in that file.
+     */
+    public record Chunk(String lineProtocol, int lines, Path file, long nextOffset) {
+    }
+
+    private final Path directory;
+    private final long maxBytes;
+    private final long fileBytes;
+
+    // Sealed files, oldest first; the file being appended to is not in this list
+    private final Deque<Path> sealedFiles = new ArrayDeque<>();
+    private long nextFileId;
+    private FileChannel current;
+    private Path currentPath;
+    private long currentSize;
+    private long readOffset; // Into the oldest sealed file
+    private long totalBytes;
+    private boolean closed;
+
+    private final LongAdder spilledLines = new LongAdder();
+    private final LongAdder replayedLines = new LongAdder();
+    private final LongAdder droppedFiles = new LongAdder();
+    private final LongAdder corruptedChunks = new LongAdder();
+
+    /**
+     * Opens (or creates) the spill area, picking up files left by a previous run.
+     *
+     * @param directory Directory holding the spill files.
+     * @param maxBytes  Maximum total size of the spill files.
+     * @param fileBytes Size after which a spill file is sealed and a new one started.
+     * @throws UncheckedIOException if the directory cannot be read or created
+     */
+    public InfluxSpillBuffer(Path directory, long maxBytes, long fileBytes) {
+        if (fileBytes <= 0 || maxBytes < fileBytes) {
+            throw new IllegalArgumentException("Spill size limit must be at least one file (" + fileBytes + " bytes)");
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.fileBytes = fileBytes;
+
+        try {
+            Files.createDirectories(directory);
+            try (Stream<Path> files = Files.list(directory)) {
+                List<Path> existing = files
+                        .filter(p -> p.getFileName().toString().startsWith(FILE_PREFIX))
+                        .filter(p -> p.getFileName().toString().endsWith(FILE_SUFFIX))
+                        .sorted()
+                        .toList();
+                for (Path file : existing) {
+                    sealedFiles.addLast(file);
+                    totalBytes += Files.size(file);
+                    nextFileId = Math.max(nextFileId, fileId(file) + 1);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open InfluxDB spill directory " + directory, e);
+        }
+        if (!sealedFiles.isEmpty()) {
+            LOGGER.info("Found {} bytes of spilled InfluxDB data in {} file(s) to replay", totalBytes, sealedFiles.size());
+        }
+    }
+
+    /**
+     * Compresses a batch and appends it to the current spill file.
+     *
+     * @param lineProtocol Newline-separated line protocol records.
+     * @param lines        Number of records in the batch.
+     * @return {@code true} if the batch was stored.
+     */
+    public synchronized boolean append(String lineProtocol, int lines) {
+        if (closed) return false;
+        byte[] compressed = compress(lineProtocol.getBytes(StandardCharsets.UTF_8));
+        CRC32 crc = new CRC32();
+        crc.update(compressed);
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + compressed.length);
+        buffer.putInt(compressed.length).putInt(lines).putInt((int) crc.getValue()).put(compressed).flip();
+
+        try {
+            if (current == null) openNewFile();
+            while (buffer.hasRemaining()) {
+                current.write(buffer);
+            }
+            currentSize += HEADER_BYTES + compressed.length;
+            totalBytes += HEADER_BYTES + compressed.length;
+            if (currentSize >= fileBytes) sealCurrentFile();
+        } catch (IOException e) {
+            LOGGER.error("Failed to write InfluxDB spill file: {}", e.getMessage(), e);
+            return false;
+        }
+
+        spilledLines.add(lines);
+        enforceLimit();
+        return true;
+    }
+
+    /**
+     * Reads the oldest spilled chunk without removing it.
+     *
+     * @return The chunk, or {@code null} if nothing is spilled.
+     */
+    public synchronized Chunk peek() {
+        while (true) {
+            if (sealedFiles.isEmpty()) {
+                if (currentSize == 0) return null;
+                sealCurrentFile(); // Make the data written so far readable
+            }
+            Path file = sealedFiles.peekFirst();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (readOffset + HEADER_BYTES <= size) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                    readFully(channel, header, readOffset);
+                    int length = header.getInt(0);
+                    int lines = header.getInt(4);
+                    int expectedCrc = header.getInt(8);
+                    if (length > 0 && readOffset + HEADER_BYTES + length <= size) {
+                        ByteBuffer data = ByteBuffer.allocate(length);
+                        readFully(channel, data, readOffset + HEADER_BYTES);
+                        CRC32 crc = new CRC32();
+                        crc.update(data.array());
+                        if ((int) crc.getValue() == expectedCrc) {
+                            String text = new String(decompress(data.array()), StandardCharsets.UTF_8);
+                            return new Chunk(text, lines, file, readOffset + HEADER_BYTES + length);
+                        }
+                    }
+                    corruptedChunks.increment();
+                    LOGGER.error("Corrupted chunk in InfluxDB spill file {} at offset {}, skipping rest of file", file, readOffset);
+                }
+            } catch (ClosedByInterruptException e) {
+                return null; // Reader is shutting down, the file is intact
+            } catch (IOException | DataFormatException e) {
+                corruptedChunks.increment();
+                LOGGER.error("Failed to read InfluxDB spill file {}: {}", file, e.getMessage(), e);
+            }
+            // End of file (or unreadable remainder): move to the next file
+            deleteOldestFile();
+        }
+    }
+
+    /**
+     * Removes a chunk previously returned by {@link #peek()}, deleting its file once fully replayed.
+     *
+     * @param chunk The replayed chunk.
+     */
+    public synchronized void commit(Chunk chunk) {
+        if (closed || !chunk.file().equals(sealedFiles.peekFirst())) return; // File was discarded meanwhile
+        readOffset = chunk.nextOffset();
+        replayedLines.add(chunk.lines());
+        try {
+            if (readOffset >= Files.size(chunk.file())) deleteOldestFile();
+        } catch (IOException e) {
+            LOGGER.error("Failed to inspect InfluxDB spill file {}: {}", chunk.file(), e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return {@code true} if no spilled data is waiting for replay.
+     */
+    public synchronized boolean isEmpty() {
+        return sealedFiles.isEmpty() && currentSize == 0;
+    }
+
+    /**
+     * @return Compressed bytes waiting for replay.
+     */
+    public synchronized long getPendingBytes() {
+        return Math.max(totalBytes - readOffset, 0);
+    }
+
+    /**
+     * @return Total number of records spilled since the buffer was opened.
+     */
+    public long getSpilledLines() {
+        return spilledLines.sum();
+    }
+
+    /**
+     * @return Total number of records replayed since the buffer was opened.
+     */
+    public long getReplayedLines() {
+        return replayedLines.sum();
+    }
+
+    /**
+     * @return Number of spill files discarded because the size limit was reached.
+     */
+    public long getDroppedFiles() {
+        return droppedFiles.sum();
+    }
+
+    /**
+     * @return Number of chunks skipped because they failed the CRC check or could not be decompressed.
+     */
+    public long getCorruptedChunks() {
+        return corruptedChunks.sum();
+    }
+
+    private void openNewFile() throws IOException {
+        currentPath = directory.resolve(String.format("%s%020d%s", FILE_PREFIX, nextFileId++, FILE_SUFFIX));
+        current = FileChannel.open(currentPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        currentSize = 0;
+    }
+
+    private void sealCurrentFile() {
+        if (current == null) return;
+        try {
+            current.force(false);
+            current.close();
+        } catch (IOException e) {
+            LOGGER.error("Failed to close InfluxDB spill file {}: {}", currentPath, e.getMessage(), e);
+        }
+        sealedFiles.addLast(currentPath);
+        current = null;
+        currentPath = null;
+        currentSize = 0;
+    }
+
+    private void enforceLimit() {
+        while (totalBytes > maxBytes && !sealedFiles.isEmpty()) {
+            Path oldest = sealedFiles.peekFirst();
+            droppedFiles.increment();
+            LOGGER.warn("InfluxDB spill limit of {} bytes reached, discarding oldest spill file {}", maxBytes, oldest);
+            deleteOldestFile();
+        }
+    }
+
+    private void deleteOldestFile() {
+        Path file = sealedFiles.pollFirst();
+        if (file == null) return;
+        try {
+            totalBytes -= Files.size(file);
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.error("Failed to delete InfluxDB spill file {}: {}", file, e.getMessage(), e);
+        }
+        totalBytes = Math.max(totalBytes, 0);
+        readOffset = 0;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) throw new IOException("Unexpected end of spill file");
+        }
+    }
+
+    private static byte[] compress(byte[] input) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, input.length / 4));
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] decompress(byte[] input) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated compressed chunk");
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static long fileId(Path file) {
+        String name = file.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Seals and closes the current spill file. Spilled data stays on disk for the next start.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        sealCurrentFile();
+        closed = true;
+        if (!sealedFiles.isEmpty()) {
+            LOGGER.info("InfluxDB spill buffer closed with {} bytes pending replay", getPendingBytes());
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.tgcannabis.batch_processor.influx;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background thread draining an {@link InfluxSpillBuffer} back into InfluxDB.
+ * <p>
+ * Replay only runs while the {@link InfluxBatchWriter} is idle, so live readings are always written
+ * first, and is limited to a configured number of lines per second to leave InfluxDB headroom while
+ * it catches up. A chunk is removed from the spill buffer only after it was written (or rejected as
+ * invalid). While the writer's circuit breaker refuses writes the replayer just waits; reconnect
+ * backoff is the breaker's job.
+ */
+public class InfluxSpillReplayer implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InfluxSpillReplayer.class);
+
+    private static final long IDLE_POLL_MS = 500;
+    private static final long BUSY_POLL_MS = 50;
+    private static final long RETRY_DELAY_MS = 1_000;
+
+    private final InfluxSpillBuffer spill;
+    private final InfluxBatchWriter writer;
+    private final int linesPerSecond;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Creates the replayer and starts its thread.
+     *
+     * @param spill          The spill buffer to drain. Must not be null.
+     * @param writer         The writer used for live traffic. Must not be null.
+     * @param linesPerSecond Maximum replay rate. Must be positive.
+     */
+    public InfluxSpillReplayer(InfluxSpillBuffer spill, InfluxBatchWriter writer, int linesPerSecond) {
+        if (linesPerSecond <= 0) throw new IllegalArgumentException("Replay rate must be positive");
+        this.spill = Objects.requireNonNull(spill, "Spill buffer cannot be null");
+        this.writer = Objects.requireNonNull(writer, "Writer cannot be null");
+        this.linesPerSecond = linesPerSecond;
+
+        this.thread = new Thread(this::run, "influx-spill-replayer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                if (spill.isEmpty()) {
+                    TimeUnit.MILLISECONDS.sleep(IDLE_POLL_MS);
+                    continue;
+                }
+                if (!writer.isIdle() || !writer.canWrite()) {
+                    TimeUnit.MILLISECONDS.sleep(BUSY_POLL_MS); // Live traffic first, and wait for the circuit
+                    continue;
+                }
+
+                long started = System.nanoTime();
+                int lines = replayChunk();
+                if (lines < 0) {
+                    TimeUnit.MILLISECONDS.sleep(RETRY_DELAY_MS);
+                    continue;
+                }
+
+                // Pace replay to the configured rate
+                long budgetNanos = TimeUnit.SECONDS.toNanos(lines) / linesPerSecond;
+                long remainingNanos = budgetNanos - (System.nanoTime() - started);
+                if (remainingNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(remainingNanos);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                LOGGER.error("Unexpected error in InfluxDB spill replayer: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Writes the oldest spilled chunk and removes it from the buffer if it was consumed.
+     *
+     * @return The number of lines consumed, or {@code -1} if the chunk has to be retried.
+     */
+    int replayChunk() {
+        InfluxSpillBuffer.Chunk chunk = spill.peek();
+        if (chunk == null) return 0;
+
+        InfluxBatchWriter.Result result = writer.write(chunk.lineProtocol(), chunk.lines());
+        if (result == InfluxBatchWriter.Result.RETRY) {
+            return -1;
+        }
+        spill.commit(chunk);
+        if (result == InfluxBatchWriter.Result.WRITTEN) {
+            LOGGER.info("Replayed {} lines from InfluxDB spill ({} bytes still pending)", chunk.lines(), spill.getPendingBytes());
+        }
+        return chunk.lines();
+    }
+
+    /**
+     * Stops the replay thread. Spilled data not yet replayed stays on disk for the next start.
+     */
+    @Override
+    public void close() {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.tgcannabis.batch_processor.influx;
+
+import com.tgcannabis.batch_processor.model.SensorData;
+import com.tgcannabis.batch_processor.model.SensorRollup;
+import com.tgcannabis.batch_processor.model.TagDictionary;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encodes {@link SensorData} readings directly into InfluxDB line protocol.
+ * <p>
+ * Produces the same output as building a {@link com.influxdb.client.write.Point} with the
+ * {@code sensorId}, {@code location}, {@code originTopic} and {@code sensorType} tags and the
+ * {@code timestamp} and {@code value} fields, but without the intermediate objects. The escaped
+ * measurement and tag set is computed once per sensor and cached, from tag values escaped once in
+ * the {@link TagDictionary}, and lines are assembled in per-thread reusable buffers.
+ */
+public class LineProtocolEncoder {
+
+    /** Upper bound on cached tag prefixes; the cache is reset when it is exceeded. */
+    private static final int MAX_CACHED_PREFIXES = 65_536;
+    private static final int INITIAL_BUFFER_CAPACITY = 256;
+    /** Buffers that grew beyond this (large batches) are not kept for reuse. */
+    private static final int MAX_POOLED_BUFFER_CAPACITY = 64 * 1024;
+
+    private static final String UNKNOWN = "unknown";
+
+    private final Map<String, TagPrefix> prefixCache = new ConcurrentHashMap<>();
+    private final ThreadLocal<StringBuilder> buffers =
+            ThreadLocal.withInitial(() -> new StringBuilder(INITIAL_BUFFER_CAPACITY));
+
+    /**
+     * Escaped "measurement,tags" prefix for one sensor, along with the raw values it was built from.
+     */
+    private record TagPrefix(String sensorType, String location, String originTopic, String escaped) {
+        boolean matches(String sensorType, String location, String originTopic) {
+            return this.sensorType.equals(sensorType)
+                    && this.location.equals(location)
+                    && this.originTopic.equals(originTopic);
+        }
+    }
+
+    /**
+     * Encodes a single reading as one line of line protocol (millisecond precision).
+     *
+     * @param data             The reading. {@code sensorId} and {@code sensorType} must not be null.
+     * @param originatingTopic The MQTT topic the data came from. Can be null.
+     * @return The encoded line, without a trailing newline.
+     */
+    public String encode(SensorData data, String originatingTopic) {
+        StringBuilder sb = acquireBuffer();
+        appendLine(sb, data, originatingTopic);
+        return releaseBuffer(sb);
+    }
+
+    /**
+     * Encodes several readings from the same topic into one newline-separated record.
+     *
+     * @param batch            The readings. {@code sensorId} and {@code sensorType} must not be null.
+     * @param originatingTopic The MQTT topic the data came from. Can be null.
+     * @return The encoded lines, separated (not terminated) by newlines.
+     */
+    public String encode(List<SensorData> batch, String originatingTopic) {
+        StringBuilder sb = acquireBuffer();
+        for (int i = 0; i < batch.size(); i++) {
+            if (i > 0) sb.append('\n');
+            appendLine(sb, batch.get(i), originatingTopic);
+        }
+        return releaseBuffer(sb);
+    }
+
+    /**
+     * Appends one line of line protocol for the given reading to a buffer.
+     *
+     * @param sb               The buffer to append to.
+     * @param data             The reading. {@code sensorId} and {@code sensorType} must not be null.
+     * @param originatingTopic The MQTT topic the data came from. Can be null.
+     */
+    public void appendLine(StringBuilder sb, SensorData data, String originatingTopic) {
+        Objects.requireNonNull(data.getSensorId(), "sensorId cannot be null");
+        Objects.requireNonNull(data.getSensorType(), "sensorType cannot be null");
+
+        sb.append(prefixFor(data, originatingTopic).escaped());
+        sb.append(" timestamp=").append(data.getTimestamp()).append('i');
+        double value = data.getValue();
+        if (Double.isFinite(value)) {
+            sb.append(",value=");
+            appendDouble(sb, value);
+        }
+        sb.append(' ').append(data.getTimestamp());
+    }
+
+    /**
+     * Encodes a window rollup as one line of line protocol in the {@code <sensorType>_rollup} measurement,
+     * tagged with the window name and timestamped with the window start (millisecond precision).
+     *
+     * @param rollup The closed window. {@code sensorId} and {@code sensorType} must not be null.
+     * @return The encoded line, without a trailing newline.
+     */
+    public String encodeRollup(SensorRollup rollup) {
+        Objects.requireNonNull(rollup.sensorId(), "sensorId cannot be null");
+        Objects.requireNonNull(rollup.sensorType(), "sensorType cannot be null");
+
+        StringBuilder sb = acquireBuffer();
+        escape(sb, rollup.sensorType() + "_rollup", false);
+        appendTag(sb, "location", rollup.location() != null ? rollup.location() : UNKNOWN);
+        appendTag(sb, "sensorId", rollup.sensorId());
+        appendTag(sb, "sensorType", rollup.sensorType());
+        appendTag(sb, "window", rollup.window());
+        sb.append(" count=").append(rollup.count()).append('i');
+        appendField(sb, "last", rollup.last());
+        appendField(sb, "max", rollup.max());
+        appendField(sb, "mean", rollup.mean());
+        appendField(sb, "min", rollup.min());
+        sb.append(' ').append(rollup.windowStart());
+        return releaseBuffer(sb);
+    }
+
+    /**
+     * @return Number of sensors whose escaped tag prefix is currently cached.
+     */
+    public int getCachedPrefixCount() {
+        return prefixCache.size();
+    }
+
+    private TagPrefix prefixFor(SensorData data, String originatingTopic) {
+        String sensorType = data.getSensorType();
+        String location = data.getLocation() != null ? data.getLocation() : UNKNOWN;
+        String originTopic = originatingTopic != null ? originatingTopic : UNKNOWN;
+
+        TagPrefix prefix = prefixCache.get(data.getSensorId());
+        if (prefix != null && prefix.matches(sensorType, location, originTopic)) {
+            return prefix;
+        }
+
+        if (prefixCache.size() >= MAX_CACHED_PREFIXES) {
+            prefixCache.clear(); // Crude but bounded: a fleet this large re-warms quickly
+        }
+        prefix = new TagPrefix(sensorType, location, originTopic,
+                buildPrefix(sensorType, location, originTopic, data.getSensorId()));
+        prefixCache.put(data.getSensorId(), prefix);
+        return prefix;
+    }
+
+    /**
+     * Builds the escaped measurement and tag set. Tags are in key order, and empty tag values are
+     * omitted, matching {@link com.influxdb.client.write.Point#toLineProtocol()}.
+     */
+    private static String buildPrefix(String sensorType, String location, String originTopic, String sensorId) {
+        StringBuilder sb = new StringBuilder(64);
+        sb.append(TagDictionary.getDefault().intern(sensorType).escapedMeasurement());
+        appendTag(sb, "location", location);
+        appendTag(sb, "originTopic", originTopic);
+        appendTag(sb, "sensorId", sensorId);
+        appendTag(sb, "sensorType", sensorType);
+        return sb.toString();
+    }
+
+    private static void appendTag(StringBuilder sb, String key, String value) {
+        if (value.isEmpty()) return;
+        sb.append(',').append(key).append('=').append(TagDictionary.getDefault().intern(value).escapedTagValue());
+    }
+
+    private static void appendField(StringBuilder sb, String key, double value) {
+        if (!Double.isFinite(value)) return;
+        sb.append(',').append(key).append('=');
+        appendDouble(sb, value);
+    }
+
+    /**
+     * Escapes a measurement name or tag value as defined by the line protocol.
+     */
+    private static void escape(StringBuilder sb, String value, boolean escapeEquals) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                case ' ', ',' -> sb.append('\\').append(c);
+                case '=' -> {
+                    if (escapeEquals) sb.append('\\');
+                    sb.append(c);
+                }
+                default -> sb.append(c);
+            }
+        }
+    }
+
+    /**
+     * Appends a finite double in plain decimal notation. {@link StringBuilder#append(double)} writes
+     * the shortest representation without an intermediate String; the rare values it prints in
+     * scientific notation are rewritten.
+     */
+    private static void appendDouble(StringBuilder sb, double value) {
+        int start = sb.length();
+        sb.append(value);
+        for (int i = start; i < sb.length(); i++) {
+            if (sb.charAt(i) == 'E') {
+                String plain = new BigDecimal(sb.substring(start)).stripTrailingZeros().toPlainString();
+                sb.setLength(start);
+                sb.append(plain);
+                if (plain.indexOf('.') < 0) sb.append(".0");
+                return;
+            }
+        }
+    }
+
+    private StringBuilder acquireBuffer() {
+        StringBuilder sb = buffers.get();
+        sb.setLength(0);
+        return sb;
+    }
+
+    private String releaseBuffer(StringBuilder sb) {
+        String result = sb.toString();
+        if (sb.capacity() > MAX_POOLED_BUFFER_CAPACITY) {
+            buffers.remove(); // Don't pin an oversized buffer to the thread
+        }
+        return result;
+    }
+}
@@ -0,0 +1,360 @@
+package com.tgcannabis.batch_processor.kafka;
+
+import com.tgcannabis.batch_processor.metrics.MetricsRegistry;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.record.CompressionType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Chooses the Kafka producer's {@code linger.ms}, {@code batch.size} and {@code compression.type} from the
+ * producer's own metrics.
+ * <p>
+ * On every evaluation the tuner reads {@code record-queue-time-avg}, {@code batch-size-avg},
+ * {@code record-size-avg}, {@code compression-rate-avg} and {@code buffer-available-bytes}, estimates how fast
+ * records arrive per partition batch, and proposes:
+ * <ul>
+ *   <li>the linger that fills a batch with about {@value #TARGET_BATCH_BYTES} bytes of records, within the
+ *   latency budget of the configured maximum linger;</li>
+ *   <li>a batch size twice what arrives during one linger, so batches are normally sealed by time;</li>
+ *   <li>compression once batches are large enough to benefit, a cheaper codec when it saves less than 10%,
+ *   and a stronger one when the producer's buffer fills up.</li>
+ * </ul>
+ * Linger and batch size move by at most a factor of four per evaluation and are rounded to powers of two.
+ * None of these settings can be changed on a running producer, so applying a proposal means restarting it.
+ * The tuner only does so once the same proposal has been made twice in a row and the minimum interval
+ * since the previous restart has passed.
+ */
+public class KafkaProducerTuner implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(KafkaProducerTuner.class);
+
+    private static final String METRIC_GROUP = "producer-metrics";
+    static final int TARGET_BATCH_BYTES = 16 * 1024;
+    private static final double BATCH_HEADROOM = 2.0;
+    private static final int MIN_COMPRESSIBLE_BYTES = 1024;
+    private static final double POOR_COMPRESSION = 0.9; // Compressed / uncompressed size
+    private static final double LOW_BUFFER = 0.5; // Share of buffer.memory still available
+    private static final double MAX_STEP = 4.0; // Every change costs a restart, so take large steps
+    private static final int STABLE_EVALUATIONS = 2;
+
+    /**
+     * The producer settings the tuner controls.
+     *
+     * @param lingerMs    {@code linger.ms}
+     * @param batchSize   {@code batch.size} in bytes
+     * @param compression {@code compression.type}, e.g. {@code none} or {@code lz4}
+     */
+    public record Settings(int lingerMs, int batchSize, String compression) {
+
+        /**
+         * Writes the settings into producer properties.
+         *
+         * @param props The producer properties.
+         */
+        public void applyTo(Properties props) {
+            props.put(ProducerConfig.LINGER_MS_CONFIG, Integer.toString(lingerMs));
+            props.put(ProducerConfig.BATCH_SIZE_CONFIG, Integer.toString(batchSize));
+            props.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, compression);
+        }
+    }
+
+    /**
+     * Range the tuner may choose settings from.
+     *
+     * @param maxLingerMs  Longest linger, i.e. the latency the operator accepts for larger batches.
+     * @param minBatchSize Smallest batch size. Must be positive.
+     * @param maxBatchSize Largest batch size. Must not be below {@code minBatchSize}.
+     * @param codecs       Allowed compression codecs, cheapest first. Must not be empty.
+     */
+    public record Limits(int maxLingerMs, int minBatchSize, int maxBatchSize, List<String> codecs) {
+
+        public Limits {
+            if (maxLingerMs < 0 || minBatchSize <= 0 || maxBatchSize < minBatchSize) {
+                throw new IllegalArgumentException("Linger and batch size limits must be positive and ordered");
+            }
+            codecs = codecs.stream().map(KafkaProducerTuner::parseCodec).distinct().toList();
+            if (codecs.isEmpty()) throw new IllegalArgumentException("At least one compression codec is required");
+        }
+    }
+
+    /**
+     * The producer metrics the tuner works from. Values are {@code NaN} until the producer has sent something.
+     */
+    public record Snapshot(double sendRate, double recordSizeAvg, double batchSizeAvg, double compressionRateAvg,
+                           double queueTimeAvgMs, double bufferAvailableBytes, double bufferTotalBytes) {
+
+        static Snapshot of(Map<MetricName, ? extends Metric> metrics) {
+            return new Snapshot(value(metrics, "record-send-rate"), value(metrics, "record-size-avg"),
+                    value(metrics, "batch-size-avg"), value(metrics, "compression-rate-avg"),
+                    value(metrics, "record-queue-time-avg"), value(metrics, "buffer-available-bytes"),
+                    value(metrics, "buffer-total-bytes"));
+        }
+
+        private static double value(Map<MetricName, ? extends Metric> metrics, String name) {
+            for (Map.Entry<MetricName, ? extends Metric> entry : metrics.entrySet()) {
+                if (METRIC_GROUP.equals(entry.getKey().group()) && name.equals(entry.getKey().name())
+                        && entry.getValue().metricValue() instanceof Number number) {
+                    return number.doubleValue();
+                }
+            }
+            return Double.NaN;
+        }
+    }
+
+    private final Limits limits;
+    private final Supplier<Map<MetricName, ? extends Metric>> metrics;
+    private final Consumer<Settings> restart;
+    private final long minRestartIntervalNanos;
+
+    private volatile Settings current;
+    private volatile Snapshot lastSnapshot = Snapshot.of(Map.of());
+    private volatile long restarts;
+
+    // Guarded by this
+    private Settings pending;
+    private int pendingCount;
+    private long lastRestartNanos = System.nanoTime();
+
+    private Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Creates the tuner. It only evaluates when {@link #evaluate} is called, or periodically after {@link #start}.
+     *
+     * @param initial              Settings the producer was started with. Must not be null.
+     * @param limits               Range to choose settings from. Must not be null.
+     * @param minRestartIntervalMs Minimum time between two restarts, and between creation and the first one.
+     * @param metrics              Reads the current producer's metrics. Must not be null.
+     * @param restart              Restarts the producer with new settings; may throw if that fails. Must not be null.
+     */
+    public KafkaProducerTuner(Settings initial, Limits limits, long minRestartIntervalMs,
+                              Supplier<Map<MetricName, ? extends Metric>> metrics, Consumer<Settings> restart) {
+        this.current = Objects.requireNonNull(initial, "Initial settings cannot be null");
+        this.limits = Objects.requireNonNull(limits, "Limits cannot be null");
+        this.metrics = Objects.requireNonNull(metrics, "Metrics cannot be null");
+        this.restart = Objects.requireNonNull(restart, "Restart action cannot be null");
+        this.minRestartIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minRestartIntervalMs);
+    }
+
+    /**
+     * Starts evaluating on a background thread.
+     *
+     * @param intervalMs Time between evaluations. Must be positive.
+     */
+    public synchronized void start(long intervalMs) {
+        if (intervalMs <= 0) throw new IllegalArgumentException("Tuning interval must be positive");
+        if (thread != null) return;
+        thread = new Thread(() -> run(intervalMs), "kafka-producer-tuner");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run(long intervalMs) {
+        while (running) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(intervalMs);
+                evaluate(System.nanoTime());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                LOGGER.error("Unexpected error tuning the Kafka producer: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Reads the producer metrics and restarts the producer if a stable, different proposal has been made
+     * and the previous restart is long enough ago.
+     *
+     * @param now The current {@link System#nanoTime()}.
+     */
+    synchronized void evaluate(long now) {
+        Snapshot snapshot = Snapshot.of(metrics.get());
+        lastSnapshot = snapshot;
+        Settings settings = current;
+        Settings proposal = propose(settings, snapshot);
+        if (proposal.equals(settings)) {
+            pending = null;
+            pendingCount = 0;
+            return;
+        }
+        if (!proposal.equals(pending)) {
+            pending = proposal;
+            pendingCount = 0;
+        }
+        pendingCount++;
+        if (pendingCount < STABLE_EVALUATIONS || now - lastRestartNanos < minRestartIntervalNanos) return;
+
+        LOGGER.info("Restarting Kafka producer with linger {} ms, batch size {}, compression {} (was {} ms, {}, {}; "
+                        + "{} records/s, avg batch {} bytes, queue time {} ms)",
+                proposal.lingerMs(), proposal.batchSize(), proposal.compression(),
+                settings.lingerMs(), settings.batchSize(), settings.compression(),
+                Math.round(snapshot.sendRate()), Math.round(snapshot.batchSizeAvg()),
+                String.format("%.1f", snapshot.queueTimeAvgMs()));
+        try {
+            restart.accept(proposal);
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to restart the Kafka producer, keeping current settings: {}", e.getMessage(), e);
+            return;
+        } finally {
+            lastRestartNanos = now; // Also back off from a failing restart
+            pending = null;
+            pendingCount = 0;
+        }
+        current = proposal;
+        restarts++;
+    }
+
+    /**
+     * Proposes settings for the traffic described by the metrics.
+     *
+     * @param settings Settings the metrics were measured with.
+     * @param metrics  The producer metrics.
+     * @return The proposed settings, equal to {@code settings} if there is nothing to change or no traffic.
+     */
+    public Settings propose(Settings settings, Snapshot metrics) {
+        if (!(metrics.sendRate() > 0 && metrics.recordSizeAvg() > 0 && metrics.batchSizeAvg() > 0
+                && metrics.queueTimeAvgMs() >= 0)) {
+            return settings;
+        }
+        double ratio = metrics.compressionRateAvg() > 0 ? metrics.compressionRateAvg() : 1.0;
+        double recordsPerBatch = Math.max(metrics.batchSizeAvg() / ratio / metrics.recordSizeAvg(), 1.0);
+        // A batch stays open about twice as long as its records wait on average
+        double openSeconds = Math.max(2 * metrics.queueTimeAvgMs(), 1.0) / 1000;
+        double bytesPerSecond = recordsPerBatch / openSeconds * metrics.recordSizeAvg();
+
+        int lingerMs = (int) Math.min(roundToPowerOfTwo(step(settings.lingerMs(),
+                TARGET_BATCH_BYTES / bytesPerSecond * 1000)), limits.maxLingerMs());
+        double expectedBatch = bytesPerSecond * Math.max(lingerMs, 1) / 1000;
+        int batchSize = (int) Math.clamp(roundToPowerOfTwo(step(settings.batchSize(), expectedBatch * BATCH_HEADROOM)),
+                limits.minBatchSize(), limits.maxBatchSize());
+
+        return new Settings(lingerMs, batchSize, chooseCodec(settings.compression(), ratio, expectedBatch, metrics));
+    }
+
+    private String chooseCodec(String compression, double ratio, double expectedBatch, Snapshot metrics) {
+        List<String> codecs = limits.codecs();
+        int index = codecs.indexOf(compression);
+        if (index < 0) return codecs.getFirst();
+
+        boolean lowBuffer = metrics.bufferTotalBytes() > 0
+                && metrics.bufferAvailableBytes() < metrics.bufferTotalBytes() * LOW_BUFFER;
+        if (CompressionType.NONE.name.equals(compression)) {
+            boolean worthIt = expectedBatch >= MIN_COMPRESSIBLE_BYTES || lowBuffer;
+            return worthIt && index + 1 < codecs.size() ? codecs.get(index + 1) : compression;
+        }
+        if (ratio > POOR_COMPRESSION && index > 0) return codecs.get(index - 1);
+        if (lowBuffer && ratio <= POOR_COMPRESSION && index + 1 < codecs.size()) return codecs.get(index + 1);
+        return compression;
+    }
+
+    /** Moves towards the target by at most a factor of {@link #MAX_STEP}; a zero value may grow to one. */
+    private static double step(long current, double target) {
+        return Math.clamp(target, current / MAX_STEP, Math.max(current * MAX_STEP, 1));
+    }
+
+    private static long roundToPowerOfTwo(double value) {
+        if (value < 1) return 0;
+        long lower = Long.highestOneBit((long) value);
+        return value - lower < lower * 2 - value ? lower : lower * 2;
+    }
+
+    /**
+     * Validates a codec name.
+     *
+     * @param codec The name of a Kafka compression type, case-insensitive.
+     * @return The name as the producer expects it.
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    public static String parseCodec(String codec) {
+        return CompressionType.forName(codec.trim().toLowerCase(Locale.ROOT)).name;
+    }
+
+    /**
+     * @return Settings of the running producer.
+     */
+    public Settings getCurrent() {
+        return current;
+    }
+
+    /**
+     * @return Range the settings are chosen from.
+     */
+    public Limits getLimits() {
+        return limits;
+    }
+
+    /**
+     * @return Metrics read at the last evaluation, all {@code NaN} before the first one.
+     */
+    public Snapshot getLastSnapshot() {
+        return lastSnapshot;
+    }
+
+    /**
+     * @return Number of producer restarts so far.
+     */
+    public long getRestarts() {
+        return restarts;
+    }
+
+    /**
+     * Exports the current producer settings and the producer metrics of the last evaluation.
+     * The values are read on every scrape.
+     *
+     * @param registry Where to register the metrics.
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.registerGauge("batch_processor_kafka_producer_linger_seconds", "Current producer linger.ms",
+                () -> getCurrent().lingerMs() / 1000.0);
+        registry.registerGauge("batch_processor_kafka_producer_batch_size_bytes", "Current producer batch.size",
+                () -> getCurrent().batchSize());
+        for (String codec : getLimits().codecs()) {
+            registry.registerGauge("batch_processor_kafka_producer_compression", "1 for the current compression.type",
+                    () -> codec.equals(getCurrent().compression()) ? 1 : 0, "codec", codec);
+        }
+        registry.registerCounter("batch_processor_kafka_producer_restarts_total", "Producer restarts to apply new settings",
+                this::getRestarts);
+        registry.registerGauge("batch_processor_kafka_producer_record_queue_seconds",
+                "Average time records waited in the producer at the last evaluation",
+                () -> getLastSnapshot().queueTimeAvgMs() / 1000);
+        registry.registerGauge("batch_processor_kafka_producer_batch_bytes",
+                "Average bytes per sent batch at the last evaluation",
+                () -> getLastSnapshot().batchSizeAvg());
+        registry.registerGauge("batch_processor_kafka_producer_compression_ratio",
+                "Average compressed / uncompressed batch size at the last evaluation",
+                () -> getLastSnapshot().compressionRateAvg());
+    }
+
+    /**
+     * Stops evaluating. The producer keeps its current settings.
+     */
+    @Override
+    public void close() {
+        running = false;
+        Thread t;
+        synchronized (this) {
+            t = thread;
+        }
+        if (t == null) return;
+        t.interrupt();
+        try {
+            t.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
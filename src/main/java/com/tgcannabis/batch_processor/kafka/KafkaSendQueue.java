@@ -0,0 +1,397 @@
+package com.tgcannabis.batch_processor.kafka;
+
+import com.tgcannabis.batch_processor.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Non-blocking front-end for {@code KafkaProducer.send()}.
+ * <p>
+ * {@code send()} blocks for up to {@code max.block.ms} while broker metadata is unavailable. Callers only
+ * copy two references into a bounded, preallocated ring buffer; a dedicated sender thread drains it into
+ * the producer and absorbs any blocking. When the buffer is full the overflow policy decides what happens
+ * to the record. Under {@link OverflowPolicy#SPILL} the buffered records are spilled ahead of the new one,
+ * so the spill target receives records in the order they were offered. The sender measures how long each
+ * hand-off to the producer took and accumulates the time spent in calls that stalled.
+ */
+public class KafkaSendQueue implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(KafkaSendQueue.class);
+    private static final long SHUTDOWN_TIMEOUT_MS = 10_000;
+
+    /** A producer hand-off taking longer than this counts as a stall. */
+    static final long STALL_THRESHOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    /**
+     * What to do with a record when the buffer is full.
+     */
+    public enum OverflowPolicy {
+        /** Discard the record and count it as dropped. */
+        DROP,
+        /** Hand the buffered records, then the new one, to the spill target (the write-ahead log) for later replay. */
+        SPILL,
+        /** Block the caller until a slot frees up. */
+        BLOCK;
+
+        /**
+         * Parses a policy name, case-insensitively. A null or blank name maps to {@link #SPILL}.
+         *
+         * @param name The configured policy name.
+         * @return The matching policy.
+         * @throws IllegalArgumentException if the name does not match any policy
+         */
+        public static OverflowPolicy parse(String name) {
+            if (name == null || name.isBlank()) return SPILL;
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private final BiConsumer<byte[], byte[]> sender;
+    private final BiConsumer<byte[], byte[]> spill;
+    private final OverflowPolicy overflowPolicy;
+
+    // Ring buffer slots, allocated once
+    private final byte[][] keys;
+    private final byte[][] values;
+    private int head; // next slot to take
+    private int tail; // next slot to put
+    private int count;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private final Thread senderThread;
+    private volatile boolean running = true;
+    private volatile long sendStartedNanos; // 0 while the sender is not inside a hand-off
+
+    private final LongAdder sentCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+    private final LongAdder droppedCount = new LongAdder();
+    private final LongAdder spilledCount = new LongAdder();
+    private final LongAdder stallCount = new LongAdder();
+    private final LongAdder stallNanos = new LongAdder();
+
+    /**
+     * Constructs the queue and starts its sender thread.
+     *
+     * @param capacity       Number of preallocated slots. Must be positive.
+     * @param overflowPolicy Policy applied when the buffer is full. Must not be null.
+     * @param sender         Hands a record to the producer; runs on the sender thread and may block. Must not be null.
+     * @param spill          Stores a record for later replay under {@link OverflowPolicy#SPILL}; {@code null}
+     *                       makes SPILL behave like {@link OverflowPolicy#DROP}, discarding only the new record.
+     */
+    public KafkaSendQueue(int capacity, OverflowPolicy overflowPolicy, BiConsumer<byte[], byte[]> sender,
+                          BiConsumer<byte[], byte[]> spill) {
+        if (capacity <= 0) throw new IllegalArgumentException("Send queue capacity must be positive");
+        Objects.requireNonNull(overflowPolicy, "Overflow policy cannot be null");
+        // Without a spill target, spilling the buffer ahead of the new record would discard all of it
+        this.overflowPolicy = overflowPolicy == OverflowPolicy.SPILL && spill == null ? OverflowPolicy.DROP : overflowPolicy;
+        this.sender = Objects.requireNonNull(sender, "Sender cannot be null");
+        this.spill = spill;
+
+        this.keys = new byte[capacity][];
+        this.values = new byte[capacity][];
+
+        this.senderThread = new Thread(this::runSender, "kafka-sender");
+        this.senderThread.setDaemon(true);
+        this.senderThread.start();
+        LOGGER.info("Kafka send queue started: capacity={}, overflowPolicy={}", capacity, this.overflowPolicy);
+    }
+
+    /**
+     * Enqueues a record for sending. Never blocks unless the policy is {@link OverflowPolicy#BLOCK}.
+     *
+     * @param key   The serialized key (can be null).
+     * @param value The serialized value. Ownership passes to the queue.
+     */
+    public void offer(byte[] key, byte[] value) {
+        lock.lock();
+        try {
+            while (running && count == keys.length && overflowPolicy == OverflowPolicy.BLOCK) {
+                notFull.await();
+            }
+            if (running && count < keys.length) {
+                keys[tail] = key;
+                values[tail] = value;
+                tail = (tail + 1) % keys.length;
+                count++;
+                notEmpty.signal();
+                return;
+            }
+            if (running && overflowPolicy == OverflowPolicy.SPILL) {
+                spillBuffered(); // Under the lock, so no other record can get in between
+                spillOrDrop(key, value);
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+
+        if (!running) {
+            spillOrDrop(key, value); // After close, records are kept if at all possible
+        } else {
+            droppedCount.increment();
+            LOGGER.debug("Kafka send queue full, dropping record");
+        }
+    }
+
+    /**
+     * Enqueues several records under one lock acquisition, in order, e.g. the readings of one multi-reading
+     * message. Records that do not fit are handled as in {@link #offer}.
+     *
+     * @param keys   The serialized keys (elements can be null).
+     * @param values The serialized values, one per key. Ownership passes to the queue.
+     */
+    public void offerAll(List<byte[]> keys, List<byte[]> values) {
+        if (keys.size() != values.size()) throw new IllegalArgumentException("Keys and values differ in number");
+        int offered = 0;
+        lock.lock();
+        try {
+            for (; offered < keys.size(); offered++) {
+                while (running && count == this.keys.length && overflowPolicy == OverflowPolicy.BLOCK) {
+                    notEmpty.signal(); // Let the sender drain what was enqueued so far
+                    notFull.await();
+                }
+                if (!running || count == this.keys.length) break;
+                this.keys[tail] = keys.get(offered);
+                this.values[tail] = values.get(offered);
+                tail = (tail + 1) % this.keys.length;
+                count++;
+            }
+            if (offered > 0) notEmpty.signal();
+            if (running && offered < keys.size() && overflowPolicy == OverflowPolicy.SPILL) {
+                spillBuffered();
+                for (; offered < keys.size(); offered++) {
+                    spillOrDrop(keys.get(offered), values.get(offered));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+
+        for (int i = offered; i < keys.size(); i++) {
+            if (!running) {
+                spillOrDrop(keys.get(i), values.get(i));
+            } else {
+                droppedCount.increment();
+                LOGGER.debug("Kafka send queue full, dropping record");
+            }
+        }
+    }
+
+    /**
+     * Moves every buffered record to the spill target, oldest first. Must be called with the lock held.
+     */
+    private void spillBuffered() {
+        while (count > 0) {
+            spillOrDrop(keys[head], values[head]);
+            keys[head] = null;
+            values[head] = null;
+            head = (head + 1) % keys.length;
+            count--;
+        }
+        notFull.signalAll();
+    }
+
+    private void spillOrDrop(byte[] key, byte[] value) {
+        if (spill != null) {
+            spill.accept(key, value);
+            spilledCount.increment();
+        } else {
+            droppedCount.increment();
+            LOGGER.debug("Kafka send queue full and no spill target, dropping record");
+        }
+    }
+
+    /**
+     * Sender loop: takes records from the ring buffer until the queue is closed and drained.
+     */
+    private void runSender() {
+        while (true) {
+            byte[] key;
+            byte[] value;
+
+            lock.lock();
+            try {
+                while (count == 0) {
+                    if (!running) return;
+                    notEmpty.await();
+                }
+                key = keys[head];
+                value = values[head];
+                keys[head] = null; // Release references for GC
+                values[head] = null;
+                head = (head + 1) % keys.length;
+                count--;
+                notFull.signal();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            long started = System.nanoTime();
+            sendStartedNanos = started;
+            try {
+                sender.accept(key, value);
+                sentCount.increment();
+            } catch (Exception e) {
+                // Catch exceptions from the producer to keep the sender alive
+                failedCount.increment();
+                LOGGER.error("Error handing record to Kafka producer: {}", e.getMessage(), e);
+            } finally {
+                sendStartedNanos = 0;
+                long elapsed = System.nanoTime() - started;
+                if (elapsed >= STALL_THRESHOLD_NANOS) {
+                    stallCount.increment();
+                    stallNanos.add(elapsed);
+                    LOGGER.warn("Kafka producer blocked the sender for {} ms ({} records queued)",
+                            TimeUnit.NANOSECONDS.toMillis(elapsed), getQueueDepth());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Number of records waiting in the ring buffer.
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Number of slots in the ring buffer.
+     */
+    public int getCapacity() {
+        return keys.length;
+    }
+
+    /**
+     * @return How long the hand-off currently in progress has been blocked, in milliseconds, or 0 if none
+     * has been running for longer than the stall threshold.
+     */
+    public long getCurrentStallMillis() {
+        long started = sendStartedNanos;
+        if (started == 0) return 0;
+        long elapsed = System.nanoTime() - started;
+        return elapsed >= STALL_THRESHOLD_NANOS ? TimeUnit.NANOSECONDS.toMillis(elapsed) : 0;
+    }
+
+    /**
+     * @return Total time spent in stalled hand-offs, in milliseconds.
+     */
+    public long getTotalStallMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(stallNanos.sum());
+    }
+
+    /**
+     * @return Number of hand-offs that took longer than the stall threshold.
+     */
+    public long getStallCount() {
+        return stallCount.sum();
+    }
+
+    /**
+     * @return Total number of records handed to the producer.
+     */
+    public long getSentCount() {
+        return sentCount.sum();
+    }
+
+    /**
+     * @return Total number of records the producer hand-off threw for.
+     */
+    public long getFailedCount() {
+        return failedCount.sum();
+    }
+
+    /**
+     * @return Total number of records dropped because the buffer was full or closed.
+     */
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    /**
+     * @return Total number of records spilled because the buffer was full or closed.
+     */
+    public long getSpilledCount() {
+        return spilledCount.sum();
+    }
+
+    /**
+     * Exports the queue depth and the outcome counters of queued records. The values are read on every scrape.
+     *
+     * @param registry Where to register the metrics.
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.registerGauge("batch_processor_kafka_send_queue_depth", "Records waiting for the Kafka sender",
+                this::getQueueDepth);
+        registry.registerCounter("batch_processor_kafka_sent_total", "Records handed to the Kafka producer",
+                this::getSentCount);
+        registry.registerCounter("batch_processor_kafka_send_failed_total", "Records the Kafka producer hand-off threw for",
+                this::getFailedCount);
+        registry.registerCounter("batch_processor_kafka_send_dropped_total", "Records dropped by a full send queue",
+                this::getDroppedCount);
+        registry.registerCounter("batch_processor_kafka_send_spilled_total", "Records spilled by a full send queue",
+                this::getSpilledCount);
+        registry.registerCounter("batch_processor_kafka_send_stalls_total", "Producer stalls on broker metadata",
+                this::getStallCount);
+    }
+
+    /**
+     * Stops accepting records, lets the sender drain what is buffered and waits for it to exit.
+     * Records still buffered after the timeout are spilled, or dropped if there is no spill target.
+     */
+    @Override
+    public void close() {
+        if (!running) return;
+        LOGGER.info("Closing Kafka send queue ({} records buffered)...", getQueueDepth());
+        lock.lock();
+        try {
+            running = false;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            senderThread.join(SHUTDOWN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (senderThread.isAlive()) {
+            // Sender is stuck in the producer: move whatever is left out of the buffer
+            lock.lock();
+            try {
+                spillBuffered();
+            } finally {
+                lock.unlock();
+            }
+        }
+        LOGGER.info("Kafka send queue closed. Sent={}, Failed={}, Spilled={}, Dropped={}",
+                getSentCount(), getFailedCount(), getSpilledCount(), getDroppedCount());
+    }
+}
@@ -2,24 +2,62 @@ package com.tgcannabis.batch_processor.kafka;
 
 
 import com.tgcannabis.batch_processor.config.BatchProcessorConfig;
+import com.tgcannabis.batch_processor.metrics.Counter;
+import com.tgcannabis.batch_processor.metrics.LatencyHistogram;
+import com.tgcannabis.batch_processor.metrics.MetricsRegistry;
+import com.tgcannabis.batch_processor.model.TagDictionary;
 import org.apache.kafka.clients.producer.*;
-import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.errors.BrokerNotAvailableException;
+import org.apache.kafka.common.errors.RetriableException;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Handles publishing messages to the configured Apache Kafka topic.
  * Provides asynchronous sending with logging for success or failure.
+ * Records are sent as raw bytes so MQTT payloads can be forwarded without decoding or re-encoding.
+ * When a write-ahead log is configured, records that cannot be delivered are stored on disk and
+ * replayed once the broker is reachable again.
+ * When a send queue is configured, callers never block on the producer: records are handed to a
+ * {@link KafkaSendQueue} whose sender thread absorbs metadata stalls.
+ * When tuning is enabled, a {@link KafkaProducerTuner} adjusts batching and compression to the traffic
+ * by restarting the producer with new settings.
  */
 public class KafkaService implements AutoCloseable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(KafkaService.class);
+    private static final LatencyHistogram ENQUEUE_LATENCY = MetricsRegistry.stageLatency("kafka_enqueue");
+    private static final LatencyHistogram ACK_LATENCY = MetricsRegistry.stageLatency("kafka_ack");
+    private static final Counter SEND_ERRORS = MetricsRegistry.errors("kafka_send");
+    static final Counter REJECT_ERRORS = MetricsRegistry.errors("kafka_rejected");
 
     private final BatchProcessorConfig config;
-    private KafkaProducer<String, String> producer;
+    // Replaced when the tuner restarts the producer, under the write lock so no send is in progress
+    private volatile Producer<byte[], byte[]> producer;
+    private final ReentrantReadWriteLock producerLock = new ReentrantReadWriteLock();
+    private KafkaWriteAheadLog wal;
+    private KafkaWalReplayer walReplayer;
+    private KafkaSendQueue sendQueue;
+    private KafkaProducerTuner tuner;
+
+    // System.nanoTime() since when sends have been failing, 0 while healthy
+    private volatile long unhealthySinceNanos;
 
     /**
      * Constructs the Kafka Service.
@@ -28,25 +66,62 @@ public class KafkaService implements AutoCloseable {
      */
     public KafkaService(BatchProcessorConfig config) {
         this.config = Objects.requireNonNull(config, "Configuration cannot be null");
-        initializeProducer();
+        KafkaProducerTuner.Settings settings = initialSettings();
+        initializeProducer(settings);
+        initializeWal();
+        startReplayer();
+        startSendQueue();
+        startTuner(settings);
+    }
+
+    public KafkaService(BatchProcessorConfig config, Producer<byte[], byte[]> producer) {
+        this(config, producer, null);
     }
 
-    public KafkaService(BatchProcessorConfig config, KafkaProducer<String, String> producer) {
+    public KafkaService(BatchProcessorConfig config, Producer<byte[], byte[]> producer, KafkaWriteAheadLog wal) {
         this.config = Objects.requireNonNull(config, "Configuration cannot be null");
         this.producer = producer;
+        this.wal = wal;
+        startReplayer();
+        startSendQueue();
+    }
+
+    /**
+     * @return The configured producer settings, which the tuner starts from.
+     */
+    private KafkaProducerTuner.Settings initialSettings() {
+        String compression = config.getKafkaProducerCompression();
+        return new KafkaProducerTuner.Settings(Math.max(config.getKafkaProducerLingerMs(), 0),
+                config.getKafkaProducerBatchSize() > 0 ? config.getKafkaProducerBatchSize() : 65536,
+                compression != null && !compression.isBlank() ? KafkaProducerTuner.parseCodec(compression) : "lz4");
     }
 
     /**
      * Initializes the KafkaProducer instance based on configuration.
+     *
+     * @param settings Batching and compression settings.
      */
-    private void initializeProducer() {
+    private void initializeProducer(KafkaProducerTuner.Settings settings) {
+        Properties props = producerProperties(settings);
+
+        try {
+            LOGGER.info("Initializing Kafka Producer for brokers: {}", config.getKafkaBrokers());
+            this.producer = new KafkaProducer<>(props);
+        } catch (Exception e) {
+            LOGGER.error("Failed to initialize Kafka Producer: {}", e.getMessage(), e);
+            // Depending on requirements, could throw exception to halt startup
+            this.producer = null;
+        }
+    }
+
+    private Properties producerProperties(KafkaProducerTuner.Settings settings) {
         Properties props = new Properties();
 
         try {
             props.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, config.getKafkaBrokers());
             props.put(ProducerConfig.CLIENT_ID_CONFIG, config.getKafkaClientId());
-            props.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
-            props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
+            props.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
+            props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
         } catch (NullPointerException e) {
             LOGGER.error("Missing configuration values", e);
             throw e;
@@ -63,50 +138,365 @@ public class KafkaService implements AutoCloseable {
         props.put(ProducerConfig.RECONNECT_BACKOFF_MAX_MS_CONFIG, "600000");
         // --- FIN NUEVOS PARÁMETROS ---
 
+        settings.applyTo(props);
+        return props;
+    }
+
+    /**
+     * Starts the producer tuner if a tuning interval is configured and the producer is running.
+     */
+    private void startTuner(KafkaProducerTuner.Settings settings) {
+        int intervalMs = config.getKafkaProducerTuneIntervalMs();
+        if (intervalMs <= 0 || producer == null) {
+            LOGGER.info("Kafka producer tuning disabled: linger {} ms, batch size {}, compression {}",
+                    settings.lingerMs(), settings.batchSize(), settings.compression());
+            return;
+        }
+        String codecs = config.getKafkaProducerCodecs();
+        KafkaProducerTuner.Limits limits = new KafkaProducerTuner.Limits(
+                Math.max(config.getKafkaProducerLingerMsMax(), settings.lingerMs()),
+                Math.min(config.getKafkaProducerBatchSizeMin() > 0 ? config.getKafkaProducerBatchSizeMin() : 16384,
+                        settings.batchSize()),
+                Math.max(config.getKafkaProducerBatchSizeMax(), settings.batchSize()),
+                codecs != null && !codecs.isBlank() ? List.of(codecs.split(",")) : List.of(settings.compression()));
+        this.tuner = new KafkaProducerTuner(settings, limits, config.getKafkaProducerMinRestartIntervalMs(),
+                this::producerMetrics, this::restartProducer);
+        tuner.start(intervalMs);
+        LOGGER.info("Kafka producer tuning every {} ms: linger up to {} ms, batch size {}-{}, codecs {}",
+                intervalMs, limits.maxLingerMs(), limits.minBatchSize(), limits.maxBatchSize(), limits.codecs());
+    }
+
+    private Map<MetricName, ? extends Metric> producerMetrics() {
+        Producer<byte[], byte[]> current = this.producer;
+        return current != null ? current.metrics() : Map.of();
+    }
+
+    /**
+     * Replaces the producer with one using new settings.
+     *
+     * @param settings The new settings.
+     */
+    private void restartProducer(KafkaProducerTuner.Settings settings) {
+        // Briefly shares the client ID with the old producer, which only makes JMX complain about the duplicate
+        replaceProducer(new KafkaProducer<>(producerProperties(settings)));
+    }
+
+    /**
+     * Replaces the producer. Sends are paused while the old producer flushes, so every record it holds is
+     * acknowledged (or has failed into the WAL) before the replacement sends anything, and records with the same
+     * key keep their order across the restart. The replayer is restarted on the new producer.
+     *
+     * @param replacement The new producer.
+     */
+    synchronized void replaceProducer(Producer<byte[], byte[]> replacement) {
+        if (walReplayer != null) {
+            walReplayer.close();
+            walReplayer = null;
+        }
+        Producer<byte[], byte[]> old;
+        producerLock.writeLock().lock();
         try {
-            LOGGER.info("Initializing Kafka Producer for brokers: {}", config.getKafkaBrokers());
-            this.producer = new KafkaProducer<>(props);
-        } catch (Exception e) {
-            LOGGER.error("Failed to initialize Kafka Producer: {}", e.getMessage(), e);
-            // Depending on requirements, could throw exception to halt startup
-            this.producer = null;
+            old = this.producer;
+            if (old != null) {
+                old.flush();
+            }
+            this.producer = replacement;
+        } finally {
+            producerLock.writeLock().unlock();
+        }
+        startReplayer();
+        if (old != null) {
+            old.close(Duration.ofSeconds(10));
+        }
+    }
+
+    /**
+     * Opens the write-ahead log used for store-and-forward, if a directory is configured.
+     * A failure to open it is logged and leaves the service running without it.
+     */
+    private void initializeWal() {
+        String walDir = config.getKafkaWalDir();
+        if (walDir == null || walDir.isBlank()) {
+            LOGGER.info("Kafka WAL disabled: undelivered records will be dropped.");
+            return;
+        }
+        try {
+            LOGGER.info("Opening Kafka WAL in {}", walDir);
+            this.wal = new KafkaWriteAheadLog(Path.of(walDir), config.getKafkaWalSegmentBytes(),
+                    config.getKafkaWalMaxSegments());
+        } catch (UncheckedIOException | IllegalArgumentException e) {
+            LOGGER.error("Failed to open Kafka WAL in {}: {}", walDir, e.getMessage(), e);
+            this.wal = null;
+        }
+    }
+
+    /**
+     * Starts draining the write-ahead log in the background when both the log and the producer are available.
+     */
+    private void startReplayer() {
+        if (wal != null && producer != null) {
+            int batchSize = config.getKafkaWalReplayBatchSize() > 0 ? config.getKafkaWalReplayBatchSize() : 5000;
+            this.walReplayer = new KafkaWalReplayer(wal, producer, config.getKafkaTopic(), batchSize);
         }
     }
 
+    /**
+     * Starts the non-blocking send front-end if a queue capacity is configured.
+     * Overflowing records go to the write-ahead log under the SPILL policy, or are dropped without one.
+     */
+    private void startSendQueue() {
+        int capacity = config.getKafkaSendQueueCapacity();
+        if (capacity <= 0) {
+            LOGGER.info("Kafka send queue disabled: records are handed to the producer on the caller's thread.");
+            return;
+        }
+        KafkaWriteAheadLog log = this.wal;
+        this.sendQueue = new KafkaSendQueue(capacity,
+                KafkaSendQueue.OverflowPolicy.parse(config.getKafkaSendOverflowPolicy()),
+                this::dispatch,
+                log != null ? (key, value) -> storeForReplay(log, key, value) : null);
+    }
+
     /**
      * Sends a message asynchronously to the configured Kafka topic.
-     * Logs the outcome (success or failure) via callback.
-     * Does nothing if the producer failed to initialize.
+     * Both key and value are encoded as UTF-8.
      *
      * @param key   The key for the Kafka record (can be null).
      * @param value The value (message payload) for the Kafka record. Must not be null.
      */
     public void sendMessage(String key, String value) {
         Objects.requireNonNull(value, "Kafka message value cannot be null");
-        if (this.producer == null) {
+        sendMessage(serializeKey(key), value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends a raw payload asynchronously to the configured Kafka topic.
+     * The payload buffer is forwarded as-is; the serialized key is cached per distinct key.
+     *
+     * @param key     The key for the Kafka record, typically the sensor ID (can be null).
+     * @param payload The raw message payload. Must not be null and must not be modified afterwards.
+     */
+    public void sendPayload(String key, byte[] payload) {
+        sendMessage(serializeKey(key), payload);
+    }
+
+    /**
+     * Sends several raw payloads asynchronously, in order, e.g. the readings of one multi-reading message.
+     * With a send queue they are enqueued together under one lock acquisition.
+     *
+     * @param keys     The keys for the Kafka records, typically sensor IDs (elements can be null).
+     * @param payloads The raw payloads, one per key. Must not be modified afterwards.
+     */
+    public void sendPayloads(List<String> keys, List<byte[]> payloads) {
+        if (keys.size() != payloads.size()) throw new IllegalArgumentException("Keys and payloads differ in number");
+        long started = System.nanoTime();
+        List<byte[]> serializedKeys = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            serializedKeys.add(serializeKey(key));
+        }
+        KafkaSendQueue queue = this.sendQueue;
+        if (queue != null) {
+            queue.offerAll(serializedKeys, payloads);
+        } else {
+            for (int i = 0; i < payloads.size(); i++) {
+                dispatch(serializedKeys.get(i), Objects.requireNonNull(payloads.get(i), "Kafka message value cannot be null"));
+            }
+        }
+        ENQUEUE_LATENCY.recordSince(started);
+    }
+
+    /**
+     * Sends a message asynchronously to the configured Kafka topic.
+     * With a send queue the record is only enqueued, so this never blocks on broker metadata
+     * (unless the overflow policy is BLOCK).
+     *
+     * @param key   The serialized key for the Kafka record (can be null).
+     * @param value The serialized value for the Kafka record. Must not be null.
+     */
+    public void sendMessage(byte[] key, byte[] value) {
+        Objects.requireNonNull(value, "Kafka message value cannot be null");
+        long started = System.nanoTime();
+        KafkaSendQueue queue = this.sendQueue;
+        if (queue != null) {
+            queue.offer(key, value);
+        } else {
+            dispatch(key, value);
+        }
+        ENQUEUE_LATENCY.recordSince(started);
+    }
+
+    /**
+     * Hands a record to the producer. Runs on the send queue's thread, or on the caller's without one.
+     * Logs the outcome (success or failure) via callback; records that failed with a retriable error go to the
+     * write-ahead log, others (e.g. too large or not authorized) are dropped.
+     * While the log holds a backlog (or the producer failed to initialize), new records are appended
+     * to it directly so they are replayed in order. Waits while the producer is being replaced.
+     */
+    private void dispatch(byte[] key, byte[] value) {
+        producerLock.readLock().lock();
+        try {
+            dispatchTo(this.producer, key, value);
+        } finally {
+            producerLock.readLock().unlock();
+        }
+    }
+
+    private void dispatchTo(Producer<byte[], byte[]> current, byte[] key, byte[] value) {
+        KafkaWriteAheadLog log = this.wal;
+        if (log != null && (current == null || log.hasBacklog())) {
+            storeForReplay(log, key, value);
+            return;
+        }
+        if (current == null) {
             LOGGER.warn("Kafka producer is not initialized. Cannot send message to topic '{}'", config.getKafkaTopic());
             // Optionally implement a retry mechanism or dead-letter queue here
             return; // Fail fast if producer isn't ready
         }
 
-        ProducerRecord<String, String> record = new ProducerRecord<>(config.getKafkaTopic(), key, value);
-        LOGGER.debug("Attempting Kafka send: Topic=[{}], Key=[{}]", record.topic(), record.key());
-
-        // Send asynchronously
-        producer.send(record, (metadata, exception) -> {
-            if (exception == null) {
-                // Success
-                LOGGER.debug("Kafka send successful: Topic=[{}], Partition=[{}], Offset=[{}]",
-                        metadata.topic(), metadata.partition(), metadata.offset());
-            } else {
-                // Failure
-                LOGGER.error("Kafka send failed: Topic=[{}], Key=[{}], Error: {}",
-                        record.topic(), record.key(), exception.getMessage());
-                // Consider logging exception stack trace at DEBUG or based on config
-                // LOGGER.debug("Kafka send failure stack trace:", exception);
-                // Implement retry logic or error handling strategy here if needed
+        ProducerRecord<byte[], byte[]> record = new ProducerRecord<>(config.getKafkaTopic(), key, value);
+        LOGGER.debug("Attempting Kafka send: Topic=[{}], Size=[{}] bytes", record.topic(), value.length);
+
+        // Send asynchronously; may block on metadata for up to max.block.ms
+        long sentAt = System.nanoTime();
+        try {
+            current.send(record, (metadata, exception) -> {
+                if (exception == null) {
+                    // Success
+                    ACK_LATENCY.recordSince(sentAt);
+                    markHealthy();
+                    LOGGER.debug("Kafka send successful: Topic=[{}], Partition=[{}], Offset=[{}]",
+                            metadata.topic(), metadata.partition(), metadata.offset());
+                } else {
+                    // Failure
+                    SEND_ERRORS.increment();
+                    markUnhealthy();
+                    LOGGER.error("Kafka send failed: Topic=[{}], Key=[{}], Error: {}",
+                            record.topic(), key != null ? new String(key, StandardCharsets.UTF_8) : null,
+                            exception.getMessage());
+                    // Consider logging exception stack trace at DEBUG or based on config
+                    // LOGGER.debug("Kafka send failure stack trace:", exception);
+                    if (!isRetriable(exception)) {
+                        REJECT_ERRORS.increment(); // Would fail again on replay
+                    } else if (log != null) {
+                        storeForReplay(log, key, value);
+                    }
+                }
+            });
+        } catch (KafkaException | IllegalStateException e) {
+            // Most errors arrive via the callback; these are thrown directly (e.g. producer already closed)
+            SEND_ERRORS.increment();
+            markUnhealthy();
+            LOGGER.error("Kafka send rejected: Topic=[{}], Error: {}", record.topic(), e.getMessage());
+            if (e instanceof KafkaException && !isRetriable(e)) {
+                REJECT_ERRORS.increment();
+            } else if (log != null) {
+                storeForReplay(log, key, value);
+            }
+        }
+    }
+
+    /**
+     * Tells whether a failed send may succeed when repeated, i.e. is worth keeping for replay.
+     *
+     * @param exception The send failure.
+     * @return {@code true} for {@link RetriableException}s and unavailable brokers anywhere in the cause chain,
+     * {@code false} for errors tied to the record itself, such as its size, serialization or authorization.
+     */
+    static boolean isRetriable(Throwable exception) {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof RetriableException || cause instanceof BrokerNotAvailableException) {
+                return true;
             }
-        });
+        }
+        return false;
+    }
+
+    private void markHealthy() {
+        if (unhealthySinceNanos != 0) {
+            LOGGER.info("Kafka producer healthy again after {} ms", getUnhealthyMillis());
+            unhealthySinceNanos = 0;
+        }
+    }
+
+    private void markUnhealthy() {
+        if (unhealthySinceNanos == 0) {
+            unhealthySinceNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * @return How long the producer has been unhealthy in milliseconds: since the first failed send without a
+     * success after it, or the duration of a send currently blocked on the producer, whichever is longer.
+     * 0 while healthy.
+     */
+    public long getUnhealthyMillis() {
+        long since = unhealthySinceNanos;
+        long failing = since != 0 ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since) : 0;
+        KafkaSendQueue queue = this.sendQueue;
+        return Math.max(failing, queue != null ? queue.getCurrentStallMillis() : 0);
+    }
+
+    /**
+     * @return The send queue, for its depth and stall metrics, or {@code null} if sends are not queued.
+     */
+    public KafkaSendQueue getSendQueue() {
+        return sendQueue;
+    }
+
+    /**
+     * @return The producer tuner, for its settings and metrics, or {@code null} if tuning is disabled.
+     */
+    public KafkaProducerTuner getProducerTuner() {
+        return tuner;
+    }
+
+    /**
+     * Appends a record to the write-ahead log, logging if it cannot be stored.
+     */
+    private void storeForReplay(KafkaWriteAheadLog log, byte[] key, byte[] value) {
+        if (!log.append(key, value)) {
+            LOGGER.error("Kafka WAL rejected record for topic '{}', record dropped", config.getKafkaTopic());
+        }
+    }
+
+    /**
+     * @return Bytes waiting in the write-ahead log for replay, or 0 if the log is disabled.
+     */
+    public long getWalPendingBytes() {
+        return wal != null ? wal.getPendingBytes() : 0;
+    }
+
+    /**
+     * Returns the UTF-8 serialization of a record key, reusing the bytes the {@link TagDictionary} holds for
+     * sensor IDs seen before.
+     *
+     * @param key The key to serialize (can be null).
+     * @return The serialized key, or null if the key is null. Must not be modified.
+     */
+    byte[] serializeKey(String key) {
+        if (key == null) return null;
+        return TagDictionary.getDefault().intern(key).utf8();
+    }
+
+    /**
+     * Exports the producer's health and the write-ahead log backlog, along with the metrics of the send queue and
+     * producer tuner in use. The values are read on every scrape.
+     *
+     * @param registry Where to register the metrics.
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.registerGauge("batch_processor_kafka_unhealthy_seconds", "Time since Kafka sends started failing",
+                () -> getUnhealthyMillis() / 1000.0);
+        registry.registerGauge("batch_processor_kafka_wal_pending_bytes", "Bytes waiting in the Kafka write-ahead log",
+                this::getWalPendingBytes);
+        KafkaSendQueue queue = this.sendQueue;
+        if (queue != null) {
+            queue.registerMetrics(registry);
+        }
+        KafkaProducerTuner producerTuner = this.tuner;
+        if (producerTuner != null) {
+            producerTuner.registerMetrics(registry);
+        }
     }
 
     /**
@@ -114,12 +504,29 @@ public class KafkaService implements AutoCloseable {
      */
     @Override
     public void close() {
+        if (tuner != null) {
+            tuner.close(); // No restarts while shutting down
+            tuner = null;
+        }
+        if (sendQueue != null) {
+            sendQueue.close(); // Hand queued records to the producer (or the WAL) before it is closed
+            sendQueue = null;
+        }
+        if (walReplayer != null) {
+            walReplayer.close();
+            walReplayer = null;
+        }
         if (producer != null) {
             LOGGER.info("Closing Kafka producer...");
             // Flush any buffered records and close with a timeout
-            producer.close(java.time.Duration.ofSeconds(10));
+            producer.close(Duration.ofSeconds(10));
             LOGGER.info("Kafka producer closed.");
             producer = null;
         }
+        if (wal != null) {
+            // Closed after the producer so records failing during its final flush are still stored
+            wal.close();
+            wal = null;
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,163 @@
+package com.tgcannabis.batch_processor.kafka;
+
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background thread draining a {@link KafkaWriteAheadLog} into Kafka.
+ * <p>
+ * Records are replayed in batches: the whole batch is sent, the producer is flushed, and the batch
+ * is committed in the log only once every record has been acknowledged or has failed with an error that
+ * retrying cannot fix, such as an oversized record; those are counted as dropped. A batch with a retriable
+ * failure is retried from its first record after an exponential backoff, so delivery is at-least-once.
+ */
+public class KafkaWalReplayer implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(KafkaWalReplayer.class);
+
+    private static final long IDLE_POLL_MS = 500;
+    private static final long INITIAL_BACKOFF_MS = 1_000;
+    private static final long MAX_BACKOFF_MS = 60_000;
+
+    private final KafkaWriteAheadLog wal;
+    private final Producer<byte[], byte[]> producer;
+    private final String topic;
+    private final int batchSize;
+    private final Thread thread;
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile boolean running = true;
+
+    /**
+     * Creates the replayer and starts its thread.
+     *
+     * @param wal       The log to drain. Must not be null.
+     * @param producer  The producer used for replay. Must not be null.
+     * @param topic     The Kafka topic to replay into. Must not be null.
+     * @param batchSize Maximum number of records sent per batch. Must be positive.
+     */
+    public KafkaWalReplayer(KafkaWriteAheadLog wal, Producer<byte[], byte[]> producer, String topic, int batchSize) {
+        if (batchSize <= 0) throw new IllegalArgumentException("Replay batch size must be positive");
+        this.wal = Objects.requireNonNull(wal, "WAL cannot be null");
+        this.producer = Objects.requireNonNull(producer, "Producer cannot be null");
+        this.topic = Objects.requireNonNull(topic, "Topic cannot be null");
+        this.batchSize = batchSize;
+
+        this.thread = new Thread(this::run, "kafka-wal-replayer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private void run() {
+        long backoffMs = INITIAL_BACKOFF_MS;
+        while (running) {
+            try {
+                wal.sync(); // Records appended after the last size or age threshold was hit
+                if (!wal.hasBacklog()) {
+                    TimeUnit.MILLISECONDS.sleep(IDLE_POLL_MS);
+                    continue;
+                }
+
+                if (replayBatch()) {
+                    backoffMs = INITIAL_BACKOFF_MS;
+                } else {
+                    pause(backoffMs);
+                    backoffMs = Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                LOGGER.error("Unexpected error in Kafka WAL replayer: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Sleeps for the backoff, syncing the log in between so records appended during a long outage reach the disk.
+     */
+    private void pause(long backoffMs) throws InterruptedException {
+        for (long slept = 0; slept < backoffMs && running; slept += IDLE_POLL_MS) {
+            TimeUnit.MILLISECONDS.sleep(Math.min(IDLE_POLL_MS, backoffMs - slept));
+            wal.sync();
+        }
+    }
+
+    /**
+     * Sends one batch from the log and commits it unless a record failed with a retriable error.
+     * Records that failed otherwise are skipped.
+     *
+     * @return {@code true} if the batch was committed, {@code false} if it has to be retried.
+     */
+    boolean replayBatch() throws InterruptedException {
+        KafkaWriteAheadLog.Batch batch = wal.readBatch(batchSize);
+        if (batch.isEmpty()) {
+            wal.commit(batch); // Skip past consumed segments
+            return true;
+        }
+
+        int dropped = 0;
+        try {
+            List<Future<RecordMetadata>> acks = new ArrayList<>(batch.entries().size());
+            for (KafkaWriteAheadLog.Entry entry : batch.entries()) {
+                acks.add(producer.send(new ProducerRecord<>(topic, entry.key(), entry.value())));
+            }
+            producer.flush();
+            for (Future<RecordMetadata> ack : acks) {
+                try {
+                    ack.get();
+                } catch (ExecutionException e) {
+                    if (KafkaService.isRetriable(e.getCause())) throw e;
+                    LOGGER.error("Kafka WAL record rejected by topic '{}', record dropped: {}",
+                            topic, e.getCause().getMessage());
+                    dropped++;
+                }
+            }
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            LOGGER.warn("Kafka WAL replay of {} records failed, will retry: {}", batch.entries().size(), e.getMessage());
+            return false;
+        }
+
+        wal.commit(batch);
+        if (dropped > 0) {
+            // Counted only once the batch is committed, as a retried batch sends these records again
+            droppedCount.addAndGet(dropped);
+            KafkaService.REJECT_ERRORS.add(dropped);
+        }
+        LOGGER.info("Replayed {} records from Kafka WAL ({} bytes still pending)", batch.entries().size(), wal.getPendingBytes());
+        return true;
+    }
+
+    /**
+     * @return Number of records skipped because they failed with an error that retrying cannot fix.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Stops the replay thread. Records not yet committed stay in the log for the next start.
+     */
+    @Override
+    public void close() {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
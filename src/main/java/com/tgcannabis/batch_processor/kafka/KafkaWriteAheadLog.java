@@ -0,0 +1,538 @@
+package com.tgcannabis.batch_processor.kafka;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Durable, segment-based local log holding Kafka records that could not be delivered yet.
+ * <p>
+ * Records are appended to memory-mapped segment files of a fixed size. Each record is stored as
+ * {@code [bodyLength:int][crc32c:int][keyLength:int][key][value]} (a key length of -1 means a null key),
+ * so a torn or corrupted record is detected on read. The position of the oldest unacknowledged
+ * record is persisted in a checkpoint file; on restart the log is recovered from the segments and
+ * the checkpoint, and a fresh segment is started for new appends.
+ * <p>
+ * Appends only write to the page cache. The active segment is forced to disk once 1 MiB has been appended
+ * since the last force or the oldest unforced record is a second old, so a crash of the host loses at most
+ * that much; {@link #sync()} forces whatever is left, e.g. once appends stop.
+ * <p>
+ * Disk usage is bounded by {@code maxSegments * segmentBytes}: when a new segment is needed and the
+ * limit is reached, the oldest segment is discarded (and counted as dropped).
+ * <p>
+ * Positions are encoded as {@code segmentId << 32 | offset}.
+ */
+public class KafkaWriteAheadLog implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(KafkaWriteAheadLog.class);
+
+    private static final String SEGMENT_SUFFIX = ".wal";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final int HEADER_BYTES = 8; // bodyLength + crc
+    private static final int MIN_SEGMENT_BYTES = 1024;
+    private static final int DEFAULT_SYNC_BYTES = 1024 * 1024;
+    private static final long DEFAULT_SYNC_INTERVAL_MS = 1_000;
+
+    /**
+     * A record read back from the log.
+     *
+     * @param key   The serialized key, or null.
+     * @param value The serialized value.
+     */
+    public record Entry(byte[] key, byte[] value) {
+    }
+
+    /**
+     * A run of consecutive records and the position right after the last one.
+     *
+     * @param entries     The records, in append order.
+     * @param endPosition Position to pass to {@link #commit(Batch)} once the records are acknowledged.
+     */
+    public record Batch(List<Entry> entries, long endPosition) {
+        public boolean isEmpty() {
+            return entries.isEmpty();
+        }
+    }
+
+    private static final class Segment {
+        final long id;
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        int limit; // End of valid data: write offset for the active segment, end of records for sealed ones
+
+        Segment(long id, Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final int syncBytes;
+    private final long syncIntervalNanos;
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private Segment active;
+    private volatile long readPosition;
+    private volatile long writePosition;
+    private boolean closed;
+    private int unsyncedBytes;
+    private long firstUnsyncedNanos;
+
+    private final LongAdder appendedCount = new LongAdder();
+    private final LongAdder replayedCount = new LongAdder();
+    private final LongAdder droppedSegments = new LongAdder();
+    private final LongAdder corruptedRecords = new LongAdder();
+    private final LongAdder syncCount = new LongAdder();
+
+    /**
+     * Opens (or creates) the log in the given directory, recovering any existing segments.
+     *
+     * @param directory    Directory holding the segment and checkpoint files.
+     * @param segmentBytes Size of each segment file.
+     * @param maxSegments  Maximum number of segment files kept on disk. Must be at least 2.
+     * @throws UncheckedIOException if the directory or segments cannot be opened
+     */
+    public KafkaWriteAheadLog(Path directory, int segmentBytes, int maxSegments) {
+        this(directory, segmentBytes, maxSegments, DEFAULT_SYNC_BYTES, DEFAULT_SYNC_INTERVAL_MS);
+    }
+
+    KafkaWriteAheadLog(Path directory, int segmentBytes, int maxSegments, int syncBytes, long syncIntervalMs) {
+        if (segmentBytes < MIN_SEGMENT_BYTES) {
+            throw new IllegalArgumentException("WAL segment size must be at least " + MIN_SEGMENT_BYTES + " bytes");
+        }
+        if (maxSegments < 2) throw new IllegalArgumentException("WAL must keep at least 2 segments");
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        this.syncBytes = syncBytes;
+        this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMs);
+
+        try {
+            Files.createDirectories(directory);
+            recover();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open Kafka write-ahead log in " + directory, e);
+        }
+    }
+
+    /**
+     * Loads existing segments and the checkpoint, then starts a fresh active segment.
+     */
+    private void recover() throws IOException {
+        List<Long> ids = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(p -> p.getFileName().toString())
+                    .filter(name -> name.endsWith(SEGMENT_SUFFIX))
+                    .forEach(name -> {
+                        try {
+                            ids.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                        } catch (NumberFormatException e) {
+                            LOGGER.warn("Ignoring unexpected file in WAL directory: {}", name);
+                        }
+                    });
+        }
+        ids.sort(Long::compare);
+
+        for (long id : ids) {
+            Segment segment = openSegment(id);
+            segment.limit = scanValidEnd(segment);
+            segments.put(id, segment);
+        }
+
+        // Existing segments are sealed; new appends always go to a new segment
+        long nextId = ids.isEmpty() ? 0 : ids.get(ids.size() - 1) + 1;
+        active = openSegment(nextId);
+        segments.put(nextId, active);
+        writePosition = position(active.id, 0);
+
+        long checkpoint = readCheckpoint();
+        Long firstId = segments.firstKey();
+        if (checkpoint < 0 || segmentId(checkpoint) < firstId) {
+            readPosition = position(firstId, 0);
+        } else {
+            Segment segment = segments.get(segmentId(checkpoint));
+            if (segment == null) {
+                Long next = segments.ceilingKey(segmentId(checkpoint));
+                readPosition = position(next != null ? next : active.id, 0);
+            } else {
+                readPosition = position(segment.id, Math.min(offset(checkpoint), segment.limit));
+            }
+        }
+
+        readPosition = skipConsumedSegments(readPosition);
+        deleteSegmentsBefore(segmentId(readPosition));
+        if (hasBacklog()) {
+            LOGGER.info("Recovered Kafka WAL with {} pending bytes in {} segment(s)", getPendingBytes(), segments.size());
+        }
+    }
+
+    /**
+     * Appends a record to the log.
+     *
+     * @param key   The serialized key (can be null).
+     * @param value The serialized value. Must not be null.
+     * @return {@code true} if the record was stored, {@code false} if it is too large for a segment or the log is closed.
+     */
+    public synchronized boolean append(byte[] key, byte[] value) {
+        if (closed) return false;
+        int keyLength = key != null ? key.length : 0;
+        int bodyLength = 4 + keyLength + value.length;
+        int recordLength = HEADER_BYTES + bodyLength;
+        if (recordLength > segmentBytes) {
+            LOGGER.error("Record of {} bytes does not fit in a WAL segment of {} bytes, dropping it", recordLength, segmentBytes);
+            return false;
+        }
+
+        if (active.limit + recordLength > segmentBytes) {
+            roll();
+        }
+
+        MappedByteBuffer buffer = active.buffer;
+        int offset = active.limit;
+        int bodyOffset = offset + HEADER_BYTES;
+        buffer.putInt(bodyOffset, key != null ? key.length : -1);
+        if (key != null) buffer.put(bodyOffset + 4, key);
+        buffer.put(bodyOffset + 4 + keyLength, value);
+        buffer.putInt(offset + 4, crc(buffer, bodyOffset, bodyLength));
+        buffer.putInt(offset, bodyLength); // Written last so a torn record reads as end-of-data
+
+        active.limit = offset + recordLength;
+        writePosition = position(active.id, active.limit);
+        appendedCount.increment();
+
+        long now = System.nanoTime();
+        if (unsyncedBytes == 0) firstUnsyncedNanos = now;
+        unsyncedBytes += recordLength;
+        if (unsyncedBytes >= syncBytes || now - firstUnsyncedNanos >= syncIntervalNanos) {
+            force();
+        }
+        return true;
+    }
+
+    /**
+     * Reads up to {@code maxRecords} records starting at the oldest unacknowledged position.
+     * The read position is not moved until {@link #commit(Batch)} is called.
+     *
+     * @param maxRecords Maximum number of records to return.
+     * @return The records read (possibly none) and the position after them.
+     */
+    public synchronized Batch readBatch(int maxRecords) {
+        List<Entry> entries = new ArrayList<>(Math.min(maxRecords, 1024));
+        long segmentId = segmentId(readPosition);
+        int offset = offset(readPosition);
+
+        while (entries.size() < maxRecords) {
+            Segment segment = segments.get(segmentId);
+            if (segment == null) {
+                Long next = segments.ceilingKey(segmentId);
+                if (next == null) break;
+                segmentId = next;
+                offset = 0;
+                continue;
+            }
+            if (offset >= segment.limit) {
+                if (segment == active) break;
+                Long next = segments.higherKey(segmentId);
+                if (next == null) break;
+                segmentId = next;
+                offset = 0;
+                continue;
+            }
+
+            MappedByteBuffer buffer = segment.buffer;
+            int bodyLength = buffer.getInt(offset);
+            int bodyOffset = offset + HEADER_BYTES;
+            if (bodyLength < 4 || bodyOffset + bodyLength > segment.limit
+                    || buffer.getInt(offset + 4) != crc(buffer, bodyOffset, bodyLength)) {
+                corruptedRecords.increment();
+                LOGGER.error("Corrupted record in WAL segment {} at offset {}, skipping rest of segment", segmentId, offset);
+                if (segment == active) {
+                    roll(); // Seal it first: the write position must not fall behind the truncated end
+                }
+                segment.limit = offset;
+                continue;
+            }
+
+            int keyLength = buffer.getInt(bodyOffset);
+            byte[] key = null;
+            if (keyLength >= 0) {
+                key = new byte[keyLength];
+                buffer.get(bodyOffset + 4, key);
+            }
+            byte[] value = new byte[bodyLength - 4 - Math.max(keyLength, 0)];
+            buffer.get(bodyOffset + 4 + Math.max(keyLength, 0), value);
+            entries.add(new Entry(key, value));
+            offset = bodyOffset + bodyLength;
+        }
+        return new Batch(entries, position(segmentId, offset));
+    }
+
+    /**
+     * Marks every record up to the end of the batch as acknowledged, deleting segments that are
+     * fully consumed and persisting the new read position.
+     *
+     * @param batch A batch previously returned by {@link #readBatch(int)}.
+     */
+    public synchronized void commit(Batch batch) {
+        if (closed || batch.endPosition() < readPosition) return;
+        readPosition = skipConsumedSegments(batch.endPosition());
+        replayedCount.add(batch.entries().size());
+        deleteSegmentsBefore(segmentId(readPosition));
+        writeCheckpoint();
+    }
+
+    /**
+     * @return {@code true} if there are records that have not been acknowledged yet.
+     */
+    public boolean hasBacklog() {
+        return readPosition != writePosition;
+    }
+
+    /**
+     * @return Number of bytes (including record headers) not acknowledged yet.
+     */
+    public synchronized long getPendingBytes() {
+        long pending = 0;
+        long readSegment = segmentId(readPosition);
+        for (Segment segment : segments.tailMap(readSegment, true).values()) {
+            pending += segment.limit - (segment.id == readSegment ? offset(readPosition) : 0);
+        }
+        return Math.max(pending, 0);
+    }
+
+    /**
+     * @return Total number of records appended since the log was opened.
+     */
+    public long getAppendedCount() {
+        return appendedCount.sum();
+    }
+
+    /**
+     * @return Total number of records acknowledged through {@link #commit(Batch)} since the log was opened.
+     */
+    public long getReplayedCount() {
+        return replayedCount.sum();
+    }
+
+    /**
+     * @return Number of unacknowledged segments discarded because the disk limit was reached.
+     */
+    public long getDroppedSegments() {
+        return droppedSegments.sum();
+    }
+
+    /**
+     * @return Number of records skipped because their CRC or length was invalid.
+     */
+    public long getCorruptedRecords() {
+        return corruptedRecords.sum();
+    }
+
+    /**
+     * @return Number of times the active segment was forced to disk.
+     */
+    long getSyncCount() {
+        return syncCount.sum();
+    }
+
+    /**
+     * Flushes records appended since the last flush to disk.
+     */
+    public synchronized void sync() {
+        if (!closed && unsyncedBytes > 0) force();
+    }
+
+    private void force() {
+        active.buffer.force();
+        unsyncedBytes = 0;
+        syncCount.increment();
+    }
+
+    /**
+     * Seals the active segment and starts a new one, discarding the oldest segment if the limit is reached.
+     */
+    private void roll() {
+        force();
+        if (segments.size() >= maxSegments) {
+            Segment oldest = segments.firstEntry().getValue();
+            if (segmentId(readPosition) <= oldest.id) {
+                droppedSegments.increment();
+                LOGGER.warn("Kafka WAL is full ({} segments), discarding {} unacknowledged bytes from segment {}",
+                        maxSegments, oldest.limit - (segmentId(readPosition) == oldest.id ? offset(readPosition) : 0),
+                        oldest.id);
+                Long next = segments.higherKey(oldest.id);
+                readPosition = position(next, 0);
+                writeCheckpoint();
+            }
+            deleteSegment(oldest);
+        }
+
+        try {
+            active = openSegment(active.id + 1);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create WAL segment " + (active.id + 1), e);
+        }
+        segments.put(active.id, active);
+        writePosition = position(active.id, 0);
+    }
+
+    /**
+     * Moves a position sitting at the end of a sealed segment to the start of the next one,
+     * so that a fully consumed log compares equal to the write position.
+     */
+    private long skipConsumedSegments(long position) {
+        Segment segment = segments.get(segmentId(position));
+        while (segment != null && segment != active && offset(position) >= segment.limit) {
+            Long next = segments.higherKey(segment.id);
+            if (next == null) break;
+            position = position(next, 0);
+            segment = segments.get(next);
+        }
+        return position;
+    }
+
+    private Segment openSegment(long id) throws IOException {
+        Path path = directory.resolve(String.format("%020d%s", id, SEGMENT_SUFFIX));
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        return new Segment(id, path, channel, buffer);
+    }
+
+    /**
+     * Finds the end of the valid records in a segment by walking and CRC-checking them.
+     */
+    private int scanValidEnd(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        while (offset + HEADER_BYTES <= segmentBytes) {
+            int bodyLength = buffer.getInt(offset);
+            int bodyOffset = offset + HEADER_BYTES;
+            if (bodyLength < 4 || bodyOffset + bodyLength > segmentBytes
+                    || buffer.getInt(offset + 4) != crc(buffer, bodyOffset, bodyLength)) {
+                break;
+            }
+            offset = bodyOffset + bodyLength;
+        }
+        return offset;
+    }
+
+    private void deleteSegmentsBefore(long segmentId) {
+        while (!segments.isEmpty() && segments.firstKey() < segmentId) {
+            Segment segment = segments.firstEntry().getValue();
+            if (segment == active) break;
+            deleteSegment(segment);
+        }
+    }
+
+    private void deleteSegment(Segment segment) {
+        segments.remove(segment.id);
+        try {
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            LOGGER.error("Failed to delete WAL segment {}: {}", segment.path, e.getMessage(), e);
+        }
+    }
+
+    private long readCheckpoint() {
+        Path path = directory.resolve(CHECKPOINT_FILE);
+        try {
+            if (!Files.exists(path)) return -1;
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+            if (buffer.remaining() != 12) return -1;
+            long position = buffer.getLong(0);
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.array(), 0, 8);
+            if ((int) crc.getValue() != buffer.getInt(8)) {
+                LOGGER.warn("Kafka WAL checkpoint is corrupted, replaying from the oldest segment");
+                return -1;
+            }
+            return position;
+        } catch (IOException e) {
+            LOGGER.warn("Could not read Kafka WAL checkpoint, replaying from the oldest segment: {}", e.getMessage());
+            return -1;
+        }
+    }
+
+    private void writeCheckpoint() {
+        ByteBuffer buffer = ByteBuffer.allocate(12);
+        buffer.putLong(0, readPosition);
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), 0, 8);
+        buffer.putInt(8, (int) crc.getValue());
+
+        Path target = directory.resolve(CHECKPOINT_FILE);
+        Path temp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        try {
+            Files.write(temp, buffer.array());
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.error("Failed to write Kafka WAL checkpoint: {}", e.getMessage(), e);
+        }
+    }
+
+    private static int crc(ByteBuffer buffer, int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.slice(offset, length));
+        return (int) crc.getValue();
+    }
+
+    private static long position(long segmentId, int offset) {
+        return (segmentId << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static long segmentId(long position) {
+        return position >>> 32;
+    }
+
+    private static int offset(long position) {
+        return (int) position;
+    }
+
+    /**
+     * Flushes and closes all segments, persisting the read position.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        force();
+        writeCheckpoint();
+        for (Map.Entry<Long, Segment> entry : segments.entrySet()) {
+            try {
+                entry.getValue().channel.close();
+            } catch (IOException e) {
+                LOGGER.error("Failed to close WAL segment {}: {}", entry.getValue().path, e.getMessage(), e);
+            }
+        }
+        // Keep empty active segments from piling up across restarts
+        if (active.limit == 0) {
+            try {
+                Files.deleteIfExists(active.path);
+            } catch (IOException e) {
+                LOGGER.debug("Could not delete empty WAL segment {}", active.path);
+            }
+        }
+        LOGGER.info("Kafka WAL closed. Appended={}, Replayed={}", getAppendedCount(), getReplayedCount());
+    }
+}
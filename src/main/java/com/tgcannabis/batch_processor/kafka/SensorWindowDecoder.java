@@ -0,0 +1,141 @@
+package com.tgcannabis.batch_processor.kafka;
+
+import com.tgcannabis.batch_processor.model.SensorData;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reference decoder for the windowed Kafka record format written by {@link SensorWindowEncoder}.
+ * <p>
+ * Consumers can tell the formats apart by the first byte of a record value: {@link #isWindow} is true for
+ * windows, while JSON records start with an opening brace. This class depends only on the JDK and {@link SensorData},
+ * so it can be copied into consumers as is.
+ */
+public final class SensorWindowDecoder {
+
+    private final byte[] data;
+    private int position; // In the header, in bytes
+    private long bitPosition; // In the bit stream
+
+    private SensorWindowDecoder(byte[] data) {
+        this.data = data;
+    }
+
+    /**
+     * @param value A Kafka record value.
+     * @return {@code true} if the value is an encoded window rather than a JSON reading.
+     */
+    public static boolean isWindow(byte[] value) {
+        return value != null && value.length >= 2 && value[0] == SensorWindowEncoder.MAGIC;
+    }
+
+    /**
+     * Decodes a window into its readings, in the order they were encoded.
+     *
+     * @param value The record value. Must not be null.
+     * @return The readings, each carrying the window's sensor ID, type and location.
+     * @throws IllegalArgumentException if the value is not a window, has an unsupported version or is truncated
+     */
+    public static List<SensorData> decode(byte[] value) {
+        if (!isWindow(value)) throw new IllegalArgumentException("Not a sensor window record");
+        if (value[1] != SensorWindowEncoder.VERSION) {
+            throw new IllegalArgumentException("Unsupported sensor window version " + value[1]);
+        }
+        try {
+            return new SensorWindowDecoder(value).readWindow();
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated sensor window record", e);
+        }
+    }
+
+    private List<SensorData> readWindow() {
+        position = 2;
+        int count = readVarint();
+        String sensorId = readString();
+        String sensorType = readString();
+        String location = readString();
+        long timestamp = readLong();
+        long valueBits = readLong();
+        bitPosition = (long) position * 8;
+        // Every further reading takes at least two bits
+        if (count < 1 || count - 1 > ((long) data.length * 8 - bitPosition) / 2) {
+            throw new IllegalArgumentException("Invalid reading count " + count + " in sensor window record");
+        }
+
+        List<SensorData> readings = new ArrayList<>(count);
+        readings.add(new SensorData(sensorType, location, sensorId, Double.longBitsToDouble(valueBits), timestamp));
+        long delta = 0;
+        int leading = 0;
+        int trailing = 0;
+        for (int i = 1; i < count; i++) {
+            delta += readDeltaOfDelta();
+            timestamp += delta;
+
+            if (readBit() == 1) {
+                if (readBit() == 1) {
+                    leading = (int) readBits(5);
+                    int meaningful = (int) readBits(6) + 1;
+                    trailing = 64 - leading - meaningful;
+                }
+                valueBits ^= readBits(64 - leading - trailing) << trailing;
+            }
+            readings.add(new SensorData(sensorType, location, sensorId, Double.longBitsToDouble(valueBits), timestamp));
+        }
+        return readings;
+    }
+
+    private long readDeltaOfDelta() {
+        if (readBit() == 0) return 0;
+        if (readBit() == 0) return readSigned(7);
+        if (readBit() == 0) return readSigned(9);
+        if (readBit() == 0) return readSigned(12);
+        return readBit() == 0 ? readSigned(32) : readBits(64);
+    }
+
+    private long readSigned(int n) {
+        long bits = readBits(n);
+        return (bits << (64 - n)) >> (64 - n); // Sign-extend
+    }
+
+    private int readBit() {
+        int bit = (data[(int) (bitPosition >>> 3)] >>> (7 - (bitPosition & 7))) & 1;
+        bitPosition++;
+        return bit;
+    }
+
+    private long readBits(int n) {
+        long value = 0;
+        for (int i = 0; i < n; i++) {
+            value = (value << 1) | readBit();
+        }
+        return value;
+    }
+
+    private int readVarint() {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = data[position++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+            if (shift >= 28) throw new IllegalArgumentException("Malformed varint in sensor window record");
+        }
+    }
+
+    private String readString() {
+        int length = readVarint();
+        if (length == 0) return null;
+        String value = new String(data, position, length - 1, StandardCharsets.UTF_8);
+        position += length - 1;
+        return value;
+    }
+
+    private long readLong() {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (data[position++] & 0xFF);
+        }
+        return value;
+    }
+}
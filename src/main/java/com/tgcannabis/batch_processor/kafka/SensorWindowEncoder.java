@@ -0,0 +1,229 @@
+package com.tgcannabis.batch_processor.kafka;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encodes the readings of one sensor into a single compact Kafka record value, readable with
+ * {@link SensorWindowDecoder}.
+ * <p>
+ * Layout (version {@value #VERSION}, multi-byte integers big-endian):
+ * <pre>
+ *   byte     magic {@code 0xB7} (never the first byte of UTF-8 JSON)
+ *   byte     version
+ *   varint   number of readings
+ *   string   sensorId, sensorType, location (each a varint length + 1, then UTF-8; length 0 means null)
+ *   int64    first timestamp (epoch milliseconds)
+ *   float64  first value
+ *   bits     for every further reading: timestamp, then value
+ * </pre>
+ * Timestamps are delta-of-delta encoded, values are XOR encoded against the previous value, both as in
+ * Facebook's Gorilla paper. Timestamp delta-of-deltas use the prefix codes {@code 0} (zero), {@code 10} (7 bits),
+ * {@code 110} (9 bits), {@code 1110} (12 bits), {@code 11110} (32 bits) and {@code 11111} (64 bits), in
+ * two's complement. A value XOR is {@code 0} if the value repeats. Otherwise it is {@code 10} plus the
+ * meaningful bits, if they fit the previous leading/trailing zero window. Failing that, it is {@code 11},
+ * 5 bits of leading zeros, 6 bits of meaningful length minus one, and the meaningful bits. The bit stream is
+ * padded with zeros to a whole byte.
+ * <p>
+ * Readings are encoded in the order they are added; timestamps need not be increasing. Not thread-safe.
+ */
+public final class SensorWindowEncoder {
+
+    /** First byte of every encoded window. */
+    public static final byte MAGIC = (byte) 0xB7;
+    /** Format version written by this encoder. */
+    public static final byte VERSION = 1;
+
+    private final String sensorId;
+    private final String sensorType;
+    private final String location;
+
+    private long[] words = new long[8];
+    private long bitCount;
+    private int count;
+    private long firstTimestamp;
+    private long firstValueBits;
+    private long previousTimestamp;
+    private long previousDelta;
+    private long previousValueBits;
+    private int previousLeading = -1;
+    private int previousTrailing;
+
+    /**
+     * Starts an empty window.
+     *
+     * @param sensorId   The sensor ID (can be null).
+     * @param sensorType The sensor type (can be null).
+     * @param location   The location (can be null).
+     */
+    public SensorWindowEncoder(String sensorId, String sensorType, String location) {
+        this.sensorId = sensorId;
+        this.sensorType = sensorType;
+        this.location = location;
+    }
+
+    /**
+     * Appends a reading.
+     *
+     * @param timestamp Epoch milliseconds.
+     * @param value     The value; any double, including NaN and infinities, round-trips bit for bit.
+     */
+    public void add(long timestamp, double value) {
+        long valueBits = Double.doubleToRawLongBits(value);
+        if (count == 0) {
+            firstTimestamp = timestamp;
+            firstValueBits = valueBits;
+        } else {
+            long delta = timestamp - previousTimestamp;
+            writeDeltaOfDelta(delta - previousDelta);
+            previousDelta = delta;
+            writeValue(valueBits);
+        }
+        previousTimestamp = timestamp;
+        previousValueBits = valueBits;
+        count++;
+    }
+
+    private void writeDeltaOfDelta(long dod) {
+        if (dod == 0) {
+            writeBits(0, 1);
+        } else if (fits(dod, 7)) {
+            writeBits(0b10, 2);
+            writeBits(dod, 7);
+        } else if (fits(dod, 9)) {
+            writeBits(0b110, 3);
+            writeBits(dod, 9);
+        } else if (fits(dod, 12)) {
+            writeBits(0b1110, 4);
+            writeBits(dod, 12);
+        } else if (fits(dod, 32)) {
+            writeBits(0b11110, 5);
+            writeBits(dod, 32);
+        } else {
+            writeBits(0b11111, 5);
+            writeBits(dod, 64);
+        }
+    }
+
+    private static boolean fits(long value, int bits) {
+        return value >= -(1L << (bits - 1)) && value < (1L << (bits - 1));
+    }
+
+    private void writeValue(long valueBits) {
+        long xor = valueBits ^ previousValueBits;
+        if (xor == 0) {
+            writeBits(0, 1);
+            return;
+        }
+        int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+        int trailing = Long.numberOfTrailingZeros(xor);
+        if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+            writeBits(0b10, 2);
+            writeBits(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+        } else {
+            int meaningful = 64 - leading - trailing;
+            writeBits(0b11, 2);
+            writeBits(leading, 5);
+            writeBits(meaningful - 1, 6);
+            writeBits(xor >>> trailing, meaningful);
+            previousLeading = leading;
+            previousTrailing = trailing;
+        }
+    }
+
+    /** Appends the lowest {@code n} bits of {@code bits}, most significant first. */
+    private void writeBits(long bits, int n) {
+        if (n == 0) return;
+        int word = (int) (bitCount >>> 6);
+        if (word + 1 >= words.length) {
+            words = Arrays.copyOf(words, words.length * 2);
+        }
+        long value = n == 64 ? bits : bits & ((1L << n) - 1);
+        int used = (int) (bitCount & 63);
+        int free = 64 - used;
+        if (n <= free) {
+            words[word] |= value << (free - n);
+        } else {
+            words[word] |= value >>> (n - free);
+            words[word + 1] |= value << (64 - (n - free));
+        }
+        bitCount += n;
+    }
+
+    /**
+     * @return Number of readings added.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return The sensor type the window was started for.
+     */
+    public String getSensorType() {
+        return sensorType;
+    }
+
+    /**
+     * @return The location the window was started for.
+     */
+    public String getLocation() {
+        return location;
+    }
+
+    /**
+     * @return Approximate size of the encoded window so far, in bytes.
+     */
+    public int getEncodedSizeEstimate() {
+        return 64 + (int) ((bitCount + 7) >>> 3);
+    }
+
+    /**
+     * Serializes the window. The encoder can keep accepting readings afterwards.
+     *
+     * @return The record value.
+     * @throws IllegalStateException if no reading was added
+     */
+    public byte[] toByteArray() {
+        if (count == 0) throw new IllegalStateException("Cannot encode an empty window");
+        int streamBytes = (int) ((bitCount + 7) >>> 3);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(40 + streamBytes);
+        out.write(MAGIC);
+        out.write(VERSION);
+        writeVarint(out, count);
+        writeString(out, sensorId);
+        writeString(out, sensorType);
+        writeString(out, location);
+        writeLong(out, firstTimestamp);
+        writeLong(out, firstValueBits);
+        for (int i = 0; i < streamBytes; i++) {
+            out.write((int) (words[i >>> 3] >>> (56 - 8 * (i & 7))));
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length + 1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift));
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.tgcannabis.batch_processor.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic counter backed by a {@link LongAdder}, whose cells are striped across threads so concurrent
+ * increments do not contend on one cache line. Incrementing allocates nothing.
+ */
+public final class Counter {
+
+    private final LongAdder value = new LongAdder();
+
+    Counter() {
+    }
+
+    /**
+     * Adds one.
+     */
+    public void increment() {
+        value.increment();
+    }
+
+    /**
+     * @param amount Amount to add. Must not be negative.
+     */
+    public void add(long amount) {
+        value.add(amount);
+    }
+
+    /**
+     * @return The current total.
+     */
+    public long get() {
+        return value.sum();
+    }
+}
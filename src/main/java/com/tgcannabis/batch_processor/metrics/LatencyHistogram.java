@@ -0,0 +1,112 @@
+package com.tgcannabis.batch_processor.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with HDR-style log-linear buckets.
+ * <p>
+ * Values up to 31 ns get one bucket each; above that, every power of two is split into 32 linear sub-buckets,
+ * so any recorded value is off by at most about 3%. Values beyond ~68 s land in the last bucket. Bucket counts
+ * are kept in {@link AtomicLongArray}s striped by thread, so recording is a handful of arithmetic operations
+ * and one uncontended atomic increment, without allocation.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** Largest exponent tracked: 2^36 ns is about 68 seconds. */
+    private static final int MAX_EXPONENT = 36;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    private static final int STRIPES = 8; // Power of two
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS * STRIPES);
+    private final Counter count = new Counter();
+    private final Counter sumNanos = new Counter();
+
+    LatencyHistogram() {
+    }
+
+    /**
+     * Records the time elapsed since a {@link System#nanoTime()} reading.
+     *
+     * @param startNanos The {@code System.nanoTime()} value taken when the operation started.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos The duration in nanoseconds. Negative values count as zero.
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        int stripe = (int) Thread.currentThread().threadId() & (STRIPES - 1);
+        counts.incrementAndGet(stripe * BUCKETS + bucketOf(value));
+        count.increment();
+        sumNanos.add(value);
+    }
+
+    /**
+     * @return Number of recorded values.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return Sum of the recorded values, in nanoseconds.
+     */
+    public long getSumNanos() {
+        return sumNanos.get();
+    }
+
+    /**
+     * Estimates a quantile from the bucket counts. Concurrent recording may make the estimate slightly stale.
+     *
+     * @param quantile The quantile, between 0 and 1.
+     * @return The estimated value in nanoseconds, or 0 if nothing was recorded.
+     */
+    public long getValueAtQuantile(double quantile) {
+        long[] merged = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS * STRIPES; i++) {
+            long bucketCount = counts.get(i);
+            merged[i % BUCKETS] += bucketCount;
+            total += bucketCount;
+        }
+        if (total == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += merged[bucket];
+            if (seen >= rank) {
+                return (lowerBound(bucket) + upperBound(bucket)) / 2;
+            }
+        }
+        return lowerBound(BUCKETS - 1);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) return BUCKETS - 1;
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return lowerBound(bucket) + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
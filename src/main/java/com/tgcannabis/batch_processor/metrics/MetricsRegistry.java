@@ -0,0 +1,220 @@
+package com.tgcannabis.batch_processor.metrics;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Holds the application's metrics and renders them in the Prometheus text exposition format.
+ * <p>
+ * Hot-path metrics ({@link Counter}s and {@link LatencyHistogram}s) are looked up once, typically into static
+ * fields, and then updated without locks or allocation. Values that components already track are exported
+ * through callbacks registered with {@link #registerGauge} and {@link #registerCounter}, which are only invoked
+ * when the registry is scraped.
+ */
+public final class MetricsRegistry {
+
+    /** Per-stage latency summaries, labelled by {@code stage}. */
+    public static final String STAGE_LATENCY = "batch_processor_stage_latency_seconds";
+    /** Error counters, labelled by {@code kind}. */
+    public static final String ERRORS = "batch_processor_errors_total";
+
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private enum Type {
+        COUNTER("counter"), GAUGE("gauge"), SUMMARY("summary");
+
+        private final String exposition;
+
+        Type(String exposition) {
+            this.exposition = exposition;
+        }
+    }
+
+    /**
+     * Metrics sharing a name, help text and type, keyed by their rendered labels.
+     */
+    private record Family(String name, String help, Type type, Map<String, Object> children) {
+    }
+
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    /**
+     * @return The process-wide registry.
+     */
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @param stage The pipeline stage, e.g. {@code parse} or {@code kafka_ack}.
+     * @return The latency histogram of that stage in the default registry.
+     */
+    public static LatencyHistogram stageLatency(String stage) {
+        return DEFAULT.histogram(STAGE_LATENCY, "Time spent per pipeline stage", "stage", stage);
+    }
+
+    /**
+     * @param kind The kind of error, e.g. {@code parse} or {@code kafka_send}.
+     * @return The error counter of that kind in the default registry.
+     */
+    public static Counter errors(String kind) {
+        return DEFAULT.counter(ERRORS, "Errors by kind", "kind", kind);
+    }
+
+    /**
+     * Returns the counter with the given name and labels, creating it on first use.
+     *
+     * @param name   Metric name, conventionally ending in {@code _total}.
+     * @param help   Description shown by Prometheus.
+     * @param labels Label names and values, alternating.
+     * @return The counter.
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, Type.COUNTER).children()
+                .computeIfAbsent(renderLabels(labels), k -> new Counter());
+    }
+
+    /**
+     * Returns the latency histogram with the given name and labels, creating it on first use.
+     * It is exported as a summary in seconds, with quantiles, sum and count.
+     *
+     * @param name   Metric name, conventionally ending in {@code _seconds}.
+     * @param help   Description shown by Prometheus.
+     * @param labels Label names and values, alternating.
+     * @return The histogram.
+     */
+    public LatencyHistogram histogram(String name, String help, String... labels) {
+        return (LatencyHistogram) family(name, help, Type.SUMMARY).children()
+                .computeIfAbsent(renderLabels(labels), k -> new LatencyHistogram());
+    }
+
+    /**
+     * Exports a value read at scrape time. Registering the same name and labels again replaces the callback.
+     *
+     * @param name   Metric name.
+     * @param help   Description shown by Prometheus.
+     * @param value  Reads the current value. Must be cheap and thread-safe.
+     * @param labels Label names and values, alternating.
+     */
+    public void registerGauge(String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, Type.GAUGE).children().put(renderLabels(labels), Objects.requireNonNull(value));
+    }
+
+    /**
+     * Exports a monotonically increasing total read at scrape time, e.g. an existing {@code get...Count()}.
+     * Registering the same name and labels again replaces the callback.
+     *
+     * @param name   Metric name, conventionally ending in {@code _total}.
+     * @param help   Description shown by Prometheus.
+     * @param value  Reads the current total. Must be cheap and thread-safe.
+     * @param labels Label names and values, alternating.
+     */
+    public void registerCounter(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, Type.COUNTER).children().put(renderLabels(labels), Objects.requireNonNull(value));
+    }
+
+    /**
+     * Exports a monotonically increasing total that is not a whole number, e.g. a duration in seconds.
+     * Registering the same name and labels again replaces the callback.
+     *
+     * @param name   Metric name, conventionally ending in {@code _total}.
+     * @param help   Description shown by Prometheus.
+     * @param value  Reads the current total. Must be cheap and thread-safe.
+     * @param labels Label names and values, alternating.
+     */
+    public void registerCounter(String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, Type.COUNTER).children().put(renderLabels(labels), Objects.requireNonNull(value));
+    }
+
+    /**
+     * Writes every metric in the Prometheus text exposition format (version 0.0.4).
+     *
+     * @param out Where to write.
+     * @throws IOException if writing fails
+     */
+    public void writePrometheus(Appendable out) throws IOException {
+        for (Family family : families.values()) {
+            if (family.children().isEmpty()) continue;
+            out.append("# HELP ").append(family.name()).append(' ').append(escapeHelp(family.help())).append('\n');
+            out.append("# TYPE ").append(family.name()).append(' ').append(family.type().exposition).append('\n');
+            for (Map.Entry<String, Object> child : family.children().entrySet()) {
+                writeChild(out, family.name(), child.getKey(), child.getValue());
+            }
+        }
+    }
+
+    private static void writeChild(Appendable out, String name, String labels, Object metric) throws IOException {
+        if (metric instanceof Counter counter) {
+            sample(out, name, labels, counter.get());
+        } else if (metric instanceof LongSupplier supplier) {
+            sample(out, name, labels, supplier.getAsLong());
+        } else if (metric instanceof DoubleSupplier supplier) {
+            sample(out, name, labels, supplier.getAsDouble());
+        } else if (metric instanceof LatencyHistogram histogram) {
+            for (double quantile : QUANTILES) {
+                String quantileLabel = "quantile=\"" + quantile + "\"";
+                sample(out, name, labels.isEmpty() ? quantileLabel : labels + "," + quantileLabel,
+                        histogram.getValueAtQuantile(quantile) / NANOS_PER_SECOND);
+            }
+            sample(out, name + "_sum", labels, histogram.getSumNanos() / NANOS_PER_SECOND);
+            sample(out, name + "_count", labels, histogram.getCount());
+        }
+    }
+
+    private static void sample(Appendable out, String name, String labels, double value) throws IOException {
+        out.append(name);
+        if (!labels.isEmpty()) out.append('{').append(labels).append('}');
+        out.append(' ');
+        if (Double.isNaN(value)) {
+            out.append("NaN");
+        } else if (Double.isInfinite(value)) {
+            out.append(value > 0 ? "+Inf" : "-Inf");
+        } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append(Long.toString((long) value));
+        } else {
+            out.append(Double.toString(value));
+        }
+        out.append('\n');
+    }
+
+    private Family family(String name, String help, Type type) {
+        Family family = families.computeIfAbsent(name, n -> new Family(n, help, type, new ConcurrentSkipListMap<>()));
+        if (family.type() != type) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as a " + family.type().exposition);
+        }
+        return family;
+    }
+
+    private static String renderLabels(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be given as name/value pairs");
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) sb.append(',');
+            sb.append(labels[i]).append("=\"");
+            String value = labels[i + 1];
+            for (int c = 0; c < value.length(); c++) {
+                char ch = value.charAt(c);
+                switch (ch) {
+                    case '\\' -> sb.append("\\\\");
+                    case '"' -> sb.append("\\\"");
+                    case '\n' -> sb.append("\\n");
+                    default -> sb.append(ch);
+                }
+            }
+            sb.append('"');
+        }
+        return sb.toString();
+    }
+
+    private static String escapeHelp(String help) {
+        return help.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,94 @@
+package com.tgcannabis.batch_processor.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Embedded JDK {@link HttpServer} serving a {@link MetricsRegistry} at {@code /metrics} for Prometheus to scrape.
+ */
+public class MetricsServer implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricsServer.class);
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final MetricsRegistry registry;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * Starts the server.
+     *
+     * @param registry The metrics to serve. Must not be null.
+     * @param port     TCP port to listen on; {@code 0} picks a free one.
+     * @throws UncheckedIOException if the port cannot be bound
+     */
+    public MetricsServer(MetricsRegistry registry, int port) {
+        this.registry = Objects.requireNonNull(registry, "Metrics registry cannot be null");
+        try {
+            this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot bind metrics endpoint to port " + port, e);
+        }
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.createContext("/metrics", this::handle);
+        server.setExecutor(executor);
+        server.start();
+        LOGGER.info("Metrics endpoint listening on http://0.0.0.0:{}/metrics", getPort());
+    }
+
+    /**
+     * @return The port the server is bound to.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod()) && !"HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            StringBuilder body = new StringBuilder(8192);
+            registry.writePrometheus(body);
+            byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } catch (Exception e) {
+            LOGGER.error("Error serving metrics: {}", e.getMessage(), e);
+            throw e;
+        }
+    }
+
+    /**
+     * Stops the server.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,19 @@
+package com.tgcannabis.batch_processor.model;
+
+/**
+ * Aggregate of one sensor's readings over a closed tumbling window.
+ *
+ * @param sensorId    The sensor the readings came from.
+ * @param sensorType  The sensor type, used as the measurement prefix.
+ * @param location    The location reported by the sensor's latest reading (can be null).
+ * @param window      The window name, e.g. {@code 1m}.
+ * @param windowStart Event time at which the window starts, in epoch milliseconds.
+ * @param count       Number of readings in the window.
+ * @param min         Smallest value.
+ * @param max         Largest value.
+ * @param mean        Arithmetic mean of the values.
+ * @param last        Value of the reading with the latest timestamp.
+ */
+public record SensorRollup(String sensorId, String sensorType, String location, String window, long windowStart,
+                           long count, double min, double max, double mean, double last) {
+}
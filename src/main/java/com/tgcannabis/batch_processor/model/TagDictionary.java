@@ -0,0 +1,322 @@
+package com.tgcannabis.batch_processor.model;
+
+import com.tgcannabis.batch_processor.metrics.MetricsRegistry;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, concurrent dictionary of the identifiers that repeat in every message: sensor IDs, locations,
+ * sensor types and topics.
+ * <p>
+ * It maps raw payload bytes (or a string) to one canonical {@link Tag}, holding the {@code String} along with what
+ * the sinks derive from it: the UTF-8 bytes used as Kafka key and the value escaped for InfluxDB line protocol. The
+ * parser looks values up straight from the payload bytes, so a known identifier costs no allocation, and the sinks
+ * never re-encode it.
+ * <p>
+ * The table is 4-way set-associative: a value can only live in the four slots of its hash's set, and lookups read
+ * them without locking. When a set is full, a CLOCK-style reference bit picks a victim that has not been looked up
+ * since the set was last swept, so identifiers of sensors that went away are evicted first. Races only ever cost a
+ * duplicate instance, never a wrong one.
+ */
+public final class TagDictionary {
+
+    /** Slots of the process-wide dictionary, ample for tens of thousands of sensors and their topics. */
+    public static final int DEFAULT_CAPACITY = 1 << 17;
+
+    private static final TagDictionary DEFAULT = new TagDictionary(DEFAULT_CAPACITY);
+
+    private static final int WAYS = 4;
+    /** Longer values are not interned; they are unlikely to be identifiers. */
+    private static final int MAX_LENGTH = 256;
+
+    /**
+     * A canonical identifier and its precomputed encodings.
+     */
+    public static final class Tag {
+        private final String value;
+        private final byte[] utf8;
+        private final int hash;
+        private final String escapedTagValue;
+        private final String escapedMeasurement;
+        private volatile boolean referenced; // Set by lookups after the first, so one-off values go first
+
+        private Tag(String value, byte[] utf8, int hash) {
+            this.value = value;
+            this.utf8 = utf8;
+            this.hash = hash;
+            this.escapedTagValue = escape(value, true);
+            this.escapedMeasurement = escape(value, false);
+        }
+
+        /**
+         * @return The canonical string.
+         */
+        public String value() {
+            return value;
+        }
+
+        /**
+         * @return The UTF-8 encoding, e.g. the serialized Kafka key. Must not be modified.
+         */
+        public byte[] utf8() {
+            return utf8;
+        }
+
+        /**
+         * @return The value escaped as an InfluxDB line protocol tag value.
+         */
+        public String escapedTagValue() {
+            return escapedTagValue;
+        }
+
+        /**
+         * @return The value escaped as an InfluxDB line protocol measurement name.
+         */
+        public String escapedMeasurement() {
+            return escapedMeasurement;
+        }
+
+        private boolean matches(byte[] bytes, int start, int length) {
+            if (utf8.length != length) return false;
+            for (int i = 0; i < length; i++) {
+                if (utf8[i] != bytes[start + i]) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return value;
+        }
+    }
+
+    private final AtomicReferenceArray<Tag> slots;
+    private final int setMask;
+    private final AtomicInteger size = new AtomicInteger();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Constructs an empty dictionary.
+     *
+     * @param capacity Number of slots, rounded up to a power of two of at least {@value #WAYS}.
+     */
+    public TagDictionary(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Tag dictionary capacity must be positive");
+        int slotCount = Math.max(WAYS, Integer.highestOneBit(capacity - 1) << 1);
+        this.slots = new AtomicReferenceArray<>(slotCount);
+        this.setMask = slotCount / WAYS - 1;
+    }
+
+    /**
+     * @return The process-wide dictionary shared by the parsers and the sinks.
+     */
+    public static TagDictionary getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Looks up the identifier encoded in a range of bytes, adding it if absent.
+     *
+     * @param bytes The buffer, e.g. a payload. Must not be null.
+     * @param start Offset of the first byte.
+     * @param end   Offset just past the last byte.
+     * @param ascii Whether the range is known to be ASCII, which decodes without the UTF-8 decoder.
+     * @return The canonical tag.
+     */
+    public Tag intern(byte[] bytes, int start, int end, boolean ascii) {
+        int length = end - start;
+        int hash = 1;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        int set = set(hash);
+        if (length <= MAX_LENGTH) {
+            for (int way = 0; way < WAYS; way++) {
+                Tag tag = slots.get(set + way);
+                if (tag != null && tag.hash == hash && tag.matches(bytes, start, length)) {
+                    return hit(tag);
+                }
+            }
+        }
+        String value = new String(bytes, start, length, ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+        byte[] utf8 = new byte[length];
+        System.arraycopy(bytes, start, utf8, 0, length);
+        return insert(set, new Tag(value, utf8, hash));
+    }
+
+    /**
+     * Looks up an identifier given as a string, adding it if absent.
+     *
+     * @param value The identifier. Must not be null.
+     * @return The canonical tag, equal to {@code value}.
+     */
+    public Tag intern(String value) {
+        int length = value.length();
+        int hash = 1;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) { // The table is keyed by UTF-8 bytes
+                byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+                return intern(utf8, 0, utf8.length, false);
+            }
+            hash = 31 * hash + c;
+        }
+        int set = set(hash);
+        if (length <= MAX_LENGTH) {
+            for (int way = 0; way < WAYS; way++) {
+                Tag tag = slots.get(set + way);
+                if (tag != null && tag.hash == hash && (tag.value == value || tag.value.equals(value))) {
+                    return hit(tag);
+                }
+            }
+        }
+        return insert(set, new Tag(value, value.getBytes(StandardCharsets.ISO_8859_1), hash));
+    }
+
+    /**
+     * @param value The identifier, or null.
+     * @return The canonical instance of {@code value}, or null.
+     */
+    public String canonical(String value) {
+        return value != null ? intern(value).value() : null;
+    }
+
+    private int set(int hash) {
+        int mixed = hash * 0x9E3779B9; // Identifiers differing in their last characters would share low bits
+        return ((mixed ^ (mixed >>> 16)) & setMask) * WAYS;
+    }
+
+    private Tag hit(Tag tag) {
+        if (!tag.referenced) tag.referenced = true; // Read before writing, so hot tags don't bounce cache lines
+        hits.increment();
+        return tag;
+    }
+
+    private Tag insert(int set, Tag tag) {
+        misses.increment();
+        if (tag.utf8.length > MAX_LENGTH) return tag;
+        // Free slots first, and settle on a racing thread's instance of the same value
+        for (int way = 0; way < WAYS; way++) {
+            Tag current = slots.get(set + way);
+            if (current == null) {
+                if (slots.compareAndSet(set + way, null, tag)) {
+                    size.incrementAndGet();
+                    return tag;
+                }
+                current = slots.get(set + way);
+            }
+            if (current != null && current.hash == tag.hash && Arrays.equals(current.utf8, tag.utf8)) {
+                return current;
+            }
+        }
+        // Then the first tag not looked up since the last sweep, clearing reference bits on the way
+        for (int sweep = 0; sweep < 2; sweep++) {
+            for (int way = 0; way < WAYS; way++) {
+                Tag current = slots.get(set + way);
+                if (current != null && current.referenced) {
+                    current.referenced = false; // Second chance: evicted next time unless looked up meanwhile
+                } else if (slots.compareAndSet(set + way, current, tag)) {
+                    if (current != null) evictions.increment();
+                    else size.incrementAndGet();
+                    return tag;
+                }
+            }
+        }
+        return tag; // Lost every race; the tag is still a correct value, just not cached
+    }
+
+    private static String escape(String value, boolean escapeEquals) {
+        StringBuilder sb = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String replacement = switch (c) {
+                case '\n' -> "\\n";
+                case '\r' -> "\\r";
+                case '\t' -> "\\t";
+                case ' ' -> "\\ ";
+                case ',' -> "\\,";
+                case '=' -> escapeEquals ? "\\=" : null;
+                default -> null;
+            };
+            if (replacement != null && sb == null) {
+                sb = new StringBuilder(value.length() + 8).append(value, 0, i);
+            }
+            if (sb != null) {
+                if (replacement != null) {
+                    sb.append(replacement);
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        return sb != null ? sb.toString() : value;
+    }
+
+    /**
+     * @return Identifiers currently held.
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return Slots, the most identifiers the dictionary can hold.
+     */
+    public int capacity() {
+        return slots.length();
+    }
+
+    /**
+     * @return Lookups answered from the dictionary.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return Lookups that had to create a new instance.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return Identifiers evicted to make room for others.
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return Fraction of lookups answered from the dictionary, or 0 before the first lookup.
+     */
+    public double getHitRatio() {
+        long hitCount = getHitCount();
+        long total = hitCount + getMissCount();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * Exports the dictionary's size, hit ratio and lookup counters. The values are read on every scrape.
+     *
+     * @param registry Where to register the metrics.
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.registerGauge("batch_processor_tag_dictionary_size", "Identifiers held by the tag dictionary",
+                this::size);
+        registry.registerGauge("batch_processor_tag_dictionary_hit_ratio",
+                "Fraction of identifier lookups answered by the tag dictionary", this::getHitRatio);
+        registry.registerCounter("batch_processor_tag_dictionary_hits_total", "Identifier lookups answered by the tag dictionary",
+                this::getHitCount);
+        registry.registerCounter("batch_processor_tag_dictionary_misses_total", "Identifier lookups adding a new instance",
+                this::getMissCount);
+        registry.registerCounter("batch_processor_tag_dictionary_evictions_total", "Identifiers evicted from the tag dictionary",
+                this::getEvictionCount);
+    }
+}
@@ -0,0 +1,257 @@
+package com.tgcannabis.batch_processor.mqtt;
+
+import com.tgcannabis.batch_processor.metrics.MetricsRegistry;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Acknowledges QoS 1 and 2 messages to the broker once they have been processed, with Paho's manual
+ * acknowledgements.
+ * <p>
+ * Messages are registered in arrival order and may complete in any order, e.g. on different pipeline lanes.
+ * Acknowledgements are nevertheless sent in arrival order, as MQTT 3.1.1 requires: a background thread acks the
+ * longest completed prefix each time it wakes up, so one wake-up acknowledges every message that completed in
+ * the meantime. Unacknowledged messages count against the broker's in-flight window, which is what slows the
+ * broker down when the service falls behind.
+ * <p>
+ * After the connection is lost, {@link #reset()} discards the outstanding messages: their message IDs are only
+ * valid on the old connection, and the broker redelivers them if the session is kept.
+ */
+public class MqttAckTracker implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MqttAckTracker.class);
+    private static final Runnable NO_ACK = () -> {
+    };
+
+    /**
+     * Sends one acknowledgement, e.g. {@code MqttClient::messageArrivedComplete}.
+     */
+    @FunctionalInterface
+    public interface Acknowledger {
+        void acknowledge(int messageId, int qos) throws MqttException;
+    }
+
+    private final Acknowledger acknowledger;
+    private final int maxBatch;
+
+    // Ring of outstanding messages, indexed by arrival sequence; grows if the broker's window is larger
+    private int[] messageIds;
+    private byte[] qos;
+    private boolean[] completed;
+    private long head; // Sequence of the oldest unacknowledged message
+    private long tail; // Sequence of the next message
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ackable = lock.newCondition();
+    private final Thread acker;
+    private volatile boolean running = true;
+
+    private final LongAdder ackedCount = new LongAdder();
+    private final LongAdder ackBatchCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+
+    /**
+     * Constructs the tracker and starts its acknowledging thread.
+     *
+     * @param initialCapacity Expected number of unacknowledged messages. Must be positive.
+     * @param maxBatch        Most acknowledgements sent per wake-up. Must be positive.
+     * @param acknowledger    Sends an acknowledgement to the broker. Must not be null.
+     */
+    public MqttAckTracker(int initialCapacity, int maxBatch, Acknowledger acknowledger) {
+        if (initialCapacity <= 0 || maxBatch <= 0) {
+            throw new IllegalArgumentException("Ack tracker capacity and batch size must be positive");
+        }
+        this.acknowledger = Objects.requireNonNull(acknowledger, "Acknowledger cannot be null");
+        this.maxBatch = maxBatch;
+        this.messageIds = new int[initialCapacity];
+        this.qos = new byte[initialCapacity];
+        this.completed = new boolean[initialCapacity];
+        this.acker = new Thread(this::runAcker, "mqtt-acker");
+        this.acker.setDaemon(true);
+        this.acker.start();
+    }
+
+    /**
+     * Registers an arrived message. Called from the MQTT callback thread, in arrival order.
+     *
+     * @param messageId The message's MQTT packet identifier.
+     * @param qos       The message's QoS.
+     * @return To be run once the message has been processed; runs at most once.
+     */
+    public Runnable arrived(int messageId, int qos) {
+        if (qos == 0) return NO_ACK;
+        long sequence;
+        lock.lock();
+        try {
+            if (tail - head == messageIds.length) grow();
+            sequence = tail++;
+            int slot = slot(sequence);
+            messageIds[slot] = messageId;
+            this.qos[slot] = (byte) qos;
+            completed[slot] = false;
+        } finally {
+            lock.unlock();
+        }
+        return () -> complete(sequence);
+    }
+
+    private void complete(long sequence) {
+        lock.lock();
+        try {
+            if (sequence < head) return; // Discarded by a reset
+            completed[slot(sequence)] = true;
+            if (sequence == head) ackable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence % messageIds.length);
+    }
+
+    private void grow() {
+        int capacity = messageIds.length;
+        int[] ids = new int[capacity * 2];
+        byte[] levels = new byte[capacity * 2];
+        boolean[] done = new boolean[capacity * 2];
+        for (long s = head; s < tail; s++) {
+            int from = (int) (s % capacity);
+            int to = (int) (s % (capacity * 2));
+            ids[to] = messageIds[from];
+            levels[to] = qos[from];
+            done[to] = completed[from];
+        }
+        messageIds = ids;
+        qos = levels;
+        completed = done;
+    }
+
+    /**
+     * Discards all outstanding messages without acknowledging them, e.g. after the connection was lost.
+     */
+    public void reset() {
+        lock.lock();
+        try {
+            head = tail;
+            Arrays.fill(completed, false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void runAcker() {
+        int[] ids = new int[maxBatch];
+        int[] levels = new int[maxBatch];
+        while (true) {
+            int count = 0;
+            lock.lock();
+            try {
+                while (head == tail || !completed[slot(head)]) {
+                    if (!running) return;
+                    ackable.await();
+                }
+                while (count < maxBatch && head < tail && completed[slot(head)]) {
+                    int slot = slot(head++);
+                    ids[count] = messageIds[slot];
+                    levels[count] = qos[slot];
+                    count++;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            // Outside the lock; a single thread keeps the acknowledgements in order
+            for (int i = 0; i < count; i++) {
+                try {
+                    acknowledger.acknowledge(ids[i], levels[i]);
+                    ackedCount.increment();
+                } catch (Exception e) {
+                    failedCount.increment();
+                    LOGGER.debug("Could not acknowledge MQTT message {}: {}", ids[i], e.getMessage());
+                }
+            }
+            ackBatchCount.increment();
+        }
+    }
+
+    /**
+     * @return Messages registered but not yet acknowledged.
+     */
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return (int) (tail - head);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Acknowledgements sent.
+     */
+    public long getAckedCount() {
+        return ackedCount.sum();
+    }
+
+    /**
+     * @return Wake-ups of the acknowledging thread that sent at least one acknowledgement.
+     */
+    public long getAckBatchCount() {
+        return ackBatchCount.sum();
+    }
+
+    /**
+     * @return Acknowledgements the client refused, e.g. because it was disconnected.
+     */
+    public long getFailedCount() {
+        return failedCount.sum();
+    }
+
+    /**
+     * Exports the messages in flight and the acknowledgement counters. The values are read on every scrape.
+     *
+     * @param registry Where to register the metrics.
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.registerGauge("batch_processor_mqtt_inflight", "MQTT messages received but not yet acknowledged",
+                this::getInFlight);
+        registry.registerCounter("batch_processor_mqtt_acks_total", "MQTT messages acknowledged after processing",
+                this::getAckedCount);
+        registry.registerCounter("batch_processor_mqtt_ack_batches_total", "Wake-ups of the MQTT acknowledging thread",
+                this::getAckBatchCount);
+    }
+
+    /**
+     * Acknowledges what has completed so far and stops the acknowledging thread.
+     */
+    @Override
+    public void close() {
+        if (!running) return;
+        lock.lock();
+        try {
+            running = false;
+            ackable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            acker.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        LOGGER.info("MQTT ack tracker closed. Acked={} in {} batches, in flight={}",
+                getAckedCount(), getAckBatchCount(), getInFlight());
+    }
+}
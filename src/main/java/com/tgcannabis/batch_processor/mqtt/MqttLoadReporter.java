@@ -0,0 +1,204 @@
+package com.tgcannabis.batch_processor.mqtt;
+
+import com.tgcannabis.batch_processor.metrics.MetricsRegistry;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Tells the instances sharing an MQTT subscription how the broker spreads the messages over them.
+ * <p>
+ * Every interval, each instance publishes the rate at which it received messages since its last report to
+ * {@code <topic>/<instanceId>}, as a plain decimal number, and listens on {@code <topic>/+} for the others. Its
+ * share of the load is its own rate over the sum of the latest rates of all instances heard from recently. Reports
+ * are QoS 0 and not retained: an instance that stops reporting drops out after {@value #EXPIRY_INTERVALS}
+ * intervals.
+ */
+public class MqttLoadReporter implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MqttLoadReporter.class);
+    private static final int EXPIRY_INTERVALS = 3;
+
+    /**
+     * Publishes one report, e.g. {@code (topic, payload) -> mqttClient.publish(topic, payload, 0, false)}.
+     */
+    @FunctionalInterface
+    public interface Publisher {
+        void publish(String topic, byte[] payload) throws MqttException;
+    }
+
+    private record Report(double rate, long receivedNanos) {
+    }
+
+    private final String instanceId;
+    private final String topicPrefix;
+    private final long intervalNanos;
+    private final LongSupplier receivedCount;
+    private final Publisher publisher;
+    private final LongSupplier clock;
+    private final Map<String, Report> reports = new ConcurrentHashMap<>();
+    private final Thread reporter;
+    private volatile boolean running = true;
+
+    private long lastCount;
+    private long lastReportNanos;
+    private volatile double rate;
+
+    /**
+     * Constructs the reporter and starts its reporting thread.
+     *
+     * @param instanceId    This instance's ID, the last level of its report topic. Must not contain '/', '+' or '#'.
+     * @param topic         Topic under which instances report, e.g. {@code batch-processor/instances}.
+     * @param intervalMs    Time between reports. Must be positive.
+     * @param receivedCount Messages this instance has received so far.
+     * @param publisher     Sends a report to the broker. Must not be null.
+     */
+    public MqttLoadReporter(String instanceId, String topic, long intervalMs, LongSupplier receivedCount,
+                            Publisher publisher) {
+        this(instanceId, topic, intervalMs, receivedCount, publisher, System::nanoTime);
+    }
+
+    MqttLoadReporter(String instanceId, String topic, long intervalMs, LongSupplier receivedCount,
+                     Publisher publisher, LongSupplier clock) {
+        Objects.requireNonNull(instanceId, "Instance ID cannot be null");
+        if (instanceId.isEmpty() || instanceId.contains("/") || instanceId.contains("+") || instanceId.contains("#")) {
+            throw new IllegalArgumentException("Instance ID '" + instanceId + "' is not a valid MQTT topic level");
+        }
+        if (intervalMs <= 0) throw new IllegalArgumentException("Load report interval must be positive");
+        this.instanceId = instanceId;
+        this.topicPrefix = Objects.requireNonNull(topic, "Load report topic cannot be null") + "/";
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+        this.receivedCount = Objects.requireNonNull(receivedCount, "Received count cannot be null");
+        this.publisher = Objects.requireNonNull(publisher, "Publisher cannot be null");
+        this.clock = clock;
+        this.lastCount = receivedCount.getAsLong();
+        this.lastReportNanos = clock.getAsLong();
+        this.reporter = new Thread(this::runReporter, "mqtt-load-reporter");
+        this.reporter.setDaemon(true);
+        this.reporter.start();
+    }
+
+    /**
+     * @return The filter matching every instance's reports, to subscribe to at QoS 0.
+     */
+    public String getSubscriptionFilter() {
+        return topicPrefix + "+";
+    }
+
+    /**
+     * Takes a message if it is a report from an instance.
+     *
+     * @param topic   The topic the message arrived at.
+     * @param payload The raw payload.
+     * @return Whether the message was a report, which must not be handed to the sensor data handler.
+     */
+    public boolean accept(String topic, byte[] payload) {
+        if (!topic.startsWith(topicPrefix)) return false;
+        String sender = topic.substring(topicPrefix.length());
+        if (sender.isEmpty() || sender.indexOf('/') >= 0) return false;
+        try {
+            double senderRate = Double.parseDouble(new String(payload, StandardCharsets.US_ASCII).trim());
+            if (Double.isFinite(senderRate) && senderRate >= 0 && !sender.equals(instanceId)) {
+                reports.put(sender, new Report(senderRate, clock.getAsLong()));
+            }
+        } catch (NumberFormatException e) {
+            LOGGER.debug("Ignoring malformed load report from {}", sender);
+        }
+        return true;
+    }
+
+    private void runReporter() {
+        while (running) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(intervalNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (running) report();
+        }
+    }
+
+    /**
+     * Measures this instance's rate since the previous report and publishes it.
+     */
+    void report() {
+        long now = clock.getAsLong();
+        long count = receivedCount.getAsLong();
+        synchronized (this) {
+            long elapsed = now - lastReportNanos;
+            if (elapsed > 0) {
+                rate = (count - lastCount) * 1e9 / elapsed;
+            }
+            lastCount = count;
+            lastReportNanos = now;
+        }
+        try {
+            publisher.publish(topicPrefix + instanceId, Double.toString(rate).getBytes(StandardCharsets.US_ASCII));
+        } catch (MqttException e) {
+            LOGGER.debug("Could not publish load report: {}", e.getMessage()); // The next interval tries again
+        }
+    }
+
+    private double othersRate() {
+        long oldest = clock.getAsLong() - EXPIRY_INTERVALS * intervalNanos;
+        reports.values().removeIf(report -> report.receivedNanos() - oldest < 0);
+        double sum = 0;
+        for (Report report : reports.values()) {
+            sum += report.rate();
+        }
+        return sum;
+    }
+
+    /**
+     * @return Messages per second this instance received over the last interval.
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * @return Instances, this one included, that reported within the last {@value #EXPIRY_INTERVALS} intervals.
+     */
+    public int getInstanceCount() {
+        othersRate();
+        return reports.size() + 1;
+    }
+
+    /**
+     * Exports this instance's share of the group's messages. The values are read on every scrape.
+     *
+     * @param registry Where to register the metrics.
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.registerGauge("batch_processor_mqtt_load_share",
+                "Fraction of the shared subscription's messages received by this instance", this::getShare);
+        registry.registerGauge("batch_processor_mqtt_instances", "Instances reporting in the shared subscription group",
+                this::getInstanceCount);
+        registry.registerGauge("batch_processor_mqtt_receive_rate",
+                "Messages per second received by this instance over the last report interval", this::getRate);
+    }
+
+    /**
+     * @return This instance's fraction of the messages received by all instances, from 0 to 1. Split evenly while
+     * no instance received anything.
+     */
+    public double getShare() {
+        double others = othersRate();
+        double total = rate + others;
+        return total > 0 ? rate / total : 1.0 / (reports.size() + 1);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        reporter.interrupt();
+    }
+}
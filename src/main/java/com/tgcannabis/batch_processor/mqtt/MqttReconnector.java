@@ -0,0 +1,208 @@
+package com.tgcannabis.batch_processor.mqtt;
+
+import com.tgcannabis.batch_processor.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Reconnects to the MQTT broker from a background thread after the connection is lost.
+ * <p>
+ * Attempts are spaced with exponential backoff, doubling from the initial delay up to the maximum, and every delay
+ * is jittered to between half and all of the current backoff. When a broker restarts, the instances connected to
+ * it lose their connections at the same moment; the jitter spreads their reconnects and resubscriptions out
+ * instead of having them arrive in lockstep on every attempt. Paho's own automatic reconnect is left off, as it
+ * does not jitter its delays.
+ * <p>
+ * Every loss is counted, also while already reconnecting, so a connection lost again before an attempt that
+ * opened it is recorded as successful is not mistaken for a live one: the reconnector keeps trying.
+ */
+public class MqttReconnector implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MqttReconnector.class);
+
+    /**
+     * Opens a new connection, e.g. {@code () -> mqttClient.connect(options)}.
+     */
+    @FunctionalInterface
+    public interface Connector {
+        void connect() throws Exception;
+    }
+
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+    private final Connector connector;
+    private final DoubleSupplier random;
+    private final Thread reconnector;
+    private volatile boolean running = true;
+
+    private boolean disconnected; // Guarded by this
+    private long lossCount; // Guarded by this
+    private long backoffNanos;
+    private volatile long lostAtNanos;
+    private volatile long lastOutageNanos;
+    private final LongAdder attemptCount = new LongAdder();
+    private final LongAdder reconnectCount = new LongAdder();
+
+    /**
+     * Constructs the reconnector and starts its thread, which waits until the connection is lost.
+     *
+     * @param initialBackoffMs Upper bound of the delay before the first attempt. Must be positive.
+     * @param maxBackoffMs     Upper bound of the doubling delay. Must not be less than the initial one.
+     * @param connector        Opens a new connection, throwing if it fails. Must not be null.
+     */
+    public MqttReconnector(long initialBackoffMs, long maxBackoffMs, Connector connector) {
+        this(initialBackoffMs, maxBackoffMs, connector, () -> ThreadLocalRandom.current().nextDouble(), true);
+    }
+
+    MqttReconnector(long initialBackoffMs, long maxBackoffMs, Connector connector, DoubleSupplier random,
+                    boolean startThread) {
+        if (initialBackoffMs <= 0 || maxBackoffMs < initialBackoffMs) {
+            throw new IllegalArgumentException("Invalid MQTT reconnect backoff " + initialBackoffMs + ".." + maxBackoffMs + " ms");
+        }
+        this.initialBackoffNanos = TimeUnit.MILLISECONDS.toNanos(initialBackoffMs);
+        this.maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(maxBackoffMs);
+        this.connector = Objects.requireNonNull(connector, "Connector cannot be null");
+        this.random = random;
+        if (startThread) {
+            this.reconnector = new Thread(this::runReconnector, "mqtt-reconnect");
+            this.reconnector.setDaemon(true);
+            this.reconnector.start();
+        } else {
+            this.reconnector = null;
+        }
+    }
+
+    /**
+     * Starts reconnecting, unless already doing so. A loss during a reconnect attempt makes that attempt count as
+     * failed.
+     */
+    public synchronized void connectionLost() {
+        if (!running) return;
+        lossCount++;
+        if (disconnected) return;
+        disconnected = true;
+        backoffNanos = initialBackoffNanos;
+        lostAtNanos = System.nanoTime();
+        notifyAll();
+    }
+
+    /**
+     * @return The next delay: between half and all of the current backoff, which then doubles.
+     */
+    synchronized long nextDelayNanos() {
+        long backoff = backoffNanos;
+        backoffNanos = Math.min(backoffNanos * 2, maxBackoffNanos);
+        return backoff / 2 + (long) (random.getAsDouble() * (backoff - backoff / 2));
+    }
+
+    private void runReconnector() {
+        while (running) {
+            try {
+                synchronized (this) {
+                    while (running && !disconnected) {
+                        wait();
+                    }
+                }
+                if (!running) return;
+
+                long delayNanos = nextDelayNanos();
+                LOGGER.info("Reconnecting to the MQTT broker in {} ms", TimeUnit.NANOSECONDS.toMillis(delayNanos));
+                TimeUnit.NANOSECONDS.sleep(delayNanos);
+                if (!running) return;
+
+                long losses;
+                synchronized (this) {
+                    losses = lossCount;
+                }
+                attemptCount.increment();
+                try {
+                    connector.connect();
+                } catch (Exception e) {
+                    LOGGER.warn("MQTT reconnect attempt failed: {}", e.getMessage());
+                    continue;
+                }
+                synchronized (this) {
+                    if (lossCount != losses) {
+                        // Lost again before we got here; connectionLost() returned early as we were still disconnected
+                        LOGGER.warn("MQTT connection lost again right after reconnecting");
+                        continue;
+                    }
+                    disconnected = false;
+                }
+                lastOutageNanos = System.nanoTime() - lostAtNanos;
+                reconnectCount.increment();
+                LOGGER.info("Reconnected to the MQTT broker after {} ms", TimeUnit.NANOSECONDS.toMillis(lastOutageNanos));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} from the loss of the connection until a reconnect attempt succeeds.
+     */
+    public synchronized boolean isReconnecting() {
+        return disconnected;
+    }
+
+    /**
+     * @return Reconnect attempts made, successful or not.
+     */
+    public long getAttemptCount() {
+        return attemptCount.sum();
+    }
+
+    /**
+     * @return Successful reconnections.
+     */
+    public long getReconnectCount() {
+        return reconnectCount.sum();
+    }
+
+    /**
+     * @return Time from the loss of the connection to the last successful reconnection, in nanoseconds.
+     */
+    public long getLastOutageNanos() {
+        return lastOutageNanos;
+    }
+
+    /**
+     * Exports the reconnect counters and the duration of the last outage. The values are read on every scrape.
+     *
+     * @param registry Where to register the metrics.
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.registerCounter("batch_processor_mqtt_reconnects_total", "Successful reconnections to the MQTT broker",
+                this::getReconnectCount);
+        registry.registerCounter("batch_processor_mqtt_reconnect_attempts_total",
+                "Attempts to reconnect to the MQTT broker", this::getAttemptCount);
+        registry.registerGauge("batch_processor_mqtt_last_outage_seconds",
+                "Time from losing the MQTT connection to the last reconnection",
+                () -> getLastOutageNanos() / 1e9);
+    }
+
+    /**
+     * Stops the reconnect thread, waiting for an attempt in progress to finish.
+     */
+    @Override
+    public void close() {
+        running = false;
+        synchronized (this) {
+            notifyAll();
+        }
+        if (reconnector == null) return;
+        reconnector.interrupt();
+        try {
+            reconnector.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -2,21 +2,65 @@ package com.tgcannabis.batch_processor.mqtt;
 
 
 import com.tgcannabis.batch_processor.config.BatchProcessorConfig;
+import com.tgcannabis.batch_processor.metrics.Counter;
+import com.tgcannabis.batch_processor.metrics.MetricsRegistry;
 import lombok.Setter;
 import org.eclipse.paho.client.mqttv3.*;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiConsumer;
+import java.util.function.DoubleSupplier;
 
 /**
  * Handles connection, subscription, and message reception from the MQTT broker.
+ * <p>
+ * With a positive {@code MQTT_MAX_INFLIGHT}, QoS 1 messages are acknowledged only once the handler has
+ * processed them (see {@link MqttAckTracker}), so the broker keeps the rest. And when the
+ * {@link #setBacklog backlog} of the internal buffers passes the high watermark, the callback thread pauses until
+ * it falls below the low watermark. Paho then stops reading from the socket and the broker holds further messages,
+ * instead of the service accepting more than its sinks can take. A pause is capped, because the client cannot
+ * answer keep-alives while it is not reading.
+ * <p>
+ * With {@code MQTT_SHARED_GROUP} set, the topic filter is subscribed as the MQTT 5 / broker-extension shared
+ * subscription {@code $share/<group>/<filter>}, so the broker spreads the messages over every instance in the
+ * group instead of sending each of them to all. Instances then exchange their receive rates through an
+ * {@link MqttLoadReporter}, so each knows its share of the load.
+ * <p>
+ * A lost connection is restored by an {@link MqttReconnector} with jittered exponential backoff. With
+ * {@code MQTT_PERSISTENCE_DIR} set, the session is persistent and the client keeps its state in that directory, so
+ * the broker queues QoS 1 messages while the service is away and delivers them once it is back. Until that backlog
+ * is worked off, i.e. until a message finds the buffers below the low watermark and the in-flight window at most
+ * half full, the service is catching up: the in-flight window may differ then ({@code MQTT_CATCHUP_MAX_INFLIGHT}),
+ * and the time it takes is measured.
  */
 public class MqttService implements AutoCloseable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MqttService.class);
+    private static final Counter RECEIVED = MetricsRegistry.getDefault()
+            .counter("batch_processor_mqtt_messages_received_total", "MQTT messages received");
+    private static final long PAUSE_POLL_MS = 5;
+    private static final String SHARED_PREFIX = "$share/";
+    private static final Runnable NO_ACK = () -> {
+    };
+
+    /**
+     * Handler told when it is done with a message, so the message can be acknowledged.
+     */
+    @FunctionalInterface
+    public interface AcknowledgingHandler {
+        /**
+         * @param topic       The topic the message arrived at.
+         * @param payload     The raw payload.
+         * @param onProcessed To be run once the message has been processed, possibly on another thread.
+         */
+        void accept(String topic, byte[] payload, Runnable onProcessed);
+    }
 
     private final BatchProcessorConfig config;
     private MqttClient mqttClient;
@@ -24,10 +68,52 @@ public class MqttService implements AutoCloseable {
      * -- SETTER --
      * Sets the handler to be called when an MQTT message arrives.
      *
-     * @param messageHandler A BiConsumer accepting Topic (String) and Payload (String).
+     * The handler runs on the Paho callback thread, so it should only hand the message off.
+     *
+     * @param messageHandler A BiConsumer accepting Topic (String) and raw Payload (byte[]).
      */
     @Setter
-    private BiConsumer<String, String> messageHandler; // Functional interface for message handling
+    private BiConsumer<String, byte[]> messageHandler; // Functional interface for message handling
+    /**
+     * -- SETTER --
+     * Sets a handler that signals when it is done with each message, e.g. after handing it to another thread.
+     * Takes precedence over the message handler.
+     *
+     * @param acknowledgingHandler The handler.
+     */
+    @Setter
+    private AcknowledgingHandler acknowledgingHandler;
+    /**
+     * -- SETTER --
+     * Sets the fill level of the service's internal buffers, from 0 (empty) to 1 (full), checked before
+     * every message.
+     *
+     * @param backlog The fill level of the fullest buffer.
+     */
+    @Setter
+    private DoubleSupplier backlog;
+
+    private final int maxInflight;
+    private final double highWatermark;
+    private final double lowWatermark;
+    private final long maxPauseNanos;
+    private final MqttAckTracker ackTracker;
+    private final LongAdder receivedCount = new LongAdder();
+    private final MqttLoadReporter loadReporter;
+    private final MqttReconnector reconnector;
+    private final boolean persistentSession;
+    private final int catchUpMaxInflight;
+    private volatile MqttConnectOptions connectOptions;
+    private volatile long catchUpStartedNanos; // 0 unless catching up after a reconnection
+    private long catchUpStartCount;
+    private volatile long lastCatchUpNanos;
+    private volatile long lastCatchUpMessages;
+    private final LongAdder catchUpCount = new LongAdder();
+    private volatile boolean closing;
+    private volatile boolean intakeStopped;
+    private volatile boolean paused;
+    private final LongAdder pauseCount = new LongAdder();
+    private final LongAdder pausedNanos = new LongAdder();
 
     /**
      * Constructs the MQTT Service.
@@ -35,13 +121,46 @@ public class MqttService implements AutoCloseable {
      * @param config The application configuration. Must not be null.
      */
     public MqttService(BatchProcessorConfig config) throws MqttException {
-        this.config = Objects.requireNonNull(config, "Configuration cannot be null");
-        mqttClient = new MqttClient(config.getMqttBroker(), config.getMqttClientId(), new MemoryPersistence());
+        this(config, new MqttClient(Objects.requireNonNull(config, "Configuration cannot be null").getMqttBroker(),
+                config.getMqttClientId(), persistence(config.getMqttPersistenceDir())));
+    }
+
+    /**
+     * @param directory The directory to keep client state in; {@code null} or blank keeps it in memory.
+     * @return The client persistence.
+     */
+    private static MqttClientPersistence persistence(String directory) {
+        return directory == null || directory.isBlank() ? new MemoryPersistence() : new MqttDefaultFilePersistence(directory);
     }
 
     public MqttService(BatchProcessorConfig config, MqttClient mqttClient) {
         this.config = Objects.requireNonNull(config, "Configuration cannot be null");
         this.mqttClient = mqttClient;
+        this.maxInflight = config.getMqttMaxInflight();
+        this.highWatermark = config.getMqttPauseHighWatermarkPercent() / 100.0;
+        this.lowWatermark = Math.min(config.getMqttResumeLowWatermarkPercent() / 100.0, highWatermark);
+        this.maxPauseNanos = TimeUnit.MILLISECONDS.toNanos(config.getMqttMaxPauseMs());
+        if (maxInflight > 0) {
+            // Acknowledge only what the handler has processed, so the broker keeps the rest
+            mqttClient.setManualAcks(true);
+            this.ackTracker = new MqttAckTracker(maxInflight, maxInflight, mqttClient::messageArrivedComplete);
+        } else {
+            this.ackTracker = null;
+        }
+        String group = config.getMqttSharedGroup();
+        if (group != null && !group.isBlank() && config.getMqttLoadReportIntervalMs() > 0) {
+            this.loadReporter = new MqttLoadReporter(config.getInstanceId(), config.getMqttLoadReportTopic(),
+                    config.getMqttLoadReportIntervalMs(), receivedCount::sum,
+                    (topic, payload) -> mqttClient.publish(topic, payload, 0, false));
+        } else {
+            this.loadReporter = null;
+        }
+        String persistenceDir = config.getMqttPersistenceDir();
+        this.persistentSession = persistenceDir != null && !persistenceDir.isBlank();
+        this.catchUpMaxInflight = config.getMqttCatchUpMaxInflight();
+        int initialBackoffMs = config.getMqttReconnectInitialBackoffMs() > 0 ? config.getMqttReconnectInitialBackoffMs() : 1000;
+        this.reconnector = new MqttReconnector(initialBackoffMs,
+                Math.max(config.getMqttReconnectMaxBackoffMs(), initialBackoffMs), this::reconnect);
     }
 
     /**
@@ -50,15 +169,15 @@ public class MqttService implements AutoCloseable {
      * @throws MqttException if connection fails.
      */
     public void connect() throws MqttException {
-        Objects.requireNonNull(messageHandler, "Message handler must be set before connecting.");
-        
-        MqttConnectOptions connOpts = new MqttConnectOptions();
-        connOpts.setCleanSession(true);
+        if (acknowledgingHandler == null) {
+            Objects.requireNonNull(messageHandler, "Message handler must be set before connecting.");
+        }
 
-        /*connOpts.setAutomaticReconnect(true);
-        connOpts.setConnectionTimeout(10); // seconds
-        connOpts.setKeepAliveInterval(20); // seconds
-        */
+        MqttConnectOptions connOpts = new MqttConnectOptions();
+        // A persistent session has the broker queue QoS 1 messages while disconnected; it needs a stable client ID
+        connOpts.setCleanSession(!persistentSession);
+        connOpts.setAutomaticReconnect(false); // The reconnector jitters its attempts, Paho does not
+        connectOptions = connOpts;
 
         mqttClient.setCallback(new MqttCallbackExtended() {
             @Override
@@ -70,15 +189,32 @@ public class MqttService implements AutoCloseable {
             @Override
             public void connectionLost(Throwable cause) {
                 LOGGER.warn("MQTT Connection lost!", cause);
-                // Automatic reconnect should handle this if enabled.
+                if (ackTracker != null) {
+                    ackTracker.reset(); // Message IDs are only valid on the lost connection
+                }
+                if (!closing) {
+                    reconnector.connectionLost();
+                }
             }
 
             @Override
             public void messageArrived(String topic, MqttMessage message) {
+                if (loadReporter != null && loadReporter.accept(topic, message.getPayload())) {
+                    return; // Another instance's report, QoS 0 and not sensor data
+                }
+                pauseWhileBacklogged();
+                Runnable onProcessed = ackTracker != null ? ackTracker.arrived(message.getId(), message.getQos()) : NO_ACK;
+                boolean handedOff = false;
                 try {
-                    String payload = new String(message.getPayload());
-                    LOGGER.debug("MQTT Message received - Topic: [{}], Payload: [{}]", topic, payload);
-                    if (messageHandler != null) {
+                    // Hand the raw bytes over untouched; decoding happens off the callback thread
+                    byte[] payload = message.getPayload();
+                    RECEIVED.increment();
+                    receivedCount.increment();
+                    LOGGER.debug("MQTT Message received - Topic: [{}], Payload size: [{}] bytes", topic, payload.length);
+                    if (acknowledgingHandler != null) {
+                        acknowledgingHandler.accept(topic, payload, onProcessed);
+                        handedOff = true;
+                    } else if (messageHandler != null) {
                         messageHandler.accept(topic, payload);
                     } else {
                         LOGGER.warn("No message handler set for received message on topic {}", topic);
@@ -86,6 +222,11 @@ public class MqttService implements AutoCloseable {
                 } catch (Exception e) {
                     // Catch exceptions from the handler to prevent Paho callback thread death
                     LOGGER.error("Error processing message from topic {}: {}", topic, e.getMessage(), e);
+                } finally {
+                    if (!handedOff) onProcessed.run(); // A failing message would only be redelivered to fail again
+                }
+                if (catchUpStartedNanos != 0) {
+                    checkCaughtUp();
                 }
             }
 
@@ -105,17 +246,197 @@ public class MqttService implements AutoCloseable {
     }
 
     /**
-     * Subscribes to the topic defined in the configuration.
+     * Opens a new connection after the previous one was lost, starting to measure the catch-up.
+     *
+     * @throws MqttException if the connection fails.
+     */
+    private void reconnect() throws MqttException {
+        MqttClient client = mqttClient;
+        if (client == null || closing) return;
+        catchUpStartCount = receivedCount.sum();
+        catchUpStartedNanos = System.nanoTime(); // Before connecting: queued messages arrive right away
+        try {
+            client.connect(connectOptions); // connectComplete() resubscribes
+        } catch (MqttException e) {
+            catchUpStartedNanos = 0;
+            throw e;
+        }
+    }
+
+    /**
+     * Ends the catch-up once a message finds the buffers below the low watermark and the in-flight window at most
+     * half full. Runs on the callback thread.
+     */
+    private void checkCaughtUp() {
+        long started = catchUpStartedNanos;
+        if (started == 0 || isBacklogged(lowWatermark, inflightLimit() / 2)) return;
+        catchUpStartedNanos = 0;
+        lastCatchUpNanos = System.nanoTime() - started;
+        lastCatchUpMessages = receivedCount.sum() - catchUpStartCount;
+        catchUpCount.increment();
+        LOGGER.info("Caught up {} MQTT messages in {} ms after reconnecting", lastCatchUpMessages,
+                TimeUnit.NANOSECONDS.toMillis(lastCatchUpNanos));
+    }
+
+    /**
+     * @return Unacknowledged messages at which intake pauses: the catch-up window while catching up, if one is set.
+     */
+    private int inflightLimit() {
+        return catchUpStartedNanos != 0 && catchUpMaxInflight > 0 ? catchUpMaxInflight : maxInflight;
+    }
+
+    /**
+     * Blocks the callback thread while the internal buffers are above the high watermark or too many messages
+     * are unacknowledged, until they are back below the low watermark or the maximum pause has passed.
+     */
+    private void pauseWhileBacklogged() {
+        int inflightLimit = inflightLimit();
+        if (!isBacklogged(highWatermark, inflightLimit)) return;
+        long started = System.nanoTime();
+        paused = true;
+        pauseCount.increment();
+        LOGGER.debug("Pausing MQTT intake, internal buffers are {}% full", Math.round(currentBacklog() * 100));
+        try {
+            while (!closing && System.nanoTime() - started < maxPauseNanos && isBacklogged(lowWatermark, inflightLimit)) {
+                TimeUnit.MILLISECONDS.sleep(PAUSE_POLL_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            paused = false;
+            pausedNanos.add(System.nanoTime() - started);
+        }
+        if (System.nanoTime() - started >= maxPauseNanos) {
+            LOGGER.warn("Resuming MQTT intake after the maximum pause of {} ms although the internal buffers are {}% full",
+                    TimeUnit.NANOSECONDS.toMillis(maxPauseNanos), Math.round(currentBacklog() * 100));
+        }
+    }
+
+    private boolean isBacklogged(double watermark, int inflightLimit) {
+        if (watermark > 0 && currentBacklog() > watermark) return true;
+        return ackTracker != null && inflightLimit > 0 && ackTracker.getInFlight() >= inflightLimit;
+    }
+
+    private double currentBacklog() {
+        return backlog != null ? backlog.getAsDouble() : 0.0;
+    }
+
+    /**
+     * @return {@code true} while intake is paused for backpressure.
+     */
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * @return Number of times intake was paused for backpressure.
+     */
+    public long getPauseCount() {
+        return pauseCount.sum();
+    }
+
+    /**
+     * @return Total time intake was paused for backpressure, in nanoseconds.
+     */
+    public long getPausedNanos() {
+        return pausedNanos.sum();
+    }
+
+    /**
+     * @return The tracker of unacknowledged messages, or {@code null} if messages are acknowledged on arrival.
+     */
+    public MqttAckTracker getAckTracker() {
+        return ackTracker;
+    }
+
+    /**
+     * @return {@code true} while connected to the broker.
+     */
+    public boolean isConnected() {
+        MqttClient client = mqttClient;
+        return client != null && client.isConnected();
+    }
+
+    /**
+     * @return The reconnector restoring lost connections.
+     */
+    public MqttReconnector getReconnector() {
+        return reconnector;
+    }
+
+    /**
+     * @return {@code true} from a reconnection until the messages queued meanwhile have been worked off.
+     */
+    public boolean isCatchingUp() {
+        return catchUpStartedNanos != 0;
+    }
+
+    /**
+     * @return Catch-ups completed after reconnections.
+     */
+    public long getCatchUpCount() {
+        return catchUpCount.sum();
+    }
+
+    /**
+     * @return Duration of the last completed catch-up, from reconnecting until the backlog was worked off, in
+     * nanoseconds.
+     */
+    public long getLastCatchUpNanos() {
+        return lastCatchUpNanos;
+    }
+
+    /**
+     * @return Messages received during the last completed catch-up.
+     */
+    public long getLastCatchUpMessages() {
+        return lastCatchUpMessages;
+    }
+
+    /**
+     * @return Messages this instance has received, reports from other instances excluded.
+     */
+    public long getReceivedCount() {
+        return receivedCount.sum();
+    }
+
+    /**
+     * @return The exchange of receive rates with the other instances, or {@code null} if no shared group is
+     * configured.
+     */
+    public MqttLoadReporter getLoadReporter() {
+        return loadReporter;
+    }
+
+    /**
+     * Turns a topic filter into a shared subscription.
+     *
+     * @param topicFilter The filter, e.g. {@code sensors/#}.
+     * @param group       The shared subscription group; {@code null} or blank leaves the filter as is.
+     * @return {@code $share/<group>/<topicFilter>}, or the filter unchanged if it already is a shared subscription.
+     */
+    static String sharedFilter(String topicFilter, String group) {
+        if (group == null || group.isBlank() || topicFilter.startsWith(SHARED_PREFIX)) return topicFilter;
+        return SHARED_PREFIX + group.trim() + "/" + topicFilter;
+    }
+
+    /**
+     * Subscribes to the topic defined in the configuration, shared with the other instances of the group if one is
+     * configured, and to the other instances' load reports.
      * Should be called after a successful connection or reconnection.
      */
     private void subscribe() {
+        if (intakeStopped) return;
         if (mqttClient != null && mqttClient.isConnected()) {
+            String topicFilter = sharedFilter(config.getMqttTopicFilter(), config.getMqttSharedGroup());
             try {
-                String topicFilter = config.getMqttTopicFilter();
                 LOGGER.info("Subscribing to MQTT topic filter: {}", topicFilter);
                 mqttClient.subscribe(topicFilter, 1); // QoS 1: At least once
+                if (loadReporter != null) {
+                    mqttClient.subscribe(loadReporter.getSubscriptionFilter(), 0);
+                }
             } catch (MqttException e) {
-                LOGGER.error("Error subscribing to MQTT topic filter '{}': {}", config.getMqttTopicFilter(), e.getMessage(), e);
+                LOGGER.error("Error subscribing to MQTT topic filter '{}': {}", topicFilter, e.getMessage(), e);
                 // Consider retry logic or application shutdown depending on severity
             }
         } else {
@@ -124,10 +445,77 @@ public class MqttService implements AutoCloseable {
     }
 
     /**
-     * Disconnects the MQTT client gracefully.
+     * Stops receiving new messages ahead of {@link #close()}: stops reconnecting and unsubscribes, but stays
+     * connected so messages already received can still be acknowledged once they have been processed.
+     */
+    public void stopIntake() {
+        intakeStopped = true;
+        reconnector.close();
+        MqttClient client = mqttClient;
+        if (client != null && client.isConnected()) {
+            String topicFilter = sharedFilter(config.getMqttTopicFilter(), config.getMqttSharedGroup());
+            try {
+                LOGGER.info("Unsubscribing from MQTT topic filter: {}", topicFilter);
+                client.unsubscribe(topicFilter);
+                if (loadReporter != null) {
+                    client.unsubscribe(loadReporter.getSubscriptionFilter());
+                }
+            } catch (MqttException e) {
+                LOGGER.error("Error unsubscribing from MQTT topic filter '{}': {}", topicFilter, e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Exports the connection, backpressure and catch-up state, along with the metrics of the reconnector,
+     * acknowledgement tracker and load reporter in use. The values are read on every scrape.
+     *
+     * @param registry Where to register the metrics.
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.registerGauge("batch_processor_mqtt_paused", "1 while MQTT intake is paused for backpressure",
+                () -> isPaused() ? 1 : 0);
+        registry.registerCounter("batch_processor_mqtt_pauses_total", "Times MQTT intake was paused for backpressure",
+                this::getPauseCount);
+        registry.registerCounter("batch_processor_mqtt_paused_seconds_total", "Total time MQTT intake was paused",
+                () -> getPausedNanos() / 1e9);
+        registry.registerGauge("batch_processor_mqtt_connected", "1 while connected to the MQTT broker",
+                () -> isConnected() ? 1 : 0);
+        if (reconnector != null) {
+            reconnector.registerMetrics(registry);
+        }
+        registry.registerGauge("batch_processor_mqtt_catching_up",
+                "1 while working off the messages queued during a disconnection", () -> isCatchingUp() ? 1 : 0);
+        registry.registerCounter("batch_processor_mqtt_catch_ups_total", "Catch-ups completed after reconnections",
+                this::getCatchUpCount);
+        registry.registerGauge("batch_processor_mqtt_last_catch_up_seconds",
+                "Time from the last reconnection until the queued messages were worked off",
+                () -> getLastCatchUpNanos() / 1e9);
+        registry.registerGauge("batch_processor_mqtt_last_catch_up_messages", "Messages received during the last catch-up",
+                this::getLastCatchUpMessages);
+        registry.registerCounter("batch_processor_mqtt_instance_messages_total",
+                "MQTT messages received by this instance", this::getReceivedCount);
+        if (loadReporter != null) {
+            loadReporter.registerMetrics(registry);
+        }
+        if (ackTracker != null) {
+            ackTracker.registerMetrics(registry);
+        }
+    }
+
+    /**
+     * Acknowledges the messages processed so far and disconnects the MQTT client gracefully.
      */
     @Override
     public void close() {
+        closing = true; // Releases a paused callback thread, which disconnect() waits for
+        reconnector.close();
+        if (loadReporter != null) {
+            loadReporter.close();
+        }
+        if (ackTracker != null) {
+            ackTracker.close(); // Acknowledge what has been processed while still connected
+        }
         if (mqttClient != null && mqttClient.isConnected()) {
             try {
                 LOGGER.info("Disconnecting MQTT client...");
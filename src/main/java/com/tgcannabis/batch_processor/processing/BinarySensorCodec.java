@@ -0,0 +1,417 @@
+package com.tgcannabis.batch_processor.processing;
+
+import com.tgcannabis.batch_processor.config.BatchProcessorConfig;
+import com.tgcannabis.batch_processor.model.SensorData;
+import com.tgcannabis.batch_processor.model.TagDictionary;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Compact binary encoding of {@link SensorData} for constrained devices, accepted alongside JSON.
+ * <p>
+ * A record is a fixed-layout header followed by the variable-length identifiers:
+ * <pre>
+ *   magic      1 byte   0xB5, never the first byte of a JSON payload
+ *   version    1 byte   {@value #VERSION}
+ *   flags      1 byte   see the FLAG_* constants; unknown bits are rejected
+ *   timestamp  8 bytes  epoch milliseconds, big-endian
+ *   value      4 or 8   IEEE 754 float or double, big-endian; must be finite
+ *   sensorId            unsigned varint index into the sensor dictionary, or varint length + UTF-8 (length 0
+ *                       when the ID is left to the topic)
+ *   sensorType          varint length + UTF-8, if flagged
+ *   location            varint length + UTF-8, if flagged
+ * </pre>
+ * A typical reading with a dictionary-coded sensor ID takes 16 bytes instead of about 110 bytes of JSON.
+ * Several records may be concatenated in one payload. The sensor dictionary is provisioned on the devices and
+ * configured here in the same order; a device not in it sends its ID inline.
+ * <p>
+ * A payload is binary if it starts with the magic byte. Topics ending with the configured suffix only carry
+ * binary payloads, so anything else published there is rejected instead of being tried as JSON.
+ */
+public final class BinarySensorCodec {
+
+    /** First byte of every record. */
+    public static final byte MAGIC = (byte) 0xB5;
+    /** Layout version written by {@link #encode}. */
+    public static final byte VERSION = 1;
+
+    /** The sensor ID is an index into the sensor dictionary. */
+    static final int FLAG_SENSOR_ID_INDEX = 0x01;
+    /** The value is a 4-byte float. */
+    static final int FLAG_FLOAT_VALUE = 0x02;
+    /** A sensor type follows the sensor ID. */
+    static final int FLAG_SENSOR_TYPE = 0x04;
+    /** A location follows the sensor type. */
+    static final int FLAG_LOCATION = 0x08;
+    private static final int KNOWN_FLAGS = FLAG_SENSOR_ID_INDEX | FLAG_FLOAT_VALUE | FLAG_SENSOR_TYPE | FLAG_LOCATION;
+
+    /** Longest identifier accepted, in bytes. */
+    static final int MAX_STRING_BYTES = 1024;
+
+    private static final int HEADER_BYTES = 3 + Long.BYTES;
+
+    private final String topicSuffix;
+    private final String[] dictionary;
+    private final int[] dictionaryHashes; // As SensorDataParser.sensorIdHash would hash each ID in JSON
+    private final Map<String, Integer> dictionaryIndex = new HashMap<>();
+
+    /**
+     * Constructs the codec from the application configuration.
+     *
+     * @param config The application configuration. Must not be null.
+     */
+    public BinarySensorCodec(BatchProcessorConfig config) {
+        this(Objects.requireNonNull(config, "Configuration cannot be null").getBinaryTopicSuffix(),
+                parseDictionary(config.getBinarySensorDictionary()));
+    }
+
+    /**
+     * Constructs the codec.
+     *
+     * @param topicSuffix Suffix of the topics carrying only binary payloads; {@code null} or blank relies on the
+     *                    magic byte alone.
+     * @param dictionary  Sensor IDs by dictionary index. Must not be null; may be empty.
+     */
+    public BinarySensorCodec(String topicSuffix, List<String> dictionary) {
+        this.topicSuffix = topicSuffix == null || topicSuffix.isBlank() ? null : topicSuffix.trim();
+        this.dictionary = dictionary.toArray(String[]::new);
+        this.dictionaryHashes = new int[this.dictionary.length];
+        for (int i = 0; i < this.dictionary.length; i++) {
+            if (dictionaryIndex.putIfAbsent(this.dictionary[i], i) != null) {
+                throw new IllegalArgumentException("Duplicate sensor ID in the binary dictionary: " + this.dictionary[i]);
+            }
+            byte[] utf8 = this.dictionary[i].getBytes(StandardCharsets.UTF_8);
+            dictionaryHashes[i] = hash(utf8, 0, utf8.length);
+        }
+    }
+
+    /**
+     * Parses a comma-separated sensor dictionary, e.g. {@code "sensor-1,sensor-2"}.
+     *
+     * @param spec The configured dictionary; {@code null} or blank means an empty one.
+     * @return The sensor IDs by dictionary index.
+     */
+    static List<String> parseDictionary(String spec) {
+        if (spec == null || spec.isBlank()) return List.of();
+        return Arrays.stream(spec.split(",")).map(String::trim).toList();
+    }
+
+    /**
+     * @param payload The raw payload. May be null.
+     * @return Whether the payload starts with the record magic byte.
+     */
+    public static boolean hasMagic(byte[] payload) {
+        return payload != null && payload.length > 0 && payload[0] == MAGIC;
+    }
+
+    /**
+     * Tells whether a message is to be decoded as binary records.
+     *
+     * @param topic   The MQTT topic the message arrived at. May be null.
+     * @param payload The raw payload. Must not be null.
+     * @return Whether the payload starts with the magic byte or the topic is a binary topic.
+     */
+    public boolean isBinary(String topic, byte[] payload) {
+        return hasMagic(payload) || (topicSuffix != null && topic != null && topic.endsWith(topicSuffix));
+    }
+
+    /**
+     * Decodes the record starting at {@code pos} into {@code target}, without intermediate objects. Dictionary-coded
+     * sensor IDs reuse the dictionary's strings, other identifiers come from the {@link TagDictionary}. Fields absent from the record are set to {@code null}.
+     *
+     * @param payload The raw payload. Must not be null.
+     * @param pos     Offset of the record's magic byte.
+     * @param target  The object to populate. Must not be null.
+     * @return Offset just past the record.
+     * @throws IllegalArgumentException if the record is truncated, of another version or otherwise invalid
+     */
+    public int decodeInto(byte[] payload, int pos, SensorData target) {
+        int end = payload.length;
+        if (end - pos < HEADER_BYTES) throw new IllegalArgumentException("Truncated binary sensor record");
+        if (payload[pos] != MAGIC) throw new IllegalArgumentException("Not a binary sensor record");
+        if (payload[pos + 1] != VERSION) {
+            throw new IllegalArgumentException("Unsupported binary sensor record version " + (payload[pos + 1] & 0xFF));
+        }
+        int flags = payload[pos + 2] & 0xFF;
+        if ((flags & ~KNOWN_FLAGS) != 0) {
+            throw new IllegalArgumentException("Unknown binary sensor record flags 0x" + Integer.toHexString(flags));
+        }
+        target.setTimestamp(readLong(payload, pos + 3));
+        pos += HEADER_BYTES;
+
+        double value;
+        if ((flags & FLAG_FLOAT_VALUE) != 0) {
+            if (end - pos < Float.BYTES) throw new IllegalArgumentException("Truncated binary sensor record");
+            value = Float.intBitsToFloat(readInt(payload, pos));
+            pos += Float.BYTES;
+        } else {
+            if (end - pos < Double.BYTES) throw new IllegalArgumentException("Truncated binary sensor record");
+            value = Double.longBitsToDouble(readLong(payload, pos));
+            pos += Double.BYTES;
+        }
+        if (!Double.isFinite(value)) throw new IllegalArgumentException("Sensor value must be finite");
+        target.setValue(value);
+
+        long varint = readVarint(payload, pos);
+        pos = varintEnd(varint);
+        int number = varintValue(varint);
+        if ((flags & FLAG_SENSOR_ID_INDEX) != 0) {
+            if (number >= dictionary.length) {
+                throw new IllegalArgumentException("Sensor dictionary index " + number + " out of range");
+            }
+            target.setSensorId(dictionary[number]);
+        } else {
+            target.setSensorId(number > 0 ? readString(payload, pos, number) : null);
+            pos += number;
+        }
+
+        target.setSensorType(null);
+        if ((flags & FLAG_SENSOR_TYPE) != 0) {
+            varint = readVarint(payload, pos);
+            pos = varintEnd(varint);
+            target.setSensorType(readString(payload, pos, varintValue(varint)));
+            pos += varintValue(varint);
+        }
+        target.setLocation(null);
+        if ((flags & FLAG_LOCATION) != 0) {
+            varint = readVarint(payload, pos);
+            pos = varintEnd(varint);
+            target.setLocation(readString(payload, pos, varintValue(varint)));
+            pos += varintValue(varint);
+        }
+        return pos;
+    }
+
+    /**
+     * Decodes a payload holding exactly one record.
+     *
+     * @param payload The raw payload. Must not be null.
+     * @return The decoded reading.
+     * @throws IllegalArgumentException if the payload is not exactly one valid record
+     */
+    public SensorData decode(byte[] payload) {
+        SensorData data = new SensorData();
+        if (decodeInto(payload, 0, data) != payload.length) {
+            throw new IllegalArgumentException("Trailing bytes after binary sensor record");
+        }
+        return data;
+    }
+
+    /**
+     * Encodes a reading, with its sensor ID as a dictionary index when it is in the dictionary and its value as a
+     * float when that is lossless. This is the reference for device implementations.
+     *
+     * @param data The reading. Its value must be finite; a null {@code sensorId} is left to the topic.
+     * @return The record.
+     */
+    public byte[] encode(SensorData data) {
+        if (!Double.isFinite(data.getValue())) throw new IllegalArgumentException("Sensor value must be finite");
+        Integer index = data.getSensorId() != null ? dictionaryIndex.get(data.getSensorId()) : null;
+        float narrowed = (float) data.getValue();
+        boolean floatValue = narrowed == data.getValue();
+        int flags = (index != null ? FLAG_SENSOR_ID_INDEX : 0) | (floatValue ? FLAG_FLOAT_VALUE : 0)
+                | (data.getSensorType() != null ? FLAG_SENSOR_TYPE : 0) | (data.getLocation() != null ? FLAG_LOCATION : 0);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32);
+        out.write(MAGIC);
+        out.write(VERSION);
+        out.write(flags);
+        writeLong(out, data.getTimestamp());
+        if (floatValue) {
+            int bits = Float.floatToRawIntBits(narrowed);
+            for (int shift = 24; shift >= 0; shift -= 8) out.write(bits >>> shift);
+        } else {
+            writeLong(out, Double.doubleToRawLongBits(data.getValue()));
+        }
+        if (index != null) {
+            writeVarint(out, index);
+        } else {
+            writeString(out, data.getSensorId() != null ? data.getSensorId() : "");
+        }
+        if (data.getSensorType() != null) writeString(out, data.getSensorType());
+        if (data.getLocation() != null) writeString(out, data.getLocation());
+        return out.toByteArray();
+    }
+
+    /**
+     * Hashes the sensor ID of the record at the start of a payload without decoding it, to route the message.
+     * Inline and dictionary-coded IDs alike hash as {@link SensorDataParser#sensorIdHash} hashes the same ID in
+     * JSON, so a sensor lands on the same lane whichever format it publishes in.
+     *
+     * @param payload  The raw payload. Must not be null.
+     * @param fallback Returned if the payload is not a record, carries no sensor ID or an unknown dictionary index.
+     * @return The hash, or {@code fallback}.
+     */
+    public int sensorIdHash(byte[] payload, int fallback) {
+        if (!hasMagic(payload) || payload.length < HEADER_BYTES + Float.BYTES || payload[1] != VERSION) return fallback;
+        int flags = payload[2] & 0xFF;
+        int pos = HEADER_BYTES + ((flags & FLAG_FLOAT_VALUE) != 0 ? Float.BYTES : Double.BYTES);
+        try {
+            long varint = readVarint(payload, pos);
+            int number = varintValue(varint);
+            if ((flags & FLAG_SENSOR_ID_INDEX) != 0) {
+                return number < dictionaryHashes.length ? dictionaryHashes[number] : fallback;
+            }
+            pos = varintEnd(varint);
+            if (number == 0 || payload.length - pos < number) return fallback; // No ID, or a truncated one
+            return hash(payload, pos, pos + number);
+        } catch (IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+
+    /**
+     * Tells whether a payload holds more than one record, without decoding it.
+     *
+     * @param payload The raw payload. Must not be null.
+     * @return {@code true} if a record follows the first one; {@code false} for one record or an invalid payload.
+     */
+    public static boolean isMultiRecord(byte[] payload) {
+        if (!hasMagic(payload)) return false;
+        try {
+            return recordEnd(payload, 0) < payload.length;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Skips the record starting at {@code pos}.
+     *
+     * @return Offset just past the record.
+     * @throws IllegalArgumentException if the record is truncated
+     */
+    private static int recordEnd(byte[] payload, int pos) {
+        if (payload.length - pos < HEADER_BYTES) throw new IllegalArgumentException("Truncated binary sensor record");
+        int flags = payload[pos + 2] & 0xFF;
+        pos += HEADER_BYTES + ((flags & FLAG_FLOAT_VALUE) != 0 ? Float.BYTES : Double.BYTES);
+        long varint = readVarint(payload, pos);
+        pos = varintEnd(varint) + ((flags & FLAG_SENSOR_ID_INDEX) != 0 ? 0 : varintValue(varint));
+        for (int flag : new int[]{FLAG_SENSOR_TYPE, FLAG_LOCATION}) {
+            if ((flags & flag) != 0) {
+                varint = readVarint(payload, pos);
+                pos = varintEnd(varint) + varintValue(varint);
+            }
+        }
+        if (pos > payload.length) throw new IllegalArgumentException("Truncated binary sensor record");
+        return pos;
+    }
+
+    private static int hash(byte[] bytes, int start, int end) {
+        int hash = 1;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        return hash;
+    }
+
+    /**
+     * Renders a reading as the JSON a device would have published, for sinks that expect JSON. Fields are written
+     * in the order Gson writes them, and absent identifiers are omitted as Gson does.
+     *
+     * @param data The reading. Its value must be finite.
+     * @return The UTF-8 JSON payload.
+     */
+    public static byte[] toJson(SensorData data) {
+        StringBuilder json = new StringBuilder(128).append('{');
+        appendField(json, "sensorType", data.getSensorType());
+        appendField(json, "location", data.getLocation());
+        appendField(json, "sensorId", data.getSensorId());
+        json.append("\"value\":").append(data.getValue())
+                .append(",\"timestamp\":").append(data.getTimestamp()).append('}');
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void appendField(StringBuilder json, String name, String value) {
+        if (value == null) return;
+        json.append('"').append(name).append("\":");
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\r' -> json.append("\\r");
+                case '\t' -> json.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+                }
+            }
+        }
+        json.append("\",");
+    }
+
+    private static long readLong(byte[] bytes, int pos) {
+        long value = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            value = (value << 8) | (bytes[pos + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static int readInt(byte[] bytes, int pos) {
+        return (bytes[pos] & 0xFF) << 24 | (bytes[pos + 1] & 0xFF) << 16 | (bytes[pos + 2] & 0xFF) << 8 | (bytes[pos + 3] & 0xFF);
+    }
+
+    /**
+     * Reads an unsigned varint of at most four bytes.
+     *
+     * @return The value in the low 32 bits and the offset past it in the high 32 bits.
+     */
+    private static long readVarint(byte[] bytes, int pos) {
+        int value = 0;
+        for (int shift = 0; shift < 28; shift += 7) {
+            if (pos >= bytes.length) throw new IllegalArgumentException("Truncated binary sensor record");
+            byte b = bytes[pos++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return (long) pos << 32 | value;
+        }
+        throw new IllegalArgumentException("Varint too long in binary sensor record");
+    }
+
+    private static int varintValue(long varint) {
+        return (int) varint;
+    }
+
+    private static int varintEnd(long varint) {
+        return (int) (varint >>> 32);
+    }
+
+    private static String readString(byte[] bytes, int pos, int length) {
+        if (length > MAX_STRING_BYTES) throw new IllegalArgumentException("Identifier too long in binary sensor record");
+        if (bytes.length - pos < length) throw new IllegalArgumentException("Truncated binary sensor record");
+        return TagDictionary.getDefault().intern(bytes, pos, pos + length, false).value();
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift));
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_BYTES) throw new IllegalArgumentException("Identifier too long: " + value);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,204 @@
+package com.tgcannabis.batch_processor.processing;
+
+import com.tgcannabis.batch_processor.config.BatchProcessorConfig;
+import com.tgcannabis.batch_processor.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Detects redelivered readings, keyed on sensor ID and timestamp.
+ * <p>
+ * MQTT QoS 1 is at-least-once, so a broker resends unacknowledged messages after a reconnect. For every sensor
+ * the filter remembers the timestamps of its last {@code historySize} readings in a ring; a reading whose
+ * timestamp is in the ring is a duplicate. A check is a hash lookup plus a scan of a fixed-size
+ * {@code long[]} segment, and allocates nothing.
+ * <p>
+ * Sensors are spread over lock-striped shards, each an open-addressing table of primitive arrays. Memory is
+ * bounded by {@code maxSensors}; a shard that overflows is reset.
+ */
+public class DuplicateFilter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DuplicateFilter.class);
+
+    private static final int SHARDS = 16; // Power of two
+    private static final int INITIAL_SHARD_CAPACITY = 64; // Power of two
+    private static final int DEFAULT_MAX_SENSORS = 65_536;
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    /**
+     * Open-addressing table from sensor ID to its timestamp ring. Sensor {@code i} owns
+     * {@code history[i * historySize .. (i + 1) * historySize)}; {@code next[i]} is the ring's write position.
+     */
+    private static final class Shard {
+        String[] sensorIds;
+        long[] history;
+        int[] next;
+        int size;
+    }
+
+    private final int historySize;
+    private final int maxSensorsPerShard;
+    private final Shard[] shards = new Shard[SHARDS];
+
+    private final LongAdder checkedCount = new LongAdder();
+    private final LongAdder duplicateCount = new LongAdder();
+
+    /**
+     * Constructs the filter from the application configuration.
+     *
+     * @param config The application configuration. Must not be null.
+     */
+    public DuplicateFilter(BatchProcessorConfig config) {
+        this(Objects.requireNonNull(config, "Configuration cannot be null").getDedupHistorySize(),
+                config.getDedupMaxSensors() > 0 ? config.getDedupMaxSensors() : DEFAULT_MAX_SENSORS);
+    }
+
+    /**
+     * Constructs the filter.
+     *
+     * @param historySize Timestamps remembered per sensor. Must be positive.
+     * @param maxSensors  Maximum number of sensors remembered. Must be positive.
+     */
+    public DuplicateFilter(int historySize, int maxSensors) {
+        if (historySize <= 0 || maxSensors <= 0) {
+            throw new IllegalArgumentException("History size and max sensors must be positive");
+        }
+        this.historySize = historySize;
+        this.maxSensorsPerShard = Math.max(1, maxSensors / SHARDS);
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+            allocate(shards[i], INITIAL_SHARD_CAPACITY);
+        }
+        LOGGER.info("Duplicate filter started: history={} readings per sensor, maxSensors={}", historySize, maxSensors);
+    }
+
+    /**
+     * Records a reading and reports whether it was seen before.
+     *
+     * @param sensorId  The sensor ID. Must not be null.
+     * @param timestamp The reading's timestamp.
+     * @return {@code true} if the same sensor already reported this timestamp recently.
+     */
+    public boolean isDuplicate(String sensorId, long timestamp) {
+        checkedCount.increment();
+        int hash = spread(sensorId.hashCode());
+        Shard shard = shards[hash & (SHARDS - 1)];
+        synchronized (shard) {
+            int slot = find(shard, sensorId, hash);
+            if (slot < 0) {
+                slot = insert(shard, sensorId, hash);
+            } else {
+                int base = slot * historySize;
+                for (int i = base; i < base + historySize; i++) {
+                    if (shard.history[i] == timestamp) {
+                        duplicateCount.increment();
+                        return true;
+                    }
+                }
+            }
+            shard.history[slot * historySize + shard.next[slot]] = timestamp;
+            shard.next[slot] = (shard.next[slot] + 1) % historySize;
+            return false;
+        }
+    }
+
+    /**
+     * @return Readings checked.
+     */
+    public long getCheckedCount() {
+        return checkedCount.sum();
+    }
+
+    /**
+     * @return Readings recognised as duplicates.
+     */
+    public long getDuplicateCount() {
+        return duplicateCount.sum();
+    }
+
+    /**
+     * @return Fraction of checked readings that were duplicates, or 0 if none were checked.
+     */
+    public double getHitRate() {
+        long checked = checkedCount.sum();
+        return checked == 0 ? 0.0 : (double) duplicateCount.sum() / checked;
+    }
+
+    /**
+     * @return Number of sensors currently remembered.
+     */
+    public int getTrackedSensors() {
+        int total = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                total += shard.size;
+            }
+        }
+        return total;
+    }
+
+    private void allocate(Shard shard, int capacity) {
+        shard.sensorIds = new String[capacity];
+        shard.history = new long[capacity * historySize];
+        shard.next = new int[capacity];
+        shard.size = 0;
+        Arrays.fill(shard.history, EMPTY);
+    }
+
+    /** @return The slot holding the sensor, or the empty slot where it belongs (as {@code -slot - 1}). */
+    private static int find(Shard shard, String sensorId, int hash) {
+        int mask = shard.sensorIds.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            String existing = shard.sensorIds[slot];
+            if (existing == null) return -slot - 1;
+            if (existing.equals(sensorId)) return slot;
+        }
+    }
+
+    private int insert(Shard shard, String sensorId, int hash) {
+        if (shard.size >= maxSensorsPerShard) {
+            allocate(shard, INITIAL_SHARD_CAPACITY); // Crude but bounded: a fleet this large re-warms quickly
+        } else if ((shard.size + 1) * 2 > shard.sensorIds.length) {
+            grow(shard); // Keep the load factor at or below one half
+        }
+        int slot = -find(shard, sensorId, hash) - 1;
+        shard.sensorIds[slot] = sensorId;
+        shard.size++;
+        return slot;
+    }
+
+    private void grow(Shard shard) {
+        String[] ids = shard.sensorIds;
+        long[] history = shard.history;
+        int[] next = shard.next;
+        allocate(shard, ids.length * 2);
+        for (int old = 0; old < ids.length; old++) {
+            if (ids[old] == null) continue;
+            int slot = -find(shard, ids[old], spread(ids[old].hashCode())) - 1;
+            shard.sensorIds[slot] = ids[old];
+            System.arraycopy(history, old * historySize, shard.history, slot * historySize, historySize);
+            shard.next[slot] = next[old];
+            shard.size++;
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Exports the checked and duplicate counters. The values are read on every scrape.
+     *
+     * @param registry Where to register the metrics.
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.registerCounter("batch_processor_dedup_checked_total", "Readings checked for redelivery",
+                this::getCheckedCount);
+        registry.registerCounter("batch_processor_dedup_duplicates_total", "Redelivered readings dropped",
+                this::getDuplicateCount);
+    }
+}
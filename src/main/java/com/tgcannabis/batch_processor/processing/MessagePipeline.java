@@ -0,0 +1,437 @@
+package com.tgcannabis.batch_processor.processing;
+
+import com.tgcannabis.batch_processor.config.BatchProcessorConfig;
+import com.tgcannabis.batch_processor.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Hands raw MQTT messages off from the Paho callback thread to worker threads, one per lane.
+ * <p>
+ * Each message is routed to a lane by its sensor ID, hashed straight from the payload bytes (or by topic when
+ * the payload has none), so all readings of a sensor are processed by the same worker in arrival order while
+ * throughput scales with the number of lanes. Messages carrying several readings, which may be of different
+ * sensors, are routed by topic instead: a gateway publishes its batches on its own topic, so they all take the
+ * same lane and a sensor's readings keep their order whichever sensor leads a batch. Binary records are hashed by
+ * the sensor ID they encode, resolved through the {@link BinarySensorCodec}'s dictionary, so a sensor switching
+ * between JSON and binary stays on its lane. Every lane is a bounded, preallocated ring buffer with a single
+ * consumer; the callback only copies two references. Per-lane depth, throughput and busy time show hot lanes.
+ */
+public class MessagePipeline implements BiConsumer<String, byte[]>, AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MessagePipeline.class);
+    private static final long SHUTDOWN_TIMEOUT_MS = 10_000;
+
+    /**
+     * What to do with an incoming message when the ring buffer is full.
+     */
+    public enum OverflowPolicy {
+        /** Block the producing (MQTT callback) thread until a slot frees up. */
+        BLOCK,
+        /** Discard the incoming message and count it as dropped. */
+        DROP;
+
+        /**
+         * Parses a policy name, case-insensitively. A null or blank name maps to {@link #BLOCK}.
+         *
+         * @param name The configured policy name.
+         * @return The matching policy.
+         * @throws IllegalArgumentException if the name does not match any policy
+         */
+        public static OverflowPolicy parse(String name) {
+            if (name == null || name.isBlank()) return BLOCK;
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * One ring buffer and the worker draining it.
+     */
+    private final class Lane {
+        // Ring buffer slots, allocated once
+        final String[] topics;
+        final byte[][] payloads;
+        final Runnable[] callbacks;
+        int head; // next slot to take
+        int tail; // next slot to put
+        int count;
+
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition notEmpty = lock.newCondition();
+        final Condition notFull = lock.newCondition();
+        final Thread worker;
+
+        final LongAdder processed = new LongAdder();
+        final LongAdder dropped = new LongAdder();
+        volatile long busyNanos; // Time spent in the downstream handler; written by the worker only
+
+        Lane(int index, int capacity) {
+            this.topics = new String[capacity];
+            this.payloads = new byte[capacity][];
+            this.callbacks = new Runnable[capacity];
+            this.worker = new Thread(() -> runWorker(this), "pipeline-worker-" + index);
+            this.worker.setDaemon(true);
+        }
+
+        int depth() {
+            lock.lock();
+            try {
+                return count;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private final BiConsumer<String, byte[]> downstream;
+    private final BinarySensorCodec binaryCodec;
+    private final OverflowPolicy overflowPolicy;
+    private final Lane[] lanes;
+    private final int laneCapacity;
+    private final long startedNanos = System.nanoTime();
+    private volatile boolean running = true;
+
+    private final LongAdder processedCount = new LongAdder();
+    private final LongAdder droppedCount = new LongAdder();
+
+    /**
+     * Constructs the pipeline from the application configuration.
+     *
+     * @param config     The application configuration. Must not be null.
+     * @param downstream The handler invoked on worker threads. Must not be null.
+     */
+    public MessagePipeline(BatchProcessorConfig config, BiConsumer<String, byte[]> downstream) {
+        this(Objects.requireNonNull(config, "Configuration cannot be null").getPipelineQueueCapacity(),
+                config.getPipelineWorkers(),
+                OverflowPolicy.parse(config.getPipelineOverflowPolicy()),
+                new BinarySensorCodec(config),
+                downstream);
+    }
+
+    /**
+     * Constructs the pipeline and starts one worker thread per lane.
+     *
+     * @param laneCapacity   Number of preallocated slots in each lane. Must be positive.
+     * @param laneCount      Number of lanes, and so of worker threads. Must be positive.
+     * @param overflowPolicy Policy applied when a lane is full. Must not be null.
+     * @param downstream     The handler invoked on worker threads. Must not be null.
+     */
+    public MessagePipeline(int laneCapacity, int laneCount, OverflowPolicy overflowPolicy,
+                           BiConsumer<String, byte[]> downstream) {
+        this(laneCapacity, laneCount, overflowPolicy, new BinarySensorCodec(null, List.of()), downstream);
+    }
+
+    /**
+     * Constructs the pipeline and starts one worker thread per lane.
+     *
+     * @param laneCapacity   Number of preallocated slots in each lane. Must be positive.
+     * @param laneCount      Number of lanes, and so of worker threads. Must be positive.
+     * @param overflowPolicy Policy applied when a lane is full. Must not be null.
+     * @param binaryCodec    Resolves the sensor IDs of binary records to route them. Must not be null.
+     * @param downstream     The handler invoked on worker threads. Must not be null.
+     */
+    public MessagePipeline(int laneCapacity, int laneCount, OverflowPolicy overflowPolicy,
+                           BinarySensorCodec binaryCodec, BiConsumer<String, byte[]> downstream) {
+        if (laneCapacity <= 0) throw new IllegalArgumentException("Pipeline capacity must be positive");
+        if (laneCount <= 0) throw new IllegalArgumentException("Pipeline worker count must be positive");
+        this.overflowPolicy = Objects.requireNonNull(overflowPolicy, "Overflow policy cannot be null");
+        this.downstream = Objects.requireNonNull(downstream, "Downstream handler cannot be null");
+        this.binaryCodec = Objects.requireNonNull(binaryCodec, "Binary codec cannot be null");
+        this.laneCapacity = laneCapacity;
+
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(i, laneCapacity);
+        }
+        for (Lane lane : lanes) {
+            lane.worker.start();
+        }
+        LOGGER.info("Message pipeline started: lanes={}, capacity={} per lane, overflowPolicy={}",
+                laneCount, laneCapacity, overflowPolicy);
+    }
+
+    /**
+     * Enqueues a message on its sensor's lane. Called from the MQTT callback thread.
+     * Depending on the overflow policy, blocks or drops the message when the lane is full.
+     *
+     * @param topic   The MQTT topic the message arrived at.
+     * @param payload The raw message payload. Ownership passes to the pipeline.
+     */
+    @Override
+    public void accept(String topic, byte[] payload) {
+        accept(topic, payload, null);
+    }
+
+    /**
+     * Enqueues a message on its sensor's lane, like {@link #accept(String, byte[])}, and runs a callback once the
+     * worker is done with it, e.g. to acknowledge it to the MQTT broker. The callback also runs when the message
+     * is dropped, since it will not be processed any further.
+     *
+     * @param topic       The MQTT topic the message arrived at.
+     * @param payload     The raw message payload. Ownership passes to the pipeline.
+     * @param onProcessed Run on the worker thread after the downstream handler returned (can be null).
+     */
+    public void accept(String topic, byte[] payload, Runnable onProcessed) {
+        if (!running) {
+            LOGGER.warn("Pipeline is closed, dropping message from topic {}", topic);
+            droppedCount.increment();
+            runCallback(onProcessed);
+            return;
+        }
+
+        Lane lane = lanes[laneFor(topic, payload)];
+        lane.lock.lock();
+        try {
+            while (lane.count == laneCapacity) {
+                if (overflowPolicy == OverflowPolicy.DROP || !running) {
+                    drop(lane);
+                    LOGGER.debug("Pipeline lane full, dropping message from topic {}", topic);
+                    runCallback(onProcessed);
+                    return;
+                }
+                lane.notFull.await();
+            }
+            lane.topics[lane.tail] = topic;
+            lane.payloads[lane.tail] = payload;
+            lane.callbacks[lane.tail] = onProcessed;
+            lane.tail = (lane.tail + 1) % laneCapacity;
+            lane.count++;
+            lane.notEmpty.signal();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            drop(lane);
+            LOGGER.warn("Interrupted while waiting for pipeline capacity, dropping message from topic {}", topic);
+            runCallback(onProcessed);
+        } finally {
+            lane.lock.unlock();
+        }
+    }
+
+    private static void runCallback(Runnable callback) {
+        if (callback == null) return;
+        try {
+            callback.run();
+        } catch (Exception e) {
+            LOGGER.error("Error in message completion callback: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Picks the lane of a message: by sensor ID, or by topic if the payload does not carry one or carries several
+     * readings.
+     */
+    int laneFor(String topic, byte[] payload) {
+        if (lanes.length == 1) return 0;
+        int fallback = topic != null ? topic.hashCode() : 0;
+        int hash;
+        if (BinarySensorCodec.hasMagic(payload)) {
+            hash = BinarySensorCodec.isMultiRecord(payload) ? fallback : binaryCodec.sensorIdHash(payload, fallback);
+        } else if (SensorDataParser.isMultiReading(payload)) {
+            hash = fallback; // A batch's sensors all follow the gateway's batches, in order
+        } else {
+            hash = SensorDataParser.sensorIdHash(payload, fallback);
+        }
+        hash ^= hash >>> 16;
+        return Math.floorMod(hash, lanes.length);
+    }
+
+    private void drop(Lane lane) {
+        lane.dropped.increment();
+        droppedCount.increment();
+    }
+
+    /**
+     * Worker loop: takes messages from its lane until the pipeline is closed and the lane drained.
+     */
+    private void runWorker(Lane lane) {
+        while (true) {
+            String topic;
+            byte[] payload;
+            Runnable onProcessed;
+
+            lane.lock.lock();
+            try {
+                while (lane.count == 0) {
+                    if (!running) return;
+                    lane.notEmpty.await();
+                }
+                topic = lane.topics[lane.head];
+                payload = lane.payloads[lane.head];
+                onProcessed = lane.callbacks[lane.head];
+                lane.topics[lane.head] = null; // Release references for GC
+                lane.payloads[lane.head] = null;
+                lane.callbacks[lane.head] = null;
+                lane.head = (lane.head + 1) % laneCapacity;
+                lane.count--;
+                lane.notFull.signal();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lane.lock.unlock();
+            }
+
+            long started = System.nanoTime();
+            try {
+                downstream.accept(topic, payload);
+            } catch (Exception e) {
+                // Catch exceptions from the handler to keep the worker alive
+                LOGGER.error("Error processing message from topic {}: {}", topic, e.getMessage(), e);
+            } finally {
+                lane.busyNanos += System.nanoTime() - started;
+                lane.processed.increment();
+                processedCount.increment();
+                runCallback(onProcessed);
+            }
+        }
+    }
+
+    /**
+     * @return Number of messages currently waiting in all lanes.
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Lane lane : lanes) {
+            depth += lane.depth();
+        }
+        return depth;
+    }
+
+    /**
+     * @return Number of slots in all lanes.
+     */
+    public int getCapacity() {
+        return laneCapacity * lanes.length;
+    }
+
+    /**
+     * @return Total number of messages handed to the downstream handler.
+     */
+    public long getProcessedCount() {
+        return processedCount.sum();
+    }
+
+    /**
+     * @return Total number of messages dropped due to overflow or shutdown.
+     */
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    /**
+     * @return Number of lanes (worker threads).
+     */
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * @param lane Lane index, from 0 to {@link #getLaneCount()} - 1.
+     * @return Number of messages waiting in the lane.
+     */
+    public int getLaneQueueDepth(int lane) {
+        return lanes[lane].depth();
+    }
+
+    /**
+     * @param lane Lane index, from 0 to {@link #getLaneCount()} - 1.
+     * @return Messages the lane's worker handed to the downstream handler.
+     */
+    public long getLaneProcessedCount(int lane) {
+        return lanes[lane].processed.sum();
+    }
+
+    /**
+     * @param lane Lane index, from 0 to {@link #getLaneCount()} - 1.
+     * @return Messages dropped because the lane was full.
+     */
+    public long getLaneDroppedCount(int lane) {
+        return lanes[lane].dropped.sum();
+    }
+
+    /**
+     * @param lane Lane index, from 0 to {@link #getLaneCount()} - 1.
+     * @return Total time the lane's worker spent in the downstream handler, in nanoseconds.
+     */
+    public long getLaneBusyNanos(int lane) {
+        return lanes[lane].busyNanos;
+    }
+
+    /**
+     * @param lane Lane index, from 0 to {@link #getLaneCount()} - 1.
+     * @return Fraction of the time since start the lane's worker spent in the downstream handler. A lane
+     * close to 1 while others idle is carrying hot sensors.
+     */
+    public double getLaneUtilization(int lane) {
+        long elapsed = System.nanoTime() - startedNanos;
+        return elapsed <= 0 ? 0.0 : Math.min(1.0, (double) lanes[lane].busyNanos / elapsed);
+    }
+
+    /**
+     * Exports the pipeline's queue depths, counters and per-lane utilisation. The values are read on every scrape.
+     *
+     * @param registry Where to register the metrics.
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.registerGauge("batch_processor_pipeline_queue_depth", "Messages waiting in the pipeline",
+                this::getQueueDepth);
+        registry.registerGauge("batch_processor_pipeline_capacity", "Total pipeline buffer slots",
+                this::getCapacity);
+        registry.registerCounter("batch_processor_pipeline_processed_total", "Messages processed by the pipeline",
+                this::getProcessedCount);
+        registry.registerCounter("batch_processor_pipeline_dropped_total", "Messages dropped by a full pipeline",
+                this::getDroppedCount);
+        for (int i = 0; i < getLaneCount(); i++) {
+            int lane = i;
+            String label = String.valueOf(lane);
+            registry.registerGauge("batch_processor_pipeline_lane_queue_depth", "Messages waiting per lane",
+                    () -> getLaneQueueDepth(lane), "lane", label);
+            registry.registerCounter("batch_processor_pipeline_lane_processed_total", "Messages processed per lane",
+                    () -> getLaneProcessedCount(lane), "lane", label);
+            registry.registerGauge("batch_processor_pipeline_lane_utilization",
+                    "Fraction of time the lane worker was busy since start",
+                    () -> getLaneUtilization(lane), "lane", label);
+        }
+    }
+
+    /**
+     * Stops accepting messages, lets the workers drain what is already buffered and waits for them to exit.
+     */
+    @Override
+    public void close() {
+        if (!running) return;
+        LOGGER.info("Closing message pipeline ({} messages buffered)...", getQueueDepth());
+        running = false;
+        for (Lane lane : lanes) {
+            lane.lock.lock();
+            try {
+                lane.notEmpty.signalAll();
+                lane.notFull.signalAll();
+            } finally {
+                lane.lock.unlock();
+            }
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SHUTDOWN_TIMEOUT_MS);
+        for (Lane lane : lanes) {
+            try {
+                long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMs > 0) lane.worker.join(remainingMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        LOGGER.info("Message pipeline closed. Processed={}, Dropped={}, Remaining={}",
+                getProcessedCount(), getDroppedCount(), getQueueDepth());
+    }
+}
@@ -4,10 +4,18 @@ import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 import com.tgcannabis.batch_processor.influx.InfluxDbService;
 import com.tgcannabis.batch_processor.kafka.KafkaService;
+import com.tgcannabis.batch_processor.metrics.Counter;
+import com.tgcannabis.batch_processor.metrics.LatencyHistogram;
+import com.tgcannabis.batch_processor.metrics.MetricsRegistry;
 import com.tgcannabis.batch_processor.model.SensorData; // Assuming model location
+import com.tgcannabis.batch_processor.model.TagDictionary;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
 import java.util.function.BiConsumer;
 
@@ -15,62 +23,423 @@ import java.util.function.BiConsumer;
  * Handles incoming MQTT messages containing sensor data.
  * It deserializes the payload, attempts to send it to Kafka,
  * and writes it to InfluxDB.
+ * <p>
+ * A message may also carry several readings, as a JSON array or newline-delimited objects. They are split one
+ * at a time and handed to the sinks in chunks of {@value #READING_CHUNK}, so a gateway can batch hundreds of
+ * readings per publish without the whole list being built. Each reading is forwarded to Kafka as its own record.
+ * <p>
+ * Constrained devices may publish {@link BinarySensorCodec} records instead of JSON. They are recognised by their
+ * first byte or their topic, decoded straight into {@link SensorData} and forwarded to Kafka as the equivalent JSON,
+ * so Kafka consumers see one format.
+ * <p>
+ * With a {@link TopicTemplate}, identifiers a payload leaves out are taken from its topic, so devices may publish
+ * just {@code {"value":..,"timestamp":..}}. Kafka then receives the completed JSON.
  */
-public class SensorDataHandler implements BiConsumer<String, String> {
+public class SensorDataHandler implements BiConsumer<String, byte[]> {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(SensorDataHandler.class);
     private static final Gson gson = new Gson(); // Thread-safe
 
+    private static final LatencyHistogram PARSE_LATENCY = MetricsRegistry.stageLatency("parse");
+    private static final LatencyHistogram HANDLE_LATENCY = MetricsRegistry.stageLatency("handle");
+    private static final Counter PARSE_ERRORS = MetricsRegistry.errors("parse");
+    private static final Counter INCOMPLETE_ERRORS = MetricsRegistry.errors("incomplete");
+    private static final Counter HANDLER_ERRORS = MetricsRegistry.errors("handler");
+    private static final Counter MULTI_READING_MESSAGES = MetricsRegistry.getDefault()
+            .counter("batch_processor_multi_reading_messages_total", "MQTT messages carrying several readings");
+    private static final Counter MULTI_READING_READINGS = MetricsRegistry.getDefault()
+            .counter("batch_processor_multi_reading_readings_total", "Readings split from multi-reading messages");
+    private static final Counter BINARY_MESSAGES = MetricsRegistry.getDefault()
+            .counter("batch_processor_binary_messages_total", "MQTT messages carrying binary sensor records");
+    private static final Counter BINARY_READINGS = MetricsRegistry.getDefault()
+            .counter("batch_processor_binary_readings_total", "Readings decoded from binary sensor records");
+
+    /** Readings of a multi-reading message handed to the sinks at once. */
+    static final int READING_CHUNK = 64;
+
     private final KafkaService kafkaService;
     private final InfluxDbService influxDbService;
+    private final SensorRollupAggregator rollupAggregator;
+    private final SwingingDoorCompressor kafkaCompressor;
+    private final DuplicateFilter duplicateFilter;
+    private final SensorWindowBatcher kafkaWindows;
+    private final BinarySensorCodec binaryCodec;
+    private final TopicTemplate topicTemplate;
 
     /**
-     * Constructs the message handler.
+     * Constructs the message handler without optional stages.
      *
      * @param kafkaService    Service for publishing to Kafka. Must not be null.
      * @param influxDbService Service for writing to InfluxDB. Must not be null.
      */
     public SensorDataHandler(KafkaService kafkaService, InfluxDbService influxDbService) {
-        this.kafkaService = Objects.requireNonNull(kafkaService, "KafkaService cannot be null");
-        this.influxDbService = Objects.requireNonNull(influxDbService, "InfluxDbService cannot be null");
+        this(builder(kafkaService, influxDbService));
+    }
+
+    private SensorDataHandler(Builder builder) {
+        this.kafkaService = Objects.requireNonNull(builder.kafkaService, "KafkaService cannot be null");
+        this.influxDbService = Objects.requireNonNull(builder.influxDbService, "InfluxDbService cannot be null");
+        this.rollupAggregator = builder.rollupAggregator;
+        this.kafkaCompressor = builder.kafkaCompressor;
+        this.duplicateFilter = builder.duplicateFilter;
+        this.kafkaWindows = builder.kafkaWindows;
+        this.binaryCodec = builder.binaryCodec != null ? builder.binaryCodec : new BinarySensorCodec(null, List.of());
+        this.topicTemplate = builder.topicTemplate;
+    }
+
+    /**
+     * Starts building a message handler. Every optional stage is disabled unless set.
+     *
+     * @param kafkaService    Service for publishing to Kafka. Must not be null.
+     * @param influxDbService Service for writing to InfluxDB. Must not be null.
+     * @return The builder.
+     */
+    public static Builder builder(KafkaService kafkaService, InfluxDbService influxDbService) {
+        return new Builder(kafkaService, influxDbService);
+    }
+
+    /**
+     * Collects the optional stages of a {@link SensorDataHandler}; each setter accepts {@code null} to disable its
+     * stage.
+     */
+    public static final class Builder {
+        private final KafkaService kafkaService;
+        private final InfluxDbService influxDbService;
+        private SensorRollupAggregator rollupAggregator;
+        private SwingingDoorCompressor kafkaCompressor;
+        private DuplicateFilter duplicateFilter;
+        private SensorWindowBatcher kafkaWindows;
+        private BinarySensorCodec binaryCodec;
+        private TopicTemplate topicTemplate;
+
+        private Builder(KafkaService kafkaService, InfluxDbService influxDbService) {
+            this.kafkaService = kafkaService;
+            this.influxDbService = influxDbService;
+        }
+
+        /**
+         * @param rollupAggregator Aggregator fed with every reading after it was written.
+         * @return This builder.
+         */
+        public Builder rollupAggregator(SensorRollupAggregator rollupAggregator) {
+            this.rollupAggregator = rollupAggregator;
+            return this;
+        }
+
+        /**
+         * @param kafkaCompressor Compression stage deciding which payloads reach Kafka; without it all of them do.
+         *                        When set, it is expected to forward to the {@link #kafkaWindows} itself.
+         * @return This builder.
+         */
+        public Builder kafkaCompressor(SwingingDoorCompressor kafkaCompressor) {
+            this.kafkaCompressor = kafkaCompressor;
+            return this;
+        }
+
+        /**
+         * @param duplicateFilter Filter dropping redelivered readings before any sink.
+         * @return This builder.
+         */
+        public Builder duplicateFilter(DuplicateFilter duplicateFilter) {
+            this.duplicateFilter = duplicateFilter;
+            return this;
+        }
+
+        /**
+         * @param kafkaWindows Batcher grouping readings into windowed Kafka records; without it JSON records are
+         *                     published.
+         * @return This builder.
+         */
+        public Builder kafkaWindows(SensorWindowBatcher kafkaWindows) {
+            this.kafkaWindows = kafkaWindows;
+            return this;
+        }
+
+        /**
+         * @param binaryCodec Codec of binary payloads; without it they are recognised by their first byte only,
+         *                    without a sensor dictionary.
+         * @return This builder.
+         */
+        public Builder binaryCodec(BinarySensorCodec binaryCodec) {
+            this.binaryCodec = binaryCodec;
+            return this;
+        }
+
+        /**
+         * @param topicTemplate Templates filling in identifiers missing from payloads.
+         * @return This builder.
+         */
+        public Builder topicTemplate(TopicTemplate topicTemplate) {
+            this.topicTemplate = topicTemplate;
+            return this;
+        }
+
+        /**
+         * @return The message handler.
+         * @throws NullPointerException if the Kafka or InfluxDB service is null
+         */
+        public SensorDataHandler build() {
+            return new SensorDataHandler(this);
+        }
     }
 
     /**
-     * Processes an incoming MQTT message payload.
-     * This method implements the BiConsumer interface for use with MqttService.
+     * Processes a raw MQTT message payload.
+     * This method implements the BiConsumer interface for use with MqttService or MessagePipeline.
      *
      * @param topic   The MQTT topic the message arrived at.
-     * @param payload The raw message payload (expected to be JSON).
+     * @param payload The raw message payload bytes (UTF-8 JSON, or binary sensor records).
      */
     @Override
-    public void accept(String topic, String payload) {
-        LOGGER.debug("Processing message - Topic: [{}], Payload: [{}]", topic, payload);
+    public void accept(String topic, byte[] payload) {
+        LOGGER.debug("Processing message - Topic: [{}], Payload size: [{}] bytes", topic, payload.length);
+        long started = System.nanoTime();
         try {
+            if (binaryCodec.isBinary(topic, payload)) {
+                acceptBinary(topic, payload, started);
+                return;
+            }
+
             // 1. Deserialize JSON
-            SensorData sensorData = gson.fromJson(payload, SensorData.class);
+            SensorData sensorData = SensorDataParser.parse(payload);
+            if (sensorData == null) {
+                if (SensorDataParser.isMultiReading(payload)) {
+                    acceptReadings(topic, payload, started);
+                    return;
+                }
+                sensorData = deserializeWithGson(payload);
+            }
+            PARSE_LATENCY.recordSince(started);
+
+            // Fill in the identifiers the payload left to its topic
+            byte[] kafkaPayload = payload;
+            TopicTemplate.Fields topicFields = topicFields(topic);
+            if (topicFields != null) {
+                topic = topicFields.topic(); // Canonical instance, so the tag caches compare by identity
+                if (sensorData != null && topicFields.fillIn(sensorData)) {
+                    kafkaPayload = BinarySensorCodec.toJson(sensorData); // Kafka consumers get the complete reading
+                }
+            }
 
             // Basic validation
             if (sensorData == null || sensorData.getSensorId() == null) {
-                LOGGER.warn("Skipping message due to incomplete data after deserialization: {}", payload);
+                INCOMPLETE_ERRORS.increment();
+                LOGGER.warn("Skipping message due to incomplete data after deserialization: {}",
+                        new String(payload, StandardCharsets.UTF_8));
+                return;
+            }
+
+            // Drop QoS 1 redeliveries before they reach any sink
+            if (duplicateFilter != null && duplicateFilter.isDuplicate(sensorData.getSensorId(), sensorData.getTimestamp())) {
+                LOGGER.debug("Skipping duplicate reading - Sensor: [{}], Timestamp: [{}]",
+                        sensorData.getSensorId(), sensorData.getTimestamp());
                 return;
             }
 
             // Use sensor ID as Kafka key for potential partitioning
             String kafkaKey = sensorData.getSensorId();
 
-            // 2. Attempt to send raw JSON payload to Kafka
+            // 2. Attempt to send raw JSON payload to Kafka, forwarding the original bytes untouched
             // KafkaService handles async send and logging internally
-            kafkaService.sendMessage(kafkaKey, payload);
+            if (kafkaCompressor != null) {
+                kafkaCompressor.accept(sensorData, kafkaPayload); // Forwards only what is needed to rebuild the signal
+            } else if (kafkaWindows != null) {
+                kafkaWindows.accept(sensorData, kafkaPayload);
+            } else {
+                kafkaService.sendPayload(kafkaKey, kafkaPayload);
+            }
 
             // 3. Write deserialized data to InfluxDB
             // InfluxDbService handles async write and logging internally
             influxDbService.writeSensorData(sensorData, topic);
 
+            // 4. Update the per-sensor rollup windows
+            if (rollupAggregator != null) {
+                rollupAggregator.accept(sensorData);
+            }
+
+            HANDLE_LATENCY.recordSince(started);
         } catch (JsonSyntaxException e) {
-            LOGGER.error("JSON Parsing Error - Topic: [{}], Payload: [{}], Error: {}", topic, payload, e.getMessage());
+            PARSE_ERRORS.increment();
+            LOGGER.error("JSON Parsing Error - Topic: [{}], Payload: [{}], Error: {}",
+                    topic, new String(payload, StandardCharsets.UTF_8), e.getMessage());
             // Optionally send malformed messages to a dead-letter topic/queue
         } catch (Exception e) {
+            HANDLER_ERRORS.increment();
             LOGGER.error("Unexpected error processing message - Topic: [{}], Error: {}", topic, e.getMessage(), e);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Processes a message carrying several readings, one chunk at a time.
+     */
+    private void acceptReadings(String topic, byte[] payload, long started) {
+        SensorDataParser.Readings readings = SensorDataParser.readings(payload);
+        TopicTemplate.Fields topicFields = topicFields(topic);
+        if (topicFields != null) topic = topicFields.topic();
+        List<SensorData> chunk = new ArrayList<>(READING_CHUNK);
+        List<String> keys = new ArrayList<>(READING_CHUNK);
+        List<byte[]> values = new ArrayList<>(READING_CHUNK);
+        MULTI_READING_MESSAGES.increment();
+        while (readings.next()) {
+            // Each reading travels on as its own payload, as if it had been published alone
+            byte[] reading = Arrays.copyOfRange(payload, readings.start(), readings.end());
+            SensorData data;
+            try {
+                data = deserialize(reading);
+            } catch (JsonSyntaxException | NumberFormatException e) { // Gson lets the latter through for bad numbers
+                PARSE_ERRORS.increment();
+                LOGGER.error("JSON Parsing Error in reading {} - Topic: [{}], Reading: [{}], Error: {}", readings.count(),
+                        topic, new String(reading, StandardCharsets.UTF_8), e.getMessage());
+                continue;
+            }
+            if (data != null && topicFields != null && topicFields.fillIn(data)) {
+                reading = BinarySensorCodec.toJson(data);
+            }
+            if (data == null || data.getSensorId() == null) {
+                INCOMPLETE_ERRORS.increment();
+                LOGGER.warn("Skipping incomplete reading {} of message on topic {}: {}", readings.count(), topic,
+                        new String(reading, StandardCharsets.UTF_8));
+                continue;
+            }
+            if (duplicateFilter != null && duplicateFilter.isDuplicate(data.getSensorId(), data.getTimestamp())) {
+                continue;
+            }
+            chunk.add(data);
+            keys.add(data.getSensorId());
+            values.add(reading);
+            if (chunk.size() == READING_CHUNK) {
+                writeChunk(topic, chunk, keys, values);
+            }
+        }
+        PARSE_LATENCY.recordSince(started);
+        if (!chunk.isEmpty()) {
+            writeChunk(topic, chunk, keys, values);
+        }
+        MULTI_READING_READINGS.add(readings.count());
+        if (readings.isMalformed()) {
+            PARSE_ERRORS.increment();
+            LOGGER.error("Malformed multi-reading message on topic [{}] after {} readings", topic, readings.count());
+        }
+        HANDLE_LATENCY.recordSince(started);
+    }
+
+    /**
+     * Processes a message made of binary sensor records. A record that cannot be decoded ends the message, as the
+     * records after it cannot be located.
+     */
+    private void acceptBinary(String topic, byte[] payload, long started) {
+        List<SensorData> chunk = new ArrayList<>(READING_CHUNK);
+        List<String> keys = new ArrayList<>(READING_CHUNK);
+        List<byte[]> values = new ArrayList<>(READING_CHUNK);
+        TopicTemplate.Fields topicFields = topicFields(topic);
+        if (topicFields != null) topic = topicFields.topic();
+        BINARY_MESSAGES.increment();
+        int pos = 0;
+        int count = 0;
+        while (pos < payload.length) {
+            SensorData data = new SensorData();
+            try {
+                pos = binaryCodec.decodeInto(payload, pos, data);
+            } catch (IllegalArgumentException e) {
+                PARSE_ERRORS.increment();
+                LOGGER.error("Binary Parsing Error in record {} - Topic: [{}], Payload size: [{}] bytes, Error: {}",
+                        count, topic, payload.length, e.getMessage());
+                break;
+            }
+            count++;
+            if (topicFields != null) topicFields.fillIn(data);
+            if (data.getSensorId() == null) {
+                INCOMPLETE_ERRORS.increment();
+                LOGGER.warn("Skipping binary record {} without sensor ID on topic {}", count, topic);
+                continue;
+            }
+            if (duplicateFilter != null && duplicateFilter.isDuplicate(data.getSensorId(), data.getTimestamp())) {
+                continue;
+            }
+            chunk.add(data);
+            keys.add(data.getSensorId());
+            values.add(BinarySensorCodec.toJson(data)); // Kafka consumers keep receiving JSON
+            if (chunk.size() == READING_CHUNK) {
+                writeChunk(topic, chunk, keys, values);
+            }
+        }
+        PARSE_LATENCY.recordSince(started);
+        if (!chunk.isEmpty()) {
+            writeChunk(topic, chunk, keys, values);
+        }
+        if (payload.length == 0) {
+            INCOMPLETE_ERRORS.increment();
+            LOGGER.warn("Skipping empty message on binary topic {}", topic);
+        }
+        BINARY_READINGS.add(count);
+        HANDLE_LATENCY.recordSince(started);
+    }
+
+    /**
+     * Hands a chunk of readings to the sinks, with one call per sink where the sink supports it, and clears it.
+     */
+    private void writeChunk(String topic, List<SensorData> chunk, List<String> keys, List<byte[]> values) {
+        if (kafkaCompressor != null) {
+            for (int i = 0; i < chunk.size(); i++) {
+                kafkaCompressor.accept(chunk.get(i), values.get(i));
+            }
+        } else if (kafkaWindows != null) {
+            for (int i = 0; i < chunk.size(); i++) {
+                kafkaWindows.accept(chunk.get(i), values.get(i));
+            }
+        } else {
+            kafkaService.sendPayloads(List.copyOf(keys), List.copyOf(values));
+        }
+
+        influxDbService.writeSensorDataBatch(List.copyOf(chunk), topic);
+
+        if (rollupAggregator != null) {
+            chunk.forEach(rollupAggregator::accept);
+        }
+        chunk.clear();
+        keys.clear();
+        values.clear();
+    }
+
+    /**
+     * Processes an incoming MQTT message payload that has already been decoded to a String.
+     *
+     * @param topic   The MQTT topic the message arrived at.
+     * @param payload The decoded message payload (expected to be JSON).
+     */
+    public void accept(String topic, String payload) {
+        accept(topic, payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Deserializes a payload with the byte-level parser, falling back to Gson for shapes it does not handle.
+     *
+     * @param payload The raw message payload bytes.
+     * @return The deserialized data, or null for an empty payload.
+     * @throws JsonSyntaxException if the payload is not valid JSON
+     */
+    private SensorData deserialize(byte[] payload) {
+        SensorData sensorData = SensorDataParser.parse(payload);
+        if (sensorData != null) {
+            return sensorData;
+        }
+        return deserializeWithGson(payload);
+    }
+
+    private TopicTemplate.Fields topicFields(String topic) {
+        return topicTemplate != null ? topicTemplate.match(topic) : null;
+    }
+
+    private SensorData deserializeWithGson(byte[] payload) {
+        LOGGER.debug("Payload not handled by the fast parser, falling back to Gson");
+        SensorData data = gson.fromJson(new String(payload, StandardCharsets.UTF_8), SensorData.class);
+        if (data != null) { // Share the identifiers' instances with the fast parser's readings
+            TagDictionary tags = TagDictionary.getDefault();
+            data.setSensorType(tags.canonical(data.getSensorType()));
+            data.setLocation(tags.canonical(data.getLocation()));
+            data.setSensorId(tags.canonical(data.getSensorId()));
+        }
+        return data;
+    }
+}
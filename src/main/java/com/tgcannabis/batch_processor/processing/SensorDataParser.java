@@ -0,0 +1,480 @@
+package com.tgcannabis.batch_processor.processing;
+
+import com.tgcannabis.batch_processor.model.SensorData;
+import com.tgcannabis.batch_processor.model.TagDictionary;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Single-pass JSON parser for {@link SensorData} working directly on the raw MQTT payload bytes.
+ * <p>
+ * It only understands a flat object made of the five {@code SensorData} fields with plain string
+ * and number values. Numbers are decoded in place without creating substrings. Anything outside
+ * that shape (unknown keys, escape sequences, nested values, lenient syntax...) makes the parser
+ * give up and return {@code null}, so callers can fall back to Gson for full JSON support.
+ * String values are canonical instances from the {@link TagDictionary}.
+ * <p>
+ * Payloads carrying several readings, as a JSON array of objects or as newline-delimited objects, are split
+ * one reading at a time by {@link Readings}, without building the whole list.
+ */
+public final class SensorDataParser {
+
+    private static final byte[] SENSOR_TYPE = key("sensorType");
+    private static final byte[] LOCATION = key("location");
+    private static final byte[] SENSOR_ID = key("sensorId");
+    private static final byte[] VALUE = key("value");
+    private static final byte[] TIMESTAMP = key("timestamp");
+
+    private static final int FIELD_SENSOR_TYPE = 0;
+    private static final int FIELD_LOCATION = 1;
+    private static final int FIELD_SENSOR_ID = 2;
+    private static final int FIELD_VALUE = 3;
+    private static final int FIELD_TIMESTAMP = 4;
+
+    /** Returned by the field readers when the input is outside the supported shape. */
+    private static final int UNSUPPORTED = -1;
+
+    /** Largest mantissa that is exactly representable as a double (2^53). */
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    /** Powers of ten that are exactly representable as doubles. */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private SensorDataParser() {
+    }
+
+    /**
+     * Parses a JSON payload into a new {@link SensorData}.
+     *
+     * @param json The raw UTF-8 payload. Must not be null.
+     * @return The parsed data, or {@code null} if the payload is not in the supported shape.
+     */
+    public static SensorData parse(byte[] json) {
+        SensorData data = new SensorData();
+        return parseInto(json, data) ? data : null;
+    }
+
+    /**
+     * Parses a JSON payload into an existing {@link SensorData}. Fields absent from the payload are left untouched.
+     *
+     * @param json   The raw UTF-8 payload. Must not be null.
+     * @param target The object to populate. Must not be null.
+     * @return {@code true} if the payload was fully parsed, {@code false} if it is not in the supported shape
+     * (in which case {@code target} may be partially populated).
+     */
+    public static boolean parseInto(byte[] json, SensorData target) {
+        int end = json.length;
+        int pos = skipWhitespace(json, 0);
+        if (pos >= end || json[pos] != '{') return false;
+        pos = skipWhitespace(json, pos + 1);
+
+        if (pos < end && json[pos] == '}') {
+            return skipWhitespace(json, pos + 1) == end;
+        }
+
+        while (true) {
+            if (pos >= end || json[pos] != '"') return false;
+            int keyStart = pos + 1;
+            int keyEnd = keyStart;
+            while (keyEnd < end && json[keyEnd] != '"') {
+                if (json[keyEnd] == '\\') return false;
+                keyEnd++;
+            }
+            if (keyEnd >= end) return false;
+
+            int field = fieldOf(json, keyStart, keyEnd);
+            if (field < 0) return false;
+
+            pos = skipWhitespace(json, keyEnd + 1);
+            if (pos >= end || json[pos] != ':') return false;
+            pos = skipWhitespace(json, pos + 1);
+            if (pos >= end) return false;
+
+            pos = switch (field) {
+                case FIELD_VALUE -> readValue(json, pos, target);
+                case FIELD_TIMESTAMP -> readTimestamp(json, pos, target);
+                default -> readString(json, pos, target, field);
+            };
+            if (pos == UNSUPPORTED) return false;
+
+            pos = skipWhitespace(json, pos);
+            if (pos >= end) return false;
+            if (json[pos] == ',') {
+                pos = skipWhitespace(json, pos + 1);
+            } else if (json[pos] == '}') {
+                return skipWhitespace(json, pos + 1) == end;
+            } else {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Tells whether a payload carries several readings: a JSON array, or more than one top-level object
+     * (newline-delimited JSON). Meant for payloads {@link #parse} did not accept, as it scans the first object.
+     *
+     * @param json The raw UTF-8 payload. Must not be null.
+     * @return {@code true} if {@link #readings} can split the payload.
+     */
+    public static boolean isMultiReading(byte[] json) {
+        int pos = skipWhitespace(json, 0);
+        if (pos >= json.length) return false;
+        if (json[pos] == '[') return true;
+        if (json[pos] != '{') return false;
+        int end = objectEnd(json, pos);
+        return end != UNSUPPORTED && skipWhitespace(json, end) < json.length;
+    }
+
+    /**
+     * Starts splitting a multi-reading payload.
+     *
+     * @param json The raw UTF-8 payload: a JSON array of objects, or objects separated by whitespace.
+     * @return A cursor over the readings, or {@code null} if the payload starts with neither.
+     */
+    public static Readings readings(byte[] json) {
+        int pos = skipWhitespace(json, 0);
+        if (pos >= json.length) return null;
+        if (json[pos] == '[') return new Readings(json, true, pos + 1);
+        if (json[pos] == '{') return new Readings(json, false, pos);
+        return null;
+    }
+
+    /**
+     * Cursor over the objects of a multi-reading payload. Each call to {@link #next()} finds the bounds of one
+     * object, honouring strings and nesting, so the caller can parse it and forward its bytes on their own.
+     * Not thread-safe.
+     */
+    public static final class Readings {
+        private final byte[] json;
+        private final boolean array;
+        private int pos;
+        private int start = -1;
+        private int end = -1;
+        private int count;
+        private boolean finished;
+        private boolean malformed;
+
+        private Readings(byte[] json, boolean array, int pos) {
+            this.json = json;
+            this.array = array;
+            this.pos = pos;
+        }
+
+        /**
+         * Advances to the next reading.
+         *
+         * @return {@code true} if there is one; {@code false} at the end of the payload or at the first
+         * syntax error, see {@link #isMalformed()}.
+         */
+        public boolean next() {
+            if (finished) return false;
+            int p = skipWhitespace(json, pos);
+            if (array) {
+                if (p < json.length && json[p] == ']') {
+                    finished = true;
+                    malformed = skipWhitespace(json, p + 1) != json.length;
+                    return false;
+                }
+                if (count > 0) {
+                    if (p >= json.length || json[p] != ',') return fail();
+                    p = skipWhitespace(json, p + 1);
+                }
+            } else if (p >= json.length) {
+                finished = true;
+                return false;
+            }
+            if (p >= json.length || json[p] != '{') return fail();
+            int close = objectEnd(json, p);
+            if (close == UNSUPPORTED) return fail();
+            start = p;
+            end = close;
+            pos = close;
+            count++;
+            return true;
+        }
+
+        private boolean fail() {
+            finished = true;
+            malformed = true;
+            return false;
+        }
+
+        /**
+         * @return Offset of the current reading's opening brace.
+         */
+        public int start() {
+            return start;
+        }
+
+        /**
+         * @return Offset just past the current reading's closing brace.
+         */
+        public int end() {
+            return end;
+        }
+
+        /**
+         * @return Readings returned so far.
+         */
+        public int count() {
+            return count;
+        }
+
+        /**
+         * @return {@code true} if splitting stopped at a syntax error rather than at the end of the payload.
+         */
+        public boolean isMalformed() {
+            return malformed;
+        }
+    }
+
+    /**
+     * Finds the end of the JSON object starting at {@code pos}, skipping nested values and strings.
+     *
+     * @return Position after the closing brace, or {@link #UNSUPPORTED} if the object is not closed.
+     */
+    private static int objectEnd(byte[] json, int pos) {
+        int depth = 0;
+        boolean inString = false;
+        for (int i = pos; i < json.length; i++) {
+            byte b = json[i];
+            if (inString) {
+                if (b == '\\') {
+                    i++;
+                } else if (b == '"') {
+                    inString = false;
+                }
+            } else if (b == '"') {
+                inString = true;
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                if (--depth == 0) return i + 1;
+            }
+        }
+        return UNSUPPORTED;
+    }
+
+    /**
+     * Hashes the raw bytes of the {@code sensorId} string value without decoding the payload, so messages can be
+     * routed by sensor before they are parsed. Equal IDs encoded the same way hash the same.
+     *
+     * @param json     The raw UTF-8 payload. Must not be null.
+     * @param fallback Returned when the payload has no string {@code sensorId}.
+     * @return The hash of the sensor ID bytes, or {@code fallback}.
+     */
+    public static int sensorIdHash(byte[] json, int fallback) {
+        int end = json.length;
+        int last = end - SENSOR_ID.length - 1;
+        for (int i = 0; i < last; i++) {
+            if (json[i] != '"' || json[i + SENSOR_ID.length + 1] != '"'
+                    || !regionEquals(json, i + 1, i + 1 + SENSOR_ID.length, SENSOR_ID)) {
+                continue;
+            }
+            int pos = skipWhitespace(json, i + SENSOR_ID.length + 2);
+            if (pos >= end || json[pos] != ':') continue; // The name appeared as a value
+            pos = skipWhitespace(json, pos + 1);
+            if (pos >= end || json[pos] != '"') return fallback;
+
+            int hash = 1;
+            for (pos++; pos < end && json[pos] != '"'; pos++) {
+                if (json[pos] == '\\' && pos + 1 < end) {
+                    hash = 31 * hash + json[pos++]; // Keep the escaped character in the hash
+                }
+                hash = 31 * hash + json[pos];
+            }
+            return hash;
+        }
+        return fallback;
+    }
+
+    /**
+     * Reads a string (or {@code null}) value and stores it in the given field.
+     *
+     * @return Position after the value, or {@link #UNSUPPORTED}.
+     */
+    private static int readString(byte[] json, int pos, SensorData target, int field) {
+        String value;
+        int next;
+        if (json[pos] == 'n') {
+            if (!matchesNull(json, pos)) return UNSUPPORTED;
+            value = null;
+            next = pos + 4;
+        } else if (json[pos] == '"') {
+            int start = pos + 1;
+            int i = start;
+            boolean ascii = true;
+            while (i < json.length && json[i] != '"') {
+                byte b = json[i];
+                if (b == '\\') return UNSUPPORTED; // Escapes are left to the Gson fallback
+                if (b < 0) ascii = false;
+                i++;
+            }
+            if (i >= json.length) return UNSUPPORTED;
+            // Identifiers repeat in every message: known ones are looked up without allocating
+            value = TagDictionary.getDefault().intern(json, start, i, ascii).value();
+            next = i + 1;
+        } else {
+            return UNSUPPORTED;
+        }
+
+        switch (field) {
+            case FIELD_SENSOR_TYPE -> target.setSensorType(value);
+            case FIELD_LOCATION -> target.setLocation(value);
+            case FIELD_SENSOR_ID -> target.setSensorId(value);
+            default -> {
+                return UNSUPPORTED;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Reads a JSON number into {@code value}. Uses an exact fast path when the mantissa and the
+     * decimal exponent are both exactly representable, and falls back to {@link Double#parseDouble} otherwise.
+     *
+     * @return Position after the number, or {@link #UNSUPPORTED}.
+     */
+    private static int readValue(byte[] json, int pos, SensorData target) {
+        int end = json.length;
+        int start = pos;
+        boolean negative = false;
+        if (json[pos] == '-') {
+            negative = true;
+            pos++;
+        }
+
+        long mantissa = 0;
+        boolean exact = true;
+        int digits = 0;
+        int decimalExponent = 0;
+
+        while (pos < end && isDigit(json[pos])) {
+            if (mantissa < MAX_EXACT_MANTISSA) {
+                mantissa = mantissa * 10 + (json[pos] - '0');
+            } else {
+                exact = false;
+            }
+            digits++;
+            pos++;
+        }
+        if (digits == 0) return UNSUPPORTED;
+
+        if (pos < end && json[pos] == '.') {
+            pos++;
+            int fractionDigits = 0;
+            while (pos < end && isDigit(json[pos])) {
+                if (mantissa < MAX_EXACT_MANTISSA) {
+                    mantissa = mantissa * 10 + (json[pos] - '0');
+                    decimalExponent--;
+                } else {
+                    exact = false;
+                }
+                fractionDigits++;
+                pos++;
+            }
+            if (fractionDigits == 0) return UNSUPPORTED;
+        }
+
+        if (pos < end && (json[pos] == 'e' || json[pos] == 'E')) {
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < end && (json[pos] == '+' || json[pos] == '-')) {
+                negativeExponent = json[pos] == '-';
+                pos++;
+            }
+            int exponent = 0;
+            int exponentDigits = 0;
+            while (pos < end && isDigit(json[pos])) {
+                if (exponent < 10_000) exponent = exponent * 10 + (json[pos] - '0');
+                exponentDigits++;
+                pos++;
+            }
+            if (exponentDigits == 0) return UNSUPPORTED;
+            decimalExponent += negativeExponent ? -exponent : exponent;
+        }
+
+        double value;
+        if (exact && mantissa <= MAX_EXACT_MANTISSA && Math.abs(decimalExponent) < POWERS_OF_TEN.length) {
+            // Both operands are exact, so a single IEEE multiply/divide gives the correctly rounded result
+            value = decimalExponent < 0
+                    ? mantissa / POWERS_OF_TEN[-decimalExponent]
+                    : mantissa * POWERS_OF_TEN[decimalExponent];
+            if (negative) value = -value;
+        } else {
+            value = Double.parseDouble(new String(json, start, pos - start, StandardCharsets.ISO_8859_1));
+        }
+        target.setValue(value);
+        return pos;
+    }
+
+    /**
+     * Reads a JSON integer into {@code timestamp}. Fractions, exponents and overflow are left to the Gson fallback.
+     *
+     * @return Position after the number, or {@link #UNSUPPORTED}.
+     */
+    private static int readTimestamp(byte[] json, int pos, SensorData target) {
+        int end = json.length;
+        boolean negative = false;
+        if (json[pos] == '-') {
+            negative = true;
+            pos++;
+        }
+
+        long result = 0;
+        int digits = 0;
+        while (pos < end && isDigit(json[pos])) {
+            if (digits == 18) return UNSUPPORTED; // Could overflow a long
+            result = result * 10 + (json[pos] - '0');
+            digits++;
+            pos++;
+        }
+        if (digits == 0) return UNSUPPORTED;
+        if (pos < end && (json[pos] == '.' || json[pos] == 'e' || json[pos] == 'E')) return UNSUPPORTED;
+
+        target.setTimestamp(negative ? -result : result);
+        return pos;
+    }
+
+    private static int fieldOf(byte[] json, int start, int end) {
+        if (regionEquals(json, start, end, SENSOR_ID)) return FIELD_SENSOR_ID;
+        if (regionEquals(json, start, end, VALUE)) return FIELD_VALUE;
+        if (regionEquals(json, start, end, TIMESTAMP)) return FIELD_TIMESTAMP;
+        if (regionEquals(json, start, end, SENSOR_TYPE)) return FIELD_SENSOR_TYPE;
+        if (regionEquals(json, start, end, LOCATION)) return FIELD_LOCATION;
+        return -1;
+    }
+
+    private static boolean regionEquals(byte[] json, int start, int end, byte[] expected) {
+        if (end - start != expected.length) return false;
+        for (int i = 0; i < expected.length; i++) {
+            if (json[start + i] != expected[i]) return false;
+        }
+        return true;
+    }
+
+    private static boolean matchesNull(byte[] json, int pos) {
+        return pos + 3 < json.length
+                && json[pos + 1] == 'u' && json[pos + 2] == 'l' && json[pos + 3] == 'l';
+    }
+
+    private static int skipWhitespace(byte[] json, int pos) {
+        while (pos < json.length) {
+            byte b = json[pos];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') break;
+            pos++;
+        }
+        return pos;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static byte[] key(String name) {
+        return name.getBytes(StandardCharsets.US_ASCII);
+    }
+}
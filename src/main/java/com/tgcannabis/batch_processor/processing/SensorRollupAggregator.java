@@ -0,0 +1,496 @@
+package com.tgcannabis.batch_processor.processing;
+
+import com.tgcannabis.batch_processor.config.BatchProcessorConfig;
+import com.tgcannabis.batch_processor.metrics.MetricsRegistry;
+import com.tgcannabis.batch_processor.model.SensorData;
+import com.tgcannabis.batch_processor.model.SensorRollup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Aggregates readings per sensor into event-time tumbling windows (e.g. 1 minute and 1 hour) and emits
+ * min/max/mean/count/last for every window once it closes.
+ * <p>
+ * Each series (sensor ID and type) tracks a watermark: the latest event time seen minus the allowed
+ * lateness. A window closes when the watermark passes its end; readings for a window that has already
+ * closed are counted as late and left out of the rollups (the raw reading is still written). A series
+ * that goes quiet would never advance its own watermark, so a sweeper thread moves it forward by the
+ * processing time that has passed since the series' last reading.
+ * <p>
+ * Window state lives in flat primitive arrays, one set per window size, indexed by series and window
+ * slot, so updating a window allocates nothing. The number of series is bounded; readings of sensors
+ * beyond the bound are counted and not aggregated. A series whose windows have all closed and that has been
+ * quiet for longer than the allowed lateness plus the largest window is dropped by the sweeper, and its
+ * state is reused for the next new sensor.
+ */
+public class SensorRollupAggregator implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SensorRollupAggregator.class);
+
+    private static final int DEFAULT_MAX_SERIES = 16_384;
+    private static final int LOCK_STRIPES = 64; // Power of two
+    private static final long SWEEP_INTERVAL_MS = 1_000;
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final Pattern WINDOW_PATTERN = Pattern.compile("(\\d+)(ms|s|m|h|d)");
+
+    /**
+     * Open window state of every series for one window size. Series {@code i} owns the slots
+     * {@code [i * slots, (i + 1) * slots)}; a window goes to the slot given by its index modulo {@code slots}.
+     */
+    private static final class Resolution {
+        final String name;
+        final long sizeMs;
+        final int slots;
+        final long[] windowStart;
+        final long[] count;
+        final double[] min;
+        final double[] max;
+        final double[] sum;
+        final double[] last;
+        final long[] lastTimestamp;
+
+        Resolution(String name, long sizeMs, long allowedLatenessMs, int maxSeries) {
+            this.name = name;
+            this.sizeMs = sizeMs;
+            // Windows ending after the watermark span at most lateness + size of event time
+            this.slots = (int) ((allowedLatenessMs + sizeMs - 1) / sizeMs) + 1;
+            int length = Math.multiplyExact(maxSeries, slots);
+            this.windowStart = new long[length];
+            this.count = new long[length];
+            this.min = new double[length];
+            this.max = new double[length];
+            this.sum = new double[length];
+            this.last = new double[length];
+            this.lastTimestamp = new long[length];
+            Arrays.fill(windowStart, EMPTY);
+        }
+    }
+
+    /**
+     * Identity and event-time progress of one series. Timestamps are guarded by the series' lock stripe.
+     */
+    private static final class Series {
+        final int index;
+        final String key;
+        final String sensorId;
+        final String sensorType;
+        volatile String location;
+        volatile long lastSeenMillis; // Processing time of the latest reading
+        long maxTimestamp = Long.MIN_VALUE;
+        long watermark = Long.MIN_VALUE;
+        boolean evicted;
+
+        Series(int index, String key, String sensorId, String sensorType) {
+            this.index = index;
+            this.key = key;
+            this.sensorId = sensorId;
+            this.sensorType = sensorType;
+        }
+    }
+
+    private final Resolution[] resolutions;
+    private final long allowedLatenessMs;
+    private final long evictAfterMs;
+    private final int maxSeries;
+    private final Consumer<SensorRollup> sink;
+    private final LongSupplier clock;
+
+    private final Map<String, Series> seriesByKey = new ConcurrentHashMap<>();
+    private final AtomicInteger nextIndex = new AtomicInteger();
+    private final Queue<Integer> freeIndices = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean limitReached = new AtomicBoolean();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    private final Thread sweeper;
+    private volatile boolean running = true;
+
+    private final LongAdder emittedWindows = new LongAdder();
+    private final LongAdder lateReadings = new LongAdder();
+    private final LongAdder untrackedReadings = new LongAdder();
+    private final LongAdder evictedSeries = new LongAdder();
+
+    /**
+     * Constructs the aggregator from the application configuration.
+     *
+     * @param config The application configuration. Must not be null.
+     * @param sink   Receives closed windows, e.g. {@code InfluxDbService::writeRollup}. Must not be null.
+     */
+    public SensorRollupAggregator(BatchProcessorConfig config, Consumer<SensorRollup> sink) {
+        this(Objects.requireNonNull(config, "Configuration cannot be null").getRollupWindows(),
+                Math.max(config.getRollupAllowedLatenessMs(), 0),
+                config.getRollupMaxSeries() > 0 ? config.getRollupMaxSeries() : DEFAULT_MAX_SERIES,
+                sink);
+    }
+
+    /**
+     * Constructs the aggregator and starts its sweeper thread.
+     *
+     * @param windows           Comma-separated window sizes, e.g. {@code 1m,1h}. Units: ms, s, m, h, d.
+     * @param allowedLatenessMs How far behind the latest reading of a series a reading may be and still
+     *                          count towards its window. Must not be negative.
+     * @param maxSeries         Maximum number of series tracked. Must be positive.
+     * @param sink              Receives closed windows. Must not be null.
+     */
+    public SensorRollupAggregator(String windows, long allowedLatenessMs, int maxSeries, Consumer<SensorRollup> sink) {
+        this(windows, allowedLatenessMs, maxSeries, sink, System::currentTimeMillis);
+    }
+
+    SensorRollupAggregator(String windows, long allowedLatenessMs, int maxSeries, Consumer<SensorRollup> sink,
+                           LongSupplier clock) {
+        if (allowedLatenessMs < 0 || maxSeries <= 0) {
+            throw new IllegalArgumentException("Allowed lateness must not be negative and max series must be positive");
+        }
+        this.allowedLatenessMs = allowedLatenessMs;
+        this.maxSeries = maxSeries;
+        this.sink = Objects.requireNonNull(sink, "Rollup sink cannot be null");
+        this.clock = Objects.requireNonNull(clock, "Clock cannot be null");
+
+        List<Resolution> parsed = new ArrayList<>();
+        for (String window : Objects.requireNonNull(windows, "Rollup windows cannot be null").split(",")) {
+            String name = window.trim().toLowerCase(Locale.ROOT);
+            if (!name.isEmpty()) {
+                parsed.add(new Resolution(name, parseWindow(name), allowedLatenessMs, maxSeries));
+            }
+        }
+        if (parsed.isEmpty()) throw new IllegalArgumentException("At least one rollup window is required");
+        this.resolutions = parsed.toArray(new Resolution[0]);
+        this.evictAfterMs = allowedLatenessMs + parsed.stream().mapToLong(r -> r.sizeMs).max().orElseThrow();
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+
+        this.sweeper = new Thread(this::runSweeper, "rollup-sweeper");
+        this.sweeper.setDaemon(true);
+        this.sweeper.start();
+        LOGGER.info("Sensor rollups started: windows={}, allowedLateness={} ms, maxSeries={}",
+                windows, allowedLatenessMs, maxSeries);
+    }
+
+    /**
+     * Parses a window size such as {@code 30s}, {@code 1m} or {@code 1h}.
+     *
+     * @param window The window size.
+     * @return The size in milliseconds.
+     * @throws IllegalArgumentException if the size is malformed or zero
+     */
+    static long parseWindow(String window) {
+        Matcher matcher = WINDOW_PATTERN.matcher(window.trim().toLowerCase(Locale.ROOT));
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Invalid rollup window '" + window + "', expected e.g. 1m or 1h");
+        }
+        long amount = Long.parseLong(matcher.group(1));
+        TimeUnit unit = switch (matcher.group(2)) {
+            case "ms" -> TimeUnit.MILLISECONDS;
+            case "s" -> TimeUnit.SECONDS;
+            case "m" -> TimeUnit.MINUTES;
+            case "h" -> TimeUnit.HOURS;
+            default -> TimeUnit.DAYS;
+        };
+        long millis = unit.toMillis(amount);
+        if (millis <= 0) throw new IllegalArgumentException("Rollup window must be positive: " + window);
+        return millis;
+    }
+
+    /**
+     * Adds a reading to the open windows of its series, closing the windows its event time moves past.
+     * Readings without a sensor ID or type, or without a finite value, are ignored.
+     *
+     * @param data The reading.
+     */
+    public void accept(SensorData data) {
+        if (data.getSensorId() == null || data.getSensorType() == null || !Double.isFinite(data.getValue())) return;
+
+        long timestamp = data.getTimestamp();
+        double value = data.getValue();
+        while (true) {
+            Series series = seriesFor(data.getSensorId(), data.getSensorType());
+            if (series == null) {
+                untrackedReadings.increment();
+                return;
+            }
+            series.location = data.getLocation();
+            series.lastSeenMillis = clock.getAsLong();
+
+            synchronized (lockFor(series)) {
+                if (series.evicted) continue; // Dropped by the sweeper meanwhile; its index may belong to another series
+                aggregate(series, timestamp, value);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Adds a reading to the open windows of a series. Must be called with the series' lock held.
+     */
+    private void aggregate(Series series, long timestamp, double value) {
+        if (timestamp > series.maxTimestamp) {
+            series.maxTimestamp = timestamp;
+            advanceWatermark(series, timestamp - allowedLatenessMs);
+        }
+
+        boolean late = false;
+        for (Resolution resolution : resolutions) {
+            long start = Math.floorDiv(timestamp, resolution.sizeMs) * resolution.sizeMs;
+            if (start + resolution.sizeMs <= series.watermark) {
+                late = true; // Window already emitted
+                continue;
+            }
+            int slot = slotOf(resolution, series, start);
+            if (resolution.windowStart[slot] != start) {
+                if (resolution.windowStart[slot] != EMPTY) {
+                    emit(resolution, series, slot); // Cannot happen while slots cover the lateness; never lose data
+                }
+                resolution.windowStart[slot] = start;
+                resolution.count[slot] = 1;
+                resolution.min[slot] = value;
+                resolution.max[slot] = value;
+                resolution.sum[slot] = value;
+                resolution.last[slot] = value;
+                resolution.lastTimestamp[slot] = timestamp;
+                continue;
+            }
+            resolution.count[slot]++;
+            resolution.min[slot] = Math.min(resolution.min[slot], value);
+            resolution.max[slot] = Math.max(resolution.max[slot], value);
+            resolution.sum[slot] += value;
+            if (timestamp >= resolution.lastTimestamp[slot]) {
+                resolution.last[slot] = value;
+                resolution.lastTimestamp[slot] = timestamp;
+            }
+        }
+        if (late) {
+            lateReadings.increment();
+            LOGGER.debug("Late reading for sensor {} at {} excluded from closed rollup windows",
+                    series.sensorId, timestamp);
+        }
+    }
+
+    /**
+     * Advances the watermark of idle series by the processing time since their last reading, closing
+     * windows that would otherwise stay open until the sensor reports again, and drops series that have
+     * no open window left after being idle for longer than the allowed lateness plus the largest window.
+     */
+    void sweep() {
+        long now = clock.getAsLong();
+        for (Series series : seriesByKey.values()) {
+            long idleMs = now - series.lastSeenMillis;
+            if (idleMs <= 0) continue;
+            synchronized (lockFor(series)) {
+                if (series.evicted || series.maxTimestamp == Long.MIN_VALUE) continue;
+                advanceWatermark(series, series.maxTimestamp + idleMs - allowedLatenessMs);
+                if (idleMs > evictAfterMs && !hasOpenWindow(series)) {
+                    evict(series);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Number of series being aggregated.
+     */
+    public int getSeriesCount() {
+        return seriesByKey.size();
+    }
+
+    /**
+     * @return Number of windows emitted.
+     */
+    public long getEmittedWindows() {
+        return emittedWindows.sum();
+    }
+
+    /**
+     * @return Readings that arrived after at least one of their windows had closed.
+     */
+    public long getLateReadings() {
+        return lateReadings.sum();
+    }
+
+    /**
+     * @return Readings not aggregated because the series limit was reached.
+     */
+    public long getUntrackedReadings() {
+        return untrackedReadings.sum();
+    }
+
+    /**
+     * @return Idle series dropped to make room for new ones.
+     */
+    public long getEvictedSeries() {
+        return evictedSeries.sum();
+    }
+
+    private Series seriesFor(String sensorId, String sensorType) {
+        // A sensor ID reporting several types gets one series per type
+        return seriesByKey.computeIfAbsent(sensorId + '\u0000' + sensorType, k -> {
+            int index = allocateIndex();
+            return index < 0 ? null : new Series(index, k, sensorId, sensorType);
+        });
+    }
+
+    /**
+     * @return The index of a dropped series, else the next unused one, or {@code -1} if all are taken.
+     */
+    private int allocateIndex() {
+        Integer free = freeIndices.poll();
+        if (free != null) return free;
+        while (true) {
+            int index = nextIndex.get();
+            if (index >= maxSeries) {
+                // Checked before incrementing, so readings of untracked sensors cannot overflow the counter
+                if (limitReached.compareAndSet(false, true)) {
+                    LOGGER.warn("Rollup series limit of {} reached, further sensors are not aggregated until idle ones are dropped",
+                            maxSeries);
+                }
+                return -1;
+            }
+            if (nextIndex.compareAndSet(index, index + 1)) return index;
+        }
+    }
+
+    /**
+     * Removes a series and frees its index. Must be called with the series' lock held, so a reader that
+     * fetched the series before its removal sees {@link Series#evicted} once it takes the lock.
+     */
+    private void evict(Series series) {
+        series.evicted = true;
+        seriesByKey.remove(series.key, series);
+        freeIndices.add(series.index);
+        limitReached.set(false);
+        evictedSeries.increment();
+        LOGGER.debug("Dropped idle rollup series of sensor {}", series.sensorId);
+    }
+
+    /**
+     * Must be called with the series' lock held.
+     */
+    private boolean hasOpenWindow(Series series) {
+        for (Resolution resolution : resolutions) {
+            int base = series.index * resolution.slots;
+            for (int slot = base; slot < base + resolution.slots; slot++) {
+                if (resolution.windowStart[slot] != EMPTY) return true;
+            }
+        }
+        return false;
+    }
+
+    private Object lockFor(Series series) {
+        return locks[series.index & (LOCK_STRIPES - 1)];
+    }
+
+    private static int slotOf(Resolution resolution, Series series, long windowStart) {
+        return series.index * resolution.slots
+                + (int) Math.floorMod(windowStart / resolution.sizeMs, (long) resolution.slots);
+    }
+
+    /**
+     * Raises the watermark of a series and emits every window that ends at or before it.
+     * Must be called with the series' lock held.
+     */
+    private void advanceWatermark(Series series, long watermark) {
+        if (watermark <= series.watermark) return;
+        series.watermark = watermark;
+        for (Resolution resolution : resolutions) {
+            int base = series.index * resolution.slots;
+            for (int slot = base; slot < base + resolution.slots; slot++) {
+                long start = resolution.windowStart[slot];
+                if (start != EMPTY && start + resolution.sizeMs <= watermark) {
+                    emit(resolution, series, slot);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands a window to the sink and frees its slot. Must be called with the series' lock held.
+     */
+    private void emit(Resolution resolution, Series series, int slot) {
+        long count = resolution.count[slot];
+        SensorRollup rollup = new SensorRollup(series.sensorId, series.sensorType, series.location,
+                resolution.name, resolution.windowStart[slot], count, resolution.min[slot], resolution.max[slot],
+                resolution.sum[slot] / count, resolution.last[slot]);
+        resolution.windowStart[slot] = EMPTY;
+        try {
+            sink.accept(rollup);
+            emittedWindows.increment();
+        } catch (Exception e) {
+            // Catch exceptions from the sink so a failed write does not break aggregation
+            LOGGER.error("Error emitting {} rollup for sensor {}: {}", resolution.name, series.sensorId, e.getMessage(), e);
+        }
+    }
+
+    private void runSweeper() {
+        while (running) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(SWEEP_INTERVAL_MS);
+                sweep();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                LOGGER.error("Unexpected error in rollup sweeper: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Exports the tracked series and the window, late reading and eviction counters. The values are read on
+     * every scrape.
+     *
+     * @param registry Where to register the metrics.
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.registerGauge("batch_processor_rollup_series", "Sensor series being aggregated",
+                this::getSeriesCount);
+        registry.registerCounter("batch_processor_rollup_windows_total", "Rollup windows written",
+                this::getEmittedWindows);
+        registry.registerCounter("batch_processor_rollup_late_readings_total", "Readings too late for their window",
+                this::getLateReadings);
+        registry.registerCounter("batch_processor_rollup_untracked_readings_total",
+                "Readings not aggregated because the series limit was reached", this::getUntrackedReadings);
+        registry.registerCounter("batch_processor_rollup_evicted_series_total", "Idle series dropped to make room",
+                this::getEvictedSeries);
+    }
+
+    /**
+     * Stops the sweeper and emits every open window, including those not yet complete. A partial window
+     * is overwritten if it is emitted again after a restart.
+     */
+    @Override
+    public void close() {
+        if (!running) return;
+        running = false;
+        sweeper.interrupt();
+        try {
+            sweeper.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Series series : seriesByKey.values()) {
+            synchronized (lockFor(series)) {
+                advanceWatermark(series, Long.MAX_VALUE);
+            }
+        }
+        LOGGER.info("Sensor rollups closed. Windows emitted={}, late readings={}, untracked readings={}",
+                getEmittedWindows(), getLateReadings(), getUntrackedReadings());
+    }
+}
@@ -0,0 +1,285 @@
+package com.tgcannabis.batch_processor.processing;
+
+import com.tgcannabis.batch_processor.config.BatchProcessorConfig;
+import com.tgcannabis.batch_processor.kafka.SensorWindowEncoder;
+import com.tgcannabis.batch_processor.metrics.MetricsRegistry;
+import com.tgcannabis.batch_processor.model.SensorData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Groups each sensor's readings over a short window into one Kafka record, encoded with
+ * {@link SensorWindowEncoder} instead of repeating the full JSON per reading.
+ * <p>
+ * A sensor's window opens with its first reading and is emitted, keyed by sensor ID, once it holds
+ * {@code maxReadings} readings, once it has been open for {@code windowMs} (checked by a background sweeper),
+ * when the sensor's type or location changes, or on {@link #close()}. Windows of one sensor are emitted in order.
+ * Payloads that cannot be parsed are forwarded unchanged, so the Kafka stream may mix both formats; consumers
+ * tell them apart with {@link com.tgcannabis.batch_processor.kafka.SensorWindowDecoder#isWindow}.
+ */
+public class SensorWindowBatcher implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SensorWindowBatcher.class);
+
+    private static final long MAX_SWEEP_INTERVAL_MS = 1_000;
+
+    /**
+     * Format of the records published to Kafka.
+     */
+    public enum Format {
+        /** One record per reading, with the original JSON payload. */
+        JSON,
+        /** One record per sensor window, see {@link SensorWindowEncoder}. */
+        WINDOWED;
+
+        /**
+         * Parses a format name, case-insensitively. A null or blank name maps to {@link #JSON}.
+         *
+         * @param name The configured format name.
+         * @return The matching format.
+         * @throws IllegalArgumentException if the name does not match any format
+         */
+        public static Format parse(String name) {
+            if (name == null || name.isBlank()) return JSON;
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /** A sensor's open window. */
+    private static final class Window {
+        final String sensorId;
+        final SensorWindowEncoder encoder;
+        final long openedNanos = System.nanoTime();
+        long payloadBytes; // Size of the JSON payloads the window replaces
+        boolean emitted;   // Guarded by this
+
+        Window(String sensorId, SensorData first) {
+            this.sensorId = sensorId;
+            this.encoder = new SensorWindowEncoder(sensorId, first.getSensorType(), first.getLocation());
+        }
+    }
+
+    private final long windowNanos;
+    private final int maxReadings;
+    private final BiConsumer<String, byte[]> downstream;
+    private final Map<String, Window> windows = new ConcurrentHashMap<>();
+    private final Thread sweeper;
+    private volatile boolean running = true;
+
+    private final LongAdder readingCount = new LongAdder();
+    private final LongAdder windowCount = new LongAdder();
+    private final LongAdder payloadBytes = new LongAdder();
+    private final LongAdder encodedBytes = new LongAdder();
+    private final LongAdder passedThroughCount = new LongAdder();
+
+    /**
+     * Constructs the batcher from the application configuration.
+     *
+     * @param config     The application configuration. Must not be null.
+     * @param downstream Receives the encoded windows as sensor ID and record value. Must not be null.
+     */
+    public SensorWindowBatcher(BatchProcessorConfig config, BiConsumer<String, byte[]> downstream) {
+        this(Objects.requireNonNull(config, "Configuration cannot be null").getKafkaWindowMs() > 0
+                        ? config.getKafkaWindowMs() : 10_000,
+                config.getKafkaWindowMaxReadings() > 0 ? config.getKafkaWindowMaxReadings() : 256,
+                downstream);
+    }
+
+    /**
+     * Constructs the batcher and starts its sweeper.
+     *
+     * @param windowMs    Longest time a window stays open. Must be positive.
+     * @param maxReadings Readings after which a window is emitted. Must be positive.
+     * @param downstream  Receives the encoded windows as sensor ID and record value. Must not be null.
+     */
+    public SensorWindowBatcher(long windowMs, int maxReadings, BiConsumer<String, byte[]> downstream) {
+        if (windowMs <= 0 || maxReadings <= 0) {
+            throw new IllegalArgumentException("Window length and size must be positive");
+        }
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+        this.maxReadings = maxReadings;
+        this.downstream = Objects.requireNonNull(downstream, "Downstream cannot be null");
+
+        long sweepIntervalMs = Math.clamp(windowMs / 4, 1, MAX_SWEEP_INTERVAL_MS);
+        this.sweeper = new Thread(() -> runSweeper(sweepIntervalMs), "kafka-window-sweeper");
+        this.sweeper.setDaemon(true);
+        this.sweeper.start();
+        LOGGER.info("Kafka windowed records started: window={} ms, maxReadings={}", windowMs, maxReadings);
+    }
+
+    /**
+     * Adds a reading to its sensor's window.
+     *
+     * @param data    The parsed reading. {@code sensorId} must not be null.
+     * @param payload The original payload, only used to account for the bytes saved.
+     */
+    public void accept(SensorData data, byte[] payload) {
+        String sensorId = data.getSensorId();
+        while (true) {
+            Window window = windows.computeIfAbsent(sensorId, id -> new Window(id, data));
+            synchronized (window) {
+                if (window.emitted) continue; // Emitted by the sweeper meanwhile: start a new one
+                if (window.encoder.getCount() > 0 && (!Objects.equals(window.encoder.getSensorType(), data.getSensorType())
+                        || !Objects.equals(window.encoder.getLocation(), data.getLocation()))) {
+                    emit(window); // The header describes the whole window
+                    continue;
+                }
+                window.encoder.add(data.getTimestamp(), data.getValue());
+                window.payloadBytes += payload.length;
+                readingCount.increment();
+                if (window.encoder.getCount() >= maxReadings) {
+                    emit(window);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Adds a reading given as its original payload, e.g. as forwarded by {@link SwingingDoorCompressor}.
+     * Payloads the parser does not handle are forwarded unchanged.
+     *
+     * @param sensorId The sensor ID.
+     * @param payload  The JSON payload.
+     */
+    public void acceptPayload(String sensorId, byte[] payload) {
+        SensorData data = SensorDataParser.parse(payload);
+        if (data == null || data.getSensorId() == null) {
+            passedThroughCount.increment();
+            downstream.accept(sensorId, payload);
+            return;
+        }
+        accept(data, payload);
+    }
+
+    /** Emits a window and removes it. Must hold the window's lock. */
+    private void emit(Window window) {
+        window.emitted = true;
+        windows.remove(window.sensorId, window);
+        byte[] value = window.encoder.toByteArray();
+        windowCount.increment();
+        payloadBytes.add(window.payloadBytes);
+        encodedBytes.add(value.length);
+        try {
+            downstream.accept(window.sensorId, value);
+        } catch (Exception e) {
+            // Catch exceptions from the sink so one failed send does not break batching
+            LOGGER.error("Error emitting Kafka window for sensor {}: {}", window.sensorId, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Emits the windows that have been open for at least the window length, or all of them.
+     *
+     * @param all Whether to emit every open window.
+     */
+    void sweep(boolean all) {
+        long now = System.nanoTime();
+        for (Window window : windows.values()) {
+            if (!all && now - window.openedNanos < windowNanos) continue;
+            synchronized (window) {
+                if (!window.emitted) emit(window);
+            }
+        }
+    }
+
+    private void runSweeper(long intervalMs) {
+        while (running) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(intervalMs);
+                sweep(false);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                LOGGER.error("Unexpected error in Kafka window sweeper: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * @return Windows currently open.
+     */
+    public int getOpenWindows() {
+        return windows.size();
+    }
+
+    /**
+     * @return Readings added to windows.
+     */
+    public long getReadingCount() {
+        return readingCount.sum();
+    }
+
+    /**
+     * @return Windows emitted.
+     */
+    public long getWindowCount() {
+        return windowCount.sum();
+    }
+
+    /**
+     * @return Bytes of the JSON payloads replaced by emitted windows.
+     */
+    public long getPayloadBytes() {
+        return payloadBytes.sum();
+    }
+
+    /**
+     * @return Bytes of the emitted windows.
+     */
+    public long getEncodedBytes() {
+        return encodedBytes.sum();
+    }
+
+    /**
+     * @return Payloads forwarded unchanged because they could not be parsed.
+     */
+    public long getPassedThroughCount() {
+        return passedThroughCount.sum();
+    }
+
+    /**
+     * Exports the open windows and the reading, window and byte counters. The values are read on every scrape.
+     *
+     * @param registry Where to register the metrics.
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.registerGauge("batch_processor_kafka_windows_open", "Sensor windows not yet published to Kafka",
+                this::getOpenWindows);
+        registry.registerCounter("batch_processor_kafka_windows_total", "Windowed records published to Kafka",
+                this::getWindowCount);
+        registry.registerCounter("batch_processor_kafka_window_readings_total", "Readings added to Kafka windows",
+                this::getReadingCount);
+        registry.registerCounter("batch_processor_kafka_window_bytes_total", "Bytes of the readings in published windows",
+                this::getPayloadBytes, "encoding", "json");
+        registry.registerCounter("batch_processor_kafka_window_bytes_total", "Bytes of the readings in published windows",
+                this::getEncodedBytes, "encoding", "windowed");
+    }
+
+    /**
+     * Stops the sweeper and emits every open window.
+     */
+    @Override
+    public void close() {
+        if (!running) return;
+        running = false;
+        sweeper.interrupt();
+        try {
+            sweeper.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sweep(true);
+        LOGGER.info("Kafka windowed records closed. Readings={}, windows={}, bytes {} -> {}",
+                getReadingCount(), getWindowCount(), getPayloadBytes(), getEncodedBytes());
+    }
+}
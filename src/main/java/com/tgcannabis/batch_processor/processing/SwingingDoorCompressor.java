@@ -0,0 +1,471 @@
+package com.tgcannabis.batch_processor.processing;
+
+import com.tgcannabis.batch_processor.config.BatchProcessorConfig;
+import com.tgcannabis.batch_processor.metrics.MetricsRegistry;
+import com.tgcannabis.batch_processor.model.SensorData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Drops readings that add no information before they are forwarded to Kafka.
+ * <p>
+ * Compression is configured per sensor type with an absolute tolerance; readings of types without one pass
+ * through. Two algorithms are available:
+ * <ul>
+ *     <li>{@link Mode#DEADBAND}: a reading is forwarded when it differs from the last forwarded value by more
+ *     than the tolerance.</li>
+ *     <li>{@link Mode#SWINGING_DOOR}: swinging-door trending. The latest reading is held back as long as a
+ *     straight line from the last forwarded reading to it passes within the tolerance of every reading in
+ *     between; when a new reading falls outside that "door", the held reading is forwarded. Linear
+ *     interpolation between forwarded readings reconstructs the signal within the tolerance.</li>
+ * </ul>
+ * In both modes a reading is forwarded at least every {@code maxSilenceMs} of event time, so consumers can
+ * tell a steady sensor from a dead one. Readings that are not newer than the last one seen for their sensor
+ * are forwarded unchanged. A reading held back by the swinging door is also forwarded by a sweeper thread once
+ * it has been held for {@code maxSilenceMs} of wall-clock time, so a sensor that stops reporting does not keep
+ * its last reading from Kafka until the next one or shutdown.
+ * <p>
+ * Per-sensor state lives in open-addressing tables of primitive arrays, split into lock-striped shards.
+ */
+public class SwingingDoorCompressor implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SwingingDoorCompressor.class);
+
+    private static final int SHARDS = 16; // Power of two
+    private static final int INITIAL_SHARD_CAPACITY = 64; // Power of two
+    /** Upper bound on sensors per shard; the shard is reset when it is exceeded. */
+    private static final int MAX_SENSORS_PER_SHARD = 4_096;
+    private static final String ANY_TYPE = "*";
+    private static final long MAX_SWEEP_INTERVAL_MS = 1_000;
+
+    /**
+     * Compression algorithm.
+     */
+    public enum Mode {
+        /** Forward a reading when it moved more than the tolerance since the last forwarded one. */
+        DEADBAND,
+        /** Forward only the readings needed to rebuild the signal by linear interpolation. */
+        SWINGING_DOOR;
+
+        /**
+         * Parses a mode name, case-insensitively. A null or blank name maps to {@link #SWINGING_DOOR}.
+         *
+         * @param name The configured mode name.
+         * @return The matching mode.
+         * @throws IllegalArgumentException if the name does not match any mode
+         */
+        public static Mode parse(String name) {
+            if (name == null || name.isBlank()) return SWINGING_DOOR;
+            return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+
+    /**
+     * Open-addressing table from sensor ID to state, with the state held in parallel primitive arrays.
+     */
+    private static final class Shard {
+        String[] sensorIds;
+        double[] tolerance;
+        long[] archivedTimestamp; // Last forwarded reading
+        double[] archivedValue;
+        long[] heldTimestamp;     // Reading held back by the swinging door; heldPayload[i] == null if none
+        double[] heldValue;
+        byte[][] heldPayload;
+        long[] heldAtNanos;       // Wall-clock time the held reading arrived
+        double[] slopeLow;        // Door: steepest lower and flattest upper slope seen since the archive
+        double[] slopeHigh;
+        int size;
+
+        Shard() {
+            allocate(INITIAL_SHARD_CAPACITY);
+        }
+
+        void allocate(int capacity) {
+            sensorIds = new String[capacity];
+            tolerance = new double[capacity];
+            archivedTimestamp = new long[capacity];
+            archivedValue = new double[capacity];
+            heldTimestamp = new long[capacity];
+            heldValue = new double[capacity];
+            heldPayload = new byte[capacity][];
+            heldAtNanos = new long[capacity];
+            slopeLow = new double[capacity];
+            slopeHigh = new double[capacity];
+            size = 0;
+        }
+
+        /** @return The slot holding the sensor, or the empty slot where it belongs (as {@code -slot - 1}). */
+        int find(String sensorId, int hash) {
+            int mask = sensorIds.length - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                String existing = sensorIds[slot];
+                if (existing == null) return -slot - 1;
+                if (existing.equals(sensorId)) return slot;
+            }
+        }
+
+        void grow() {
+            String[] ids = sensorIds;
+            double[] tol = tolerance;
+            long[] aTs = archivedTimestamp;
+            double[] aV = archivedValue;
+            long[] hTs = heldTimestamp;
+            double[] hV = heldValue;
+            byte[][] hP = heldPayload;
+            long[] hAt = heldAtNanos;
+            double[] sLow = slopeLow;
+            double[] sHigh = slopeHigh;
+            allocate(ids.length * 2);
+            for (int old = 0; old < ids.length; old++) {
+                if (ids[old] == null) continue;
+                int slot = -find(ids[old], spread(ids[old].hashCode())) - 1;
+                sensorIds[slot] = ids[old];
+                tolerance[slot] = tol[old];
+                archivedTimestamp[slot] = aTs[old];
+                archivedValue[slot] = aV[old];
+                heldTimestamp[slot] = hTs[old];
+                heldValue[slot] = hV[old];
+                heldPayload[slot] = hP[old];
+                heldAtNanos[slot] = hAt[old];
+                slopeLow[slot] = sLow[old];
+                slopeHigh[slot] = sHigh[old];
+                size++;
+            }
+        }
+    }
+
+    private final Mode mode;
+    private final Map<String, Double> tolerances;
+    private final double defaultTolerance;
+    private final long maxSilenceMs;
+    private final long maxSilenceNanos;
+    private final BiConsumer<String, byte[]> downstream;
+    private final LongSupplier nanoClock;
+    private final Shard[] shards = new Shard[SHARDS];
+    private final Thread sweeper; // Null unless a swinging door with a bounded silence interval holds readings
+    private volatile boolean running = true;
+
+    private final LongAdder forwardedCount = new LongAdder();
+    private final LongAdder suppressedCount = new LongAdder();
+
+    /**
+     * Constructs the compressor from the application configuration.
+     *
+     * @param config     The application configuration. Must not be null.
+     * @param downstream Receives the forwarded readings as sensor ID and original payload. Must not be null.
+     */
+    public SwingingDoorCompressor(BatchProcessorConfig config, BiConsumer<String, byte[]> downstream) {
+        this(Mode.parse(Objects.requireNonNull(config, "Configuration cannot be null").getKafkaCompressionMode()),
+                parseTolerances(config.getKafkaCompressionTolerances()),
+                config.getKafkaCompressionMaxSilenceMs() > 0 ? config.getKafkaCompressionMaxSilenceMs() : Long.MAX_VALUE,
+                downstream);
+    }
+
+    /**
+     * Constructs the compressor. In swinging-door mode with a bounded silence interval, a sweeper thread is
+     * started that forwards readings held for longer than that interval.
+     *
+     * @param mode         The compression algorithm. Must not be null.
+     * @param tolerances   Absolute tolerance per sensor type; the key {@code *} applies to all other types.
+     *                     Types without a tolerance are not compressed. Must not be null.
+     * @param maxSilenceMs Maximum event time between two forwarded readings of a sensor. Must be positive.
+     * @param downstream   Receives the forwarded readings as sensor ID and original payload. Must not be null.
+     */
+    public SwingingDoorCompressor(Mode mode, Map<String, Double> tolerances, long maxSilenceMs,
+                                  BiConsumer<String, byte[]> downstream) {
+        this(mode, tolerances, maxSilenceMs, downstream, System::nanoTime, true);
+    }
+
+    SwingingDoorCompressor(Mode mode, Map<String, Double> tolerances, long maxSilenceMs,
+                           BiConsumer<String, byte[]> downstream, LongSupplier nanoClock, boolean startSweeper) {
+        if (maxSilenceMs <= 0) throw new IllegalArgumentException("Max silence interval must be positive");
+        this.mode = Objects.requireNonNull(mode, "Compression mode cannot be null");
+        this.tolerances = Map.copyOf(Objects.requireNonNull(tolerances, "Tolerances cannot be null"));
+        for (double tolerance : this.tolerances.values()) {
+            if (!(tolerance >= 0)) throw new IllegalArgumentException("Tolerances must not be negative");
+        }
+        this.defaultTolerance = this.tolerances.getOrDefault(ANY_TYPE, Double.NaN);
+        this.maxSilenceMs = maxSilenceMs;
+        this.maxSilenceNanos = TimeUnit.MILLISECONDS.toNanos(maxSilenceMs);
+        this.downstream = Objects.requireNonNull(downstream, "Downstream cannot be null");
+        this.nanoClock = Objects.requireNonNull(nanoClock, "Clock cannot be null");
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+        }
+        if (startSweeper && mode == Mode.SWINGING_DOOR && maxSilenceMs != Long.MAX_VALUE) {
+            long sweepIntervalMs = Math.clamp(maxSilenceMs / 4, 1, MAX_SWEEP_INTERVAL_MS);
+            this.sweeper = new Thread(() -> runSweeper(sweepIntervalMs), "kafka-compression-sweeper");
+            this.sweeper.setDaemon(true);
+            this.sweeper.start();
+        } else {
+            this.sweeper = null;
+        }
+        LOGGER.info("Kafka compression started: mode={}, tolerances={}, maxSilence={} ms", mode, tolerances, maxSilenceMs);
+    }
+
+    /**
+     * Parses {@code sensorType=tolerance} pairs separated by commas, e.g. {@code soil_moisture=0.5,*=0.1}.
+     *
+     * @param spec The configured tolerances. Null or blank yields an empty map.
+     * @return The tolerance per sensor type.
+     * @throws IllegalArgumentException if an entry is malformed
+     */
+    public static Map<String, Double> parseTolerances(String spec) {
+        Map<String, Double> tolerances = new HashMap<>();
+        if (spec == null || spec.isBlank()) return tolerances;
+        for (String entry : spec.split(",")) {
+            if (entry.isBlank()) continue;
+            int separator = entry.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Invalid compression tolerance '" + entry.trim()
+                        + "', expected sensorType=tolerance");
+            }
+            try {
+                tolerances.put(entry.substring(0, separator).trim(), Double.parseDouble(entry.substring(separator + 1).trim()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid compression tolerance '" + entry.trim() + "'", e);
+            }
+        }
+        return tolerances;
+    }
+
+    /**
+     * Forwards the reading, or the readings it makes necessary, to the downstream consumer.
+     *
+     * @param data    The parsed reading. {@code sensorId} must not be null.
+     * @param payload The original payload, forwarded (possibly later) instead of the parsed reading.
+     */
+    public void accept(SensorData data, byte[] payload) {
+        String sensorId = data.getSensorId();
+        double tolerance = toleranceFor(data.getSensorType());
+        double value = data.getValue();
+        if (Double.isNaN(tolerance) || !Double.isFinite(value)) {
+            forward(sensorId, payload); // Not compressed
+            return;
+        }
+
+        int hash = spread(sensorId.hashCode());
+        Shard shard = shards[hash & (SHARDS - 1)];
+        synchronized (shard) {
+            int slot = shard.find(sensorId, hash);
+            if (slot < 0) {
+                slot = insert(shard, sensorId, hash);
+                shard.tolerance[slot] = tolerance;
+                archive(shard, slot, data.getTimestamp(), value);
+                forward(sensorId, payload);
+                return;
+            }
+            long timestamp = data.getTimestamp();
+            long latest = shard.heldPayload[slot] != null ? shard.heldTimestamp[slot] : shard.archivedTimestamp[slot];
+            if (timestamp <= latest) {
+                forward(sensorId, payload); // Out of order or repeated: leave the state alone
+                return;
+            }
+            shard.tolerance[slot] = tolerance;
+            if (mode == Mode.DEADBAND) {
+                deadband(shard, slot, sensorId, timestamp, value, payload);
+            } else {
+                swingingDoor(shard, slot, sensorId, timestamp, value, payload);
+            }
+        }
+    }
+
+    private void deadband(Shard shard, int slot, String sensorId, long timestamp, double value, byte[] payload) {
+        if (Math.abs(value - shard.archivedValue[slot]) > shard.tolerance[slot]
+                || timestamp - shard.archivedTimestamp[slot] >= maxSilenceMs) {
+            archive(shard, slot, timestamp, value);
+            forward(sensorId, payload);
+        } else {
+            suppressedCount.increment();
+        }
+    }
+
+    private void swingingDoor(Shard shard, int slot, String sensorId, long timestamp, double value, byte[] payload) {
+        if (shard.heldPayload[slot] != null) {
+            if (fitsDoor(shard, slot, timestamp, value)) {
+                suppressedCount.increment(); // The held reading is covered by a line to the new one
+            } else {
+                // Door closed: the held reading is the last one a line from the archive could reach
+                forward(sensorId, shard.heldPayload[slot]);
+                archive(shard, slot, shard.heldTimestamp[slot], shard.heldValue[slot]);
+            }
+        }
+        narrowDoor(shard, slot, timestamp, value); // Any later end point must pass within tolerance of this one
+        shard.heldTimestamp[slot] = timestamp;
+        shard.heldValue[slot] = value;
+        shard.heldPayload[slot] = payload;
+        shard.heldAtNanos[slot] = nanoClock.getAsLong();
+
+        if (timestamp - shard.archivedTimestamp[slot] >= maxSilenceMs) {
+            // A line to this reading is within tolerance of everything skipped, so it can end the segment
+            archive(shard, slot, timestamp, value);
+            forward(sensorId, payload);
+        }
+    }
+
+    /**
+     * @return {@code true} if a line from the archived reading to this one passes within tolerance of every
+     * reading since the archive.
+     */
+    private static boolean fitsDoor(Shard shard, int slot, long timestamp, double value) {
+        double slope = (value - shard.archivedValue[slot]) / (timestamp - shard.archivedTimestamp[slot]);
+        return slope >= shard.slopeLow[slot] && slope <= shard.slopeHigh[slot];
+    }
+
+    /**
+     * Narrows the door to the slopes of lines from the archived reading that pass within tolerance of this one.
+     */
+    private static void narrowDoor(Shard shard, int slot, long timestamp, double value) {
+        double dt = timestamp - shard.archivedTimestamp[slot];
+        double tolerance = shard.tolerance[slot];
+        shard.slopeLow[slot] = Math.max(shard.slopeLow[slot], (value - tolerance - shard.archivedValue[slot]) / dt);
+        shard.slopeHigh[slot] = Math.min(shard.slopeHigh[slot], (value + tolerance - shard.archivedValue[slot]) / dt);
+    }
+
+    private static void archive(Shard shard, int slot, long timestamp, double value) {
+        shard.archivedTimestamp[slot] = timestamp;
+        shard.archivedValue[slot] = value;
+        shard.heldPayload[slot] = null;
+        shard.slopeLow[slot] = Double.NEGATIVE_INFINITY;
+        shard.slopeHigh[slot] = Double.POSITIVE_INFINITY;
+    }
+
+    private int insert(Shard shard, String sensorId, int hash) {
+        if (shard.size >= MAX_SENSORS_PER_SHARD) {
+            flushHeld(shard); // Crude but bounded: forward what is held, then start over
+            shard.allocate(INITIAL_SHARD_CAPACITY);
+        } else if ((shard.size + 1) * 2 > shard.sensorIds.length) {
+            shard.grow(); // Keep the load factor at or below one half
+        }
+        int slot = -shard.find(sensorId, hash) - 1;
+        shard.sensorIds[slot] = sensorId;
+        shard.size++;
+        return slot;
+    }
+
+    private double toleranceFor(String sensorType) {
+        if (sensorType == null) return defaultTolerance;
+        Double tolerance = tolerances.get(sensorType);
+        return tolerance != null ? tolerance : defaultTolerance;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private void forward(String sensorId, byte[] payload) {
+        forwardedCount.increment();
+        downstream.accept(sensorId, payload);
+    }
+
+    private void flushHeld(Shard shard) {
+        for (int slot = 0; slot < shard.sensorIds.length; slot++) {
+            if (shard.heldPayload[slot] != null) {
+                forward(shard.sensorIds[slot], shard.heldPayload[slot]);
+                shard.heldPayload[slot] = null;
+            }
+        }
+    }
+
+    /**
+     * Forwards and archives readings that have been held for at least the silence interval of wall-clock time.
+     */
+    void sweep() {
+        long now = nanoClock.getAsLong();
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                for (int slot = 0; slot < shard.sensorIds.length; slot++) {
+                    if (shard.heldPayload[slot] != null && now - shard.heldAtNanos[slot] >= maxSilenceNanos) {
+                        forward(shard.sensorIds[slot], shard.heldPayload[slot]);
+                        archive(shard, slot, shard.heldTimestamp[slot], shard.heldValue[slot]);
+                    }
+                }
+            }
+        }
+    }
+
+    private void runSweeper(long intervalMs) {
+        while (running) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(intervalMs);
+                sweep();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                LOGGER.error("Unexpected error in Kafka compression sweeper: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * @return Readings forwarded downstream.
+     */
+    public long getForwardedCount() {
+        return forwardedCount.sum();
+    }
+
+    /**
+     * @return Readings dropped because they were within tolerance.
+     */
+    public long getSuppressedCount() {
+        return suppressedCount.sum();
+    }
+
+    /**
+     * @return Number of sensors with compression state.
+     */
+    public int getTrackedSensors() {
+        int total = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                total += shard.size;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Exports the forwarded and suppressed reading counters. The values are read on every scrape.
+     *
+     * @param registry Where to register the metrics.
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.registerCounter("batch_processor_kafka_compression_readings_total", "Readings seen by the Kafka compressor",
+                this::getForwardedCount, "outcome", "forwarded");
+        registry.registerCounter("batch_processor_kafka_compression_readings_total", "Readings seen by the Kafka compressor",
+                this::getSuppressedCount, "outcome", "suppressed");
+    }
+
+    /**
+     * Stops the sweeper and forwards every reading still held back by the swinging door, so the signal's tail
+     * is not lost on shutdown.
+     */
+    @Override
+    public void close() {
+        running = false;
+        if (sweeper != null) {
+            sweeper.interrupt();
+            try {
+                sweeper.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                flushHeld(shard);
+            }
+        }
+        LOGGER.info("Kafka compression closed. Forwarded={}, Suppressed={}", getForwardedCount(), getSuppressedCount());
+    }
+}
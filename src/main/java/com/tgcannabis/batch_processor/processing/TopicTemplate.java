@@ -0,0 +1,201 @@
+package com.tgcannabis.batch_processor.processing;
+
+import com.tgcannabis.batch_processor.model.SensorData;
+import com.tgcannabis.batch_processor.model.TagDictionary;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Extracts {@link SensorData} identifiers from MQTT topics, so payloads may carry only the value and timestamp.
+ * <p>
+ * Templates are topic patterns whose segments are literals, the placeholders {@code {sensorType}},
+ * {@code {location}} and {@code {sensorId}}, {@code +} for any one segment, or a trailing {@code #} for any
+ * remaining segments, e.g. {@code sensors/{location}/{sensorType}/{sensorId}}. All templates are compiled once into
+ * a trie of segments; a topic is matched against it by walking its segments, preferring literals to placeholders
+ * and backtracking when a branch fails, so a more literal template wins over a more generic one.
+ * <p>
+ * Results are cached per topic, including misses. A cached result holds one canonical instance of the topic and of
+ * each extracted segment, taken from the {@link TagDictionary} and shared by every message on that topic, so a repeated topic allocates nothing and
+ * downstream caches compare the strings by identity first.
+ */
+public final class TopicTemplate {
+
+    /** Upper bound on cached topics; the cache is reset when it is exceeded. */
+    private static final int MAX_CACHED_TOPICS = 65_536;
+
+    private static final int FIELD_SENSOR_TYPE = 0;
+    private static final int FIELD_LOCATION = 1;
+    private static final int FIELD_SENSOR_ID = 2;
+    private static final int FIELD_IGNORED = 3;
+    private static final int FIELD_COUNT = 3;
+
+    /**
+     * Identifiers extracted from a topic. Fields the matching template does not capture are null.
+     *
+     * @param topic      The canonical instance of the topic.
+     * @param sensorType The sensor type segment.
+     * @param location   The location segment.
+     * @param sensorId   The sensor ID segment.
+     */
+    public record Fields(String topic, String sensorType, String location, String sensorId) {
+
+        /**
+         * Sets the fields the payload did not carry. Values from the payload take precedence.
+         *
+         * @param data The deserialized reading.
+         * @return Whether any field was filled in.
+         */
+        public boolean fillIn(SensorData data) {
+            boolean filled = false;
+            if (data.getSensorType() == null && sensorType != null) {
+                data.setSensorType(sensorType);
+                filled = true;
+            }
+            if (data.getLocation() == null && location != null) {
+                data.setLocation(location);
+                filled = true;
+            }
+            if (data.getSensorId() == null && sensorId != null) {
+                data.setSensorId(sensorId);
+                filled = true;
+            }
+            return filled;
+        }
+    }
+
+    /** Cached marker for topics no template matches. */
+    private static final Fields NO_MATCH = new Fields(null, null, null, null);
+
+    /** A trie node: the templates sharing a prefix of segments. */
+    private static final class Node {
+        final Map<String, Node> literals = new HashMap<>();
+        final Node[] placeholders = new Node[FIELD_COUNT + 1]; // Indexed by captured field
+        boolean terminal;   // A template ends here
+        boolean multiLevel; // A template ends here with '#'
+    }
+
+    private final Node root = new Node();
+    private final List<String> templates = new ArrayList<>();
+    private final Map<String, Fields> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Compiles comma-separated templates.
+     *
+     * @param spec The templates, e.g. {@code "sensors/{location}/{sensorType}/{sensorId},gw/+/{sensorId}"}.
+     * @throws IllegalArgumentException if a template is empty or has an unknown placeholder
+     */
+    public TopicTemplate(String spec) {
+        for (String template : spec.split(",")) {
+            add(template.trim());
+        }
+    }
+
+    /**
+     * Compiles templates from the configuration.
+     *
+     * @param spec The configured templates; {@code null} or blank disables extraction.
+     * @return The compiled templates, or {@code null} if none are configured.
+     */
+    public static TopicTemplate parse(String spec) {
+        return spec == null || spec.isBlank() ? null : new TopicTemplate(spec);
+    }
+
+    private void add(String template) {
+        if (template.isEmpty()) throw new IllegalArgumentException("Empty topic template");
+        String[] segments = template.split("/", -1);
+        Node node = root;
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if (segment.equals("#")) {
+                if (i != segments.length - 1) {
+                    throw new IllegalArgumentException("'#' must be the last segment of topic template " + template);
+                }
+                node.multiLevel = true;
+                templates.add(template);
+                return;
+            }
+            int field = field(segment, template);
+            node = field >= 0
+                    ? (node.placeholders[field] != null ? node.placeholders[field] : (node.placeholders[field] = new Node()))
+                    : node.literals.computeIfAbsent(segment, s -> new Node());
+        }
+        node.terminal = true;
+        templates.add(template);
+    }
+
+    private static int field(String segment, String template) {
+        return switch (segment) {
+            case "{sensorType}" -> FIELD_SENSOR_TYPE;
+            case "{location}" -> FIELD_LOCATION;
+            case "{sensorId}" -> FIELD_SENSOR_ID;
+            case "+" -> FIELD_IGNORED;
+            default -> {
+                if (segment.contains("{") || segment.contains("}") || segment.contains("+")) {
+                    throw new IllegalArgumentException("Unknown placeholder '" + segment + "' in topic template " + template);
+                }
+                yield -1;
+            }
+        };
+    }
+
+    /**
+     * Matches a topic against the templates.
+     *
+     * @param topic The MQTT topic. May be null.
+     * @return The extracted identifiers, or {@code null} if no template matches.
+     */
+    public Fields match(String topic) {
+        if (topic == null) return null;
+        Fields fields = cache.get(topic);
+        if (fields == null) {
+            if (cache.size() >= MAX_CACHED_TOPICS) {
+                cache.clear(); // Crude but bounded: the live topics re-warm quickly
+            }
+            fields = cache.computeIfAbsent(topic, this::resolve);
+        }
+        return fields == NO_MATCH ? null : fields;
+    }
+
+    private Fields resolve(String topic) {
+        String[] segments = topic.split("/", -1);
+        String[] captured = new String[FIELD_COUNT];
+        if (!walk(root, segments, 0, captured)) return NO_MATCH;
+        TagDictionary tags = TagDictionary.getDefault(); // Segments shared by many topics get one instance
+        return new Fields(tags.canonical(topic), tags.canonical(captured[FIELD_SENSOR_TYPE]),
+                tags.canonical(captured[FIELD_LOCATION]), tags.canonical(captured[FIELD_SENSOR_ID]));
+    }
+
+    private static boolean walk(Node node, String[] segments, int index, String[] captured) {
+        if (index == segments.length) return node.terminal || node.multiLevel; // As in MQTT, "a/#" also matches "a"
+        String segment = segments[index];
+        Node literal = node.literals.get(segment);
+        if (literal != null && walk(literal, segments, index + 1, captured)) return true;
+        if (!segment.isEmpty()) {
+            for (int field = 0; field <= FIELD_COUNT; field++) {
+                Node child = node.placeholders[field];
+                if (child == null) continue;
+                String previous = field < FIELD_COUNT ? captured[field] : null;
+                if (field < FIELD_COUNT) captured[field] = segment;
+                if (walk(child, segments, index + 1, captured)) return true;
+                if (field < FIELD_COUNT) captured[field] = previous;
+            }
+        }
+        return node.multiLevel;
+    }
+
+    /**
+     * @return Number of topics whose match is currently cached.
+     */
+    public int getCachedTopicCount() {
+        return cache.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.join(",", templates);
+    }
+}
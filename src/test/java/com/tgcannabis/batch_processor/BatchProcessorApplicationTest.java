@@ -6,6 +6,7 @@ import com.tgcannabis.batch_processor.kafka.KafkaService;
 import com.tgcannabis.batch_processor.mqtt.MqttService;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
 
 import java.util.concurrent.TimeUnit;
 
@@ -52,6 +53,10 @@ class BatchProcessorApplicationTest {
             verify(mockKafkaService).close();
             verify(mockInfluxService).close();
         });
+        InOrder order = inOrder(mockMqttService, mockKafkaService);
+        order.verify(mockMqttService).stopIntake(); // Before the pipeline drains
+        order.verify(mockMqttService).close(); // After it, so the drained messages are acknowledged
+        order.verify(mockKafkaService).close();
 
         appThread.join(2000);
     }
@@ -5,6 +5,8 @@ import io.github.cdimascio.dotenv.DotenvBuilder;
 import org.junit.jupiter.api.Test;
 import org.mockito.MockedStatic;
 
+import java.util.Map;
+
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
 
@@ -88,4 +90,76 @@ class BatchProcessorConfigTest {
         }
     }
 
+    @Test
+    void shouldPreferExplicitOverrides() {
+        Dotenv mockDotenv = mock(Dotenv.class);
+        DotenvBuilder mockBuilder = mock(DotenvBuilder.class);
+
+        try (MockedStatic<Dotenv> dotenvStatic = mockStatic(Dotenv.class)) {
+            dotenvStatic.when(Dotenv::configure).thenReturn(mockBuilder);
+            when(mockBuilder.ignoreIfMissing()).thenReturn(mockBuilder);
+            when(mockBuilder.load()).thenReturn(mockDotenv);
+
+            when(mockDotenv.get("INFLUX_TOKEN")).thenReturn("token");
+            when(mockDotenv.get("INFLUX_BUCKET")).thenReturn("bucket");
+            when(mockDotenv.get("PIPELINE_WORKERS")).thenReturn("2");
+
+            BatchProcessorConfig config = new BatchProcessorConfig(
+                    Map.of("INFLUX_ORG", "override-org", "PIPELINE_WORKERS", "8"));
+
+            assertEquals("override-org", config.getInfluxOrg());
+            assertEquals("bucket", config.getInfluxBucket());
+            assertEquals(8, config.getPipelineWorkers());
+            assertEquals(1000, config.getInfluxBatchSize());
+        }
+    }
+
+    @Test
+    void shouldDeriveStableClientIdFromInstanceId() {
+        Dotenv mockDotenv = mock(Dotenv.class);
+        DotenvBuilder mockBuilder = mock(DotenvBuilder.class);
+
+        try (MockedStatic<Dotenv> dotenvStatic = mockStatic(Dotenv.class)) {
+            dotenvStatic.when(Dotenv::configure).thenReturn(mockBuilder);
+            when(mockBuilder.ignoreIfMissing()).thenReturn(mockBuilder);
+            when(mockBuilder.load()).thenReturn(mockDotenv);
+
+            when(mockDotenv.get("INFLUX_TOKEN")).thenReturn("token");
+            when(mockDotenv.get("INFLUX_ORG")).thenReturn("org");
+            when(mockDotenv.get("INFLUX_BUCKET")).thenReturn("bucket");
+
+            BatchProcessorConfig config = new BatchProcessorConfig(Map.of("INSTANCE_ID", "node-7"));
+            BatchProcessorConfig restarted = new BatchProcessorConfig(Map.of("INSTANCE_ID", "node-7"));
+
+            assertEquals("batch-processor-node-7", config.getMqttClientId());
+            assertEquals(config.getMqttClientId(), restarted.getMqttClientId());
+            assertEquals("", config.getMqttSharedGroup());
+            assertEquals("batch-processor/instances", config.getMqttLoadReportTopic());
+            assertTrue(new BatchProcessorConfig().getInstanceId().endsWith("-" + ProcessHandle.current().pid()));
+        }
+    }
+
+    @Test
+    void shouldRequireInstanceIdForSharedGroupsAndPersistentSessions() {
+        Dotenv mockDotenv = mock(Dotenv.class);
+        DotenvBuilder mockBuilder = mock(DotenvBuilder.class);
+
+        try (MockedStatic<Dotenv> dotenvStatic = mockStatic(Dotenv.class)) {
+            dotenvStatic.when(Dotenv::configure).thenReturn(mockBuilder);
+            when(mockBuilder.ignoreIfMissing()).thenReturn(mockBuilder);
+            when(mockBuilder.load()).thenReturn(mockDotenv);
+
+            when(mockDotenv.get("INFLUX_TOKEN")).thenReturn("token");
+            when(mockDotenv.get("INFLUX_ORG")).thenReturn("org");
+            when(mockDotenv.get("INFLUX_BUCKET")).thenReturn("bucket");
+
+            assertThrows(IllegalArgumentException.class,
+                    () -> new BatchProcessorConfig(Map.of("MQTT_SHARED_GROUP", "processors")));
+            assertThrows(IllegalArgumentException.class,
+                    () -> new BatchProcessorConfig(Map.of("MQTT_PERSISTENCE_DIR", "data/mqtt")));
+            BatchProcessorConfig config = new BatchProcessorConfig(
+                    Map.of("MQTT_SHARED_GROUP", "processors", "INSTANCE_ID", "node-7"));
+            assertEquals("batch-processor-node-7", config.getMqttClientId());
+        }
+    }
 }
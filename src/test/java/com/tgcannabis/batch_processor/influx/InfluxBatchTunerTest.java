@@ -0,0 +1,118 @@
+package com.tgcannabis.batch_processor.influx;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InfluxBatchTunerTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long MILLISECOND = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Feeds the tuner a number of one-second periods with the given traffic and returns the time of the last one.
+     */
+    private static long run(InfluxBatchTuner tuner, long start, int periods, int arrivals, int writes,
+                            int failures, long latencyNanos) {
+        long now = start;
+        for (int p = 0; p < periods; p++) {
+            tuner.recordArrival(arrivals);
+            for (int w = 0; w < writes; w++) {
+                tuner.recordWrite(latencyNanos, w < failures);
+            }
+            now += SECOND;
+            tuner.adjust(now);
+        }
+        return now;
+    }
+
+    @Test
+    void shouldKeepFixedValues() {
+        InfluxBatchTuner tuner = InfluxBatchTuner.fixed(1000, 1000);
+
+        run(tuner, System.nanoTime(), 5, 100_000, 10, 0, 900 * MILLISECOND);
+
+        assertFalse(tuner.isAdaptive());
+        assertEquals(1000, tuner.getBatchSize());
+        assertEquals(1000, tuner.getFlushIntervalMs());
+        assertEquals(100_000, tuner.getArrivalRate(), 1_000);
+    }
+
+    @Test
+    void shouldFlushQuicklyWhenTrafficIsLight() {
+        InfluxBatchTuner tuner = new InfluxBatchTuner(1000, 1000, 100, 10_000, 50, 5000);
+
+        run(tuner, System.nanoTime(), 10, 10, 5, 0, 5 * MILLISECOND);
+
+        assertTrue(tuner.isAdaptive());
+        assertEquals(50, tuner.getFlushIntervalMs());
+        assertEquals(100, tuner.getBatchSize());
+    }
+
+    @Test
+    void shouldGrowBatchesWhenWritesAreSlowUnderLoad() {
+        InfluxBatchTuner tuner = new InfluxBatchTuner(1000, 1000, 100, 10_000, 50, 5000);
+
+        run(tuner, System.nanoTime(), 10, 50_000, 2, 0, 800 * MILLISECOND);
+
+        assertEquals(1600, tuner.getFlushIntervalMs(), 1);
+        assertEquals(10_000, tuner.getBatchSize());
+        assertEquals(800, tuner.getWriteLatencyMs(), 1);
+    }
+
+    @Test
+    void shouldMoveAtMostAFactorOfTwoPerPeriod() {
+        InfluxBatchTuner tuner = new InfluxBatchTuner(1000, 1000, 100, 10_000, 50, 5000);
+
+        run(tuner, System.nanoTime(), 1, 10, 5, 0, MILLISECOND);
+
+        assertEquals(500, tuner.getFlushIntervalMs());
+        assertEquals(500, tuner.getBatchSize());
+    }
+
+    @Test
+    void shouldBackOffWhileWritesFail() {
+        InfluxBatchTuner tuner = new InfluxBatchTuner(1000, 1000, 100, 10_000, 50, 5000);
+
+        long now = run(tuner, System.nanoTime(), 1, 1000, 10, 5, 400 * MILLISECOND);
+        assertEquals(500, tuner.getBatchSize());
+        assertEquals(2000, tuner.getFlushIntervalMs());
+        assertEquals(0.15, tuner.getErrorRate(), 1e-9); // Smoothed from a zero prior
+
+        // Circuit open: no writes reach InfluxDB, so the stale error rate must not keep shrinking batches
+        run(tuner, now, 3, 1000, 0, 0, 0);
+        assertEquals(500, tuner.getBatchSize());
+        assertEquals(2000, tuner.getFlushIntervalMs());
+    }
+
+    @Test
+    void shouldOnlyAdjustOncePerPeriod() {
+        InfluxBatchTuner tuner = new InfluxBatchTuner(1000, 1000, 100, 10_000, 50, 5000);
+        long start = System.nanoTime();
+
+        tuner.recordArrival(10);
+        tuner.recordWrite(MILLISECOND, false);
+        tuner.adjust(start + SECOND / 2);
+
+        assertEquals(1000, tuner.getBatchSize());
+        assertEquals(0, tuner.getArrivalRate());
+    }
+
+    @Test
+    void shouldClampInitialValuesToLimits() {
+        InfluxBatchTuner tuner = new InfluxBatchTuner(50_000, 10, 100, 10_000, 50, 5000);
+
+        assertEquals(10_000, tuner.getBatchSize());
+        assertEquals(50, tuner.getFlushIntervalMs());
+    }
+
+    @Test
+    void shouldRejectInvalidLimits() {
+        assertThrows(IllegalArgumentException.class, () -> new InfluxBatchTuner(1000, 1000, 0, 10_000, 50, 5000));
+        assertThrows(IllegalArgumentException.class, () -> new InfluxBatchTuner(1000, 1000, 100, 99, 50, 5000));
+        assertThrows(IllegalArgumentException.class, () -> new InfluxBatchTuner(1000, 1000, 100, 10_000, 0, 5000));
+        assertThrows(IllegalArgumentException.class, () -> new InfluxBatchTuner(1000, 1000, 100, 10_000, 50, 49));
+    }
+}
@@ -0,0 +1,143 @@
+package com.tgcannabis.batch_processor.influx;
+
+import com.influxdb.exceptions.BadRequestException;
+import com.influxdb.exceptions.InfluxException;
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import retrofit2.Response;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
+
+class InfluxBatchWriterTest {
+
+    @TempDir
+    Path dir;
+
+    private final List<String> written = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean influxDown = new AtomicBoolean();
+    private InfluxBatchWriter writer;
+
+    private void sink(String lineProtocol) {
+        if (influxDown.get()) throw new InfluxException("connection refused");
+        written.add(lineProtocol);
+    }
+
+    private static BadRequestException badRequest() {
+        return new BadRequestException(Response.error(400, ResponseBody.create("unable to parse", MediaType.get("text/plain"))));
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (writer != null) writer.close();
+    }
+
+    @Test
+    void shouldWriteFullBatchesAsOneRecord() {
+        writer = new InfluxBatchWriter(this::sink, null, 3, 60_000, 4);
+
+        for (int i = 0; i < 7; i++) {
+            writer.add("m value=" + i + " " + i, 1);
+        }
+
+        await().atMost(5, TimeUnit.SECONDS).until(() -> written.size() == 2);
+        assertEquals("m value=0 0\nm value=1 1\nm value=2 2", written.get(0));
+        assertEquals(6, writer.getWrittenLines()); // Last record waits for its batch to fill or time out
+    }
+
+    @Test
+    void shouldWritePartialBatchAfterFlushInterval() {
+        writer = new InfluxBatchWriter(this::sink, null, 1000, 50, 4);
+
+        writer.add("m value=1 1", 1);
+
+        await().atMost(5, TimeUnit.SECONDS).until(() -> written.size() == 1);
+        assertEquals("m value=1 1", written.get(0));
+    }
+
+    @Test
+    void shouldWriteEverythingOnFlush() {
+        writer = new InfluxBatchWriter(this::sink, null, 1000, 60_000, 4);
+
+        writer.add("m value=1 1\nm value=2 2", 2);
+        writer.flush();
+
+        assertEquals(List.of("m value=1 1\nm value=2 2"), written);
+        assertEquals(2, writer.getWrittenLines());
+    }
+
+    @Test
+    void shouldSpillWhenInfluxIsDownAndSkipItWhileCircuitIsOpen() {
+        InfluxSpillBuffer spill = new InfluxSpillBuffer(dir, 1024 * 1024, 64 * 1024);
+        writer = new InfluxBatchWriter(this::sink, spill, 1, 60_000, 4);
+        influxDown.set(true);
+
+        writer.add("m value=1 1", 1);
+        writer.flush();
+        assertTrue(writer.isDegraded());
+
+        influxDown.set(false);
+        writer.add("m value=2 2", 1);
+        writer.flush();
+
+        assertTrue(written.isEmpty()); // Circuit open: no write attempt until the backoff has elapsed
+        assertEquals(2, writer.getSpilledLines());
+        assertFalse(spill.isEmpty());
+        assertTrue(writer.isIdle());
+        spill.close();
+    }
+
+    @Test
+    void shouldDropWhenNoSpillBufferIsAvailable() {
+        writer = new InfluxBatchWriter(this::sink, null, 1, 60_000, 4);
+        influxDown.set(true);
+
+        writer.add("m value=1 1", 1);
+        writer.flush();
+        influxDown.set(false);
+        writer.add("m value=2 2", 1);
+        writer.flush();
+
+        assertEquals(2, writer.getDroppedLines()); // Second batch fails fast while the circuit is open
+        assertTrue(written.isEmpty());
+    }
+
+    @Test
+    void shouldDropBatchesInfluxRejects() {
+        writer = new InfluxBatchWriter(lineProtocol -> {
+            throw badRequest();
+        }, null, 1, 60_000, 4);
+
+        writer.add("not line protocol", 1);
+        writer.flush();
+
+        assertEquals(1, writer.getRejectedLines());
+        assertEquals(0, writer.getDroppedLines());
+    }
+
+    @Test
+    void shouldWriteRemainingRecordsOnClose() {
+        writer = new InfluxBatchWriter(this::sink, null, 1000, 60_000, 4);
+
+        writer.add("m value=1 1", 1);
+        writer.close();
+
+        assertEquals(List.of("m value=1 1"), written);
+    }
+
+    @Test
+    void shouldTreatServerErrorsAsRetriable() {
+        assertTrue(InfluxBatchWriter.isRetriable(new InfluxException("timeout")));
+        assertTrue(InfluxBatchWriter.isRetriable(new IllegalStateException("client not initialized")));
+        assertFalse(InfluxBatchWriter.isRetriable(badRequest()));
+    }
+}
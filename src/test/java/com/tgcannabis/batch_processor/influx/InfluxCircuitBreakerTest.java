@@ -0,0 +1,102 @@
+package com.tgcannabis.batch_processor.influx;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
+
+class InfluxCircuitBreakerTest {
+
+    private InfluxCircuitBreaker breaker;
+
+    @AfterEach
+    void tearDown() {
+        if (breaker != null) breaker.close();
+    }
+
+    @Test
+    void shouldOpenAfterConsecutiveFailures() {
+        breaker = new InfluxCircuitBreaker(3, 60_000, 60_000, null);
+
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordSuccess(); // Resets the count
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertEquals(InfluxCircuitBreaker.State.CLOSED, breaker.getState());
+
+        breaker.recordFailure();
+        assertEquals(InfluxCircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertEquals(1, breaker.getOpenedCount());
+        assertEquals(1, breaker.getRejectedCount());
+    }
+
+    @Test
+    void shouldAllowSingleTrialWhenHalfOpen() {
+        breaker = new InfluxCircuitBreaker(1, 50, 1_000, null);
+        breaker.recordFailure();
+
+        await().atMost(2, TimeUnit.SECONDS).until(breaker::isRequestPermitted);
+        assertTrue(breaker.allowRequest());
+        assertEquals(InfluxCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest()); // Trial already in flight
+
+        breaker.recordSuccess();
+        assertEquals(InfluxCircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    void shouldReopenWhenTrialFails() {
+        breaker = new InfluxCircuitBreaker(1, 200, 10_000, null);
+        breaker.recordFailure();
+        await().atMost(2, TimeUnit.SECONDS).until(breaker::allowRequest);
+
+        breaker.recordFailure();
+
+        assertEquals(InfluxCircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.isRequestPermitted()); // Backoff doubled to 400 ms
+        assertEquals(2, breaker.getOpenedCount());
+    }
+
+    @Test
+    void shouldReconnectInBackgroundWithBackoff() {
+        AtomicBoolean reachable = new AtomicBoolean();
+        AtomicInteger attempts = new AtomicInteger();
+        breaker = new InfluxCircuitBreaker(1, 20, 40, () -> {
+            attempts.incrementAndGet();
+            return reachable.get();
+        });
+
+        breaker.forceOpen();
+        await().atMost(2, TimeUnit.SECONDS).until(() -> attempts.get() >= 3);
+        assertEquals(InfluxCircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+
+        reachable.set(true);
+        await().atMost(2, TimeUnit.SECONDS).until(() -> breaker.getState() == InfluxCircuitBreaker.State.HALF_OPEN);
+        assertTrue(breaker.allowRequest());
+        breaker.recordSuccess();
+        assertEquals(InfluxCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void shouldTreatProbeExceptionsAsFailures() {
+        AtomicInteger attempts = new AtomicInteger();
+        breaker = new InfluxCircuitBreaker(1, 10, 10, () -> {
+            attempts.incrementAndGet();
+            throw new IllegalStateException("connection refused");
+        });
+
+        breaker.forceOpen();
+
+        await().atMost(2, TimeUnit.SECONDS).until(() -> attempts.get() >= 2);
+        assertEquals(InfluxCircuitBreaker.State.OPEN, breaker.getState());
+    }
+}
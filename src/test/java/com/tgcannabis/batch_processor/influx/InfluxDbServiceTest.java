@@ -1,22 +1,30 @@
 package com.tgcannabis.batch_processor.influx;
 
 import com.influxdb.client.InfluxDBClient;
-import com.influxdb.client.WriteApi;
-import com.influxdb.client.write.Point;
+import com.influxdb.client.WriteApiBlocking;
+import com.influxdb.client.domain.WritePrecision;
+import com.influxdb.exceptions.InfluxException;
 import com.tgcannabis.batch_processor.config.BatchProcessorConfig;
 import com.tgcannabis.batch_processor.model.SensorData;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
-import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
-import static org.junit.jupiter.api.Assertions.assertThrows;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.*;
 
 class InfluxDbServiceTest {
     private BatchProcessorConfig config;
     private InfluxDBClient mockClient;
-    private WriteApi mockWriteApi;
+    private WriteApiBlocking mockWriteApi;
 
     @BeforeEach
     void setUp() {
@@ -28,7 +36,7 @@ class InfluxDbServiceTest {
         when(config.getInfluxToken()).thenReturn("new-token");
 
         mockClient = mock(InfluxDBClient.class);
-        mockWriteApi = mock(WriteApi.class);
+        mockWriteApi = mock(WriteApiBlocking.class);
     }
 
     private SensorData validSensorData() {
@@ -48,28 +56,81 @@ class InfluxDbServiceTest {
     }
 
     @Test
-    void shouldRetryIfClientNotInitialized() {
+    void shouldReconnectInBackgroundIfClientNotInitialized() {
         SensorData data = validSensorData();
+        AtomicInteger initAttempts = new AtomicInteger();
+
+        // The circuit breaker's reconnect thread reinitializes the client; simulate a successful reinit
+        InfluxDbService service = new InfluxDbService(config, null, null) {
+            @Override
+            protected void initializeClient() {
+                initAttempts.incrementAndGet();
+                setInfluxDBClient(mockClient);
+                setWriteApi(mockWriteApi);
+            }
+        };
+
+        // Confirm that reinitialization was attempted off the caller's thread
+        await().atMost(5, TimeUnit.SECONDS).until(() -> service.getCircuitState() == InfluxCircuitBreaker.State.HALF_OPEN);
+        assertEquals(1, initAttempts.get());
 
-        // Spy allows us to partially mock InfluxDbService
-        InfluxDbService service = spy(new InfluxDbService(config, null, null));
+        assertDoesNotThrow(() -> service.writeSensorData(data, "retry-topic"));
+        service.flush();
 
-        // Mock behavior of initializeClient() to simulate successful reinit
-        doAnswer(invocation -> {
-            // Manually set the mock client and write API after "reinit"
-            service.setInfluxDBClient(mockClient);
-            service.setWriteApi(mockWriteApi);
-            return null;
-        }).when(service).initializeClient();
+        verify(mockWriteApi).writeRecord(eq(WritePrecision.MS), anyString());
+        assertEquals(InfluxCircuitBreaker.State.CLOSED, service.getCircuitState());
+        service.close();
+    }
 
-        // Should not throw due to retry and successful reinit
-        assertDoesNotThrow(() -> service.writeSensorData(data, "retry-topic"));
+    @Test
+    void shouldFailFastWhileInfluxIsDown() {
+        AtomicInteger initAttempts = new AtomicInteger();
+        InfluxDbService service = new InfluxDbService(config, null, null) {
+            @Override
+            protected void initializeClient() {
+                initAttempts.incrementAndGet(); // Reinit keeps failing
+            }
+        };
+
+        long started = System.nanoTime();
+        assertDoesNotThrow(() -> service.writeSensorData(validSensorData(), "topic"));
+        service.flush();
+
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) < 500);
+        assertEquals(InfluxCircuitBreaker.State.OPEN, service.getCircuitState());
+        assertEquals(1, service.getBatchWriter().getDroppedLines()); // No spill directory configured
+        assertEquals(1, service.getCircuitBreaker().getRejectedCount());
+        service.close();
+    }
+
+    @Test
+    void shouldOpenCircuitAfterRepeatedWriteFailures() {
+        doThrow(new InfluxException("connection refused")).when(mockWriteApi).writeRecord(any(WritePrecision.class), anyString());
+        InfluxDbService service = new InfluxDbService(config, mockClient, mockWriteApi);
+
+        for (int i = 0; i < 5; i++) {
+            service.writeSensorData(validSensorData(), "topic");
+            service.flush();
+        }
 
-        // Confirm that reinitialization was attempted
-        verify(service).initializeClient();
-        verify(mockWriteApi).writePoint(any(Point.class));
+        assertEquals(InfluxCircuitBreaker.State.OPEN, service.getCircuitState());
+        verify(mockWriteApi, times(3)).writeRecord(any(WritePrecision.class), anyString()); // Default threshold
+        service.close();
     }
 
+    @Test
+    void shouldSpillBatchesWhenInfluxIsDown(@TempDir Path spillDir) {
+        when(config.getInfluxSpillDir()).thenReturn(spillDir.toString());
+        doThrow(new InfluxException("connection refused")).when(mockWriteApi).writeRecord(any(WritePrecision.class), anyString());
+        InfluxDbService service = new InfluxDbService(config, mockClient, mockWriteApi);
+
+        service.writeSensorData(validSensorData(), "topic");
+        service.flush();
+
+        assertEquals(1, service.getBatchWriter().getSpilledLines());
+        assertTrue(service.getSpillPendingBytes() > 0);
+        service.close();
+    }
 
     @Test
     void shouldSkipIfSensorDataIncomplete() {
@@ -82,7 +143,8 @@ class InfluxDbServiceTest {
         InfluxDbService service = new InfluxDbService(config, mockClient, mockWriteApi);
 
         assertDoesNotThrow(() -> service.writeSensorData(invalidData, "topic"));
-        verify(mockWriteApi, never()).writePoint(any(Point.class));
+        service.flush();
+        verify(mockWriteApi, never()).writeRecord(any(WritePrecision.class), anyString());
     }
 
     @Test
@@ -91,7 +153,24 @@ class InfluxDbServiceTest {
         SensorData validData = validSensorData();
 
         assertDoesNotThrow(() -> service.writeSensorData(validData, "topic-1"));
-        verify(mockWriteApi, times(1)).writePoint(any(Point.class));
+        service.flush();
+        verify(mockWriteApi, times(1)).writeRecord(WritePrecision.MS,
+                "temperature,location=greenhouse-1,originTopic=topic-1,sensorId=sensor-001,sensorType=temperature "
+                        + "timestamp=" + validData.getTimestamp() + "i,value=25.5 " + validData.getTimestamp());
+    }
+
+    @Test
+    void shouldWriteBatchAsSingleRecordSkippingIncompleteReadings() {
+        InfluxDbService service = new InfluxDbService(config, mockClient, mockWriteApi);
+        SensorData first = validSensorData();
+        SensorData second = validSensorData();
+        second.setSensorId("sensor-002");
+
+        service.writeSensorDataBatch(List.of(first, new SensorData(), second), "topic-1");
+        service.flush();
+
+        verify(mockWriteApi, times(1)).writeRecord(eq(WritePrecision.MS), argThat(record ->
+                record.split("\n").length == 2 && record.contains("sensorId=sensor-002")));
     }
 
     @Test
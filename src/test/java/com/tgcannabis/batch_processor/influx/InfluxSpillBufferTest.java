@@ -0,0 +1,156 @@
+package com.tgcannabis.batch_processor.influx;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InfluxSpillBufferTest {
+
+    private static final long FILE_BYTES = 1024;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void shouldReadBackChunksInOrder() {
+        try (InfluxSpillBuffer spill = new InfluxSpillBuffer(dir, 64 * FILE_BYTES, FILE_BYTES)) {
+            assertTrue(spill.isEmpty());
+            assertNull(spill.peek());
+
+            assertTrue(spill.append("m,sensorId=a value=1 1\nm,sensorId=b value=2 1", 2));
+            assertTrue(spill.append("m,sensorId=c value=3 2", 1));
+
+            InfluxSpillBuffer.Chunk first = spill.peek();
+            assertEquals("m,sensorId=a value=1 1\nm,sensorId=b value=2 1", first.lineProtocol());
+            assertEquals(2, first.lines());
+            assertEquals(first.lineProtocol(), spill.peek().lineProtocol()); // Not committed: same chunk again
+            spill.commit(first);
+
+            InfluxSpillBuffer.Chunk second = spill.peek();
+            assertEquals("m,sensorId=c value=3 2", second.lineProtocol());
+            spill.commit(second);
+
+            assertTrue(spill.isEmpty());
+            assertNull(spill.peek());
+            assertEquals(0, spill.getPendingBytes());
+            assertEquals(3, spill.getReplayedLines());
+        }
+    }
+
+    @Test
+    void shouldCompressChunks() throws IOException {
+        String batch = "temperature,location=greenhouse-1,sensorId=sensor-001 value=25.5 1700000000000\n".repeat(50);
+        try (InfluxSpillBuffer spill = new InfluxSpillBuffer(dir, 64 * FILE_BYTES, 64 * FILE_BYTES)) {
+            spill.append(batch, 50);
+        }
+        assertTrue(spillBytes() < batch.length() / 10);
+    }
+
+    @Test
+    void shouldRecoverSpilledDataAfterRestart() {
+        try (InfluxSpillBuffer spill = new InfluxSpillBuffer(dir, 64 * FILE_BYTES, FILE_BYTES)) {
+            spill.append("m value=1 1", 1);
+            spill.append("m value=2 2", 1);
+        }
+
+        try (InfluxSpillBuffer spill = new InfluxSpillBuffer(dir, 64 * FILE_BYTES, FILE_BYTES)) {
+            assertFalse(spill.isEmpty());
+            spill.append("m value=3 3", 1);
+
+            StringBuilder replayed = new StringBuilder();
+            InfluxSpillBuffer.Chunk chunk;
+            while ((chunk = spill.peek()) != null) {
+                replayed.append(chunk.lineProtocol()).append(';');
+                spill.commit(chunk);
+            }
+            assertEquals("m value=1 1;m value=2 2;m value=3 3;", replayed.toString());
+        }
+    }
+
+    @Test
+    void shouldDeleteReplayedFiles() throws IOException {
+        byte[] noise = new byte[600];
+        new Random(42).nextBytes(noise); // Incompressible, so each chunk fills most of a file
+        String batch = Base64.getEncoder().encodeToString(noise);
+
+        try (InfluxSpillBuffer spill = new InfluxSpillBuffer(dir, 64 * FILE_BYTES, FILE_BYTES)) {
+            for (int i = 0; i < 6; i++) {
+                spill.append(batch, 1);
+            }
+            assertTrue(spillFileCount() > 1);
+
+            InfluxSpillBuffer.Chunk chunk;
+            int chunks = 0;
+            while ((chunk = spill.peek()) != null) {
+                spill.commit(chunk);
+                chunks++;
+            }
+
+            assertEquals(6, chunks);
+            assertEquals(0, spillFileCount());
+        }
+    }
+
+    @Test
+    void shouldDiscardOldestFilesWhenFull() {
+        byte[] noise = new byte[900];
+        new Random(7).nextBytes(noise);
+        String payload = Base64.getEncoder().encodeToString(noise);
+
+        try (InfluxSpillBuffer spill = new InfluxSpillBuffer(dir, 3 * FILE_BYTES, FILE_BYTES)) {
+            for (int i = 0; i < 10; i++) {
+                spill.append(i + " " + payload, 1);
+            }
+
+            assertTrue(spill.getDroppedFiles() > 0);
+            assertTrue(spill.getPendingBytes() <= 3 * FILE_BYTES);
+            assertFalse(spill.peek().lineProtocol().startsWith("0 "));
+        }
+    }
+
+    @Test
+    void shouldSkipCorruptedChunks() throws IOException {
+        try (InfluxSpillBuffer spill = new InfluxSpillBuffer(dir, 64 * FILE_BYTES, 64 * FILE_BYTES)) {
+            spill.append("m value=1 1", 1);
+        }
+        try (InfluxSpillBuffer spill = new InfluxSpillBuffer(dir, 64 * FILE_BYTES, 64 * FILE_BYTES)) {
+            spill.append("m value=2 2", 1);
+        }
+        Path first;
+        try (Stream<Path> files = Files.list(dir)) {
+            first = files.sorted().findFirst().orElseThrow();
+        }
+        try (RandomAccessFile file = new RandomAccessFile(first.toFile(), "rw")) {
+            file.seek(12); // First byte of the compressed data
+            byte original = file.readByte();
+            file.seek(12);
+            file.write(~original);
+        }
+
+        try (InfluxSpillBuffer spill = new InfluxSpillBuffer(dir, 64 * FILE_BYTES, 64 * FILE_BYTES)) {
+            assertEquals("m value=2 2", spill.peek().lineProtocol());
+            assertEquals(1, spill.getCorruptedChunks());
+        }
+    }
+
+    private long spillFileCount() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+
+    private long spillBytes() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.mapToLong(p -> p.toFile().length()).sum();
+        }
+    }
+}
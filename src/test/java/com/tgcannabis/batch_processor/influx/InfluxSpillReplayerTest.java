@@ -0,0 +1,85 @@
+package com.tgcannabis.batch_processor.influx;
+
+import com.influxdb.exceptions.InfluxException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
+
+class InfluxSpillReplayerTest {
+
+    @TempDir
+    Path dir;
+
+    private final List<String> written = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean influxDown = new AtomicBoolean();
+    private InfluxSpillBuffer spill;
+    private InfluxBatchWriter writer;
+    private InfluxSpillReplayer replayer;
+
+    @BeforeEach
+    void setUp() {
+        spill = new InfluxSpillBuffer(dir, 1024 * 1024, 64 * 1024);
+        writer = new InfluxBatchWriter(lineProtocol -> {
+            if (influxDown.get()) throw new InfluxException("connection refused");
+            written.add(lineProtocol);
+        }, spill, 1000, 60_000, 4);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (replayer != null) replayer.close();
+        writer.close();
+        spill.close();
+    }
+
+    @Test
+    void shouldReplaySpilledChunksInOrder() {
+        spill.append("m value=1 1", 1);
+        spill.append("m value=2 2\nm value=3 3", 2);
+
+        replayer = new InfluxSpillReplayer(spill, writer, 100_000);
+
+        await().atMost(5, TimeUnit.SECONDS).until(spill::isEmpty);
+        assertEquals(List.of("m value=1 1", "m value=2 2\nm value=3 3"), written);
+        assertEquals(3, spill.getReplayedLines());
+    }
+
+    @Test
+    void shouldKeepChunksUntilInfluxRecovers() {
+        influxDown.set(true);
+        writer.add("m value=1 1", 1);
+        writer.flush(); // Spilled, writer degraded
+
+        replayer = new InfluxSpillReplayer(spill, writer, 100_000);
+        await().during(300, TimeUnit.MILLISECONDS).atMost(2, TimeUnit.SECONDS).until(() -> !spill.isEmpty());
+        assertTrue(writer.isDegraded());
+
+        influxDown.set(false); // InfluxDB is back
+        await().atMost(10, TimeUnit.SECONDS).until(spill::isEmpty);
+        assertEquals(List.of("m value=1 1"), written);
+        assertFalse(writer.isDegraded());
+    }
+
+    @Test
+    void shouldLimitReplayRate() {
+        for (int i = 0; i < 5; i++) {
+            spill.append("m value=" + i + " " + i, 1);
+        }
+        long started = System.nanoTime();
+
+        replayer = new InfluxSpillReplayer(spill, writer, 10); // 100 ms per line
+
+        await().atMost(5, TimeUnit.SECONDS).until(spill::isEmpty);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) >= 400);
+    }
+}
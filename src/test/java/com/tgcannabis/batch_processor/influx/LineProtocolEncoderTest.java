@@ -0,0 +1,91 @@
+package com.tgcannabis.batch_processor.influx;
+
+import com.influxdb.client.domain.WritePrecision;
+import com.influxdb.client.write.Point;
+import com.tgcannabis.batch_processor.model.SensorData;
+import com.tgcannabis.batch_processor.model.SensorRollup;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LineProtocolEncoderTest {
+
+    private final LineProtocolEncoder encoder = new LineProtocolEncoder();
+
+    /** The Point the service used to build before the encoder existed. */
+    private static String viaPoint(SensorData data, String topic) {
+        return Point.measurement(data.getSensorType())
+                .addTag("sensorId", data.getSensorId())
+                .addTag("location", data.getLocation() != null ? data.getLocation() : "unknown")
+                .addTag("originTopic", topic != null ? topic : "unknown")
+                .addTag("sensorType", data.getSensorType())
+                .addField("value", data.getValue())
+                .addField("timestamp", data.getTimestamp())
+                .time(Instant.ofEpochMilli(data.getTimestamp()), WritePrecision.MS)
+                .toLineProtocol();
+    }
+
+    @Test
+    void shouldMatchPointOutputForTypicalReading() {
+        SensorData data = new SensorData("temperature", "greenhouse-1", "sensor-001", 25.5, 1713370000000L);
+
+        assertEquals(viaPoint(data, "sensors/temperature"), encoder.encode(data, "sensors/temperature"));
+    }
+
+    @Test
+    void shouldMatchPointOutputForSpecialCharactersAndValues() {
+        String[] tagValues = {"a b", "a,b", "a=b", "a\\b", "a\"b", "a\nb", "tab\there", "", "ñandú"};
+        double[] values = {0.0, -0.0, 1e-7, 1e21, 123456789.123, 0.1 + 0.2, 1e16, -273.15, Double.NaN,
+                Double.POSITIVE_INFINITY};
+
+        for (String tag : tagValues) {
+            for (double value : values) {
+                SensorData data = new SensorData("soil " + tag, tag, "id-" + tag, value, 42L);
+                assertEquals(viaPoint(data, tag), encoder.encode(data, tag), tag + " / " + value);
+                data.setLocation(null);
+                assertEquals(viaPoint(data, null), encoder.encode(data, null), tag + " / " + value);
+            }
+        }
+    }
+
+    @Test
+    void shouldRefreshCachedPrefixWhenTagsChange() {
+        SensorData data = new SensorData("temperature", "room-a", "sensor-1", 1.0, 1L);
+        String first = encoder.encode(data, "t");
+
+        data.setLocation("room-b");
+        String second = encoder.encode(data, "t");
+
+        assertTrue(first.contains("location=room-a"));
+        assertTrue(second.contains("location=room-b"));
+        assertEquals(1, encoder.getCachedPrefixCount());
+    }
+
+    @Test
+    void shouldEncodeRollupWithWindowTagAndStartTimestamp() {
+        SensorRollup rollup = new SensorRollup("sensor 1", "temperature", null, "1m", 60_000L,
+                3, 20.0, 22.5, 21.25, 22.0);
+
+        assertEquals("temperature_rollup,location=unknown,sensorId=sensor\\ 1,sensorType=temperature,window=1m "
+                        + "count=3i,last=22.0,max=22.5,mean=21.25,min=20.0 60000",
+                encoder.encodeRollup(rollup));
+    }
+
+    @Test
+    void shouldJoinBatchWithNewlines() {
+        SensorData a = new SensorData("temperature", "room", "s1", 1.0, 1L);
+        SensorData b = new SensorData("humidity", "room", "s2", 2.0, 2L);
+
+        assertEquals(viaPoint(a, "t") + "\n" + viaPoint(b, "t"), encoder.encode(List.of(a, b), "t"));
+    }
+
+    @Test
+    void shouldRejectMissingSensorId() {
+        SensorData data = new SensorData("temperature", "room", null, 1.0, 1L);
+
+        assertThrows(NullPointerException.class, () -> encoder.encode(data, "t"));
+    }
+}
@@ -0,0 +1,197 @@
+package com.tgcannabis.batch_processor.kafka;
+
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KafkaProducerTunerTest {
+
+    private static final KafkaProducerTuner.Limits LIMITS =
+            new KafkaProducerTuner.Limits(200, 16384, 1048576, List.of("none", "lz4", "zstd"));
+    private static final double BUFFER = 32 * 1024 * 1024;
+
+    private final Map<MetricName, Metric> metrics = new HashMap<>();
+    private final List<KafkaProducerTuner.Settings> restarts = new CopyOnWriteArrayList<>();
+
+    private static KafkaProducerTuner.Snapshot snapshot(double sendRate, double recordSize, double batchSize,
+                                                        double compressionRate, double queueTimeMs, double bufferAvailable) {
+        return new KafkaProducerTuner.Snapshot(sendRate, recordSize, batchSize, compressionRate, queueTimeMs,
+                bufferAvailable, BUFFER);
+    }
+
+    private void metric(String group, String name, double value) {
+        MetricName metricName = new MetricName(name, group, "", Map.of("client-id", "test"));
+        metrics.put(metricName, new Metric() {
+            @Override
+            public MetricName metricName() {
+                return metricName;
+            }
+
+            @Override
+            public Object metricValue() {
+                return value;
+            }
+        });
+    }
+
+    /** Traffic that only fills tiny batches at short linger, as with the client defaults. */
+    private void tinyBatches() {
+        metric("producer-metrics", "record-send-rate", 10_000);
+        metric("producer-metrics", "record-size-avg", 150);
+        metric("producer-metrics", "batch-size-avg", 600);
+        metric("producer-metrics", "compression-rate-avg", 1.0);
+        metric("producer-metrics", "record-queue-time-avg", 2);
+        metric("producer-metrics", "buffer-available-bytes", BUFFER);
+        metric("producer-metrics", "buffer-total-bytes", BUFFER);
+    }
+
+    private KafkaProducerTuner tuner(KafkaProducerTuner.Settings initial, long minRestartIntervalMs) {
+        return new KafkaProducerTuner(initial, LIMITS, minRestartIntervalMs, () -> metrics, restarts::add);
+    }
+
+    @Test
+    void shouldLingerLongerAndCompressWhenBatchesAreTiny() {
+        KafkaProducerTuner tuner = tuner(new KafkaProducerTuner.Settings(4, 16384, "none"), 0);
+
+        KafkaProducerTuner.Settings proposal = tuner.propose(tuner.getCurrent(),
+                snapshot(10_000, 150, 600, 1.0, 2, BUFFER));
+
+        assertEquals(new KafkaProducerTuner.Settings(16, 16384, "lz4"), proposal);
+    }
+
+    @Test
+    void shouldStartLingeringFromZero() {
+        KafkaProducerTuner tuner = tuner(new KafkaProducerTuner.Settings(0, 16384, "lz4"), 0);
+
+        KafkaProducerTuner.Settings proposal = tuner.propose(tuner.getCurrent(),
+                snapshot(10_000, 150, 60, 0.5, 0.2, BUFFER));
+
+        assertEquals(1, proposal.lingerMs());
+    }
+
+    @Test
+    void shouldKeepSettingsThatFitTheTraffic() {
+        // 125 kB/s per partition: 128 ms of linger fills 16 kB, compressed to 30%
+        KafkaProducerTuner.Settings settings = new KafkaProducerTuner.Settings(128, 32768, "lz4");
+        KafkaProducerTuner tuner = tuner(settings, 0);
+
+        assertEquals(settings, tuner.propose(settings, snapshot(10_000, 150, 4800, 0.3, 64, BUFFER)));
+    }
+
+    @Test
+    void shouldNotLingerBeyondTheLimit() {
+        KafkaProducerTuner tuner = tuner(new KafkaProducerTuner.Settings(128, 16384, "lz4"), 0);
+
+        KafkaProducerTuner.Settings proposal = tuner.propose(tuner.getCurrent(), snapshot(10, 150, 50, 0.3, 64, BUFFER));
+
+        assertEquals(200, proposal.lingerMs());
+        assertEquals(16384, proposal.batchSize());
+    }
+
+    @Test
+    void shouldGrowBatchesThatFillBeforeLingerExpires() {
+        // 1 MB/s per partition: 64 kB batches fill after 64 ms, long before the 128 ms linger
+        KafkaProducerTuner tuner = tuner(new KafkaProducerTuner.Settings(128, 65536, "lz4"), 0);
+
+        KafkaProducerTuner.Settings proposal = tuner.propose(tuner.getCurrent(),
+                snapshot(50_000, 100, 65536 * 0.3, 0.3, 32, BUFFER));
+
+        assertEquals(32, proposal.lingerMs()); // 16 ms would do, but one step moves by at most a factor of four
+        assertEquals(65536, proposal.batchSize());
+    }
+
+    @Test
+    void shouldDropCompressionThatDoesNotPayOff() {
+        KafkaProducerTuner tuner = tuner(new KafkaProducerTuner.Settings(128, 32768, "lz4"), 0);
+
+        assertEquals("none", tuner.propose(tuner.getCurrent(), snapshot(10_000, 150, 15200, 0.95, 64, BUFFER)).compression());
+    }
+
+    @Test
+    void shouldCompressHarderWhenTheBufferFillsUp() {
+        KafkaProducerTuner tuner = tuner(new KafkaProducerTuner.Settings(128, 32768, "lz4"), 0);
+
+        assertEquals("zstd", tuner.propose(tuner.getCurrent(), snapshot(10_000, 150, 4800, 0.3, 64, BUFFER / 10)).compression());
+    }
+
+    @Test
+    void shouldKeepSettingsWithoutTraffic() {
+        KafkaProducerTuner tuner = tuner(new KafkaProducerTuner.Settings(4, 16384, "none"), 0);
+
+        assertEquals(tuner.getCurrent(), tuner.propose(tuner.getCurrent(), KafkaProducerTuner.Snapshot.of(Map.of())));
+    }
+
+    @Test
+    void shouldReadProducerMetricsOnly() {
+        metric("producer-node-metrics", "record-send-rate", 1);
+        metric("producer-metrics", "record-send-rate", 10_000);
+
+        KafkaProducerTuner.Snapshot snapshot = KafkaProducerTuner.Snapshot.of(metrics);
+
+        assertEquals(10_000, snapshot.sendRate());
+        assertTrue(Double.isNaN(snapshot.batchSizeAvg()));
+    }
+
+    @Test
+    void shouldRestartOnlyForAStableProposal() {
+        tinyBatches();
+        KafkaProducerTuner tuner = tuner(new KafkaProducerTuner.Settings(4, 16384, "none"), 0);
+        long now = System.nanoTime();
+
+        tuner.evaluate(now);
+        assertTrue(restarts.isEmpty());
+
+        tuner.evaluate(now + 1);
+        assertEquals(List.of(new KafkaProducerTuner.Settings(16, 16384, "lz4")), restarts);
+        assertEquals(restarts.getFirst(), tuner.getCurrent());
+        assertEquals(1, tuner.getRestarts());
+        assertEquals(600, tuner.getLastSnapshot().batchSizeAvg());
+    }
+
+    @Test
+    void shouldWaitForTheMinimumRestartInterval() {
+        tinyBatches();
+        KafkaProducerTuner tuner = tuner(new KafkaProducerTuner.Settings(4, 16384, "none"), 60_000);
+        long now = System.nanoTime();
+
+        tuner.evaluate(now);
+        tuner.evaluate(now + TimeUnit.SECONDS.toNanos(30));
+        assertTrue(restarts.isEmpty());
+
+        tuner.evaluate(now + TimeUnit.SECONDS.toNanos(61));
+        assertEquals(1, restarts.size());
+    }
+
+    @Test
+    void shouldKeepSettingsWhenRestartFails() {
+        tinyBatches();
+        KafkaProducerTuner.Settings initial = new KafkaProducerTuner.Settings(4, 16384, "none");
+        KafkaProducerTuner tuner = new KafkaProducerTuner(initial, LIMITS, 0, () -> metrics, settings -> {
+            throw new IllegalStateException("broker unreachable");
+        });
+        long now = System.nanoTime();
+
+        tuner.evaluate(now);
+        tuner.evaluate(now + 1);
+
+        assertEquals(initial, tuner.getCurrent());
+        assertEquals(0, tuner.getRestarts());
+    }
+
+    @Test
+    void shouldValidateLimits() {
+        assertEquals(List.of("none", "lz4"), new KafkaProducerTuner.Limits(100, 1, 2, List.of(" NONE", "lz4", "LZ4")).codecs());
+        assertThrows(IllegalArgumentException.class, () -> new KafkaProducerTuner.Limits(100, 1, 2, List.of("brotli")));
+        assertThrows(IllegalArgumentException.class, () -> new KafkaProducerTuner.Limits(100, 1, 2, List.of()));
+        assertThrows(IllegalArgumentException.class, () -> new KafkaProducerTuner.Limits(100, 2, 1, List.of("lz4")));
+        assertThrows(IllegalArgumentException.class, () -> new KafkaProducerTuner.Limits(-1, 1, 2, List.of("lz4")));
+    }
+}
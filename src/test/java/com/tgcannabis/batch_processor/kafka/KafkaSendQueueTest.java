@@ -0,0 +1,184 @@
+package com.tgcannabis.batch_processor.kafka;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
+
+class KafkaSendQueueTest {
+
+    private final List<String> sent = new CopyOnWriteArrayList<>();
+    private final List<String> spilled = new CopyOnWriteArrayList<>();
+    private final CountDownLatch unblock = new CountDownLatch(1);
+    private KafkaSendQueue queue;
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void record(byte[] key, byte[] value) {
+        sent.add(new String(value, StandardCharsets.UTF_8));
+    }
+
+    private void blockingSend(byte[] key, byte[] value) {
+        try {
+            unblock.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        record(key, value);
+    }
+
+    private final BiConsumer<byte[], byte[]> spillTarget = (key, value) -> spilled.add(new String(value, StandardCharsets.UTF_8));
+
+    @AfterEach
+    void tearDown() {
+        unblock.countDown();
+        if (queue != null) queue.close();
+    }
+
+    @Test
+    void shouldSendRecordsInOrder() {
+        queue = new KafkaSendQueue(16, KafkaSendQueue.OverflowPolicy.DROP, this::record, null);
+
+        for (int i = 0; i < 10; i++) {
+            queue.offer(null, bytes("v" + i));
+        }
+
+        await().atMost(5, TimeUnit.SECONDS).until(() -> sent.size() == 10);
+        assertEquals("v0", sent.get(0));
+        assertEquals("v9", sent.get(9));
+        assertEquals(10, queue.getSentCount());
+    }
+
+    @Test
+    void shouldDropWhenFullUnderDropPolicy() {
+        queue = new KafkaSendQueue(2, KafkaSendQueue.OverflowPolicy.DROP, this::blockingSend, spillTarget);
+
+        queue.offer(null, bytes("in-flight"));
+        await().atMost(5, TimeUnit.SECONDS).until(() -> queue.getQueueDepth() == 0);
+        for (int i = 0; i < 5; i++) {
+            queue.offer(null, bytes("v" + i));
+        }
+
+        assertEquals(2, queue.getQueueDepth());
+        assertEquals(3, queue.getDroppedCount());
+        assertTrue(spilled.isEmpty());
+    }
+
+    @Test
+    void shouldSpillBufferedRecordsAheadOfOverflowUnderSpillPolicy() {
+        queue = new KafkaSendQueue(2, KafkaSendQueue.OverflowPolicy.SPILL, this::blockingSend, spillTarget);
+
+        queue.offer(null, bytes("in-flight"));
+        await().atMost(5, TimeUnit.SECONDS).until(() -> queue.getQueueDepth() == 0);
+        for (int i = 0; i < 5; i++) {
+            queue.offer(null, bytes("v" + i));
+        }
+
+        assertEquals(List.of("v0", "v1", "v2"), spilled); // Buffered records first, then the overflowing one
+        assertEquals(3, queue.getSpilledCount());
+        assertEquals(2, queue.getQueueDepth());
+    }
+
+    @Test
+    void shouldDropOnlyNewRecordsUnderSpillPolicyWithoutSpillTarget() {
+        queue = new KafkaSendQueue(2, KafkaSendQueue.OverflowPolicy.SPILL, this::blockingSend, null);
+
+        queue.offer(null, bytes("in-flight"));
+        await().atMost(5, TimeUnit.SECONDS).until(() -> queue.getQueueDepth() == 0);
+        for (int i = 0; i < 5; i++) {
+            queue.offer(null, bytes("v" + i));
+        }
+        queue.offerAll(List.of(bytes("k")), List.of(bytes("v5")));
+
+        assertEquals(4, queue.getDroppedCount());
+        unblock.countDown();
+        await().atMost(5, TimeUnit.SECONDS).until(() -> sent.size() == 3);
+        assertEquals(List.of("in-flight", "v0", "v1"), sent);
+    }
+
+    @Test
+    void shouldOfferSeveralRecordsAtOnceAndSpillTheRest() {
+        queue = new KafkaSendQueue(2, KafkaSendQueue.OverflowPolicy.SPILL, this::blockingSend, spillTarget);
+
+        queue.offer(null, bytes("in-flight"));
+        await().atMost(5, TimeUnit.SECONDS).until(() -> queue.getQueueDepth() == 0);
+        queue.offerAll(java.util.Arrays.asList(null, null, null, null), List.of(bytes("v0"), bytes("v1"), bytes("v2"), bytes("v3")));
+
+        assertEquals(List.of("v0", "v1", "v2", "v3"), spilled);
+        unblock.countDown();
+        await().atMost(5, TimeUnit.SECONDS).until(() -> sent.size() == 1);
+        assertEquals(List.of("in-flight"), sent);
+    }
+
+    @Test
+    void shouldCountFailedHandOffsSeparately() {
+        queue = new KafkaSendQueue(16, KafkaSendQueue.OverflowPolicy.DROP, (key, value) -> {
+            if (new String(value, StandardCharsets.UTF_8).equals("bad")) throw new IllegalStateException("Boom");
+            record(key, value);
+        }, null);
+
+        queue.offer(null, bytes("good"));
+        queue.offer(null, bytes("bad"));
+        queue.offer(null, bytes("good"));
+
+        await().atMost(5, TimeUnit.SECONDS).until(() -> queue.getSentCount() + queue.getFailedCount() == 3);
+        assertEquals(2, queue.getSentCount());
+        assertEquals(1, queue.getFailedCount());
+    }
+
+    @Test
+    void shouldBlockCallerUnderBlockPolicy() throws InterruptedException {
+        queue = new KafkaSendQueue(1, KafkaSendQueue.OverflowPolicy.BLOCK, this::blockingSend, null);
+        queue.offer(null, bytes("in-flight"));
+        await().atMost(5, TimeUnit.SECONDS).until(() -> queue.getQueueDepth() == 0);
+        queue.offer(null, bytes("queued"));
+
+        Thread caller = new Thread(() -> queue.offer(null, bytes("blocked")));
+        caller.start();
+        caller.join(200);
+        assertTrue(caller.isAlive());
+
+        unblock.countDown();
+        caller.join(5_000);
+        assertFalse(caller.isAlive());
+        await().atMost(5, TimeUnit.SECONDS).until(() -> sent.size() == 3);
+    }
+
+    @Test
+    void shouldReportStalls() {
+        queue = new KafkaSendQueue(4, KafkaSendQueue.OverflowPolicy.DROP, this::blockingSend, null);
+
+        queue.offer(null, bytes("stuck"));
+        await().atMost(5, TimeUnit.SECONDS).until(() -> queue.getCurrentStallMillis() >= 100);
+        assertEquals(0, queue.getStallCount());
+
+        unblock.countDown();
+        await().atMost(5, TimeUnit.SECONDS).until(() -> queue.getStallCount() == 1);
+        assertEquals(0, queue.getCurrentStallMillis());
+        assertTrue(queue.getTotalStallMillis() >= 100);
+    }
+
+    @Test
+    void shouldDrainOnCloseAndSpillAfterwards() {
+        queue = new KafkaSendQueue(16, KafkaSendQueue.OverflowPolicy.DROP, this::record, spillTarget);
+        for (int i = 0; i < 5; i++) {
+            queue.offer(null, bytes("v" + i));
+        }
+
+        queue.close();
+        queue.offer(null, bytes("late"));
+
+        assertEquals(5, sent.size());
+        assertEquals(List.of("late"), spilled);
+    }
+}
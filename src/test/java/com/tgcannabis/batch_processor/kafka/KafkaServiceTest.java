@@ -4,19 +4,30 @@ import com.tgcannabis.batch_processor.config.BatchProcessorConfig;
 import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.TopicPartition;
 import org.junit.jupiter.api.BeforeEach;
+import org.apache.kafka.common.errors.RecordTooLargeException;
+import org.apache.kafka.common.errors.TimeoutException;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
-import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.*;
 
 class KafkaServiceTest {
 
     private BatchProcessorConfig config;
-    private KafkaProducer<String, String> mockProducer;
+    private KafkaProducer<byte[], byte[]> mockProducer;
 
     @BeforeEach
     void setUp() {
@@ -55,6 +66,120 @@ class KafkaServiceTest {
         verify(mockProducer).send(any(ProducerRecord.class), any(Callback.class));
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    void shouldForwardRawPayloadWithoutCopying() {
+        KafkaService service = new KafkaService(config, mockProducer);
+        byte[] payload = "{\"sensorId\":\"sensor-1\"}".getBytes(StandardCharsets.UTF_8);
+
+        service.sendPayload("sensor-1", payload);
+
+        ArgumentCaptor<ProducerRecord<byte[], byte[]>> captor = ArgumentCaptor.forClass(ProducerRecord.class);
+        verify(mockProducer).send(captor.capture(), any(Callback.class));
+        assertSame(payload, captor.getValue().value());
+        assertArrayEquals("sensor-1".getBytes(StandardCharsets.UTF_8), captor.getValue().key());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void shouldStoreFailedSendsInWal(@TempDir Path walDir) {
+        KafkaWriteAheadLog wal = new KafkaWriteAheadLog(walDir, 64 * 1024, 4);
+        KafkaService service = new KafkaService(config, mockProducer, wal);
+
+        service.sendMessage("key", "value");
+        ArgumentCaptor<Callback> callback = ArgumentCaptor.forClass(Callback.class);
+        verify(mockProducer).send(any(ProducerRecord.class), callback.capture());
+        callback.getValue().onCompletion(null, new TimeoutException("broker down"));
+
+        assertTrue(wal.hasBacklog());
+        assertTrue(service.getWalPendingBytes() > 0);
+
+        // While a backlog exists new records go to the log to keep their order
+        service.sendMessage("key", "next");
+        verify(mockProducer, times(1)).send(any(ProducerRecord.class), any(Callback.class));
+        service.close();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void shouldNotStoreNonRetriableFailuresInWal(@TempDir Path walDir) {
+        KafkaWriteAheadLog wal = new KafkaWriteAheadLog(walDir, 64 * 1024, 4);
+        KafkaService service = new KafkaService(config, mockProducer, wal);
+
+        service.sendMessage("key", "value");
+        ArgumentCaptor<Callback> callback = ArgumentCaptor.forClass(Callback.class);
+        verify(mockProducer).send(any(ProducerRecord.class), callback.capture());
+        callback.getValue().onCompletion(null, new RecordTooLargeException("record too large"));
+
+        assertFalse(wal.hasBacklog());
+        assertEquals(0, wal.getAppendedCount());
+        service.close();
+    }
+
+    @Test
+    void shouldStoreInWalWhenProducerUnavailable(@TempDir Path walDir) {
+        KafkaWriteAheadLog wal = new KafkaWriteAheadLog(walDir, 64 * 1024, 4);
+        KafkaService service = new KafkaService(config, null, wal);
+
+        service.sendMessage("key", "value");
+
+        assertEquals(1, wal.getAppendedCount());
+        service.close();
+    }
+
+    @Test
+    void shouldNotBlockCallerWhenProducerStalls(@TempDir Path walDir) throws Exception {
+        when(config.getKafkaSendQueueCapacity()).thenReturn(2);
+        when(config.getKafkaSendOverflowPolicy()).thenReturn("SPILL");
+        CountDownLatch metadataAvailable = new CountDownLatch(1);
+        when(mockProducer.send(any(ProducerRecord.class), any(Callback.class))).thenAnswer(invocation -> {
+            metadataAvailable.await(); // Simulates send() waiting on broker metadata
+            return null;
+        });
+        KafkaWriteAheadLog wal = new KafkaWriteAheadLog(walDir, 64 * 1024, 4);
+        KafkaService service = new KafkaService(config, mockProducer, wal);
+
+        service.sendMessage("key", "value-0");
+        await().atMost(5, TimeUnit.SECONDS).until(() -> service.getUnhealthyMillis() > 0); // Sender is stuck
+
+        long started = System.nanoTime();
+        for (int i = 1; i < 10; i++) {
+            service.sendMessage("key", "value-" + i);
+        }
+
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) < 1_000);
+        assertEquals(0, service.getSendQueue().getQueueDepth()); // Every third record spills the two buffered ahead of it
+        assertEquals(9, service.getSendQueue().getSpilledCount());
+        assertEquals(9, wal.getAppendedCount());
+
+        metadataAvailable.countDown();
+        service.close();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void shouldTrackHowLongTheProducerHasBeenUnhealthy() {
+        KafkaService service = new KafkaService(config, mockProducer);
+        assertEquals(0, service.getUnhealthyMillis());
+
+        service.sendMessage("key", "value");
+        ArgumentCaptor<Callback> callback = ArgumentCaptor.forClass(Callback.class);
+        verify(mockProducer).send(any(ProducerRecord.class), callback.capture());
+        callback.getValue().onCompletion(null, new TimeoutException("broker down"));
+
+        await().atMost(2, TimeUnit.SECONDS).until(() -> service.getUnhealthyMillis() > 0);
+
+        callback.getValue().onCompletion(new RecordMetadata(new TopicPartition("test-topic", 0), 0, 0, 0, 0, 0), null);
+        assertEquals(0, service.getUnhealthyMillis());
+    }
+
+    @Test
+    void shouldReuseSerializedKeys() {
+        KafkaService service = new KafkaService(config, mockProducer);
+
+        assertSame(service.serializeKey(new String("sensor-1")), service.serializeKey("sensor-1"));
+    }
+
     @Test
     void shouldCloseProducerGracefully() {
         KafkaService service = new KafkaService(config, mockProducer);
@@ -71,4 +196,38 @@ class KafkaServiceTest {
         service.close(); // Should not throw or call close() again
         verify(mockProducer, times(1)).close(Duration.ofSeconds(10));
     }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void shouldPauseSendsUntilReplacedProducerHasFlushed() throws Exception {
+        KafkaProducer<byte[], byte[]> replacement = mock(KafkaProducer.class);
+        CountDownLatch flushing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            flushing.countDown();
+            release.await();
+            return null;
+        }).when(mockProducer).flush();
+        KafkaService service = new KafkaService(config, mockProducer);
+        service.sendMessage("sensor-1", "first");
+
+        Thread restart = new Thread(() -> service.replaceProducer(replacement));
+        restart.start();
+        assertTrue(flushing.await(2, TimeUnit.SECONDS));
+        Thread sender = new Thread(() -> service.sendMessage("sensor-1", "second"));
+        sender.start();
+        TimeUnit.MILLISECONDS.sleep(50);
+
+        verify(replacement, never()).send(any(ProducerRecord.class), any(Callback.class)); // Would overtake "first"
+        release.countDown();
+        restart.join(2_000);
+        sender.join(2_000);
+
+        verify(mockProducer, times(1)).send(any(ProducerRecord.class), any(Callback.class));
+        verify(replacement).send(any(ProducerRecord.class), any(Callback.class));
+        var order = inOrder(mockProducer, replacement);
+        order.verify(mockProducer).flush();
+        order.verify(replacement).send(any(ProducerRecord.class), any(Callback.class));
+        verify(mockProducer).close(any(Duration.class));
+    }
 }
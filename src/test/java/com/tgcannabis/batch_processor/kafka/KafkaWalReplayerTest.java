@@ -0,0 +1,104 @@
+package com.tgcannabis.batch_processor.kafka;
+
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.errors.RecordTooLargeException;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class KafkaWalReplayerTest {
+
+    @TempDir
+    Path dir;
+
+    private KafkaWriteAheadLog wal;
+    private KafkaWalReplayer replayer;
+
+    @BeforeEach
+    void setUp() {
+        wal = new KafkaWriteAheadLog(dir, 64 * 1024, 4);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (replayer != null) replayer.close();
+        wal.close();
+    }
+
+    @Test
+    void shouldReplayBacklogAndCommit() {
+        for (int i = 0; i < 25; i++) {
+            wal.append(("k" + i).getBytes(StandardCharsets.UTF_8), ("v" + i).getBytes(StandardCharsets.UTF_8));
+        }
+        MockProducer<byte[], byte[]> producer =
+                new MockProducer<>(true, new ByteArraySerializer(), new ByteArraySerializer());
+
+        replayer = new KafkaWalReplayer(wal, producer, "topic", 10);
+
+        await().atMost(5, TimeUnit.SECONDS).until(() -> !wal.hasBacklog());
+        assertEquals(25, producer.history().size());
+        assertEquals("v0", new String(producer.history().get(0).value(), StandardCharsets.UTF_8));
+        assertEquals("v24", new String(producer.history().get(24).value(), StandardCharsets.UTF_8));
+        assertEquals(25, wal.getReplayedCount());
+    }
+
+    @Test
+    void shouldKeepBacklogUntilBrokerAcknowledges() {
+        wal.append(null, "v".getBytes(StandardCharsets.UTF_8));
+        MockProducer<byte[], byte[]> producer =
+                new MockProducer<>(true, new ByteArraySerializer(), new ByteArraySerializer());
+        producer.flushException = new TimeoutException("broker down");
+
+        replayer = new KafkaWalReplayer(wal, producer, "topic", 10);
+        await().atMost(5, TimeUnit.SECONDS).until(() -> !producer.history().isEmpty());
+        assertTrue(wal.hasBacklog());
+        assertEquals(0, wal.getReplayedCount());
+
+        producer.flushException = null; // Broker is back
+        await().atMost(10, TimeUnit.SECONDS).until(() -> !wal.hasBacklog());
+        assertEquals(1, wal.getReplayedCount());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void shouldSkipRecordsThatAlwaysFail() {
+        wal.append(null, "v0".getBytes(StandardCharsets.UTF_8));
+        wal.append(null, "too-large".getBytes(StandardCharsets.UTF_8));
+        wal.append(null, "v2".getBytes(StandardCharsets.UTF_8));
+        Producer<byte[], byte[]> producer = mock(Producer.class);
+        List<String> sent = new CopyOnWriteArrayList<>();
+        when(producer.send(any(ProducerRecord.class))).thenAnswer(invocation -> {
+            ProducerRecord<byte[], byte[]> record = invocation.getArgument(0);
+            String value = new String(record.value(), StandardCharsets.UTF_8);
+            if (value.equals("too-large")) {
+                return CompletableFuture.failedFuture(new RecordTooLargeException("record too large"));
+            }
+            sent.add(value);
+            return CompletableFuture.completedFuture(null);
+        });
+
+        replayer = new KafkaWalReplayer(wal, producer, "topic", 10);
+
+        await().atMost(5, TimeUnit.SECONDS).until(() -> !wal.hasBacklog());
+        assertEquals(List.of("v0", "v2"), sent);
+        assertEquals(1, replayer.getDroppedCount());
+        verify(producer, times(3)).send(any(ProducerRecord.class)); // Not retried
+    }
+}
@@ -0,0 +1,205 @@
+package com.tgcannabis.batch_processor.kafka;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KafkaWriteAheadLogTest {
+
+    private static final int SEGMENT_BYTES = 4096;
+
+    @TempDir
+    Path dir;
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] b) {
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void shouldReadBackAppendedRecordsInOrder() {
+        try (KafkaWriteAheadLog wal = new KafkaWriteAheadLog(dir, SEGMENT_BYTES, 4)) {
+            assertFalse(wal.hasBacklog());
+            wal.append(bytes("k1"), bytes("v1"));
+            wal.append(null, bytes("v2"));
+            assertTrue(wal.hasBacklog());
+
+            KafkaWriteAheadLog.Batch batch = wal.readBatch(10);
+
+            assertEquals(2, batch.entries().size());
+            assertEquals("k1", string(batch.entries().get(0).key()));
+            assertEquals("v1", string(batch.entries().get(0).value()));
+            assertNull(batch.entries().get(1).key());
+            assertEquals("v2", string(batch.entries().get(1).value()));
+        }
+    }
+
+    @Test
+    void shouldOnlyAdvanceOnCommit() {
+        try (KafkaWriteAheadLog wal = new KafkaWriteAheadLog(dir, SEGMENT_BYTES, 4)) {
+            wal.append(bytes("k"), bytes("a"));
+            wal.append(bytes("k"), bytes("b"));
+            wal.append(bytes("k"), bytes("c"));
+
+            KafkaWriteAheadLog.Batch first = wal.readBatch(2);
+            assertEquals(2, wal.readBatch(2).entries().size()); // Not committed: same records again
+            wal.commit(first);
+
+            KafkaWriteAheadLog.Batch rest = wal.readBatch(10);
+            assertEquals(1, rest.entries().size());
+            assertEquals("c", string(rest.entries().get(0).value()));
+            wal.commit(rest);
+
+            assertFalse(wal.hasBacklog());
+            assertEquals(0, wal.getPendingBytes());
+            assertEquals(3, wal.getReplayedCount());
+        }
+    }
+
+    @Test
+    void shouldRecoverUncommittedRecordsAfterRestart() {
+        try (KafkaWriteAheadLog wal = new KafkaWriteAheadLog(dir, SEGMENT_BYTES, 4)) {
+            wal.append(bytes("k"), bytes("acked"));
+            wal.commit(wal.readBatch(1));
+            wal.append(bytes("k"), bytes("pending-1"));
+            wal.append(bytes("k"), bytes("pending-2"));
+        }
+
+        try (KafkaWriteAheadLog wal = new KafkaWriteAheadLog(dir, SEGMENT_BYTES, 4)) {
+            assertTrue(wal.hasBacklog());
+            KafkaWriteAheadLog.Batch batch = wal.readBatch(10);
+            assertEquals(2, batch.entries().size());
+            assertEquals("pending-1", string(batch.entries().get(0).value()));
+
+            wal.append(bytes("k"), bytes("after-restart"));
+            wal.commit(batch);
+            assertEquals("after-restart", string(wal.readBatch(10).entries().get(0).value()));
+        }
+    }
+
+    @Test
+    void shouldSpanSegmentsAndDeleteConsumedOnes() throws IOException {
+        try (KafkaWriteAheadLog wal = new KafkaWriteAheadLog(dir, SEGMENT_BYTES, 8)) {
+            byte[] value = new byte[1000];
+            for (int i = 0; i < 10; i++) {
+                assertTrue(wal.append(bytes("k" + i), value));
+            }
+            assertTrue(segmentCount() > 1);
+
+            int read = 0;
+            while (wal.hasBacklog()) {
+                KafkaWriteAheadLog.Batch batch = wal.readBatch(3);
+                read += batch.entries().size();
+                wal.commit(batch);
+            }
+
+            assertEquals(10, read);
+            assertEquals(1, segmentCount());
+        }
+    }
+
+    @Test
+    void shouldDiscardOldestSegmentWhenFull() throws IOException {
+        try (KafkaWriteAheadLog wal = new KafkaWriteAheadLog(dir, SEGMENT_BYTES, 2)) {
+            byte[] value = new byte[1000];
+            for (int i = 0; i < 12; i++) {
+                wal.append(bytes(String.valueOf(i)), value);
+            }
+
+            assertTrue(wal.getDroppedSegments() > 0);
+            assertTrue(segmentCount() <= 2);
+            KafkaWriteAheadLog.Batch batch = wal.readBatch(100);
+            assertEquals("11", string(batch.entries().get(batch.entries().size() - 1).key()));
+            assertNotEquals("0", string(batch.entries().get(0).key()));
+        }
+    }
+
+    @Test
+    void shouldSkipCorruptedRecordsOnRecovery() throws IOException {
+        try (KafkaWriteAheadLog wal = new KafkaWriteAheadLog(dir, SEGMENT_BYTES, 4)) {
+            wal.append(bytes("k"), bytes("good"));
+            wal.append(bytes("k"), bytes("will-be-corrupted"));
+        }
+        Path segment;
+        try (Stream<Path> files = Files.list(dir)) {
+            segment = files.filter(p -> p.toString().endsWith(".wal")).sorted().findFirst().orElseThrow();
+        }
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            int secondRecordValueOffset = 8 + 4 + 1 + 4 + 8 + 4 + 1; // header + first body + header + keyLen + key
+            file.seek(secondRecordValueOffset);
+            file.write('X');
+        }
+
+        try (KafkaWriteAheadLog wal = new KafkaWriteAheadLog(dir, SEGMENT_BYTES, 4)) {
+            KafkaWriteAheadLog.Batch batch = wal.readBatch(10);
+            assertEquals(1, batch.entries().size());
+            assertEquals("good", string(batch.entries().get(0).value()));
+        }
+    }
+
+    @Test
+    void shouldSealActiveSegmentWhenSkippingCorruptedRecords() throws IOException {
+        try (KafkaWriteAheadLog wal = new KafkaWriteAheadLog(dir, SEGMENT_BYTES, 4)) {
+            wal.append(bytes("k"), bytes("good"));
+            wal.append(bytes("k"), bytes("will-be-corrupted"));
+            Path active;
+            try (Stream<Path> files = Files.list(dir)) {
+                active = files.filter(p -> p.toString().endsWith(".wal")).sorted().reduce((a, b) -> b).orElseThrow();
+            }
+            try (RandomAccessFile file = new RandomAccessFile(active.toFile(), "rw")) {
+                file.seek(8 + 4 + 1 + 4 + 8 + 4 + 1); // Shares the page cache with the mapped segment
+                file.write('X');
+            }
+
+            KafkaWriteAheadLog.Batch batch = wal.readBatch(10);
+            assertEquals(1, batch.entries().size());
+            assertEquals(1, wal.getCorruptedRecords());
+            wal.commit(batch);
+            assertFalse(wal.hasBacklog());
+
+            wal.append(bytes("k"), bytes("next"));
+            assertEquals("next", string(wal.readBatch(10).entries().get(0).value()));
+        }
+    }
+
+    @Test
+    void shouldForceActiveSegmentOnceSyncThresholdIsReached() {
+        try (KafkaWriteAheadLog wal = new KafkaWriteAheadLog(dir, SEGMENT_BYTES, 4, 64, 60_000)) {
+            wal.append(bytes("k"), bytes("small"));
+            assertEquals(0, wal.getSyncCount());
+            wal.append(bytes("k"), new byte[64]);
+            assertEquals(1, wal.getSyncCount());
+
+            wal.sync();
+            assertEquals(1, wal.getSyncCount()); // Nothing appended since
+            wal.append(bytes("k"), bytes("small"));
+            wal.sync();
+            assertEquals(2, wal.getSyncCount());
+        }
+    }
+
+    @Test
+    void shouldRejectRecordsLargerThanASegment() {
+        try (KafkaWriteAheadLog wal = new KafkaWriteAheadLog(dir, SEGMENT_BYTES, 4)) {
+            assertFalse(wal.append(null, new byte[SEGMENT_BYTES]));
+            assertFalse(wal.hasBacklog());
+        }
+    }
+
+    private long segmentCount() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.toString().endsWith(".wal")).count();
+        }
+    }
+}
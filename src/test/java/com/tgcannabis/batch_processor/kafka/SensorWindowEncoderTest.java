@@ -0,0 +1,127 @@
+package com.tgcannabis.batch_processor.kafka;
+
+import com.tgcannabis.batch_processor.model.SensorData;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SensorWindowEncoderTest {
+
+    private static final long BASE_TIMESTAMP = 1_713_370_000_000L;
+
+    private static byte[] encode(List<SensorData> readings) {
+        SensorData first = readings.getFirst();
+        SensorWindowEncoder encoder = new SensorWindowEncoder(first.getSensorId(), first.getSensorType(), first.getLocation());
+        readings.forEach(r -> encoder.add(r.getTimestamp(), r.getValue()));
+        return encoder.toByteArray();
+    }
+
+    private static String json(SensorData r) {
+        return "{\"sensorType\":\"" + r.getSensorType() + "\",\"location\":\"" + r.getLocation()
+                + "\",\"sensorId\":\"" + r.getSensorId() + "\",\"value\":" + r.getValue()
+                + ",\"timestamp\":" + r.getTimestamp() + "}";
+    }
+
+    @Test
+    void shouldRoundTripIrregularReadings() {
+        Random random = new Random(42);
+        List<SensorData> readings = new ArrayList<>();
+        long timestamp = BASE_TIMESTAMP;
+        double value = 21.5;
+        for (int i = 0; i < 500; i++) {
+            timestamp += 1_000 + random.nextInt(200) - 100; // Jittered sampling
+            if (i % 50 == 0) timestamp += 3_600_000;         // Gaps
+            if (i % 77 == 0) timestamp -= 5_000;             // Out of order
+            value = i % 10 == 0 ? value : Math.round((value + random.nextGaussian() * 0.3) * 100) / 100.0;
+            readings.add(new SensorData("temperature", "greenhouse-1", "sensor-7", value, timestamp));
+        }
+
+        assertEquals(readings, SensorWindowDecoder.decode(encode(readings)));
+    }
+
+    @Test
+    void shouldRoundTripSpecialValuesBitForBit() {
+        double customNaN = Double.longBitsToDouble(0x7ff8_0000_0000_1234L);
+        double[] values = {0.0, -0.0, Double.NaN, customNaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                -42.125, Double.MIN_VALUE, Double.MAX_VALUE, 1e-300, 7, 7};
+        long[] timestamps = {0, Long.MAX_VALUE, Long.MIN_VALUE, -1, 1, 2, 3, 1_000_000_000_000L, 5, 5, 5, 6};
+        SensorWindowEncoder encoder = new SensorWindowEncoder("s1", "co2", "bed-1");
+        for (int i = 0; i < values.length; i++) {
+            encoder.add(timestamps[i], values[i]);
+        }
+
+        List<SensorData> decoded = SensorWindowDecoder.decode(encoder.toByteArray());
+
+        assertEquals(values.length, decoded.size());
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(Double.doubleToRawLongBits(values[i]), Double.doubleToRawLongBits(decoded.get(i).getValue()),
+                    "Value " + i);
+            assertEquals(timestamps[i], decoded.get(i).getTimestamp(), "Timestamp " + i);
+        }
+    }
+
+    @Test
+    void shouldRoundTripSingleReadingAndNullMetadata() {
+        SensorWindowEncoder encoder = new SensorWindowEncoder("ñandú-1", null, null);
+        encoder.add(BASE_TIMESTAMP, 3.5);
+
+        assertEquals(List.of(new SensorData(null, null, "ñandú-1", 3.5, BASE_TIMESTAMP)),
+                SensorWindowDecoder.decode(encoder.toByteArray()));
+    }
+
+    @Test
+    void shouldBeAnOrderOfMagnitudeSmallerThanJson() {
+        // A minute-long window of a sensor reporting every second, with two decimals of noise
+        Random random = new Random(7);
+        List<SensorData> readings = new ArrayList<>();
+        long jsonBytes = 0;
+        for (int i = 0; i < 60; i++) {
+            double value = Math.round((40 + random.nextGaussian() * 0.05) * 100) / 100.0;
+            SensorData reading = new SensorData("soil_moisture", "greenhouse-2", "sensor-123", value, BASE_TIMESTAMP + i * 1_000L);
+            readings.add(reading);
+            jsonBytes += json(reading).getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        byte[] encoded = encode(readings);
+
+        assertTrue(encoded.length * 10 < jsonBytes, encoded.length + " bytes against " + jsonBytes + " of JSON");
+    }
+
+    @Test
+    void shouldBeRecognisedByItsFirstByte() {
+        SensorWindowEncoder encoder = new SensorWindowEncoder("s1", "co2", "bed-1");
+        encoder.add(BASE_TIMESTAMP, 1);
+
+        assertTrue(SensorWindowDecoder.isWindow(encoder.toByteArray()));
+        assertFalse(SensorWindowDecoder.isWindow("{\"sensorId\":\"s1\"}".getBytes(StandardCharsets.UTF_8)));
+        assertFalse(SensorWindowDecoder.isWindow(new byte[0]));
+        assertFalse(SensorWindowDecoder.isWindow(null));
+    }
+
+    @Test
+    void shouldRejectInvalidRecords() {
+        SensorWindowEncoder encoder = new SensorWindowEncoder("s1", "co2", "bed-1");
+        for (int i = 0; i < 100; i++) {
+            encoder.add(BASE_TIMESTAMP + i * 1_000L, i * 1.5);
+        }
+        byte[] encoded = encoder.toByteArray();
+        byte[] futureVersion = encoded.clone();
+        futureVersion[1] = SensorWindowEncoder.VERSION + 1;
+
+        assertThrows(IllegalStateException.class, () -> new SensorWindowEncoder("s1", null, null).toByteArray());
+        assertThrows(IllegalArgumentException.class, () -> SensorWindowDecoder.decode(futureVersion));
+        assertThrows(IllegalArgumentException.class,
+                () -> SensorWindowDecoder.decode("{}".getBytes(StandardCharsets.UTF_8)));
+        for (int length = 2; length < encoded.length - 1; length += 3) {
+            byte[] truncated = Arrays.copyOf(encoded, length);
+            assertThrows(IllegalArgumentException.class, () -> SensorWindowDecoder.decode(truncated),
+                    "Truncated to " + length + " bytes");
+        }
+    }
+}
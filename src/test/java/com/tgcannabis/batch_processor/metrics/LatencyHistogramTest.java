@@ -0,0 +1,66 @@
+package com.tgcannabis.batch_processor.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+
+    @Test
+    void shouldEstimateQuantilesWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100_000; value++) {
+            histogram.record(value * 1_000); // 1 us .. 100 ms, uniformly
+        }
+
+        assertEquals(100_000, histogram.getCount());
+        assertEquals(50_000_000L, histogram.getValueAtQuantile(0.5), 50_000_000L * 0.04);
+        assertEquals(99_000_000L, histogram.getValueAtQuantile(0.99), 99_000_000L * 0.04);
+        assertEquals(99_900_000L, histogram.getValueAtQuantile(0.999), 99_900_000L * 0.04);
+        assertEquals(100_000L * 100_001 / 2 * 1_000, histogram.getSumNanos());
+    }
+
+    @Test
+    void shouldMapBucketsMonotonicallyAndContiguously() {
+        assertEquals(0, LatencyHistogram.bucketOf(0));
+        assertEquals(31, LatencyHistogram.bucketOf(31));
+        int previous = -1;
+        for (long value = 0; value < 1 << 20; value++) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(bucket == previous || bucket == previous + 1, "Gap at " + value);
+            assertTrue(LatencyHistogram.lowerBound(bucket) <= value);
+            previous = bucket;
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    void shouldHandleEmptyAndNegativeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtQuantile(0.99));
+
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getValueAtQuantile(1.0));
+    }
+
+    @Test
+    void shouldCountConcurrentRecordings() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int t = 0; t < 8; t++) {
+            executor.submit(() -> {
+                for (int i = 0; i < 10_000; i++) histogram.record(1_000);
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(80_000, histogram.getCount());
+        assertEquals(80_000L * 1_000, histogram.getSumNanos());
+    }
+}
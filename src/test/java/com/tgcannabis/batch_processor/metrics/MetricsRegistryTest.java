@@ -0,0 +1,74 @@
+package com.tgcannabis.batch_processor.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsRegistryTest {
+
+    private static String render(MetricsRegistry registry) throws IOException {
+        StringBuilder out = new StringBuilder();
+        registry.writePrometheus(out);
+        return out.toString();
+    }
+
+    @Test
+    void shouldReturnSameCounterForSameNameAndLabels() throws IOException {
+        MetricsRegistry registry = new MetricsRegistry();
+        Counter first = registry.counter("test_errors_total", "Errors", "kind", "parse");
+        first.increment();
+        registry.counter("test_errors_total", "Errors", "kind", "parse").add(2);
+        registry.counter("test_errors_total", "Errors", "kind", "write").increment();
+
+        assertEquals(3, first.get());
+        String text = render(registry);
+        assertTrue(text.contains("# HELP test_errors_total Errors\n# TYPE test_errors_total counter\n"), text);
+        assertTrue(text.contains("test_errors_total{kind=\"parse\"} 3\n"), text);
+        assertTrue(text.contains("test_errors_total{kind=\"write\"} 1\n"), text);
+    }
+
+    @Test
+    void shouldExportHistogramAsSummaryInSeconds() throws IOException {
+        MetricsRegistry registry = new MetricsRegistry();
+        LatencyHistogram histogram = registry.histogram("test_latency_seconds", "Latency", "stage", "parse");
+        histogram.record(2_000_000_000L);
+
+        String text = render(registry);
+        assertTrue(text.contains("# TYPE test_latency_seconds summary\n"), text);
+        String p99 = "test_latency_seconds{stage=\"parse\",quantile=\"0.99\"} ";
+        int start = text.indexOf(p99) + p99.length();
+        assertTrue(start >= p99.length(), text);
+        assertEquals(2.0, Double.parseDouble(text.substring(start, text.indexOf('\n', start))), 0.08);
+        assertTrue(text.contains("test_latency_seconds_sum{stage=\"parse\"} 2\n"), text);
+        assertTrue(text.contains("test_latency_seconds_count{stage=\"parse\"} 1\n"), text);
+    }
+
+    @Test
+    void shouldReadCallbacksAtScrapeTime() throws IOException {
+        MetricsRegistry registry = new MetricsRegistry();
+        AtomicLong depth = new AtomicLong(5);
+        registry.registerGauge("test_queue_depth", "Depth", depth::get);
+        registry.registerCounter("test_sent_total", "Sent", () -> 42);
+        registry.registerCounter("test_paused_seconds_total", "Paused", () -> 1.5);
+
+        assertTrue(render(registry).contains("test_queue_depth 5\n"));
+        depth.set(7);
+        String text = render(registry);
+        assertTrue(text.contains("test_queue_depth 7\n"), text);
+        assertTrue(text.contains("test_sent_total 42\n"), text);
+        assertTrue(text.contains("# TYPE test_paused_seconds_total counter\ntest_paused_seconds_total 1.5\n"), text);
+    }
+
+    @Test
+    void shouldEscapeLabelValuesAndRejectTypeMismatches() throws IOException {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("test_total", "Test", "topic", "a\"b\\c").increment();
+
+        assertTrue(render(registry).contains("test_total{topic=\"a\\\"b\\\\c\"} 1\n"));
+        assertThrows(IllegalArgumentException.class, () -> registry.histogram("test_total", "Test"));
+        assertThrows(IllegalArgumentException.class, () -> registry.counter("test_other_total", "Test", "odd"));
+    }
+}
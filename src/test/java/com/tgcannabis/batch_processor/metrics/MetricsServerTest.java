@@ -0,0 +1,34 @@
+package com.tgcannabis.batch_processor.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsServerTest {
+
+    @Test
+    void shouldServeRegistryInPrometheusFormat() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("test_requests_total", "Requests").add(3);
+
+        try (MetricsServer server = new MetricsServer(registry, 0)) {
+            HttpClient client = HttpClient.newHttpClient();
+            URI uri = URI.create("http://localhost:" + server.getPort() + "/metrics");
+
+            HttpResponse<String> response = client.send(HttpRequest.newBuilder(uri).GET().build(),
+                    HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, response.statusCode());
+            assertEquals(MetricsServer.CONTENT_TYPE, response.headers().firstValue("Content-Type").orElse(null));
+            assertTrue(response.body().contains("test_requests_total 3\n"), response.body());
+
+            HttpResponse<String> post = client.send(HttpRequest.newBuilder(uri)
+                    .POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(405, post.statusCode());
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.tgcannabis.batch_processor.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TagDictionaryTest {
+
+    @Test
+    void shouldReturnCanonicalInstanceForBytesAndStrings() {
+        TagDictionary dictionary = new TagDictionary(64);
+        byte[] payload = "{\"sensorId\":\"sensor-1\"}".getBytes(StandardCharsets.UTF_8);
+
+        TagDictionary.Tag fromBytes = dictionary.intern(payload, 13, 21, true);
+        TagDictionary.Tag again = dictionary.intern(payload.clone(), 13, 21, true);
+        TagDictionary.Tag fromString = dictionary.intern(new String("sensor-1"));
+
+        assertEquals("sensor-1", fromBytes.value());
+        assertSame(fromBytes, again);
+        assertSame(fromBytes, fromString);
+        assertArrayEquals("sensor-1".getBytes(StandardCharsets.UTF_8), fromBytes.utf8());
+        assertEquals(2, dictionary.getHitCount());
+        assertEquals(1, dictionary.getMissCount());
+        assertEquals(2.0 / 3, dictionary.getHitRatio(), 1e-9);
+        assertEquals(1, dictionary.size());
+    }
+
+    @Test
+    void shouldMatchNonAsciiValuesByTheirUtf8Bytes() {
+        TagDictionary dictionary = new TagDictionary(64);
+        byte[] utf8 = "invernadero-ñ".getBytes(StandardCharsets.UTF_8);
+
+        TagDictionary.Tag fromBytes = dictionary.intern(utf8, 0, utf8.length, false);
+
+        assertEquals("invernadero-ñ", fromBytes.value());
+        assertSame(fromBytes, dictionary.intern("invernadero-ñ"));
+        assertArrayEquals(utf8, fromBytes.utf8());
+    }
+
+    @Test
+    void shouldPrecomputeLineProtocolEscaping() {
+        TagDictionary.Tag tag = new TagDictionary(8).intern("bed 1,a=b\n");
+        TagDictionary.Tag plain = new TagDictionary(8).intern("bed-1");
+
+        assertEquals("bed\\ 1\\,a\\=b\\n", tag.escapedTagValue());
+        assertEquals("bed\\ 1\\,a=b\\n", tag.escapedMeasurement());
+        assertSame(plain.value(), plain.escapedTagValue());
+    }
+
+    @Test
+    void shouldStayBoundedAndEvictUnusedTagsFirst() {
+        TagDictionary dictionary = new TagDictionary(16);
+        TagDictionary.Tag hot = dictionary.intern("hot");
+
+        for (int i = 0; i < 1_000; i++) {
+            dictionary.intern("sensor-" + i);
+            assertSame(hot, dictionary.intern("hot")); // Looked up between insertions, so never evicted
+        }
+
+        assertEquals(16, dictionary.capacity());
+        assertTrue(dictionary.size() <= 16);
+        assertTrue(dictionary.getEvictionCount() > 900);
+    }
+
+    @Test
+    void shouldNotCacheLongValues() {
+        TagDictionary dictionary = new TagDictionary(16);
+        String longValue = "x".repeat(300);
+
+        assertNotSame(dictionary.intern(longValue), dictionary.intern(longValue));
+        assertEquals(0, dictionary.size());
+        assertNull(dictionary.canonical(null));
+    }
+
+    @Test
+    void shouldHandOutOneInstancePerValueUnderConcurrency() throws Exception {
+        TagDictionary dictionary = new TagDictionary(4096);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        ConcurrentHashMap<String, List<String>> seen = new ConcurrentHashMap<>();
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int round = 0; round < 100; round++) {
+                        for (int i = 0; i < 200; i++) {
+                            String value = dictionary.canonical("sensor-" + i);
+                            assertEquals("sensor-" + i, value);
+                            if (round == 99) seen.computeIfAbsent(value, v -> new CopyOnWriteArrayList<>()).add(value);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Once warm, every thread gets the same instance
+        seen.forEach((value, instances) -> instances.forEach(instance -> assertSame(instances.getFirst(), instance)));
+        assertTrue(dictionary.getHitRatio() > 0.99);
+    }
+}
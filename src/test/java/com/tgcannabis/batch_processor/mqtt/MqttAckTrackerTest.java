@@ -0,0 +1,107 @@
+package com.tgcannabis.batch_processor.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
+
+class MqttAckTrackerTest {
+
+    private final List<Integer> acked = new CopyOnWriteArrayList<>();
+    private MqttAckTracker tracker;
+
+    @AfterEach
+    void tearDown() {
+        if (tracker != null) tracker.close();
+    }
+
+    private MqttAckTracker create(int capacity) {
+        tracker = new MqttAckTracker(capacity, 100, (messageId, qos) -> acked.add(messageId));
+        return tracker;
+    }
+
+    @Test
+    void shouldAcknowledgeInArrivalOrder() throws InterruptedException {
+        MqttAckTracker tracker = create(16);
+        Runnable first = tracker.arrived(1, 1);
+        Runnable second = tracker.arrived(2, 1);
+        Runnable third = tracker.arrived(3, 1);
+
+        third.run();
+        second.run();
+        TimeUnit.MILLISECONDS.sleep(50);
+        assertTrue(acked.isEmpty(), "Nothing may be acknowledged before the oldest message");
+        assertEquals(3, tracker.getInFlight());
+
+        first.run();
+        await().atMost(2, TimeUnit.SECONDS).until(() -> acked.size() == 3);
+
+        assertEquals(List.of(1, 2, 3), acked);
+        assertEquals(0, tracker.getInFlight());
+    }
+
+    @Test
+    void shouldAcknowledgeCompletedPrefixInOneBatch() {
+        MqttAckTracker tracker = create(16);
+        Runnable head = tracker.arrived(100, 1);
+        List<Runnable> rest = new ArrayList<>();
+        for (int id = 101; id < 150; id++) {
+            rest.add(tracker.arrived(id, 1));
+        }
+        rest.forEach(Runnable::run); // Grows the ring past its initial capacity
+
+        head.run();
+        await().atMost(2, TimeUnit.SECONDS).until(() -> acked.size() == 50);
+
+        assertEquals(50, tracker.getAckedCount());
+        assertEquals(1, tracker.getAckBatchCount());
+        assertEquals(100, acked.getFirst());
+        assertEquals(149, acked.getLast());
+    }
+
+    @Test
+    void shouldNotTrackQosZero() {
+        MqttAckTracker tracker = create(4);
+
+        tracker.arrived(0, 0).run();
+
+        assertEquals(0, tracker.getInFlight());
+        assertEquals(0, tracker.getAckedCount());
+    }
+
+    @Test
+    void shouldDiscardOutstandingMessagesOnReset() throws InterruptedException {
+        MqttAckTracker tracker = create(4);
+        Runnable stale = tracker.arrived(1, 1);
+
+        tracker.reset();
+        stale.run();
+        Runnable fresh = tracker.arrived(1, 1);
+        fresh.run();
+        await().atMost(2, TimeUnit.SECONDS).until(() -> !acked.isEmpty());
+        TimeUnit.MILLISECONDS.sleep(50);
+
+        assertEquals(List.of(1), acked);
+        assertEquals(0, tracker.getInFlight());
+    }
+
+    @Test
+    void shouldCountRefusedAcknowledgements() {
+        tracker = new MqttAckTracker(4, 4, (messageId, qos) -> {
+            throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+        });
+
+        tracker.arrived(1, 1).run();
+        await().atMost(2, TimeUnit.SECONDS).until(() -> tracker.getFailedCount() == 1);
+
+        assertEquals(1, tracker.getFailedCount());
+        assertEquals(0, tracker.getInFlight());
+    }
+}
@@ -0,0 +1,102 @@
+package com.tgcannabis.batch_processor.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MqttLoadReporterTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    void shouldPublishRateSinceLastReport() {
+        AtomicLong now = new AtomicLong();
+        AtomicLong received = new AtomicLong();
+        List<String> published = new CopyOnWriteArrayList<>();
+        try (MqttLoadReporter reporter = new MqttLoadReporter("node-a", "bp/instances", 60_000, received::get,
+                (topic, payload) -> published.add(topic + " " + new String(payload, StandardCharsets.US_ASCII)),
+                now::get)) {
+            received.set(500);
+            now.set(2 * SECOND);
+            reporter.report();
+
+            assertEquals(250.0, reporter.getRate(), 1e-9);
+            assertEquals(List.of("bp/instances/node-a 250.0"), published);
+            assertEquals("bp/instances/+", reporter.getSubscriptionFilter());
+        }
+    }
+
+    @Test
+    void shouldComputeShareFromOtherInstancesReports() {
+        AtomicLong now = new AtomicLong();
+        AtomicLong received = new AtomicLong();
+        try (MqttLoadReporter reporter = new MqttLoadReporter("node-a", "bp/instances", 1_000, received::get,
+                (topic, payload) -> {
+                }, now::get)) {
+            assertEquals(1.0, reporter.getShare());
+            reporter.accept("bp/instances/node-b", bytes("0"));
+            assertEquals(0.5, reporter.getShare()); // Nothing received anywhere yet counts as even
+
+            assertTrue(reporter.accept("bp/instances/node-b", bytes("300")));
+            assertTrue(reporter.accept("bp/instances/node-c", bytes("200")));
+            assertTrue(reporter.accept("bp/instances/node-a", bytes("999"))); // Its own report, echoed back
+            assertEquals(3, reporter.getInstanceCount());
+            assertEquals(0.0, reporter.getShare());
+
+            received.set(500);
+            now.set(SECOND);
+            reporter.report();
+            assertEquals(0.5, reporter.getShare(), 1e-9);
+
+            now.set(5 * SECOND); // node-b and node-c stopped reporting three intervals ago
+            assertEquals(1, reporter.getInstanceCount());
+            assertEquals(1.0, reporter.getShare());
+        }
+    }
+
+    @Test
+    void shouldLeaveOtherMessagesAlone() {
+        try (MqttLoadReporter reporter = new MqttLoadReporter("node-a", "bp/instances", 1_000, () -> 0,
+                (topic, payload) -> {
+                })) {
+            assertFalse(reporter.accept("sensors/bed-1/co2", bytes("1")));
+            assertFalse(reporter.accept("bp/instances/node-b/extra", bytes("1")));
+            assertTrue(reporter.accept("bp/instances/node-b", bytes("not a number")));
+            assertEquals(1, reporter.getInstanceCount());
+        }
+    }
+
+    @Test
+    void shouldSurvivePublishFailures() {
+        AtomicLong attempts = new AtomicLong();
+        try (MqttLoadReporter reporter = new MqttLoadReporter("node-a", "bp/instances", 1_000, () -> 0,
+                (topic, payload) -> {
+                    attempts.incrementAndGet();
+                    throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+                })) {
+            assertDoesNotThrow(reporter::report);
+            assertEquals(1, attempts.get());
+        }
+    }
+
+    @Test
+    void shouldRejectInvalidInstanceIds() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new MqttLoadReporter("a/b", "bp/instances", 1_000, () -> 0, (t, p) -> {
+                }));
+        assertThrows(IllegalArgumentException.class,
+                () -> new MqttLoadReporter("a", "bp/instances", 0, () -> 0, (t, p) -> {
+                }));
+    }
+}
@@ -0,0 +1,94 @@
+package com.tgcannabis.batch_processor.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
+
+class MqttReconnectorTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    void shouldJitterDoublingBackoffUpToMaximum() {
+        AtomicReference<Double> random = new AtomicReference<>(0.0);
+        try (MqttReconnector reconnector = new MqttReconnector(100, 300, () -> {
+        }, random::get, false)) { // No thread taking delays of its own
+            reconnector.connectionLost();
+
+            assertEquals(50 * MS, reconnector.nextDelayNanos()); // Half of 100 ms
+            random.set(1.0);
+            assertEquals(200 * MS, reconnector.nextDelayNanos());
+            assertEquals(300 * MS, reconnector.nextDelayNanos()); // Capped
+            random.set(0.5);
+            assertEquals(225 * MS, reconnector.nextDelayNanos());
+        }
+    }
+
+    @Test
+    void shouldRetryUntilConnected() {
+        AtomicInteger failuresLeft = new AtomicInteger(2);
+        try (MqttReconnector reconnector = new MqttReconnector(5, 10, () -> {
+            if (failuresLeft.getAndDecrement() > 0) throw new MqttException(MqttException.REASON_CODE_SERVER_CONNECT_ERROR);
+        })) {
+            assertFalse(reconnector.isReconnecting());
+            reconnector.connectionLost();
+            reconnector.connectionLost(); // Already reconnecting: no second round of attempts
+            assertTrue(reconnector.isReconnecting());
+
+            await().atMost(2, TimeUnit.SECONDS).until(() -> reconnector.getReconnectCount() == 1);
+            assertFalse(reconnector.isReconnecting());
+            assertEquals(3, reconnector.getAttemptCount());
+            assertTrue(reconnector.getLastOutageNanos() >= 5 * MS); // At least the three jittered delays' minimum
+        }
+    }
+
+    @Test
+    void shouldKeepReconnectingWhenConnectionIsLostDuringAttempt() {
+        AtomicReference<MqttReconnector> self = new AtomicReference<>();
+        AtomicInteger attempts = new AtomicInteger();
+        try (MqttReconnector reconnector = new MqttReconnector(5, 10, () -> {
+            if (attempts.incrementAndGet() == 1) {
+                self.get().connectionLost(); // New connection drops before the attempt is recorded as successful
+            }
+        })) {
+            self.set(reconnector);
+            reconnector.connectionLost();
+
+            await().atMost(2, TimeUnit.SECONDS).until(() -> reconnector.getReconnectCount() == 1);
+            assertFalse(reconnector.isReconnecting());
+            assertEquals(2, attempts.get());
+        }
+    }
+
+    @Test
+    void shouldStopReconnectingWhenClosed() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        MqttReconnector reconnector = new MqttReconnector(5, 10, () -> {
+            attempts.incrementAndGet();
+            throw new MqttException(MqttException.REASON_CODE_SERVER_CONNECT_ERROR);
+        });
+        reconnector.connectionLost();
+        await().atMost(2, TimeUnit.SECONDS).until(() -> attempts.get() > 0);
+
+        reconnector.close();
+        int afterClose = attempts.get();
+        TimeUnit.MILLISECONDS.sleep(50);
+
+        assertEquals(afterClose, attempts.get());
+        assertEquals(0, reconnector.getReconnectCount());
+    }
+
+    @Test
+    void shouldRejectInvalidBackoff() {
+        assertThrows(IllegalArgumentException.class, () -> new MqttReconnector(0, 10, () -> {
+        }));
+        assertThrows(IllegalArgumentException.class, () -> new MqttReconnector(100, 10, () -> {
+        }));
+    }
+}
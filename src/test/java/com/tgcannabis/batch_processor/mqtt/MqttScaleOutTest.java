@@ -0,0 +1,192 @@
+package com.tgcannabis.batch_processor.mqtt;
+
+import com.tgcannabis.batch_processor.config.BatchProcessorConfig;
+import org.eclipse.paho.client.mqttv3.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Runs several instances against a broker stand-in that implements shared subscriptions, to check that throughput
+ * grows with the number of instances and that each instance sees its share of the load.
+ */
+class MqttScaleOutTest {
+
+    private static final int MESSAGES = 400;
+    private static final long HANDLER_MILLIS = 2; // Cost of processing one message on the callback thread
+
+    @Test
+    void shouldScaleThroughputWithInstanceCount() throws Exception {
+        double one = run(1);
+        double two = run(2);
+        double four = run(4);
+
+        assertTrue(two > one * 1.5, "2 instances: " + two + " msg/s vs " + one);
+        assertTrue(four > two * 1.5, "4 instances: " + four + " msg/s vs " + two);
+        assertTrue(four > one * 2.5, "4 instances: " + four + " msg/s vs " + one);
+    }
+
+    /**
+     * Publishes {@link #MESSAGES} messages to {@code instances} instances sharing a subscription.
+     *
+     * @return Messages processed per second.
+     */
+    private double run(int instances) throws Exception {
+        CountDownLatch done = new CountDownLatch(MESSAGES);
+        List<MqttService> services = new ArrayList<>();
+        try (BrokerStub broker = new BrokerStub()) {
+            for (int i = 0; i < instances; i++) {
+                BatchProcessorConfig config = mock(BatchProcessorConfig.class);
+                when(config.getMqttBroker()).thenReturn("tcp://stub:1883");
+                when(config.getMqttTopicFilter()).thenReturn("sensors/#");
+                when(config.getMqttSharedGroup()).thenReturn("processors");
+                when(config.getInstanceId()).thenReturn("node-" + i);
+                when(config.getMqttLoadReportTopic()).thenReturn("bp/instances");
+                when(config.getMqttLoadReportIntervalMs()).thenReturn(60_000); // Reports are triggered below
+                MqttService service = new MqttService(config, broker.client());
+                service.setMessageHandler((topic, payload) -> {
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(HANDLER_MILLIS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    done.countDown();
+                });
+                service.connect();
+                services.add(service);
+            }
+
+            long started = System.nanoTime();
+            for (int m = 0; m < MESSAGES; m++) {
+                broker.publish("sensors/bed-" + (m % 16) + "/co2", ("{\"value\":" + m + "}").getBytes());
+            }
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            double throughput = MESSAGES / ((System.nanoTime() - started) / 1e9);
+
+            for (MqttService service : services) {
+                assertEquals(MESSAGES / instances, service.getReceivedCount());
+                service.getLoadReporter().report();
+            }
+            for (MqttService service : services) {
+                MqttLoadReporter load = service.getLoadReporter();
+                await().atMost(5, TimeUnit.SECONDS).until(() -> load.getInstanceCount() == instances);
+                assertEquals(1.0 / instances, load.getShare(), 0.1);
+            }
+            return throughput;
+        } finally {
+            services.forEach(MqttService::close);
+        }
+    }
+
+    /**
+     * Broker stand-in: delivers to each client on its own thread, like Paho's callback thread, and spreads messages
+     * matching a {@code $share/<group>/<filter>} subscription round-robin over the group's members.
+     */
+    private static final class BrokerStub implements AutoCloseable {
+        private record Subscription(String filter, Member member) {
+        }
+
+        private final Map<String, List<Subscription>> groups = new ConcurrentHashMap<>();
+        private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+        private final List<Member> members = new CopyOnWriteArrayList<>();
+        private final AtomicInteger next = new AtomicInteger();
+
+        MqttClient client() throws MqttException {
+            Member member = new Member();
+            members.add(member);
+            MqttClient client = mock(MqttClient.class);
+            when(client.isConnected()).thenReturn(true);
+            doAnswer(invocation -> member.callback = invocation.getArgument(0)).when(client).setCallback(any());
+            doAnswer(invocation -> {
+                ((MqttCallbackExtended) member.callback).connectComplete(false, "tcp://stub:1883");
+                return null;
+            }).when(client).connect(any(MqttConnectOptions.class));
+            doAnswer(invocation -> {
+                subscribe(invocation.getArgument(0), member);
+                return null;
+            }).when(client).subscribe(anyString(), anyInt());
+            doAnswer(invocation -> {
+                publish(invocation.getArgument(0), invocation.getArgument(1));
+                return null;
+            }).when(client).publish(anyString(), any(byte[].class), anyInt(), anyBoolean());
+            return client;
+        }
+
+        private void subscribe(String filter, Member member) {
+            if (filter.startsWith("$share/")) {
+                int groupEnd = filter.indexOf('/', "$share/".length());
+                String group = filter.substring("$share/".length(), groupEnd);
+                groups.computeIfAbsent(group, g -> new CopyOnWriteArrayList<>())
+                        .add(new Subscription(filter.substring(groupEnd + 1), member));
+            } else {
+                subscriptions.add(new Subscription(filter, member));
+            }
+        }
+
+        void publish(String topic, byte[] payload) {
+            for (List<Subscription> group : groups.values()) {
+                List<Subscription> matching = group.stream().filter(s -> MqttTopic.isMatched(s.filter(), topic)).toList();
+                if (!matching.isEmpty()) {
+                    matching.get(Math.floorMod(next.getAndIncrement(), matching.size())).member().deliver(topic, payload);
+                }
+            }
+            for (Subscription subscription : subscriptions) {
+                if (MqttTopic.isMatched(subscription.filter(), topic)) subscription.member().deliver(topic, payload);
+            }
+        }
+
+        @Override
+        public void close() {
+            members.forEach(Member::close);
+        }
+    }
+
+    private static final class Member {
+        private record Delivery(String topic, byte[] payload) {
+        }
+
+        private final BlockingQueue<Delivery> inbox = new LinkedBlockingQueue<>();
+        private final Thread thread = new Thread(this::run, "broker-stub-delivery");
+        private volatile MqttCallback callback;
+
+        Member() {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void deliver(String topic, byte[] payload) {
+            inbox.add(new Delivery(topic, payload));
+        }
+
+        private void run() {
+            try {
+                while (true) {
+                    Delivery delivery = inbox.take();
+                    callback.messageArrived(delivery.topic(), new MqttMessage(delivery.payload()));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void close() {
+            thread.interrupt();
+        }
+    }
+}
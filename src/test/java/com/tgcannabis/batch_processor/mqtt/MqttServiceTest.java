@@ -5,10 +5,14 @@ import org.eclipse.paho.client.mqttv3.*;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiConsumer;
 
-import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
-import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.*;
 
@@ -57,7 +61,7 @@ class MqttServiceTest {
 
     @Test
     void shouldSubscribeWhenConnected() throws Exception {
-        BiConsumer<String, String> handler = (topic, message) -> {
+        BiConsumer<String, byte[]> handler = (topic, message) -> {
         };
         mqttService.setMessageHandler(handler);
         mqttService.connect();
@@ -119,16 +123,18 @@ class MqttServiceTest {
 
     @Test
     void shouldProcessMessageWhenHandlerSet() throws Exception {
-        BiConsumer<String, String> handler = mock(BiConsumer.class);
+        BiConsumer<String, byte[]> handler = mock(BiConsumer.class);
         mqttService.setMessageHandler(handler);
 
         mqttService.connect(); // Triggers callback registration
         MqttCallbackExtended callback = captureCallback();
 
-        MqttMessage msg = new MqttMessage("test-payload".getBytes());
+        byte[] payload = "test-payload".getBytes();
+        MqttMessage msg = new MqttMessage(payload);
         callback.messageArrived("test/topic", msg);
 
-        verify(handler).accept("test/topic", "test-payload");
+        // The raw payload buffer is handed over without decoding
+        verify(handler).accept("test/topic", payload);
     }
 
     private MqttCallbackExtended captureCallback() {
@@ -140,7 +146,7 @@ class MqttServiceTest {
 
     @Test
     void shouldCatchExceptionFromHandler() throws Exception {
-        BiConsumer<String, String> handler = (t, m) -> {
+        BiConsumer<String, byte[]> handler = (t, m) -> {
             throw new RuntimeException("Boom");
         };
         mqttService.setMessageHandler(handler);
@@ -151,4 +157,228 @@ class MqttServiceTest {
 
         assertDoesNotThrow(() -> callback.messageArrived("some/topic", msg));
     }
+
+    @Test
+    void shouldSubscribeSharedWhenGroupConfigured() throws Exception {
+        BatchProcessorConfig config = mock(BatchProcessorConfig.class);
+        when(config.getMqttTopicFilter()).thenReturn("sensors/#");
+        when(config.getMqttSharedGroup()).thenReturn("processors");
+        when(config.getInstanceId()).thenReturn("node-a");
+        when(config.getMqttLoadReportTopic()).thenReturn("bp/instances");
+        when(config.getMqttLoadReportIntervalMs()).thenReturn(60_000);
+        when(mockClient.isConnected()).thenReturn(true);
+        MqttService service = new MqttService(config, mockClient);
+        BiConsumer<String, byte[]> handler = mock(BiConsumer.class);
+        service.setMessageHandler(handler);
+        service.connect();
+        MqttCallbackExtended callback = captureCallback();
+
+        callback.connectComplete(false, "tcp://localhost:1883");
+        callback.messageArrived("bp/instances/node-b", new MqttMessage("10".getBytes()));
+        callback.messageArrived("sensors/a", new MqttMessage("{}".getBytes()));
+
+        verify(mockClient).subscribe("$share/processors/sensors/#", 1);
+        verify(mockClient).subscribe("bp/instances/+", 0);
+        verify(handler).accept(eq("sensors/a"), any()); // Load reports never reach the handler
+        verifyNoMoreInteractions(handler);
+        assertEquals(1, service.getReceivedCount());
+        assertEquals(2, service.getLoadReporter().getInstanceCount());
+        service.close();
+    }
+
+    @Test
+    void shouldReconnectAfterConnectionLossAndMeasureCatchUp() throws Exception {
+        BatchProcessorConfig config = mock(BatchProcessorConfig.class);
+        when(config.getMqttTopicFilter()).thenReturn("sensors/#");
+        when(config.getMqttReconnectInitialBackoffMs()).thenReturn(5);
+        when(config.getMqttReconnectMaxBackoffMs()).thenReturn(10);
+        when(mockClient.isConnected()).thenReturn(true);
+        MqttService service = new MqttService(config, mockClient);
+        service.setMessageHandler((topic, payload) -> {
+        });
+        service.connect();
+        MqttCallbackExtended callback = captureCallback();
+        var options = org.mockito.ArgumentCaptor.forClass(MqttConnectOptions.class);
+        verify(mockClient).connect(options.capture());
+        assertTrue(options.getValue().isCleanSession());
+        assertFalse(options.getValue().isAutomaticReconnect());
+
+        callback.connectionLost(new MqttException(MqttException.REASON_CODE_CONNECTION_LOST));
+
+        verify(mockClient, timeout(2_000).times(2)).connect(options.getValue());
+        await().atMost(2, TimeUnit.SECONDS).until(() -> service.getReconnector().getReconnectCount() == 1);
+        assertTrue(service.isCatchingUp());
+
+        callback.connectComplete(false, "tcp://localhost:1883"); // Paho resubscribes on every connection
+        callback.messageArrived("sensors/a", message(1));
+        callback.messageArrived("sensors/a", message(2));
+
+        verify(mockClient, times(1)).subscribe("sensors/#", 1);
+        assertFalse(service.isCatchingUp());
+        assertEquals(1, service.getCatchUpCount());
+        assertEquals(1, service.getLastCatchUpMessages()); // The first message found the buffers drained
+        assertTrue(service.getLastCatchUpNanos() > 0);
+        service.close();
+    }
+
+    @Test
+    void shouldUsePersistentSessionWhenPersistenceDirectoryConfigured() throws Exception {
+        BatchProcessorConfig config = mock(BatchProcessorConfig.class);
+        when(config.getMqttTopicFilter()).thenReturn("sensors/#");
+        when(config.getMqttPersistenceDir()).thenReturn("data/mqtt");
+        MqttService service = new MqttService(config, mockClient);
+        service.setMessageHandler((topic, payload) -> {
+        });
+
+        service.connect();
+
+        var options = org.mockito.ArgumentCaptor.forClass(MqttConnectOptions.class);
+        verify(mockClient).connect(options.capture());
+        assertFalse(options.getValue().isCleanSession());
+        service.close();
+    }
+
+    @Test
+    void shouldNotReconnectAfterClose() throws Exception {
+        mqttService.setMessageHandler((topic, payload) -> {
+        });
+        mqttService.connect();
+        MqttCallbackExtended callback = captureCallback();
+
+        mqttService.close();
+        callback.connectionLost(new MqttException(MqttException.REASON_CODE_CONNECTION_LOST));
+
+        assertFalse(mqttService.getReconnector().isReconnecting());
+        verify(mockClient, times(1)).connect(any());
+    }
+
+    @Test
+    void shouldStopIntakeButStayConnectedUntilClosed() throws Exception {
+        when(mockClient.isConnected()).thenReturn(true);
+        mqttService.setMessageHandler((topic, payload) -> {
+        });
+        mqttService.connect();
+        MqttCallbackExtended callback = captureCallback();
+
+        mqttService.stopIntake();
+        callback.connectComplete(true, "tcp://localhost:1883"); // A late reconnection must not resubscribe
+
+        verify(mockClient).unsubscribe("sensors/#");
+        verify(mockClient, never()).subscribe(anyString(), anyInt());
+        verify(mockClient, never()).disconnect();
+
+        mqttService.close();
+        verify(mockClient).disconnect();
+    }
+
+    @Test
+    void shouldBuildSharedSubscriptionFilters() {
+        assertEquals("$share/g/sensors/#", MqttService.sharedFilter("sensors/#", "g"));
+        assertEquals("sensors/#", MqttService.sharedFilter("sensors/#", ""));
+        assertEquals("sensors/#", MqttService.sharedFilter("sensors/#", null));
+        assertEquals("$share/h/sensors/#", MqttService.sharedFilter("$share/h/sensors/#", "g"));
+    }
+
+    /** A service acknowledging manually, pausing above 80% backlog until below 50%, for at most {@code maxPauseMs}. */
+    private MqttService backpressuredService(int maxPauseMs) {
+        BatchProcessorConfig config = mock(BatchProcessorConfig.class);
+        when(config.getMqttTopicFilter()).thenReturn("sensors/#");
+        when(config.getMqttMaxInflight()).thenReturn(100);
+        when(config.getMqttPauseHighWatermarkPercent()).thenReturn(80);
+        when(config.getMqttResumeLowWatermarkPercent()).thenReturn(50);
+        when(config.getMqttMaxPauseMs()).thenReturn(maxPauseMs);
+        return new MqttService(config, mockClient);
+    }
+
+    private static MqttMessage message(int id) {
+        MqttMessage message = new MqttMessage("payload".getBytes());
+        message.setId(id);
+        message.setQos(1);
+        return message;
+    }
+
+    @Test
+    void shouldAcknowledgeOnlyOnceProcessed() throws Exception {
+        MqttService service = backpressuredService(1_000);
+        List<Runnable> callbacks = new CopyOnWriteArrayList<>();
+        service.setAcknowledgingHandler((topic, payload, onProcessed) -> callbacks.add(onProcessed));
+        service.connect();
+        MqttCallbackExtended callback = captureCallback();
+
+        callback.messageArrived("sensors/a", message(7));
+        callback.messageArrived("sensors/a", message(8));
+
+        verify(mockClient).setManualAcks(true);
+        assertEquals(2, service.getAckTracker().getInFlight());
+        verify(mockClient, never()).messageArrivedComplete(anyInt(), anyInt());
+
+        callbacks.get(1).run();
+        callbacks.get(0).run();
+        verify(mockClient, timeout(2_000)).messageArrivedComplete(8, 1);
+        var order = inOrder(mockClient);
+        order.verify(mockClient).messageArrivedComplete(7, 1);
+        order.verify(mockClient).messageArrivedComplete(8, 1);
+        service.close();
+    }
+
+    @Test
+    void shouldAcknowledgeInlineMessagesEvenIfTheHandlerFails() throws Exception {
+        MqttService service = backpressuredService(1_000);
+        service.setMessageHandler((topic, payload) -> {
+            throw new IllegalStateException("Boom");
+        });
+        service.connect();
+
+        captureCallback().messageArrived("sensors/a", message(3));
+
+        verify(mockClient, timeout(2_000)).messageArrivedComplete(3, 1);
+        service.close();
+    }
+
+    @Test
+    void shouldPauseIntakeAboveHighWatermarkUntilBelowLowWatermark() throws Exception {
+        MqttService service = backpressuredService(10_000);
+        AtomicReference<Double> backlog = new AtomicReference<>(0.9);
+        List<String> received = new CopyOnWriteArrayList<>();
+        service.setBacklog(backlog::get);
+        service.setMessageHandler((topic, payload) -> received.add(topic));
+        service.connect();
+        MqttCallbackExtended callback = captureCallback();
+
+        Thread paho = new Thread(() -> {
+            try {
+                callback.messageArrived("sensors/a", message(1));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        paho.start();
+        await().atMost(2, TimeUnit.SECONDS).until(service::isPaused);
+
+        backlog.set(0.6); // Between the watermarks: stays paused
+        TimeUnit.MILLISECONDS.sleep(50);
+        assertTrue(received.isEmpty());
+
+        backlog.set(0.4);
+        paho.join(2_000);
+        assertEquals(List.of("sensors/a"), received);
+        assertFalse(service.isPaused());
+        assertEquals(1, service.getPauseCount());
+        service.close();
+    }
+
+    @Test
+    void shouldResumeAfterMaximumPause() throws Exception {
+        MqttService service = backpressuredService(50);
+        List<String> received = new CopyOnWriteArrayList<>();
+        service.setBacklog(() -> 1.0);
+        service.setMessageHandler((topic, payload) -> received.add(topic));
+        service.connect();
+
+        captureCallback().messageArrived("sensors/a", message(1));
+
+        assertEquals(List.of("sensors/a"), received);
+        assertTrue(service.getPausedNanos() >= TimeUnit.MILLISECONDS.toNanos(50));
+        service.close();
+    }
 }
@@ -0,0 +1,127 @@
+package com.tgcannabis.batch_processor.processing;
+
+import com.google.gson.Gson;
+import com.tgcannabis.batch_processor.model.SensorData;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinarySensorCodecTest {
+
+    private final BinarySensorCodec codec = new BinarySensorCodec("/bin", List.of("sensor-1", "sensor-2"));
+
+    @Test
+    void shouldRoundTripReadings() {
+        List<SensorData> readings = List.of(
+                new SensorData("temperature", "greenhouse-1", "sensor-2", 21.5, 1_713_370_000_000L), // Float, indexed
+                new SensorData("humidity", "greenhouse-1", "sensor-99", 61.3, -1L),                 // Double, inline
+                new SensorData(null, null, "ñandú-1", -0.0, Long.MAX_VALUE));
+
+        for (SensorData reading : readings) {
+            assertEquals(reading, codec.decode(codec.encode(reading)));
+        }
+    }
+
+    @Test
+    void shouldBeSeveralTimesSmallerThanJson() {
+        SensorData reading = new SensorData("soil_moisture", "greenhouse-2", "sensor-1", 40.25, 1_713_370_000_000L);
+
+        byte[] record = codec.encode(reading);
+        byte[] bare = codec.encode(new SensorData(null, null, "sensor-1", 40.25, 1_713_370_000_000L));
+
+        assertEquals(16, bare.length);
+        assertTrue(record.length * 2 < new Gson().toJson(reading).length());
+        assertTrue(bare.length * 6 < new Gson().toJson(reading).length());
+    }
+
+    @Test
+    void shouldDecodeConcatenatedRecordsReusingDictionaryStrings() {
+        byte[] first = codec.encode(new SensorData("co2", "bed-1", "sensor-1", 800, 1L));
+        byte[] second = codec.encode(new SensorData("co2", "bed-1", "sensor-7", 801.5, 2L));
+        byte[] payload = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, payload, first.length, second.length);
+
+        SensorData data = new SensorData();
+        int next = codec.decodeInto(payload, 0, data);
+        assertSame(codec.decode(first).getSensorId(), data.getSensorId());
+        assertEquals(first.length, next);
+
+        assertEquals(payload.length, codec.decodeInto(payload, next, data));
+        assertEquals(new SensorData("co2", "bed-1", "sensor-7", 801.5, 2L), data);
+    }
+
+    @Test
+    void shouldRejectInvalidRecords() {
+        byte[] record = codec.encode(new SensorData("co2", "bed-1", "sensor-42", 801.5, 2L));
+        byte[] futureVersion = record.clone();
+        futureVersion[1] = BinarySensorCodec.VERSION + 1;
+        byte[] unknownFlag = record.clone();
+        unknownFlag[2] |= 0x40;
+        byte[] badIndex = new BinarySensorCodec(null, List.of("a", "b", "c")).encode(new SensorData(null, null, "c", 1, 1L));
+
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(futureVersion));
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(unknownFlag));
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(badIndex));
+        assertThrows(IllegalArgumentException.class, () -> codec.decode("{}".getBytes(StandardCharsets.UTF_8)));
+        assertThrows(IllegalArgumentException.class, () -> codec.encode(new SensorData(null, null, "s", Double.NaN, 1L)));
+        for (int length = 0; length < record.length; length++) {
+            byte[] truncated = Arrays.copyOf(record, length);
+            assertThrows(IllegalArgumentException.class, () -> codec.decode(truncated), "Truncated to " + length + " bytes");
+        }
+        assertThrows(IllegalArgumentException.class, () -> new BinarySensorCodec(null, List.of("a", "a")));
+    }
+
+    @Test
+    void shouldDetectBinaryPayloadsByMagicByteOrTopic() {
+        byte[] record = codec.encode(new SensorData(null, null, "sensor-1", 1, 1L));
+        byte[] json = "{\"sensorId\":\"sensor-1\"}".getBytes(StandardCharsets.UTF_8);
+
+        assertTrue(codec.isBinary("sensors/a", record));
+        assertTrue(codec.isBinary("sensors/a/bin", json));
+        assertFalse(codec.isBinary("sensors/a", json));
+        assertFalse(new BinarySensorCodec(" ", List.of()).isBinary("sensors/a/bin", json));
+        assertFalse(BinarySensorCodec.hasMagic(new byte[0]));
+    }
+
+    @Test
+    void shouldHashSensorIdsLikeJson() {
+        byte[] record = codec.encode(new SensorData("co2", "bed-1", "sensor-42", 801.5, 2L));
+        byte[] json = "{\"sensorId\":\"sensor-42\",\"value\":801.5}".getBytes(StandardCharsets.UTF_8);
+        byte[] indexed = codec.encode(new SensorData(null, null, "sensor-2", 1, 1L));
+        byte[] indexedJson = "{\"sensorId\":\"sensor-2\"}".getBytes(StandardCharsets.UTF_8);
+
+        assertEquals(SensorDataParser.sensorIdHash(json, 0), codec.sensorIdHash(record, 0));
+        assertEquals(SensorDataParser.sensorIdHash(indexedJson, 0), codec.sensorIdHash(indexed, 0));
+        assertEquals(5, new BinarySensorCodec(null, List.of()).sensorIdHash(indexed, 5)); // Unknown index
+        assertEquals(5, codec.sensorIdHash(Arrays.copyOf(record, 4), 5));
+    }
+
+    @Test
+    void shouldDetectMultiRecordPayloads() {
+        byte[] first = codec.encode(new SensorData("co2", "bed-1", "sensor-42", 801.5, 2L));
+        byte[] second = codec.encode(new SensorData(null, null, "sensor-2", 1, 1L));
+        byte[] both = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+
+        assertFalse(BinarySensorCodec.isMultiRecord(first));
+        assertFalse(BinarySensorCodec.isMultiRecord(second));
+        assertTrue(BinarySensorCodec.isMultiRecord(both));
+        assertFalse(BinarySensorCodec.isMultiRecord(Arrays.copyOf(first, 5)));
+    }
+
+    @Test
+    void shouldRenderJsonLikeGson() {
+        SensorData data = new SensorData("temperature", "bed \"1\"\n", "sensor-1", 24.5, 1L);
+
+        assertEquals(new Gson().toJson(new SensorData(null, "a\\b", "s", 1e-5, -3L)),
+                new String(BinarySensorCodec.toJson(new SensorData(null, "a\\b", "s", 1e-5, -3L)), StandardCharsets.UTF_8));
+        assertEquals(data, new Gson().fromJson(new String(BinarySensorCodec.toJson(data), StandardCharsets.UTF_8),
+                SensorData.class));
+        assertEquals(List.of("a", "b"), BinarySensorCodec.parseDictionary(" a, b "));
+        assertEquals(List.of(), BinarySensorCodec.parseDictionary(null));
+    }
+}
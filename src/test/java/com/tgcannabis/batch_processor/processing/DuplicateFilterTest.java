@@ -0,0 +1,98 @@
+package com.tgcannabis.batch_processor.processing;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DuplicateFilterTest {
+
+    @Test
+    void shouldRecogniseRepeatedTimestampOfSameSensor() {
+        DuplicateFilter filter = new DuplicateFilter(4, 100);
+
+        assertFalse(filter.isDuplicate("s1", 1_000));
+        assertFalse(filter.isDuplicate("s2", 1_000));
+        assertFalse(filter.isDuplicate("s1", 2_000));
+        assertTrue(filter.isDuplicate("s1", 1_000));
+        assertTrue(filter.isDuplicate("s2", 1_000));
+
+        assertEquals(5, filter.getCheckedCount());
+        assertEquals(2, filter.getDuplicateCount());
+        assertEquals(0.4, filter.getHitRate(), 1e-9);
+    }
+
+    @Test
+    void shouldForgetTimestampsBeyondHistorySize() {
+        DuplicateFilter filter = new DuplicateFilter(3, 100);
+        for (long ts = 1; ts <= 4; ts++) {
+            assertFalse(filter.isDuplicate("s1", ts));
+        }
+
+        assertFalse(filter.isDuplicate("s1", 1)); // Evicted by the fourth reading
+        assertTrue(filter.isDuplicate("s1", 4));
+    }
+
+    @Test
+    void shouldDetectBurstOfRedeliveriesAfterReconnect() {
+        DuplicateFilter filter = new DuplicateFilter(16, 10_000);
+        for (int sensor = 0; sensor < 1_000; sensor++) {
+            for (long ts = 0; ts < 10; ts++) {
+                filter.isDuplicate("sensor-" + sensor, ts);
+            }
+        }
+        for (int sensor = 0; sensor < 1_000; sensor++) {
+            for (long ts = 5; ts < 10; ts++) {
+                assertTrue(filter.isDuplicate("sensor-" + sensor, ts), "sensor-" + sensor + " @ " + ts);
+            }
+        }
+
+        assertEquals(1_000, filter.getTrackedSensors());
+        assertEquals(5_000, filter.getDuplicateCount());
+    }
+
+    @Test
+    void shouldStayWithinSensorBound() {
+        DuplicateFilter filter = new DuplicateFilter(4, 160);
+        for (int sensor = 0; sensor < 10_000; sensor++) {
+            filter.isDuplicate("sensor-" + sensor, 1);
+        }
+
+        assertTrue(filter.getTrackedSensors() <= 160, "Tracked " + filter.getTrackedSensors());
+    }
+
+    @Test
+    void shouldLetExactlyOneOfConcurrentRedeliveriesThrough() throws Exception {
+        DuplicateFilter filter = new DuplicateFilter(64, 1_000);
+        AtomicInteger passed = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<?>[] futures = new Future<?>[4];
+            for (int t = 0; t < futures.length; t++) {
+                futures[t] = executor.submit(() -> {
+                    for (long ts = 0; ts < 50; ts++) {
+                        if (!filter.isDuplicate("s1", ts)) passed.incrementAndGet();
+                    }
+                });
+            }
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(50, passed.get());
+    }
+
+    @Test
+    void shouldRejectInvalidSettings() {
+        assertThrows(IllegalArgumentException.class, () -> new DuplicateFilter(0, 10));
+        assertThrows(IllegalArgumentException.class, () -> new DuplicateFilter(4, 0));
+    }
+}
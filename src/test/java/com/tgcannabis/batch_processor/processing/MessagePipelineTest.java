@@ -0,0 +1,294 @@
+package com.tgcannabis.batch_processor.processing;
+
+import com.tgcannabis.batch_processor.model.SensorData;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessagePipelineTest {
+
+    private MessagePipeline pipeline;
+
+    @AfterEach
+    void tearDown() {
+        if (pipeline != null) {
+            pipeline.close();
+        }
+    }
+
+    @Test
+    void shouldDeliverMessagesInOrderWithSingleWorker() {
+        List<String> received = new CopyOnWriteArrayList<>();
+        pipeline = new MessagePipeline(16, 1, MessagePipeline.OverflowPolicy.BLOCK,
+                (topic, payload) -> received.add(topic + ":" + new String(payload)));
+
+        for (int i = 0; i < 100; i++) {
+            pipeline.accept("sensors/t", String.valueOf(i).getBytes());
+        }
+
+        await().atMost(2, TimeUnit.SECONDS).until(() -> received.size() == 100);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("sensors/t:" + i, received.get(i));
+        }
+        assertEquals(100, pipeline.getProcessedCount());
+        assertEquals(0, pipeline.getDroppedCount());
+    }
+
+    @Test
+    void shouldDropWhenFullUnderDropPolicy() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        pipeline = new MessagePipeline(2, 1, MessagePipeline.OverflowPolicy.DROP, (topic, payload) -> {
+            started.countDown();
+            awaitQuietly(release);
+        });
+
+        pipeline.accept("t", new byte[0]); // Taken by the worker, which then stalls
+        assertTrue(started.await(2, TimeUnit.SECONDS));
+        pipeline.accept("t", new byte[0]);
+        pipeline.accept("t", new byte[0]);
+        pipeline.accept("t", new byte[0]); // Buffer full -> dropped
+
+        assertEquals(2, pipeline.getQueueDepth());
+        assertEquals(1, pipeline.getDroppedCount());
+
+        release.countDown();
+        await().atMost(2, TimeUnit.SECONDS).until(() -> pipeline.getProcessedCount() == 3);
+    }
+
+    @Test
+    void shouldBlockProducerWhenFullUnderBlockPolicy() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        pipeline = new MessagePipeline(1, 1, MessagePipeline.OverflowPolicy.BLOCK, (topic, payload) -> {
+            started.countDown();
+            awaitQuietly(release);
+        });
+
+        pipeline.accept("t", new byte[0]);
+        assertTrue(started.await(2, TimeUnit.SECONDS));
+        pipeline.accept("t", new byte[0]); // Fills the single slot
+
+        Thread producer = new Thread(() -> pipeline.accept("t", new byte[0]));
+        producer.start();
+        await().atMost(2, TimeUnit.SECONDS).until(() -> producer.getState() == Thread.State.WAITING);
+
+        release.countDown();
+        producer.join(2000);
+        assertFalse(producer.isAlive());
+        await().atMost(2, TimeUnit.SECONDS).until(() -> pipeline.getProcessedCount() == 3);
+        assertEquals(0, pipeline.getDroppedCount());
+    }
+
+    @Test
+    void shouldRunCallbackAfterHandlerReturns() {
+        List<String> events = new CopyOnWriteArrayList<>();
+        pipeline = new MessagePipeline(16, 2, MessagePipeline.OverflowPolicy.BLOCK,
+                (topic, payload) -> events.add("handled " + new String(payload)));
+
+        pipeline.accept("sensors/t", "a".getBytes(), () -> events.add("done a"));
+        pipeline.accept("sensors/t", "b".getBytes(), () -> {
+            throw new IllegalStateException("callback failure");
+        });
+        pipeline.accept("sensors/t", "c".getBytes(), () -> events.add("done c"));
+
+        await().atMost(2, TimeUnit.SECONDS).until(() -> events.size() == 5);
+        assertEquals(List.of("handled a", "done a", "handled b", "handled c", "done c"), events);
+    }
+
+    @Test
+    void shouldRunCallbackOfDroppedMessages() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        pipeline = new MessagePipeline(1, 1, MessagePipeline.OverflowPolicy.DROP, (topic, payload) -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        CountDownLatch done = new CountDownLatch(3);
+
+        for (int i = 0; i < 3; i++) {
+            pipeline.accept("sensors/t", "x".getBytes(), done::countDown);
+        }
+        // The third message may have found the lane full or not, depending on whether the worker took the first
+        assertTrue(pipeline.getDroppedCount() >= 1);
+        assertEquals(3 - pipeline.getDroppedCount(), done.getCount());
+
+        release.countDown();
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void shouldKeepWorkingAfterHandlerException() {
+        List<String> received = new CopyOnWriteArrayList<>();
+        BiConsumer<String, byte[]> handler = (topic, payload) -> {
+            if (topic.equals("boom")) throw new RuntimeException("Boom");
+            received.add(topic);
+        };
+        pipeline = new MessagePipeline(4, 1, MessagePipeline.OverflowPolicy.BLOCK, handler);
+
+        pipeline.accept("boom", new byte[0]);
+        pipeline.accept("ok", new byte[0]);
+
+        await().atMost(2, TimeUnit.SECONDS).until(() -> received.contains("ok"));
+    }
+
+    @Test
+    void shouldDrainBufferedMessagesOnClose() {
+        List<String> received = new CopyOnWriteArrayList<>();
+        pipeline = new MessagePipeline(64, 2, MessagePipeline.OverflowPolicy.BLOCK,
+                (topic, payload) -> received.add(topic));
+
+        for (int i = 0; i < 50; i++) {
+            pipeline.accept("t" + i, new byte[0]);
+        }
+        pipeline.close();
+
+        assertEquals(50, received.size());
+        assertEquals(0, pipeline.getQueueDepth());
+
+        pipeline.accept("late", new byte[0]);
+        assertEquals(1, pipeline.getDroppedCount());
+    }
+
+    @Test
+    void shouldKeepPerSensorOrderAcrossLanes() {
+        Map<String, List<Integer>> received = new ConcurrentHashMap<>();
+        pipeline = new MessagePipeline(64, 4, MessagePipeline.OverflowPolicy.BLOCK, (topic, payload) -> {
+            String json = new String(payload, StandardCharsets.UTF_8);
+            String sensorId = json.substring(json.indexOf("\"sensorId\":\"") + 12, json.indexOf("\",\"seq"));
+            int seq = Integer.parseInt(json.substring(json.indexOf("\"seq\":") + 6, json.length() - 1));
+            received.computeIfAbsent(sensorId, k -> new CopyOnWriteArrayList<>()).add(seq);
+        });
+
+        for (int seq = 0; seq < 500; seq++) {
+            for (int sensor = 0; sensor < 20; sensor++) {
+                pipeline.accept("sensors/shared",
+                        ("{\"sensorId\":\"s" + sensor + "\",\"seq\":" + seq + "}").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        await().atMost(5, TimeUnit.SECONDS).until(() -> pipeline.getProcessedCount() == 10_000);
+        assertEquals(20, received.size());
+        for (List<Integer> sequence : received.values()) {
+            assertEquals(IntStream.range(0, 500).boxed().toList(), sequence);
+        }
+        long usedLanes = IntStream.range(0, 4).filter(lane -> pipeline.getLaneProcessedCount(lane) > 0).count();
+        assertTrue(usedLanes > 1, "Sensors should spread over several lanes");
+    }
+
+    @Test
+    void shouldRouteSameSensorToSameLane() {
+        pipeline = new MessagePipeline(4, 8, MessagePipeline.OverflowPolicy.BLOCK, (t, p) -> {
+        });
+
+        int lane = pipeline.laneFor("a", "{\"sensorId\":\"s1\",\"value\":1}".getBytes(StandardCharsets.UTF_8));
+        assertEquals(lane, pipeline.laneFor("b", "{\"value\":2, \"sensorId\" : \"s1\"}".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(pipeline.laneFor("sensors/x", new byte[0]), pipeline.laneFor("sensors/x", "not json".getBytes()));
+        byte[] binary = new BinarySensorCodec(null, List.of()).encode(new SensorData(null, null, "s1", 1, 1L));
+        assertEquals(lane, pipeline.laneFor("c", binary));
+    }
+
+    @Test
+    void shouldRouteDictionaryCodedSensorsLikeJson() {
+        BinarySensorCodec codec = new BinarySensorCodec(null, List.of("s0", "s1", "s2", "s3"));
+        pipeline = new MessagePipeline(4, 8, MessagePipeline.OverflowPolicy.BLOCK, codec, (t, p) -> {
+        });
+
+        for (String sensorId : List.of("s0", "s1", "s2", "s3")) {
+            byte[] indexed = codec.encode(new SensorData(null, null, sensorId, 1, 1L));
+            assertEquals(pipeline.laneFor("a", single(sensorId)), pipeline.laneFor("b", indexed));
+        }
+        byte[] first = codec.encode(new SensorData(null, null, "s1", 1, 1L));
+        byte[] batch = Arrays.copyOf(first, first.length * 2);
+        System.arraycopy(first, 0, batch, first.length, first.length);
+        assertEquals(pipeline.laneFor("gateways/gw-1", new byte[0]), pipeline.laneFor("gateways/gw-1", batch));
+    }
+
+    @Test
+    void shouldKeepSensorOrderAcrossBatchesLedByDifferentSensors() {
+        List<Integer> sequence = new CopyOnWriteArrayList<>();
+        pipeline = new MessagePipeline(64, 4, MessagePipeline.OverflowPolicy.BLOCK, (topic, payload) -> {
+            String json = new String(payload, StandardCharsets.UTF_8);
+            if (json.startsWith("[{\"sensorId\":\"slow\"")) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(1); // Batches led by one sensor would fall behind the others
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            sequence.add(Integer.parseInt(json.substring(json.indexOf("\"seq\":") + 6, json.indexOf('}', json.indexOf("\"seq\":")))));
+        });
+        String fast = IntStream.range(0, 100).mapToObj(i -> "fast-" + i)
+                .filter(id -> pipeline.laneFor("t", single(id)) != pipeline.laneFor("t", single("slow")))
+                .findFirst().orElseThrow(); // Leaders whose own readings take different lanes
+
+        for (int seq = 0; seq < 200; seq++) {
+            String leader = seq % 2 == 0 ? "slow" : fast;
+            pipeline.accept("gateways/gw-1", ("[{\"sensorId\":\"" + leader + "\",\"value\":1},"
+                    + "{\"sensorId\":\"x\",\"seq\":" + seq + "}]").getBytes(StandardCharsets.UTF_8));
+        }
+
+        await().atMost(5, TimeUnit.SECONDS).until(() -> pipeline.getProcessedCount() == 200);
+        assertEquals(IntStream.range(0, 200).boxed().toList(), sequence);
+    }
+
+    private static byte[] single(String sensorId) {
+        return ("{\"sensorId\":\"" + sensorId + "\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void shouldReportPerLaneUtilization() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        pipeline = new MessagePipeline(8, 2, MessagePipeline.OverflowPolicy.BLOCK, (topic, payload) -> awaitQuietly(release));
+        byte[] hot = "{\"sensorId\":\"hot\"}".getBytes(StandardCharsets.UTF_8);
+        int hotLane = pipeline.laneFor("t", hot);
+
+        pipeline.accept("t", hot);
+        pipeline.accept("t", hot);
+        Thread.sleep(100);
+        release.countDown();
+
+        await().atMost(2, TimeUnit.SECONDS).until(() -> pipeline.getProcessedCount() == 2);
+        assertEquals(2, pipeline.getLaneProcessedCount(hotLane));
+        assertEquals(0, pipeline.getLaneProcessedCount(1 - hotLane));
+        assertTrue(pipeline.getLaneBusyNanos(hotLane) >= TimeUnit.MILLISECONDS.toNanos(90));
+        assertTrue(pipeline.getLaneUtilization(hotLane) > pipeline.getLaneUtilization(1 - hotLane));
+        assertEquals(16, pipeline.getCapacity());
+    }
+
+    @Test
+    void shouldRejectInvalidSettings() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new MessagePipeline(0, 1, MessagePipeline.OverflowPolicy.BLOCK, (t, p) -> {
+                }));
+        assertThrows(IllegalArgumentException.class,
+                () -> new MessagePipeline(1, 0, MessagePipeline.OverflowPolicy.BLOCK, (t, p) -> {
+                }));
+        assertThrows(IllegalArgumentException.class, () -> MessagePipeline.OverflowPolicy.parse("sometimes"));
+        assertEquals(MessagePipeline.OverflowPolicy.DROP, MessagePipeline.OverflowPolicy.parse("drop"));
+        assertEquals(MessagePipeline.OverflowPolicy.BLOCK, MessagePipeline.OverflowPolicy.parse(null));
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
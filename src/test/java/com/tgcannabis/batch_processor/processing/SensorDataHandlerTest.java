@@ -6,7 +6,15 @@ import com.tgcannabis.batch_processor.kafka.KafkaService;
 import com.tgcannabis.batch_processor.model.SensorData;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.Mockito.*;
 
 public class SensorDataHandlerTest {
@@ -36,10 +44,73 @@ public class SensorDataHandlerTest {
 
         handler.accept("sensors/temperature", json);
 
-        verify(kafkaService, times(1)).sendMessage(eq("sensor_1"), eq(json));
+        verify(kafkaService, times(1)).sendPayload(eq("sensor_1"), aryEq(json.getBytes(StandardCharsets.UTF_8)));
         verify(influxDbService, times(1)).writeSensorData(eq(data), eq("sensors/temperature"));
     }
 
+    @Test
+    void shouldForwardOriginalPayloadBufferToKafka() {
+        byte[] payload = gson.toJson(new SensorData("temperature", "growlab", "sensor_1", 24.5, 1L))
+                .getBytes(StandardCharsets.UTF_8);
+
+        handler.accept("sensors/temperature", payload);
+
+        verify(kafkaService, times(1)).sendPayload(eq("sensor_1"), same(payload));
+    }
+
+    @Test
+    void shouldFeedRollupAggregatorAfterWritingRawReading() {
+        SensorRollupAggregator aggregator = mock(SensorRollupAggregator.class);
+        SensorDataHandler rollupHandler = SensorDataHandler.builder(kafkaService, influxDbService)
+                .rollupAggregator(aggregator).build();
+        SensorData data = new SensorData("temperature", "growlab", "sensor_1", 24.5, 1L);
+
+        rollupHandler.accept("sensors/temperature", gson.toJson(data));
+
+        var inOrder = inOrder(influxDbService, aggregator);
+        inOrder.verify(influxDbService).writeSensorData(eq(data), eq("sensors/temperature"));
+        inOrder.verify(aggregator).accept(eq(data));
+    }
+
+    @Test
+    void shouldRouteKafkaPayloadThroughCompressor() {
+        SwingingDoorCompressor compressor = mock(SwingingDoorCompressor.class);
+        SensorDataHandler compressingHandler = SensorDataHandler.builder(kafkaService, influxDbService)
+                .kafkaCompressor(compressor).build();
+        SensorData data = new SensorData("soil_moisture", "growlab", "sensor_1", 40.0, 1L);
+        byte[] payload = gson.toJson(data).getBytes(StandardCharsets.UTF_8);
+
+        compressingHandler.accept("sensors/soil", payload);
+
+        verify(compressor).accept(eq(data), same(payload));
+        verify(kafkaService, never()).sendPayload(any(), any());
+        verify(influxDbService).writeSensorData(eq(data), eq("sensors/soil"));
+    }
+
+    @Test
+    void shouldDropRedeliveredReadingBeforeAnySink() {
+        SensorDataHandler dedupHandler = SensorDataHandler.builder(kafkaService, influxDbService)
+                .duplicateFilter(new DuplicateFilter(8, 100)).build();
+        String json = gson.toJson(new SensorData("temperature", "growlab", "sensor_1", 24.5, 1L));
+
+        dedupHandler.accept("sensors/temperature", json);
+        dedupHandler.accept("sensors/temperature", json);
+
+        verify(kafkaService, times(1)).sendPayload(eq("sensor_1"), any());
+        verify(influxDbService, times(1)).writeSensorData(any(), any());
+    }
+
+    @Test
+    void shouldFallBackToGsonForUnknownShapes() {
+        String json = "{\"sensorId\":\"sensor_1\",\"sensorType\":\"temperature\",\"firmware\":\"1.2\",\"value\":\"24.5\"}";
+
+        handler.accept("sensors/temperature", json);
+
+        SensorData expected = new SensorData("temperature", null, "sensor_1", 24.5, 0L);
+        verify(kafkaService, times(1)).sendPayload(eq("sensor_1"), aryEq(json.getBytes(StandardCharsets.UTF_8)));
+        verify(influxDbService, times(1)).writeSensorData(eq(expected), eq("sensors/temperature"));
+    }
+
     @Test
     void shouldIgnoreMalformedJson() {
         String malformedJson = "{not a json}";
@@ -74,4 +145,148 @@ public class SensorDataHandlerTest {
         verifyNoInteractions(kafkaService);
         verifyNoInteractions(influxDbService);
     }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void shouldSplitJsonArraysIntoChunkedSinkCalls() {
+        int count = SensorDataHandler.READING_CHUNK + 6;
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) json.append(",\n");
+            json.append(gson.toJson(new SensorData("temperature", "growlab", "sensor_" + i, i, 1L)));
+        }
+        json.append(']');
+
+        handler.accept("sensors/gateway", json.toString());
+
+        ArgumentCaptor<List<String>> keys = ArgumentCaptor.forClass(List.class);
+        ArgumentCaptor<List<byte[]>> values = ArgumentCaptor.forClass(List.class);
+        verify(kafkaService, times(2)).sendPayloads(keys.capture(), values.capture());
+        assertEquals(SensorDataHandler.READING_CHUNK, keys.getAllValues().get(0).size());
+        assertEquals("sensor_" + (count - 1), keys.getAllValues().get(1).get(5));
+        assertEquals(gson.toJson(new SensorData("temperature", "growlab", "sensor_0", 0, 1L)),
+                new String(values.getAllValues().get(0).get(0), StandardCharsets.UTF_8));
+
+        ArgumentCaptor<List<SensorData>> batches = ArgumentCaptor.forClass(List.class);
+        verify(influxDbService, times(2)).writeSensorDataBatch(batches.capture(), eq("sensors/gateway"));
+        assertEquals(count, batches.getAllValues().stream().mapToInt(List::size).sum());
+        verify(kafkaService, never()).sendPayload(any(), any());
+        verify(influxDbService, never()).writeSensorData(any(), any());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void shouldKeepValidReadingsOfNewlineDelimitedMessage() {
+        SensorDataHandler dedupHandler = SensorDataHandler.builder(kafkaService, influxDbService)
+                .duplicateFilter(new DuplicateFilter(8, 100)).build();
+        String first = gson.toJson(new SensorData("temperature", "growlab", "sensor_1", 24.5, 1L));
+        String json = first + "\n"
+                + "{\"sensorId\":null}\n"                                // Incomplete
+                + "{\"sensorId\":\"sensor_2\",\"value\":\"x\"}\n"        // Not a number
+                + first + "\n"                                             // Redelivered
+                + "{\"sensorId\":\"sensor_3\",\"firmware\":\"1\"}\n"     // Gson fallback
+                + "{\"sensorId\":";                                       // Truncated
+
+        dedupHandler.accept("sensors/gateway", json);
+
+        ArgumentCaptor<List<SensorData>> batch = ArgumentCaptor.forClass(List.class);
+        verify(influxDbService).writeSensorDataBatch(batch.capture(), eq("sensors/gateway"));
+        assertEquals(List.of("sensor_1", "sensor_3"), batch.getValue().stream().map(SensorData::getSensorId).toList());
+        verify(kafkaService).sendPayloads(eq(List.of("sensor_1", "sensor_3")), any());
+    }
+
+    @Test
+    void shouldRouteReadingsOfMultiReadingMessageThroughCompressor() {
+        SwingingDoorCompressor compressor = mock(SwingingDoorCompressor.class);
+        SensorDataHandler compressingHandler = SensorDataHandler.builder(kafkaService, influxDbService)
+                .kafkaCompressor(compressor).build();
+        SensorData first = new SensorData("soil_moisture", "growlab", "sensor_1", 40.0, 1L);
+        SensorData second = new SensorData("soil_moisture", "growlab", "sensor_1", 41.0, 2L);
+
+        compressingHandler.accept("sensors/soil", "[" + gson.toJson(first) + "," + gson.toJson(second) + "]");
+
+        verify(compressor).accept(eq(first), aryEq(gson.toJson(first).getBytes(StandardCharsets.UTF_8)));
+        verify(compressor).accept(eq(second), any());
+        verifyNoInteractions(kafkaService);
+        verify(influxDbService).writeSensorDataBatch(eq(List.of(first, second)), eq("sensors/soil"));
+    }
+
+    @Test
+    void shouldDecodeConcatenatedBinaryRecordsAndForwardJsonToKafka() {
+        BinarySensorCodec codec = new BinarySensorCodec("/bin", List.of("sensor_1"));
+        SensorDataHandler binaryHandler = SensorDataHandler.builder(kafkaService, influxDbService)
+                .binaryCodec(codec).build();
+        SensorData first = new SensorData("temperature", "growlab", "sensor_1", 24.5, 1L);
+        SensorData second = new SensorData("humidity", "growlab", "sensor_9", 61.3, 2L);
+        byte[] firstRecord = codec.encode(first);
+        byte[] payload = Arrays.copyOf(firstRecord, firstRecord.length + codec.encode(second).length);
+        System.arraycopy(codec.encode(second), 0, payload, firstRecord.length, payload.length - firstRecord.length);
+
+        binaryHandler.accept("sensors/gateway", payload); // Recognised by its first byte
+
+        verify(kafkaService).sendPayloads(eq(List.of("sensor_1", "sensor_9")),
+                argThat(values -> gson.toJson(first).equals(new String(values.get(0), StandardCharsets.UTF_8))
+                        && gson.toJson(second).equals(new String(values.get(1), StandardCharsets.UTF_8))));
+        verify(influxDbService).writeSensorDataBatch(eq(List.of(first, second)), eq("sensors/gateway"));
+    }
+
+    @Test
+    void shouldKeepDecodedRecordsBeforeCorruptOne() {
+        BinarySensorCodec codec = new BinarySensorCodec("/bin", List.of());
+        SensorDataHandler binaryHandler = SensorDataHandler.builder(kafkaService, influxDbService)
+                .binaryCodec(codec).build();
+        SensorData data = new SensorData("temperature", "growlab", "sensor_1", 24.5, 1L);
+        byte[] record = codec.encode(data);
+        byte[] payload = Arrays.copyOf(record, record.length + 5); // Followed by a truncated record
+        payload[record.length] = BinarySensorCodec.MAGIC;
+
+        binaryHandler.accept("sensors/gateway", payload);
+
+        verify(influxDbService).writeSensorDataBatch(eq(List.of(data)), eq("sensors/gateway"));
+    }
+
+    @Test
+    void shouldNotTryJsonOnBinaryTopics() {
+        SensorData data = new SensorData("temperature", "growlab", "sensor_1", 24.5, 1L);
+
+        handler.accept("sensors/sensor_1/bin", gson.toJson(data)); // Binary topics need the codec's suffix
+        verify(influxDbService).writeSensorData(eq(data), any());
+
+        SensorDataHandler binaryHandler = SensorDataHandler.builder(kafkaService, influxDbService)
+                .binaryCodec(new BinarySensorCodec("/bin", List.of())).build();
+        binaryHandler.accept("sensors/sensor_1/bin", gson.toJson(data));
+        verify(influxDbService, times(1)).writeSensorData(any(), any());
+        verify(influxDbService, never()).writeSensorDataBatch(any(), any());
+    }
+
+    @Test
+    void shouldTakeMissingIdentifiersFromTopic() {
+        SensorDataHandler templateHandler = SensorDataHandler.builder(kafkaService, influxDbService)
+                .topicTemplate(new TopicTemplate("sensors/{location}/{sensorType}/{sensorId}")).build();
+        SensorData expected = new SensorData("temperature", "growlab", "sensor_1", 24.5, 1L);
+
+        templateHandler.accept(new String("sensors/growlab/temperature/sensor_1"), "{\"value\":24.5,\"timestamp\":1}");
+        templateHandler.accept(new String("sensors/growlab/temperature/sensor_1"), "[{\"value\":24.5,\"timestamp\":1}]");
+
+        verify(kafkaService).sendPayload(eq("sensor_1"), aryEq(gson.toJson(expected).getBytes(StandardCharsets.UTF_8)));
+        verify(kafkaService).sendPayloads(eq(List.of("sensor_1")), any());
+        ArgumentCaptor<String> topics = ArgumentCaptor.forClass(String.class);
+        verify(influxDbService).writeSensorData(eq(expected), topics.capture());
+        verify(influxDbService).writeSensorDataBatch(eq(List.of(expected)), topics.capture());
+        assertSame(topics.getAllValues().get(0), topics.getAllValues().get(1)); // Canonical topic instance
+    }
+
+    @Test
+    void shouldTakeBinarySensorIdFromTopic() {
+        BinarySensorCodec codec = new BinarySensorCodec("/bin", List.of());
+        SensorDataHandler templateHandler = SensorDataHandler.builder(kafkaService, influxDbService)
+                .binaryCodec(codec).topicTemplate(new TopicTemplate("sensors/{sensorId}/bin")).build();
+
+        templateHandler.accept("sensors/sensor_1/bin", codec.encode(new SensorData("co2", null, null, 800, 1L)));
+        templateHandler.accept("other/bin", codec.encode(new SensorData("co2", null, null, 800, 1L))); // No ID
+
+        verify(influxDbService).writeSensorDataBatch(eq(List.of(new SensorData("co2", null, "sensor_1", 800, 1L))),
+                eq("sensors/sensor_1/bin"));
+        verifyNoMoreInteractions(influxDbService);
+    }
 }
@@ -0,0 +1,163 @@
+package com.tgcannabis.batch_processor.processing;
+
+import com.google.gson.Gson;
+import com.tgcannabis.batch_processor.model.SensorData;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SensorDataParserTest {
+
+    private final Gson gson = new Gson();
+
+    private static SensorData parse(String json) {
+        return SensorDataParser.parse(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void shouldParseAllFields() {
+        SensorData data = parse("{\"sensorType\":\"temperature\",\"location\":\"growlab\","
+                + "\"sensorId\":\"sensor_1\",\"value\":24.5,\"timestamp\":1713370000000}");
+
+        assertEquals(new SensorData("temperature", "growlab", "sensor_1", 24.5, 1713370000000L), data);
+    }
+
+    @Test
+    void shouldMatchGsonOutput() {
+        SensorData original = new SensorData("humidity", "greenhouse-1", "sensor-42", -0.125, 1L);
+        String json = gson.toJson(original);
+
+        assertEquals(gson.fromJson(json, SensorData.class), parse(json));
+    }
+
+    @Test
+    void shouldHandleWhitespaceNullsAndMissingFields() {
+        SensorData data = parse(" {\n \"sensorId\" : \"s1\" ,\t\"location\": null, \"value\": 3 }\r\n");
+
+        assertNotNull(data);
+        assertEquals("s1", data.getSensorId());
+        assertNull(data.getLocation());
+        assertNull(data.getSensorType());
+        assertEquals(3.0, data.getValue());
+        assertEquals(0L, data.getTimestamp());
+    }
+
+    @Test
+    void shouldDecodeNonAsciiStrings() {
+        SensorData data = parse("{\"sensorId\":\"s1\",\"location\":\"invernadero-ñ\"}");
+
+        assertNotNull(data);
+        assertEquals("invernadero-ñ", data.getLocation());
+    }
+
+    @Test
+    void shouldParseNumbersExactlyLikeDoubleParseDouble() {
+        Random random = new Random(42);
+        String[] literals = {"0", "-0", "0.1", "1e3", "1E-7", "123456789.123456789", "9007199254740993",
+                "2.2250738585072014E-308", "1.7976931348623157e308", "4.35", "100.0001", "-273.15"};
+        for (String literal : literals) {
+            assertParsedValue(literal);
+        }
+        for (int i = 0; i < 10_000; i++) {
+            assertParsedValue(Double.toString(random.nextDouble() * 200 - 100));
+            assertParsedValue(String.format("%.2f", random.nextDouble() * 100).replace(',', '.'));
+        }
+    }
+
+    private static void assertParsedValue(String literal) {
+        SensorData data = parse("{\"value\":" + literal + "}");
+        assertNotNull(data, literal);
+        assertEquals(Double.doubleToLongBits(Double.parseDouble(literal)), Double.doubleToLongBits(data.getValue()),
+                literal);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "",
+            "null",
+            "[]",
+            "{not a json}",
+            "{\"sensorId\":\"a\\\"b\"}",
+            "{\"sensorId\":\"s1\",\"extra\":1}",
+            "{\"sensorId\":\"s1\",\"value\":\"24.5\"}",
+            "{\"sensorId\":\"s1\",\"value\":NaN}",
+            "{\"sensorId\":\"s1\",\"timestamp\":1.5e12}",
+            "{\"sensorId\":\"s1\",\"timestamp\":12345678901234567890}",
+            "{\"sensorId\":\"s1\"",
+            "{\"sensorId\":\"s1\"} trailing",
+            "{\"sensorId\":\"s1\",}"
+    })
+    void shouldRejectUnsupportedShapes(String json) {
+        assertNull(parse(json));
+    }
+
+    @Test
+    void shouldParseEmptyObject() {
+        assertEquals(new SensorData(), parse("{ }"));
+    }
+
+    @Test
+    void shouldHashSensorIdWithoutParsing() {
+        int hash = SensorDataParser.sensorIdHash(bytes("{\"sensorId\":\"sensor-1\",\"value\":1}"), 0);
+
+        assertEquals(hash, SensorDataParser.sensorIdHash(bytes("{ \"value\" : 2, \"sensorId\" : \"sensor-1\" }"), 0));
+        assertNotEquals(hash, SensorDataParser.sensorIdHash(bytes("{\"sensorId\":\"sensor-2\"}"), 0));
+        assertEquals(7, SensorDataParser.sensorIdHash(bytes("{\"location\":\"sensorId\"}"), 7));
+        assertEquals(7, SensorDataParser.sensorIdHash(bytes("{\"sensorId\":null}"), 7));
+        assertEquals(7, SensorDataParser.sensorIdHash(new byte[0], 7));
+    }
+
+    private static byte[] bytes(String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> split(String json) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        SensorDataParser.Readings readings = SensorDataParser.readings(bytes);
+        List<String> result = new ArrayList<>();
+        while (readings.next()) {
+            result.add(new String(bytes, readings.start(), readings.end() - readings.start(), StandardCharsets.UTF_8));
+        }
+        if (readings.isMalformed()) result.add("<malformed>");
+        return result;
+    }
+
+    @Test
+    void shouldSplitJsonArrays() {
+        assertEquals(List.of("{\"sensorId\":\"a\"}", "{\"sensorId\":\"b\",\"tags\":{\"x\":[1,2]}}"),
+                split(" [ {\"sensorId\":\"a\"} ,\n{\"sensorId\":\"b\",\"tags\":{\"x\":[1,2]}} ] "));
+        assertEquals(List.of(), split("[]"));
+    }
+
+    @Test
+    void shouldSplitNewlineDelimitedObjects() {
+        assertEquals(List.of("{\"sensorId\":\"a}\\\"\"}", "{\"sensorId\":\"b\"}"),
+                split("{\"sensorId\":\"a}\\\"\"}\r\n{\"sensorId\":\"b\"}\n"));
+    }
+
+    @Test
+    void shouldStopAtMalformedReadings() {
+        assertEquals(List.of("{\"sensorId\":\"a\"}", "<malformed>"), split("[{\"sensorId\":\"a\"},]"));
+        assertEquals(List.of("{\"sensorId\":\"a\"}", "<malformed>"), split("[{\"sensorId\":\"a\"} {}]"));
+        assertEquals(List.of("{\"sensorId\":\"a\"}", "<malformed>"), split("{\"sensorId\":\"a\"}\n{\"sensorId\":"));
+        assertEquals(List.of("<malformed>"), split("[1, 2]"));
+        assertEquals(List.of("{}", "<malformed>"), split("[{}] trailing"));
+        assertNull(SensorDataParser.readings("42".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void shouldDetectMultiReadingPayloads() {
+        assertTrue(SensorDataParser.isMultiReading("[{}]".getBytes(StandardCharsets.UTF_8)));
+        assertTrue(SensorDataParser.isMultiReading("{}\n{}".getBytes(StandardCharsets.UTF_8)));
+        assertFalse(SensorDataParser.isMultiReading("{\"sensorId\":\"s1\"}\n".getBytes(StandardCharsets.UTF_8)));
+        assertFalse(SensorDataParser.isMultiReading("{not a json}".getBytes(StandardCharsets.UTF_8)));
+        assertFalse(SensorDataParser.isMultiReading(new byte[0]));
+    }
+}
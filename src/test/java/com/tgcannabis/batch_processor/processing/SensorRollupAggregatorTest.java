@@ -0,0 +1,195 @@
+package com.tgcannabis.batch_processor.processing;
+
+import com.tgcannabis.batch_processor.model.SensorData;
+import com.tgcannabis.batch_processor.model.SensorRollup;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SensorRollupAggregatorTest {
+
+    private static final long MINUTE = 60_000;
+
+    private final List<SensorRollup> emitted = new CopyOnWriteArrayList<>();
+    private final AtomicLong clock = new AtomicLong(1_000_000);
+    private SensorRollupAggregator aggregator;
+
+    @AfterEach
+    void tearDown() {
+        if (aggregator != null) aggregator.close();
+    }
+
+    private SensorRollupAggregator create(String windows, long latenessMs, int maxSeries) {
+        aggregator = new SensorRollupAggregator(windows, latenessMs, maxSeries, emitted::add, clock::get);
+        return aggregator;
+    }
+
+    private static SensorData reading(String sensorId, double value, long timestamp) {
+        return new SensorData("temperature", "room-1", sensorId, value, timestamp);
+    }
+
+    @Test
+    void shouldEmitStatisticsWhenWatermarkPassesWindowEnd() {
+        create("1m", 5_000, 16);
+
+        aggregator.accept(reading("s1", 20.0, 1_000));
+        aggregator.accept(reading("s1", 24.0, 30_000));
+        aggregator.accept(reading("s1", 22.0, 50_000));
+        aggregator.accept(reading("s1", 30.0, MINUTE + 1_000)); // Watermark 56s: window still open
+        assertTrue(emitted.isEmpty());
+
+        aggregator.accept(reading("s1", 31.0, MINUTE + 5_000)); // Watermark 60s closes [0, 60s)
+
+        assertEquals(1, emitted.size());
+        SensorRollup rollup = emitted.get(0);
+        assertEquals(new SensorRollup("s1", "temperature", "room-1", "1m", 0, 3, 20.0, 24.0, 22.0, 22.0), rollup);
+    }
+
+    @Test
+    void shouldIncludeReadingsWithinAllowedLatenessAndCountLaterOnes() {
+        create("1m", 5_000, 16);
+
+        aggregator.accept(reading("s1", 10.0, 58_000));
+        aggregator.accept(reading("s1", 11.0, MINUTE + 2_000));
+        aggregator.accept(reading("s1", 5.0, 59_000)); // Out of order but within lateness; not the latest reading
+        aggregator.accept(reading("s1", 12.0, MINUTE + 10_000)); // Closes [0, 60s)
+        aggregator.accept(reading("s1", 1.0, 40_000)); // Too late
+
+        assertEquals(1, emitted.size());
+        SensorRollup rollup = emitted.get(0);
+        assertEquals(2, rollup.count());
+        assertEquals(5.0, rollup.min());
+        assertEquals(5.0, rollup.last());
+        assertEquals(1, aggregator.getLateReadings());
+    }
+
+    @Test
+    void shouldAggregateSeveralWindowSizesIndependently() {
+        create("1m,1h", 0, 16);
+
+        for (int minute = 0; minute < 61; minute++) {
+            aggregator.accept(reading("s1", minute, minute * MINUTE));
+        }
+
+        List<SensorRollup> minutes = emitted.stream().filter(r -> r.window().equals("1m")).toList();
+        List<SensorRollup> hours = emitted.stream().filter(r -> r.window().equals("1h")).toList();
+        assertEquals(60, minutes.size());
+        assertEquals(1, hours.size());
+        assertEquals(60, hours.get(0).count());
+        assertEquals(29.5, hours.get(0).mean());
+        assertEquals(59.0, hours.get(0).max());
+    }
+
+    @Test
+    void shouldKeepSeriesSeparatePerSensor() {
+        create("1m", 0, 16);
+
+        aggregator.accept(reading("s1", 1.0, 0));
+        aggregator.accept(reading("s2", 100.0, 0));
+        aggregator.accept(reading("s1", 2.0, MINUTE));
+        aggregator.accept(reading("s2", 200.0, MINUTE));
+
+        assertEquals(2, emitted.size());
+        assertEquals(1.0, emitted.stream().filter(r -> r.sensorId().equals("s1")).findFirst().orElseThrow().max());
+        assertEquals(100.0, emitted.stream().filter(r -> r.sensorId().equals("s2")).findFirst().orElseThrow().max());
+        assertEquals(2, aggregator.getSeriesCount());
+    }
+
+    @Test
+    void shouldCloseWindowsOfIdleSensorsOnSweep() {
+        create("1m", 5_000, 16);
+        aggregator.accept(reading("s1", 1.0, 10_000));
+
+        clock.addAndGet(30_000);
+        aggregator.sweep();
+        assertTrue(emitted.isEmpty());
+
+        clock.addAndGet(30_000); // Event time now presumed at 70s, watermark 65s
+        aggregator.sweep();
+        assertEquals(1, emitted.size());
+    }
+
+    @Test
+    void shouldStopTrackingNewSeriesBeyondLimit() {
+        create("1m", 0, 1);
+
+        aggregator.accept(reading("s1", 1.0, 0));
+        aggregator.accept(reading("s2", 1.0, 0));
+
+        assertEquals(1, aggregator.getSeriesCount());
+        assertEquals(1, aggregator.getUntrackedReadings());
+    }
+
+    @Test
+    void shouldReuseStateOfIdleSeriesForNewSensors() {
+        create("1m", 5_000, 1);
+        aggregator.accept(reading("s1", 1.0, 10_000));
+        for (int i = 0; i < 1_000; i++) {
+            aggregator.accept(reading("s2", 2.0, 10_000));
+        }
+        assertEquals(1_000, aggregator.getUntrackedReadings());
+
+        clock.addAndGet(60_000); // Window closed, but not idle for lateness + window yet
+        aggregator.sweep();
+        assertEquals(1, emitted.size());
+        assertEquals(1, aggregator.getSeriesCount());
+
+        clock.addAndGet(10_000);
+        aggregator.sweep();
+        assertEquals(0, aggregator.getSeriesCount());
+        assertEquals(1, aggregator.getEvictedSeries());
+
+        aggregator.accept(reading("s2", 2.0, 80_000));
+        aggregator.accept(reading("s2", 4.0, 2 * MINUTE + 5_000));
+        assertEquals(1, aggregator.getSeriesCount());
+        assertEquals(new SensorRollup("s2", "temperature", "room-1", "1m", MINUTE, 1, 2.0, 2.0, 2.0, 2.0),
+                emitted.get(1));
+    }
+
+    @Test
+    void shouldKeepSeriesOfOtherTypeWhenFirstTypeIsDropped() {
+        create("1m", 5_000, 16);
+        aggregator.accept(reading("s1", 20.0, 10_000));
+        clock.addAndGet(40_000);
+        aggregator.accept(new SensorData("humidity", "room-1", "s1", 40.0, 50_000));
+
+        clock.addAndGet(30_000); // Temperature idle for lateness + window, humidity not
+        aggregator.sweep();
+        assertEquals(1, aggregator.getEvictedSeries());
+        assertEquals(1, aggregator.getSeriesCount());
+        assertEquals(2, emitted.size());
+
+        aggregator.accept(new SensorData("humidity", "room-1", "s1", 45.0, 55_000)); // Window already emitted
+        aggregator.accept(new SensorData("humidity", "room-1", "s1", 50.0, 2 * MINUTE + 5_000));
+
+        assertEquals(1, aggregator.getSeriesCount());
+        assertEquals(1, aggregator.getLateReadings());
+        assertEquals(1, emitted.stream().filter(r -> r.sensorType().equals("humidity") && r.windowStart() == 0).count());
+    }
+
+    @Test
+    void shouldEmitOpenWindowsOnClose() {
+        create("1m,1h", 0, 16);
+        aggregator.accept(reading("s1", 1.0, 0));
+
+        aggregator.close();
+
+        assertEquals(2, emitted.size());
+        assertEquals(2, aggregator.getEmittedWindows());
+    }
+
+    @Test
+    void shouldParseWindowSizes() {
+        assertEquals(500, SensorRollupAggregator.parseWindow("500ms"));
+        assertEquals(30_000, SensorRollupAggregator.parseWindow("30s"));
+        assertEquals(MINUTE, SensorRollupAggregator.parseWindow("1m"));
+        assertEquals(3_600_000, SensorRollupAggregator.parseWindow(" 1H "));
+        assertThrows(IllegalArgumentException.class, () -> SensorRollupAggregator.parseWindow("1 minute"));
+        assertThrows(IllegalArgumentException.class, () -> SensorRollupAggregator.parseWindow("0m"));
+    }
+}
@@ -0,0 +1,126 @@
+package com.tgcannabis.batch_processor.processing;
+
+import com.tgcannabis.batch_processor.kafka.SensorWindowDecoder;
+import com.tgcannabis.batch_processor.model.SensorData;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SensorWindowBatcherTest {
+
+    private static final long BASE_TIMESTAMP = 1_713_370_000_000L;
+
+    private final List<Map.Entry<String, byte[]>> emitted = new CopyOnWriteArrayList<>();
+
+    private SensorWindowBatcher create(long windowMs, int maxReadings) {
+        return new SensorWindowBatcher(windowMs, maxReadings, (key, value) -> emitted.add(Map.entry(key, value)));
+    }
+
+    private static byte[] json(SensorData data) {
+        return ("{\"sensorType\":\"" + data.getSensorType() + "\",\"location\":\"" + data.getLocation()
+                + "\",\"sensorId\":\"" + data.getSensorId() + "\",\"value\":" + data.getValue()
+                + ",\"timestamp\":" + data.getTimestamp() + "}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static SensorData reading(String sensorId, String location, int i) {
+        return new SensorData("temperature", location, sensorId, 20 + i * 0.25, BASE_TIMESTAMP + i * 1_000L);
+    }
+
+    @Test
+    void shouldEmitWindowOnceFull() {
+        try (SensorWindowBatcher batcher = create(60_000, 3)) {
+            for (int i = 0; i < 4; i++) {
+                SensorData data = reading("s1", "bed-1", i);
+                batcher.accept(data, json(data));
+            }
+
+            assertEquals(1, emitted.size());
+            assertEquals("s1", emitted.getFirst().getKey());
+            assertEquals(List.of(reading("s1", "bed-1", 0), reading("s1", "bed-1", 1), reading("s1", "bed-1", 2)),
+                    SensorWindowDecoder.decode(emitted.getFirst().getValue()));
+            assertEquals(1, batcher.getOpenWindows());
+        }
+    }
+
+    @Test
+    void shouldKeepSensorsApartAndEmitOpenWindowsOnClose() {
+        SensorWindowBatcher batcher = create(60_000, 100);
+        for (int i = 0; i < 5; i++) {
+            for (String sensorId : List.of("s1", "s2")) {
+                SensorData data = reading(sensorId, "bed-1", i);
+                batcher.accept(data, json(data));
+            }
+        }
+        assertTrue(emitted.isEmpty());
+
+        batcher.close();
+
+        assertEquals(2, emitted.size());
+        for (Map.Entry<String, byte[]> record : emitted) {
+            List<SensorData> readings = SensorWindowDecoder.decode(record.getValue());
+            assertEquals(5, readings.size());
+            assertTrue(readings.stream().allMatch(r -> r.getSensorId().equals(record.getKey())));
+        }
+        assertEquals(10, batcher.getReadingCount());
+        assertEquals(2, batcher.getWindowCount());
+        assertTrue(batcher.getEncodedBytes() < batcher.getPayloadBytes());
+    }
+
+    @Test
+    void shouldStartNewWindowWhenLocationChanges() {
+        try (SensorWindowBatcher batcher = create(60_000, 100)) {
+            SensorData first = reading("s1", "bed-1", 0);
+            SensorData moved = reading("s1", "bed-2", 1);
+            batcher.accept(first, json(first));
+            batcher.accept(moved, json(moved));
+
+            assertEquals(1, emitted.size());
+            assertEquals(List.of(first), SensorWindowDecoder.decode(emitted.getFirst().getValue()));
+        }
+        assertEquals(List.of(reading("s1", "bed-2", 1)), SensorWindowDecoder.decode(emitted.get(1).getValue()));
+    }
+
+    @Test
+    void shouldEmitWindowsOnceOld() throws InterruptedException {
+        try (SensorWindowBatcher batcher = create(50, 100)) {
+            SensorData data = reading("s1", "bed-1", 0);
+            batcher.accept(data, json(data));
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (emitted.isEmpty() && System.nanoTime() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+
+            assertEquals(1, emitted.size());
+            assertEquals(0, batcher.getOpenWindows());
+        }
+    }
+
+    @Test
+    void shouldPassThroughPayloadsItCannotParse() {
+        try (SensorWindowBatcher batcher = create(60_000, 100)) {
+            byte[] payload = "not json".getBytes(StandardCharsets.UTF_8);
+            batcher.acceptPayload("s1", payload);
+            SensorData data = reading("s1", "bed-1", 0);
+            batcher.acceptPayload("s1", json(data));
+
+            assertEquals(1, emitted.size());
+            assertSame(payload, emitted.getFirst().getValue());
+            assertEquals(1, batcher.getPassedThroughCount());
+            assertEquals(1, batcher.getOpenWindows());
+        }
+    }
+
+    @Test
+    void shouldParseFormat() {
+        assertEquals(SensorWindowBatcher.Format.JSON, SensorWindowBatcher.Format.parse(null));
+        assertEquals(SensorWindowBatcher.Format.WINDOWED, SensorWindowBatcher.Format.parse(" windowed "));
+        assertThrows(IllegalArgumentException.class, () -> SensorWindowBatcher.Format.parse("avro"));
+    }
+}
@@ -0,0 +1,159 @@
+package com.tgcannabis.batch_processor.processing;
+
+import com.tgcannabis.batch_processor.model.SensorData;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SwingingDoorCompressorTest {
+
+    /** Forwarded payloads; each payload is the index of its reading. */
+    private final List<Integer> forwarded = new ArrayList<>();
+
+    private SwingingDoorCompressor create(SwingingDoorCompressor.Mode mode, double tolerance, long maxSilenceMs) {
+        return new SwingingDoorCompressor(mode, Map.of("soil_moisture", tolerance), maxSilenceMs,
+                (sensorId, payload) -> forwarded.add(Integer.parseInt(new String(payload, StandardCharsets.UTF_8))));
+    }
+
+    private static void offer(SwingingDoorCompressor compressor, List<SensorData> readings, String type,
+                              double value, long timestamp) {
+        SensorData data = new SensorData(type, "bed-1", "s1", value, timestamp);
+        readings.add(data);
+        compressor.accept(data, String.valueOf(readings.size() - 1).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void shouldRebuildSignalWithinToleranceFromForwardedReadings() {
+        double tolerance = 0.5;
+        SwingingDoorCompressor compressor = create(SwingingDoorCompressor.Mode.SWINGING_DOOR, tolerance, Long.MAX_VALUE);
+        List<SensorData> readings = new ArrayList<>();
+        Random random = new Random(42);
+        double value = 40;
+        for (int i = 0; i < 5_000; i++) {
+            value += random.nextGaussian() * 0.05 + (i % 1000 < 500 ? 0.01 : -0.01);
+            offer(compressor, readings, "soil_moisture", value, i * 1_000L);
+        }
+        compressor.close();
+
+        assertTrue(forwarded.size() < readings.size() / 5, "Expected at least 5x fewer readings, got " + forwarded.size());
+        assertEquals(0, forwarded.get(0));
+        assertEquals(readings.size() - 1, forwarded.get(forwarded.size() - 1), "Tail must be flushed on close");
+        for (int k = 1; k < forwarded.size(); k++) {
+            SensorData from = readings.get(forwarded.get(k - 1));
+            SensorData to = readings.get(forwarded.get(k));
+            for (int i = forwarded.get(k - 1) + 1; i < forwarded.get(k); i++) {
+                SensorData skipped = readings.get(i);
+                double interpolated = from.getValue() + (to.getValue() - from.getValue())
+                        * (skipped.getTimestamp() - from.getTimestamp()) / (to.getTimestamp() - from.getTimestamp());
+                assertEquals(skipped.getValue(), interpolated, tolerance + 1e-9, "Reading " + i);
+            }
+        }
+        assertEquals(readings.size(), compressor.getForwardedCount() + compressor.getSuppressedCount());
+    }
+
+    @Test
+    void shouldForwardOnlyEndpointsOfStraightLine() {
+        SwingingDoorCompressor compressor = create(SwingingDoorCompressor.Mode.SWINGING_DOOR, 0.1, Long.MAX_VALUE);
+        List<SensorData> readings = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            offer(compressor, readings, "soil_moisture", i * 0.5, i * 1_000L);
+        }
+        offer(compressor, readings, "soil_moisture", 0, 100_000L); // Breaks the trend
+
+        assertEquals(List.of(0, 99), forwarded);
+    }
+
+    @Test
+    void shouldForwardOnChangeInDeadbandMode() {
+        SwingingDoorCompressor compressor = create(SwingingDoorCompressor.Mode.DEADBAND, 1.0, Long.MAX_VALUE);
+        List<SensorData> readings = new ArrayList<>();
+        double[] values = {10, 10.5, 10.9, 11.2, 11.0, 9.9, 10.0};
+        for (int i = 0; i < values.length; i++) {
+            offer(compressor, readings, "soil_moisture", values[i], i * 1_000L);
+        }
+
+        assertEquals(List.of(0, 3, 5), forwarded);
+        assertEquals(4, compressor.getSuppressedCount());
+    }
+
+    @Test
+    void shouldForwardAtLeastOncePerMaxSilenceInterval() {
+        SwingingDoorCompressor compressor = create(SwingingDoorCompressor.Mode.SWINGING_DOOR, 1.0, 10_000);
+        List<SensorData> readings = new ArrayList<>();
+        for (int i = 0; i <= 30; i++) {
+            offer(compressor, readings, "soil_moisture", 50.0, i * 1_000L);
+        }
+
+        assertEquals(List.of(0, 10, 20, 30), forwarded);
+    }
+
+    @Test
+    void shouldForwardReadingHeldForMaxSilenceOfWallClockTime() {
+        AtomicLong nanos = new AtomicLong();
+        SwingingDoorCompressor compressor = new SwingingDoorCompressor(SwingingDoorCompressor.Mode.SWINGING_DOOR,
+                Map.of("soil_moisture", 1.0), 10_000,
+                (sensorId, payload) -> forwarded.add(Integer.parseInt(new String(payload, StandardCharsets.UTF_8))),
+                nanos::get, false);
+        List<SensorData> readings = new ArrayList<>();
+        offer(compressor, readings, "soil_moisture", 50.0, 0);
+        offer(compressor, readings, "soil_moisture", 50.0, 1_000L); // Held; the sensor then goes quiet
+
+        nanos.set(TimeUnit.SECONDS.toNanos(9));
+        compressor.sweep();
+        assertEquals(List.of(0), forwarded);
+
+        nanos.set(TimeUnit.SECONDS.toNanos(10));
+        compressor.sweep();
+        assertEquals(List.of(0, 1), forwarded);
+
+        offer(compressor, readings, "soil_moisture", 50.0, 2_000L); // The door restarts from the swept reading
+        compressor.close();
+        assertEquals(List.of(0, 1, 2), forwarded);
+    }
+
+    @Test
+    void shouldPassThroughTypesWithoutToleranceAndOutOfOrderReadings() {
+        SwingingDoorCompressor compressor = create(SwingingDoorCompressor.Mode.DEADBAND, 1.0, Long.MAX_VALUE);
+        List<SensorData> readings = new ArrayList<>();
+        offer(compressor, readings, "temperature", 20.0, 1_000L);
+        offer(compressor, readings, "temperature", 20.0, 2_000L);
+        offer(compressor, readings, "soil_moisture", 30.0, 5_000L);
+        offer(compressor, readings, "soil_moisture", 30.0, 4_000L);
+
+        assertEquals(List.of(0, 1, 2, 3), forwarded);
+    }
+
+    @Test
+    void shouldKeepStateForManySensors() {
+        SwingingDoorCompressor compressor = create(SwingingDoorCompressor.Mode.DEADBAND, 1.0, Long.MAX_VALUE);
+        for (int round = 0; round < 2; round++) {
+            for (int sensor = 0; sensor < 1_000; sensor++) {
+                compressor.accept(new SensorData("soil_moisture", "bed", "s" + sensor, 1.0, round * 1_000L + 1),
+                        "0".getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        assertEquals(1_000, compressor.getTrackedSensors());
+        assertEquals(1_000, compressor.getForwardedCount());
+        assertEquals(1_000, compressor.getSuppressedCount());
+    }
+
+    @Test
+    void shouldParseTolerancesAndModes() {
+        assertEquals(Map.of("soil_moisture", 0.5, "*", 0.1), SwingingDoorCompressor.parseTolerances(" soil_moisture=0.5, *=0.1 "));
+        assertTrue(SwingingDoorCompressor.parseTolerances("").isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> SwingingDoorCompressor.parseTolerances("soil_moisture"));
+        assertThrows(IllegalArgumentException.class, () -> SwingingDoorCompressor.parseTolerances("a=b"));
+        assertEquals(SwingingDoorCompressor.Mode.DEADBAND, SwingingDoorCompressor.Mode.parse("deadband"));
+        assertEquals(SwingingDoorCompressor.Mode.SWINGING_DOOR, SwingingDoorCompressor.Mode.parse("swinging-door"));
+        assertEquals(SwingingDoorCompressor.Mode.SWINGING_DOOR, SwingingDoorCompressor.Mode.parse(null));
+    }
+}
@@ -0,0 +1,70 @@
+package com.tgcannabis.batch_processor.processing;
+
+import com.tgcannabis.batch_processor.model.SensorData;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TopicTemplateTest {
+
+    @Test
+    void shouldExtractIdentifiersFromTopic() {
+        TopicTemplate template = new TopicTemplate("sensors/{location}/{sensorType}/{sensorId}");
+
+        TopicTemplate.Fields fields = template.match("sensors/greenhouse-1/temperature/sensor-7");
+
+        assertEquals(new TopicTemplate.Fields("sensors/greenhouse-1/temperature/sensor-7", "temperature",
+                "greenhouse-1", "sensor-7"), fields);
+        assertNull(template.match("sensors/greenhouse-1/temperature"));
+        assertNull(template.match("sensors/greenhouse-1/temperature/sensor-7/extra"));
+        assertNull(template.match("sensors//temperature/sensor-7"));
+        assertNull(template.match(null));
+    }
+
+    @Test
+    void shouldReturnCanonicalStringsForRepeatedTopics() {
+        TopicTemplate template = new TopicTemplate("sensors/{location}/{sensorType}/{sensorId}");
+
+        TopicTemplate.Fields first = template.match(new String("sensors/bed-1/co2/s1"));
+        TopicTemplate.Fields second = template.match(new String("sensors/bed-1/co2/s1"));
+
+        assertSame(first, second);
+        assertSame(first.topic(), second.topic());
+        assertEquals(1, template.getCachedTopicCount());
+        template.match("other/topic");
+        assertEquals(2, template.getCachedTopicCount()); // Misses are cached too
+    }
+
+    @Test
+    void shouldPreferLiteralSegmentsAndBacktrack() {
+        TopicTemplate template = new TopicTemplate(
+                "sensors/{location}/{sensorType}/{sensorId}, sensors/lab/+/{sensorId}/raw, gw/{sensorId}/#");
+
+        assertEquals(new TopicTemplate.Fields("sensors/lab/x/s2/raw", null, null, "s2"),
+                template.match("sensors/lab/x/s2/raw"));
+        assertEquals(new TopicTemplate.Fields("sensors/lab/co2/s3", "co2", "lab", "s3"),
+                template.match("sensors/lab/co2/s3")); // The literal branch fails, the placeholder branch matches
+        assertEquals("g1", template.match("gw/g1/a/b").sensorId());
+        assertEquals("g1", template.match("gw/g1").sensorId());
+    }
+
+    @Test
+    void shouldFillInOnlyMissingFields() {
+        TopicTemplate.Fields fields = new TopicTemplate.Fields("t", "co2", "bed-1", "s1");
+        SensorData partial = new SensorData(null, "bed-9", null, 1, 1L);
+        SensorData complete = new SensorData("co2", "bed-1", "s1", 1, 1L);
+
+        assertTrue(fields.fillIn(partial));
+        assertEquals(new SensorData("co2", "bed-9", "s1", 1, 1L), partial);
+        assertFalse(fields.fillIn(complete));
+    }
+
+    @Test
+    void shouldRejectInvalidTemplates() {
+        assertThrows(IllegalArgumentException.class, () -> new TopicTemplate("sensors/{room}"));
+        assertThrows(IllegalArgumentException.class, () -> new TopicTemplate("sensors/#/x"));
+        assertThrows(IllegalArgumentException.class, () -> new TopicTemplate("a,,b"));
+        assertNull(TopicTemplate.parse(" "));
+        assertEquals("a/{sensorId},b/#", TopicTemplate.parse("a/{sensorId}, b/#").toString());
+    }
+}